@@ -21,6 +21,8 @@ import java.util.ArrayList;
 import org.opendatakit.aggregate.client.exception.FormNotAvailableException;
 import org.opendatakit.aggregate.client.exception.RequestFailureException;
 import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.SubmissionAggregateUI;
 import org.opendatakit.common.persistence.client.exception.DatastoreFailureException;
 import org.opendatakit.common.security.client.exception.AccessDeniedException;
 
@@ -51,6 +53,16 @@ public interface FormService extends RemoteService {
   Boolean createKmlFromFilter(FilterGroup group, ArrayList<KmlSelection> kmlElementsToInclude) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException;
   
   GeopointElementList getGpsCoordnates(String formId) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException;
+
+  /**
+   * Count the submissions selected by the filter group (not just a page of them),
+   * grouped by the values of a column, and sum a numeric column in each group.
+   * 
+   * @param group
+   * @param groupBy a text, select, integer, decimal or boolean column
+   * @param summed an integer or decimal column, or null to only count
+   */
+  ArrayList<SubmissionAggregateUI> getSubmissionAggregates(FilterGroup group, Column groupBy, Column summed) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException;
   
   void deleteExport(String uri) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException;
 }
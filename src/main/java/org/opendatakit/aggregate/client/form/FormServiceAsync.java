@@ -19,6 +19,8 @@ package org.opendatakit.aggregate.client.form;
 import java.util.ArrayList;
 
 import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.SubmissionAggregateUI;
 
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
@@ -32,6 +34,9 @@ public interface FormServiceAsync {
 
   void getGpsCoordnates(String formId, AsyncCallback<GeopointElementList> callback);
 
+  void getSubmissionAggregates(FilterGroup group, Column groupBy, Column summed,
+      AsyncCallback<ArrayList<SubmissionAggregateUI>> callback);
+
   void createCsvFromFilter(FilterGroup group, AsyncCallback<Boolean> callback);
 
   void createKmlFromFilter(FilterGroup group, ArrayList<KmlSelection> kmlElementsToInclude,
@@ -18,13 +18,14 @@ package org.opendatakit.aggregate.client.popups;
 
 import com.google.gwt.safehtml.shared.SafeHtmlBuilder;
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import org.opendatakit.aggregate.client.AggregateUI;
 import org.opendatakit.aggregate.client.FilterSubTab;
 import org.opendatakit.aggregate.client.SecureGWT;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
 import org.opendatakit.aggregate.client.form.GeopointElementList;
 import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.SubmissionAggregateUI;
 import org.opendatakit.aggregate.client.submission.SubmissionUI;
 import org.opendatakit.aggregate.client.table.BinaryPopupClickHandler;
 import org.opendatakit.aggregate.client.widgets.AggregateButton;
@@ -81,6 +82,8 @@ public final class VisualizationPopup extends AbstractPopupBase {
   private static final String SUM_COLUMNS_BEGIN = " grouped by selected column above [e.g. How many ";
   private static final String SUM_COLUMNS_MIDDLE = " per ";
   private static final String SUM_COLUMNS_END = "?]";
+  private static final String AVG_COLUMNS_TXT = "AVG: Average the numeric values from that column instead of summing them";
+  private static final String NO_VALUE_TXT = "(no value)";
   private static final String GEOPOINT_TOOLTIP = "Geopoint field to map";
   private static final String GEOPOINT_BALLOON = "Choose the geopoint field to map.";
 
@@ -106,6 +109,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
   private static int SUM_CHOICE = 0;
   private static int SUM_CHOICE_COLUMN = 1;
   private static int SUM_CHOICE_TXT = 2;
+  private static int AVG_CHOICE = 0;
 
   private static final String RADIO_GROUP = "vizRadioGroup";
   private static final String RESIZE_UNITS = "px";
@@ -113,6 +117,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
   private static final String VIZ_TYPE_TOOLTIP = "Type of Visualization";
   private static final String VIZ_TYPE_BALLOON = "Choose whether you would like a pie chart, bar graph, or map.";
 
+  private final FilterGroup filterGroup;
   private final ArrayList<Column> headers;
   private final ArrayList<SubmissionUI> submissions;
 
@@ -132,6 +137,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
 
   private RadioButton tallyOccurRadio;
   private RadioButton sumColumnsRadio;
+  private RadioButton averageColumnsRadio;
   private Label sumRadioTxt;
   private InfoWindow infoWindow = null;
 
@@ -141,7 +147,8 @@ public final class VisualizationPopup extends AbstractPopupBase {
   public VisualizationPopup(FilterSubTab filterSubTab) {
     super();
 
-    formId = filterSubTab.getDisplayedFilterGroup().getFormId();
+    filterGroup = filterSubTab.getDisplayedFilterGroup();
+    formId = filterGroup.getFormId();
     headers = filterSubTab.getSubmissionTable().getHeaders();
     submissions = filterSubTab.getSubmissionTable().getSubmissions();
 
@@ -200,6 +207,9 @@ public final class VisualizationPopup extends AbstractPopupBase {
     sumTable.setWidget(1, SUM_CHOICE, sumColumnsRadio);
     sumTable.setWidget(1, SUM_CHOICE_COLUMN, dataList);
     sumTable.setWidget(1, SUM_CHOICE_TXT, sumRadioTxt);
+    averageColumnsRadio = new RadioButton(RADIO_GROUP, AVG_COLUMNS_TXT);
+    averageColumnsRadio.addClickHandler(new RadioChangeClickHandler());
+    sumTable.setWidget(2, AVG_CHOICE, averageColumnsRadio);
 
     executeButton = new AggregateButton(BasicConsts.EMPTY_STRING, "Execute the Vizualization",
         "Create the selected Vizualization.");
@@ -257,6 +267,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
       // disable data section
       tallyOccurRadio.setEnabled(false);
       sumColumnsRadio.setEnabled(false);
+      averageColumnsRadio.setEnabled(false);
       dataList.setEnabled(false);
     } else { // must be a chart if not MAP
       typeControlBar.setHTML(0, COLUMN_TEXT, COLUMN_TXT);
@@ -265,7 +276,8 @@ public final class VisualizationPopup extends AbstractPopupBase {
       // enable data section
       tallyOccurRadio.setEnabled(true);
       sumColumnsRadio.setEnabled(true);
-      dataList.setEnabled(sumColumnsRadio.getValue());
+      averageColumnsRadio.setEnabled(true);
+      dataList.setEnabled(!tallyOccurRadio.getValue());
     }
     center();
   }
@@ -279,61 +291,42 @@ public final class VisualizationPopup extends AbstractPopupBase {
         + SUM_COLUMNS_END);
   }
 
-  private DataTable createDataTable() {
+  /**
+   * @param aggregates
+   *          the groups of all the submissions selected by the filter, as
+   *          computed by the server.
+   */
+  private DataTable createDataTable(ArrayList<SubmissionAggregateUI> aggregates) {
     Column firstDataValue = columnList.getSelectedColumn();
     Column secondDataValue = dataList.getSelectedColumn();
 
     boolean tally = tallyOccurRadio.getValue();
+    boolean average = averageColumnsRadio.getValue();
 
     DataTable data = DataTable.create();
     data.addColumn(ColumnType.STRING, firstDataValue.getDisplayHeader());
     if (tally) {
       data.addColumn(ColumnType.NUMBER, "Number of Ocurrences");
+    } else if (average) {
+      data.addColumn(ColumnType.NUMBER, "Average of " + secondDataValue.getDisplayHeader());
     } else {
       data.addColumn(ColumnType.NUMBER, "Sum of " + secondDataValue.getDisplayHeader());
     }
 
-    int firstIndex = 0;
-    int secondIndex = 0;
-    int index = 0;
-    for (Column c : headers) {
-      if (c.equals(firstDataValue))
-        firstIndex = index;
-      if (c.equals(secondDataValue))
-        secondIndex = index;
-      index++;
-    }
-
-    HashMap<String, Double> aggregation = new HashMap<String, Double>();
-    for (SubmissionUI s : submissions) {
-      String label = s.getValues().get(firstIndex);
-
-      // determine submissions value
-      double addend = 0;
+    // output table
+    int i = 0;
+    for (SubmissionAggregateUI a : aggregates) {
+      Double value;
       if (tally) {
-        addend = 1;
+        value = a.getCount().doubleValue();
+      } else if (average) {
+        value = a.getAverage();
       } else {
-        try {
-          addend = Double.valueOf(s.getValues().get(secondIndex));
-        } catch (Exception e) {
-          // move on because we couldn't parse the value
-        }
+        value = a.getSum();
       }
-
-      // update running total
-      if (aggregation.containsKey(label)) {
-        aggregation.put(label, aggregation.get(label) + addend);
-      } else {
-        aggregation.put(label, addend);
-      }
-    }
-
-    // output table
-    int i = 0;
-    for (String s : aggregation.keySet()) {
       data.addRow();
-      data.setValue(i, 0, s);
-      data.setValue(i, 1, aggregation.get(s));
+      data.setValue(i, 0, (a.getGroupValue() == null) ? NO_VALUE_TXT : a.getGroupValue());
+      data.setValue(i, 1, (value == null) ? 0.0 : value);
       i++;
     }
 
@@ -345,8 +338,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
    *
    * @return
    */
-  private PieChart createPieChart() {
-    DataTable data = createDataTable();
+  private PieChart createPieChart(DataTable data) {
     PieOptions options = PieChart.createPieOptions();
     options.setWidth(chartPanel.getOffsetWidth());
     options.setHeight(chartPanel.getOffsetHeight());
@@ -359,14 +351,42 @@ public final class VisualizationPopup extends AbstractPopupBase {
    *
    * @return
    */
-  private BarChart createBarChart() {
-    DataTable data = createDataTable();
+  private BarChart createBarChart(DataTable data) {
     Options options = Options.create();
     options.setWidth(chartPanel.getOffsetWidth());
     options.setHeight(chartPanel.getOffsetHeight());
     return new BarChart(data, options);
   }
 
+  /**
+   * Ask the server to group the submissions selected by the filter (not just
+   * the page shown) and chart the groups.
+   *
+   * @param selected
+   */
+  private void requestChart(final ChartType selected) {
+    Column summed = tallyOccurRadio.getValue() ? null : dataList.getSelectedColumn();
+    SecureGWT.getFormService().getSubmissionAggregates(filterGroup,
+        columnList.getSelectedColumn(), summed,
+        new AsyncCallback<ArrayList<SubmissionAggregateUI>>() {
+          public void onFailure(Throwable caught) {
+            AggregateUI.getUI().reportError(caught);
+          }
+
+          public void onSuccess(ArrayList<SubmissionAggregateUI> result) {
+            DataTable data = createDataTable(result);
+            Widget chart;
+            if (selected == ChartType.PIE_CHART) {
+              chart = createPieChart(data);
+            } else {
+              chart = createBarChart(data);
+            }
+            chartPanel.clear();
+            chartPanel.add(chart);
+          }
+        });
+  }
+
   private int findGpsIndex(String columnElementKey, Integer columnCode) {
     int index = 0;
     Long columnNum = columnCode.longValue();
@@ -565,11 +585,10 @@ public final class VisualizationPopup extends AbstractPopupBase {
         chart = createMap();
         break;
       case PIE_CHART:
-        chart = createPieChart();
-        break;
       case BAR_GRAPH:
-        chart = createBarChart();
-        break;
+        // drawn once the server has grouped the submissions
+        requestChart(selected);
+        return;
       default:
         chart = null;
       }
@@ -583,7 +602,7 @@ public final class VisualizationPopup extends AbstractPopupBase {
 
     @Override
     public void onClick(ClickEvent event) {
-      dataList.setEnabled(sumColumnsRadio.getValue());
+      dataList.setEnabled(!tallyOccurRadio.getValue());
     }
   }
 
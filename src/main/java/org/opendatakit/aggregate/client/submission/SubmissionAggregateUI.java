@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.client.submission;
+
+import java.io.Serializable;
+
+/**
+ * The submissions (or choices) with one value of the column grouped on, as
+ * counted and summed by the server.
+ */
+public class SubmissionAggregateUI implements Serializable {
+
+  private static final long serialVersionUID = -3386640178127512946L;
+  private String groupValue;
+  private Long count;
+  private Double sum;
+  private Double average;
+
+  public SubmissionAggregateUI() {
+
+  }
+
+  public SubmissionAggregateUI(String groupValue, Long count, Double sum, Double average) {
+    this.groupValue = groupValue;
+    this.count = count;
+    this.sum = sum;
+    this.average = average;
+  }
+
+  /**
+   * @return the value grouped on, or null for no value.
+   */
+  public String getGroupValue() {
+    return groupValue;
+  }
+
+  public Long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the sum of the summed column, or null if no column was summed or
+   *         it has no values in the group.
+   */
+  public Double getSum() {
+    return sum;
+  }
+
+  /**
+   * @return the average of the values of the summed column, or null.
+   */
+  public Double getAverage() {
+    return average;
+  }
+
+}
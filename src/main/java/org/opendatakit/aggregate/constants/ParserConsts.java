@@ -59,6 +59,12 @@ public final class ParserConsts {
    */
   public final static int FILE_SIZE_MAX = 5000000;
 
+  /**
+   * Uploaded files larger than this are spooled to a temporary file rather
+   * than held in memory while the request is processed
+   */
+  public final static int SPOOL_THRESHOLD = 64 * 1024;
+
   /**
    * Namespace of ODK extensions to the OpenRosa standards
    */
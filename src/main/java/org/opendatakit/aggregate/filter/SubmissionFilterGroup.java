@@ -160,6 +160,27 @@ public class SubmissionFilterGroup extends CommonFieldsBase {
     filters.addAll(filter);
   }
 
+  /**
+   * @return a hash of the filters and options of the group (but not of its
+   *         name or owner), equal for groups that select the same content.
+   */
+  public String getContentHash() {
+    StringBuilder b = new StringBuilder();
+    b.append(getFormId()).append('|').append(includeMetadata());
+    if (filters != null) {
+      for (SubmissionFilter filter : filters) {
+        b.append('|').append(filter.getOrdinalNumber())
+            .append(',').append(filter.getRowOrColumn())
+            .append(',').append(filter.getVisibility())
+            .append(',').append(filter.getColumnEncoding())
+            .append(',').append(filter.getGpsColumnCode())
+            .append(',').append(filter.getFilterOperation())
+            .append(',').append(filter.getFilterInputClause());
+      }
+    }
+    return CommonFieldsBase.newMD5HashUri(b.toString());
+  }
+
   public FilterGroup transform() {
     FilterGroup filterGroup = new FilterGroup(this.getUri(), this.includeMetadata());
 
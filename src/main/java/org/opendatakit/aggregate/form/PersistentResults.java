@@ -15,6 +15,7 @@
  */
 package org.opendatakit.aggregate.form;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -32,6 +33,7 @@ import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.common.datamodel.BinaryContent;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobOutputStream;
 import org.opendatakit.common.datamodel.BinaryContentRefBlob;
 import org.opendatakit.common.datamodel.RefBlob;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -269,6 +271,209 @@ public class PersistentResults {
     bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  /**
+   * Start the result file; its content is written through the returned
+   * stream and it is complete once the stream is closed.
+   *
+   * @param contentType
+   * @param unrootedFilePath
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public BlobOutputStream openResultFile(String contentType, String unrootedFilePath,
+      CallingContext cc) throws ODKDatastoreException {
+    if (bcm.getAttachmentCount(cc) > 0) {
+      throw new IllegalStateException("Results are already attached!");
+    }
+    return bcm.newBlobOutputStream(contentType, unrootedFilePath, cc);
+  }
+
+  /**
+   * Continue writing a result file that was started by an earlier attempt.
+   *
+   * @param checkpoint
+   *          the last checkpoint of that attempt.
+   * @param cc
+   * @return the stream, or null if the result file cannot be continued.
+   * @throws ODKDatastoreException
+   */
+  public BlobOutputStream resumeResultFile(Checkpoint checkpoint, CallingContext cc)
+      throws ODKDatastoreException {
+    if (bcm.getAttachmentCount(cc) != 1) {
+      return null;
+    }
+    return bcm.resumeBlobOutputStream(bcm.getUnrootedFilename(1, cc), checkpoint.partCount, cc);
+  }
+
+  /**
+   * @param cc
+   * @return the content type of the (possibly incomplete) result file, or
+   *         null if there is none.
+   * @throws ODKDatastoreException
+   */
+  public String getResultFileContentType(CallingContext cc) throws ODKDatastoreException {
+    if (bcm.getAttachmentCount(cc) != 1) {
+      return null;
+    }
+    return bcm.getContentType(1, cc);
+  }
+
+  /**
+   * The progress of the generation of a result file: the query cursor after
+   * the last submissions written, and how much of the file was persisted at
+   * that point.
+   */
+  public static final class Checkpoint {
+    public final String websafeCursor;
+    public final long partCount;
+    public final long submissionCount;
+
+    public Checkpoint(String websafeCursor, long partCount, long submissionCount) {
+      this.websafeCursor = websafeCursor;
+      this.partCount = partCount;
+      this.submissionCount = submissionCount;
+    }
+  }
+
+  /**
+   * @param cc
+   * @return the last checkpoint recorded for the result file, or null.
+   * @throws ODKDatastoreException
+   */
+  public Checkpoint getCheckpoint(CallingContext cc) throws ODKDatastoreException {
+    CheckpointTable c = CheckpointTable.getCheckpointRow(row.getUri(), cc);
+    if (c == null) {
+      return null;
+    }
+    return new Checkpoint(c.getStringField(CheckpointTable.RESUME_CURSOR),
+        c.getLongField(CheckpointTable.PART_COUNT),
+        c.getLongField(CheckpointTable.SUBMISSION_COUNT));
+  }
+
+  public void setCheckpoint(Checkpoint checkpoint, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    CheckpointTable c = CheckpointTable.getCheckpointRow(row.getUri(), cc);
+    if (c == null) {
+      c = ds.createEntityUsingRelation(CheckpointTable.assertRelation(cc), user);
+      c.setStringField(c.primaryKey, row.getUri());
+    }
+    if (!c.setStringField(CheckpointTable.RESUME_CURSOR, checkpoint.websafeCursor)) {
+      throw new IllegalStateException("overflow resumeCursor");
+    }
+    c.setLongField(CheckpointTable.PART_COUNT, checkpoint.partCount);
+    c.setLongField(CheckpointTable.SUBMISSION_COUNT, checkpoint.submissionCount);
+    ds.putEntity(c, user);
+  }
+
+  public void deleteCheckpoint(CallingContext cc) throws ODKDatastoreException {
+    CheckpointTable c = CheckpointTable.getCheckpointRow(row.getUri(), cc);
+    if (c != null) {
+      cc.getDatastore().deleteEntity(c.getEntityKey(), cc.getCurrentUser());
+    }
+  }
+
+  /**
+   * @param form
+   * @param filterGroup
+   *          the filter group of the export, or null.
+   * @param cc
+   * @return a hash of everything that determines the content of the result
+   *         file, other than the submissions: the result type, the form
+   *         definition, the filters and the request parameters.
+   * @throws ODKDatastoreException
+   */
+  public String getExportHash(IForm form, SubmissionFilterGroup filterGroup, CallingContext cc)
+      throws ODKDatastoreException {
+    return CommonFieldsBase.newMD5HashUri(getResultType().name() + "|" + form.getFormId() + "|"
+        + form.getMd5HashFormXml(cc) + "|"
+        + ((filterGroup == null) ? null : filterGroup.getContentHash()) + "|"
+        + row.getStringField(PersistentResultsTable.REQUEST_PARAMETERS) + "|"
+        + cc.getServerURL());
+  }
+
+  /**
+   * Record where the submissions end in the completed result file, so that a
+   * later export of the same content can start from a copy of it.
+   *
+   * @param exportHash
+   *          see {@link #getExportHash(IForm, SubmissionFilterGroup, CallingContext)}
+   * @param end
+   *          the cursor after the last submission, the number of parts
+   *          holding everything up to and including that submission, and the
+   *          number of submissions.
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void setCompletedExport(String exportHash, Checkpoint end, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    CompletedExportTable c = CompletedExportTable.getCompletedExportRow(row.getUri(), cc);
+    if (c == null) {
+      c = ds.createEntityUsingRelation(CompletedExportTable.assertRelation(cc), user);
+      c.setStringField(c.primaryKey, row.getUri());
+    }
+    c.setStringField(CompletedExportTable.FORM_ID, getFormId());
+    c.setStringField(CompletedExportTable.EXPORT_HASH, exportHash);
+    if (!c.setStringField(CompletedExportTable.RESUME_CURSOR, end.websafeCursor)) {
+      throw new IllegalStateException("overflow resumeCursor");
+    }
+    c.setLongField(CompletedExportTable.PART_COUNT, end.partCount);
+    c.setLongField(CompletedExportTable.SUBMISSION_COUNT, end.submissionCount);
+    ds.putEntity(c, user);
+  }
+
+  /**
+   * @param cc
+   * @return where the submissions end in the completed result file, or null
+   *         if that is not known.
+   * @throws ODKDatastoreException
+   */
+  public Checkpoint getCompletedExport(CallingContext cc) throws ODKDatastoreException {
+    CompletedExportTable c = CompletedExportTable.getCompletedExportRow(row.getUri(), cc);
+    if (c == null) {
+      return null;
+    }
+    return new Checkpoint(c.getStringField(CompletedExportTable.RESUME_CURSOR),
+        c.getLongField(CompletedExportTable.PART_COUNT),
+        c.getLongField(CompletedExportTable.SUBMISSION_COUNT));
+  }
+
+  private void deleteCompletedExport(CallingContext cc) throws ODKDatastoreException {
+    CompletedExportTable c = CompletedExportTable.getCompletedExportRow(row.getUri(), cc);
+    if (c != null) {
+      cc.getDatastore().deleteEntity(c.getEntityKey(), cc.getCurrentUser());
+    }
+  }
+
+  /**
+   * Start the result file as a copy of the submissions of the result file of
+   * an earlier export.
+   *
+   * @param completed
+   *          the earlier export.
+   * @param end
+   *          its {@link #getCompletedExport(CallingContext)}
+   * @param cc
+   * @return the stream, positioned after the copied submissions, or null if
+   *         the earlier result file is gone.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public BlobOutputStream copyResultFile(PersistentResults completed, Checkpoint end,
+      CallingContext cc) throws ODKDatastoreException, IOException {
+    if (bcm.getAttachmentCount(cc) > 0) {
+      throw new IllegalStateException("Results are already attached!");
+    }
+    if (completed.bcm.getAttachmentCount(cc) != 1) {
+      return null;
+    }
+    return bcm.copyBlobOutputStream(completed.bcm, 1, end.partCount, cc);
+  }
+
   public String getUri() {
     return row.getUri();
   }
@@ -294,6 +499,8 @@ public class PersistentResults {
   }
   
   public void deleteResultFile(CallingContext cc) throws ODKDatastoreException {
+    deleteCheckpoint(cc);
+    deleteCompletedExport(cc);
     bcm.deleteAll(cc);
   }
 
@@ -426,6 +633,66 @@ public class PersistentResults {
     return r;
   }
 
+  /**
+   * @param formId
+   * @param exportHash
+   *          see {@link #getExportHash(IForm, SubmissionFilterGroup, CallingContext)}
+   * @param cc
+   * @return the most recently completed export of the same content whose
+   *         result file is still available, or null.
+   * @throws ODKDatastoreException
+   */
+  public static final PersistentResults findCompletedExport(String formId, String exportHash,
+      CallingContext cc) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    CompletedExportTable relation = CompletedExportTable.assertRelation(cc);
+    Query q = ds.createQuery(relation, "PersistentResults.findCompletedExport", user);
+    q.addFilter(CompletedExportTable.FORM_ID, FilterOperation.EQUAL, formId);
+    q.addFilter(CompletedExportTable.EXPORT_HASH, FilterOperation.EQUAL, exportHash);
+    List<? extends CommonFieldsBase> l = q.executeQuery();
+
+    PersistentResultsTable resultsRelation = PersistentResultsTable.assertRelation(cc);
+    PersistentResults latest = null;
+    for (CommonFieldsBase b : l) {
+      PersistentResultsTable p;
+      try {
+        p = ds.getEntity(resultsRelation, b.getUri(), user);
+      } catch (ODKEntityNotFoundException e) {
+        continue;
+      }
+      PersistentResults result = new PersistentResults(p, cc);
+      if (result.getStatus() != ExportStatus.AVAILABLE || result.getCompletionDate() == null) {
+        continue;
+      }
+      if (latest == null || result.getCompletionDate().after(latest.getCompletionDate())) {
+        latest = result;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Stop later exports from starting from the completed exports of the form,
+   * e.g., because some of the submissions in them have been deleted.
+   *
+   * @param formId
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public static final void forgetCompletedExports(String formId, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    CompletedExportTable relation = CompletedExportTable.assertRelation(cc);
+    Query q = ds.createQuery(relation, "PersistentResults.forgetCompletedExports", user);
+    q.addFilter(CompletedExportTable.FORM_ID, FilterOperation.EQUAL, formId);
+    List<? extends CommonFieldsBase> l = q.executeQuery();
+    for (CommonFieldsBase b : l) {
+      ds.deleteEntity(b.getEntityKey(), user);
+    }
+  }
+
   /**
    * Underlying top-level persistent object for the PerisistentResults form.
    * 
@@ -542,4 +809,152 @@ public class PersistentResults {
           refBlobRelation);
     }
   }
+
+  /**
+   * Checkpoints of the result files being generated, keyed by the uri of the
+   * persistent result.
+   */
+  private static final class CheckpointTable extends CommonFieldsBase {
+
+    static final String TABLE_NAME = "_persistent_result_checkpoint";
+
+    private static final DataField RESUME_CURSOR = new DataField("RESUME_CURSOR",
+        DataField.DataType.STRING, true, 8192L);
+
+    private static final DataField PART_COUNT = new DataField("PART_COUNT",
+        DataField.DataType.INTEGER, false);
+
+    private static final DataField SUBMISSION_COUNT = new DataField("SUBMISSION_COUNT",
+        DataField.DataType.INTEGER, false);
+
+    /**
+     * Construct a relation prototype.
+     *
+     * @param databaseSchema
+     */
+    private CheckpointTable(String databaseSchema) {
+      super(databaseSchema, TABLE_NAME);
+      fieldList.add(RESUME_CURSOR);
+      fieldList.add(PART_COUNT);
+      fieldList.add(SUBMISSION_COUNT);
+    }
+
+    /**
+     * Construct an empty entity.
+     *
+     * @param ref
+     * @param user
+     */
+    private CheckpointTable(CheckpointTable ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CheckpointTable getEmptyRow(User user) {
+      return new CheckpointTable(this, user);
+    }
+
+    private static CheckpointTable relation = null;
+
+    static synchronized final CheckpointTable assertRelation(CallingContext cc)
+        throws ODKDatastoreException {
+      if (relation == null) {
+        CheckpointTable relationPrototype;
+        Datastore ds = cc.getDatastore();
+        User user = cc.getUserService().getDaemonAccountUser();
+        relationPrototype = new CheckpointTable(ds.getDefaultSchemaName());
+        ds.assertRelation(relationPrototype, user); // may throw exception...
+        relation = relationPrototype; // set static variable only upon
+                                      // success...
+      }
+      return relation;
+    }
+
+    static final CheckpointTable getCheckpointRow(String uri, CallingContext cc)
+        throws ODKDatastoreException {
+      try {
+        return cc.getDatastore().getEntity(assertRelation(cc), uri, cc.getCurrentUser());
+      } catch (ODKEntityNotFoundException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Where the submissions end in completed result files, keyed by the uri of
+   * the persistent result.
+   */
+  private static final class CompletedExportTable extends CommonFieldsBase {
+
+    static final String TABLE_NAME = "_persistent_result_completed";
+
+    private static final DataField FORM_ID = new DataField("FORM_ID_KEY",
+        DataField.DataType.STRING, true, IForm.MAX_FORM_ID_LENGTH);
+
+    private static final DataField EXPORT_HASH = new DataField("EXPORT_HASH",
+        DataField.DataType.STRING, true, PersistConsts.URI_STRING_LEN);
+
+    private static final DataField RESUME_CURSOR = new DataField("RESUME_CURSOR",
+        DataField.DataType.STRING, true, 8192L);
+
+    private static final DataField PART_COUNT = new DataField("PART_COUNT",
+        DataField.DataType.INTEGER, false);
+
+    private static final DataField SUBMISSION_COUNT = new DataField("SUBMISSION_COUNT",
+        DataField.DataType.INTEGER, false);
+
+    /**
+     * Construct a relation prototype.
+     *
+     * @param databaseSchema
+     */
+    private CompletedExportTable(String databaseSchema) {
+      super(databaseSchema, TABLE_NAME);
+      fieldList.add(FORM_ID);
+      fieldList.add(EXPORT_HASH);
+      fieldList.add(RESUME_CURSOR);
+      fieldList.add(PART_COUNT);
+      fieldList.add(SUBMISSION_COUNT);
+    }
+
+    /**
+     * Construct an empty entity.
+     *
+     * @param ref
+     * @param user
+     */
+    private CompletedExportTable(CompletedExportTable ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CompletedExportTable getEmptyRow(User user) {
+      return new CompletedExportTable(this, user);
+    }
+
+    private static CompletedExportTable relation = null;
+
+    static synchronized final CompletedExportTable assertRelation(CallingContext cc)
+        throws ODKDatastoreException {
+      if (relation == null) {
+        CompletedExportTable relationPrototype;
+        Datastore ds = cc.getDatastore();
+        User user = cc.getUserService().getDaemonAccountUser();
+        relationPrototype = new CompletedExportTable(ds.getDefaultSchemaName());
+        ds.assertRelation(relationPrototype, user); // may throw exception...
+        relation = relationPrototype; // set static variable only upon
+                                      // success...
+      }
+      return relation;
+    }
+
+    static final CompletedExportTable getCompletedExportRow(String uri, CallingContext cc)
+        throws ODKDatastoreException {
+      try {
+        return cc.getDatastore().getEntity(assertRelation(cc), uri, cc.getCurrentUser());
+      } catch (ODKEntityNotFoundException e) {
+        return null;
+      }
+    }
+  }
 }
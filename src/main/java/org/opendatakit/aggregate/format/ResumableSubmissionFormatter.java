@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.format;
+
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * A formatter that can continue output that an earlier formatter (of the same
+ * form and filter) started, e.g., when a retried export resumes a partially
+ * written file.
+ */
+public interface ResumableSubmissionFormatter extends SubmissionFormatter {
+
+  /**
+   * Called instead of beforeProcessSubmissions when the preamble and the
+   * first submissionCount submissions have already been output.
+   *
+   * @param submissionCount
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void resumeProcessSubmissions(long submissionCount, CallingContext cc)
+      throws ODKDatastoreException;
+}
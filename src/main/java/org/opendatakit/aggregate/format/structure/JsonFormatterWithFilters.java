@@ -25,8 +25,8 @@ import org.opendatakit.aggregate.constants.format.FormatConsts;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.RepeatCallbackFormatter;
+import org.opendatakit.aggregate.format.ResumableSubmissionFormatter;
 import org.opendatakit.aggregate.format.Row;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
 import org.opendatakit.aggregate.format.element.JsonElementFormatter;
 import org.opendatakit.aggregate.server.GenerateHeaderInfo;
 import org.opendatakit.aggregate.submission.Submission;
@@ -41,7 +41,7 @@ import org.opendatakit.common.web.constants.BasicConsts;
  * @author mitchellsundt@gmail.com
  *
  */
-public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCallbackFormatter {
+public class JsonFormatterWithFilters implements ResumableSubmissionFormatter, RepeatCallbackFormatter {
 
   private boolean first = true;
 
@@ -74,6 +74,12 @@ public class JsonFormatterWithFilters implements SubmissionFormatter, RepeatCall
     first = true;
   }
 
+  @Override
+  public void resumeProcessSubmissions(long submissionCount, CallingContext cc)
+      throws ODKDatastoreException {
+    first = (submissionCount == 0);
+  }
+
   @Override
   public void processSubmissionSegment(List<Submission> submissions, CallingContext cc)
       throws ODKDatastoreException {
@@ -29,7 +29,7 @@ import org.opendatakit.aggregate.constants.format.KmlConsts;
 import org.opendatakit.aggregate.datamodel.FormElementKey;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.form.IForm;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.ResumableSubmissionFormatter;
 import org.opendatakit.aggregate.server.GenerateHeaderInfo;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -42,7 +42,7 @@ import org.opendatakit.common.web.CallingContext;
  * @author mitchellsundt@gmail.com
  *
  */
-public class KmlFormatterWithFilters implements SubmissionFormatter {
+public class KmlFormatterWithFilters implements ResumableSubmissionFormatter {
 
   private IForm form;
   private List<FormElementModel> propertyNames;
@@ -132,6 +132,12 @@ public class KmlFormatterWithFilters implements SubmissionFormatter {
     output.write(generateStyle(hasImages, hasGeotraceOrGeoshape));
   }
 
+  @Override
+  public void resumeProcessSubmissions(long submissionCount, CallingContext cc)
+      throws ODKDatastoreException {
+    // the preamble and styles have been written
+  }
+
   @Override
   public void processSubmissionSegment(List<Submission> submissions, CallingContext cc)
       throws ODKDatastoreException {
@@ -27,8 +27,8 @@ import org.opendatakit.aggregate.constants.common.FormElementNamespace;
 import org.opendatakit.aggregate.constants.format.FormatConsts;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.ResumableSubmissionFormatter;
 import org.opendatakit.aggregate.format.Row;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.format.element.LinkElementFormatter;
 import org.opendatakit.aggregate.server.GenerateHeaderInfo;
@@ -38,7 +38,7 @@ import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
 
-public class CsvFormatterWithFilters implements SubmissionFormatter {
+public class CsvFormatterWithFilters implements ResumableSubmissionFormatter {
 
   private ElementFormatter elemFormatter;
   private List<FormElementModel> propertyNames;
@@ -73,6 +73,12 @@ public class CsvFormatterWithFilters implements SubmissionFormatter {
     appendCsvRow(headers.iterator());
   }
 
+  @Override
+  public final void resumeProcessSubmissions(long submissionCount, CallingContext cc)
+      throws ODKDatastoreException {
+    // the headers have been written
+  }
+
   @Override
   public final void processSubmissionSegment(List<Submission> submissions,
         CallingContext cc) throws ODKDatastoreException {
@@ -139,7 +139,7 @@ public class DbLogTable extends Relation {
     return getRelation(getDbLogTableName(entity.getDbTableName()), fields, cc);
   }
 
-  private static synchronized DbLogTable getRelation(String tableName, List<DataField> fields,
+  private static DbLogTable getRelation(String tableName, List<DataField> fields,
       CallingContext cc) throws ODKDatastoreException {
     DbLogTable relation = new DbLogTable(RUtil.NAMESPACE, tableName, fields, cc);
     return relation;
@@ -134,7 +134,7 @@ public class DbTable extends Relation {
     return getRelation(entity.getDbTableName(), fields, cc);
   }
 
-  private static synchronized DbTable getRelation(String dbTableName, List<DataField> fields,
+  private static DbTable getRelation(String dbTableName, List<DataField> fields,
       CallingContext cc) throws ODKDatastoreException {
     DbTable relation = new DbTable(RUtil.NAMESPACE, dbTableName, fields, cc);
     return relation;
@@ -84,10 +84,26 @@ public class DbTableDefinitions extends Relation {
 
     public void put(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
       e.put(cc);
+      invalidateDataTableRelations(cc);
     }
 
     public void delete(CallingContext cc) throws ODKDatastoreException {
       e.delete(cc);
+      invalidateDataTableRelations(cc);
+    }
+
+    /**
+     * The data and log tables named by this definition are being created or
+     * retired; discard any cached definitions of them.
+     *
+     * @param cc
+     */
+    private void invalidateDataTableRelations(CallingContext cc) {
+      String dbTableName = getDbTableName();
+      if (dbTableName != null) {
+        Relation.invalidateRelation(RUtil.NAMESPACE, dbTableName, cc);
+        Relation.invalidateRelation(RUtil.NAMESPACE, DbLogTable.getDbLogTableName(dbTableName), cc);
+      }
     }
 
     // Accessors
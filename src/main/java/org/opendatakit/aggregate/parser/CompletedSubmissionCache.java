@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+
+/**
+ * Remembers the submissions that were recently completed on this server,
+ * together with a fingerprint of the content (the submission xml and the
+ * attachments) they were uploaded with. When a device retries an upload that
+ * had already succeeded, the retry can be recognized before the submission is
+ * parsed or locked. The least recently used entries are dropped.
+ */
+final class CompletedSubmissionCache {
+
+  static final int MAX_ENTRIES = 10000;
+
+  private static final Map<String, String> completed = Collections
+      .synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      });
+
+  private CompletedSubmissionCache() {
+  }
+
+  private static String key(String formId, String instanceId) {
+    return formId + "|" + instanceId;
+  }
+
+  /**
+   * @param items
+   *          the parts of the upload.
+   * @return a fingerprint of the content of the parts, independent of their
+   *         order.
+   */
+  static String fingerprint(Collection<MultiPartFormItem> items) {
+    List<String> hashes = new ArrayList<String>();
+    for (MultiPartFormItem item : items) {
+      hashes.add(item.getContentHash());
+    }
+    Collections.sort(hashes);
+    return CommonFieldsBase.newMD5HashUri(hashes.toString());
+  }
+
+  /**
+   * @param formId
+   * @param instanceId
+   * @param fingerprint
+   * @return true if the submission was completed on this server from an
+   *         upload with the same content.
+   */
+  static boolean isRecentlyCompleted(String formId, String instanceId, String fingerprint) {
+    return fingerprint.equals(completed.get(key(formId, instanceId)));
+  }
+
+  static void recordCompleted(String formId, String instanceId, String fingerprint) {
+    completed.put(key(formId, instanceId), fingerprint);
+  }
+
+  static void forget(String formId, String instanceId) {
+    completed.remove(key(formId, instanceId));
+  }
+}
@@ -17,9 +17,15 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -35,6 +41,7 @@ import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 
 /**
  * Parses a multi part form request into a set of multiPartFormItems. The
@@ -47,6 +54,10 @@ import org.opendatakit.aggregate.constants.ParserConsts;
  */
 public class MultiPartFormData {
 
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String SPOOL_FILE_PREFIX = "odk-upload-";
+
     private final Map<String, String> simpleFieldNameMap;
     
     private final Map<String, MultiPartFormItem> fieldNameMap;
@@ -55,11 +66,17 @@ public class MultiPartFormData {
 
     private final Map<String, MultiPartFormItem> fileNameWithoutExtensionNameMap;
 
+    private final List<MultiPartFormItem> items = new ArrayList<MultiPartFormItem>();
+
     /**
      * Construct a mult-part form data container by parsing a multi part form
      * request into a set of multipartformitems. The information are stored in
      * items and are indexed by either the field name or the file name (or both)
      * provided in the http submission
+     * <p>
+     * Files larger than {@link ParserConsts#SPOOL_THRESHOLD} are spooled to
+     * temporary files as they are received; call
+     * {@link #deleteTemporaryFiles()} once the request has been processed.
      * 
      * @param req
      *            an HTTP request from a multipart form
@@ -86,36 +103,37 @@ public class MultiPartFormData {
 
         List<MultiPartFormItem> fileNameList = new ArrayList<MultiPartFormItem>();
         
-        FileItemIterator items = upload.getItemIterator(req);
-        while (items.hasNext()) {
-            FileItemStream item = items.next();
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            BufferedInputStream formStream = new BufferedInputStream(item
-                    .openStream());
-
-            // TODO: determine ways to possibly improve efficiency
-            int nextByte = formStream.read();
-            while (nextByte != -1) {
-                byteStream.write(nextByte);
-                nextByte = formStream.read();
-            }
-            formStream.close();
-
-            if ( item.isFormField() ) {
-                simpleFieldNameMap.put(item.getFieldName(), byteStream.toString());
-            } else {
-                MultiPartFormItem data = new MultiPartFormItem(item.getFieldName(),
-                        item.getName(), item.getContentType(), byteStream);
-    
-                String fieldName = item.getFieldName();
-                if (fieldName != null) {
-                    fieldNameMap.put(fieldName, data);
-                }
-                String fileName = item.getName();
-                if (fileName != null && fileName.length() != 0) {
-                    fileNameList.add(data);
+        try {
+            FileItemIterator itemIterator = upload.getItemIterator(req);
+            while (itemIterator.hasNext()) {
+                FileItemStream item = itemIterator.next();
+                InputStream formStream = item.openStream();
+                try {
+                    if ( item.isFormField() ) {
+                        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                        copy(formStream, byteStream);
+                        simpleFieldNameMap.put(item.getFieldName(), byteStream.toString());
+                        continue;
+                    }
+                    MultiPartFormItem data = receive(item.getFieldName(), item.getName(),
+                            item.getContentType(), formStream);
+                    items.add(data);
+        
+                    String fieldName = item.getFieldName();
+                    if (fieldName != null) {
+                        fieldNameMap.put(fieldName, data);
+                    }
+                    String fileName = item.getName();
+                    if (fileName != null && fileName.length() != 0) {
+                        fileNameList.add(data);
+                    }
+                } finally {
+                    formStream.close();
                 }
             }
+        } catch (FileUploadException | IOException | RuntimeException e) {
+            deleteTemporaryFiles();
+            throw e;
         }
 
         // Find the common prefix to the filenames being uploaded...
@@ -177,6 +195,89 @@ public class MultiPartFormData {
         }
     }
 
+    /**
+     * Read the content of a file item, hashing it as it is received. Content
+     * beyond the spool threshold is written to a temporary file so that the
+     * memory used does not grow with the size of the file. The caller must
+     * delete any temporary file once the item is no longer needed.
+     * 
+     * @param fieldName
+     * @param fileName
+     * @param contentType
+     * @param formStream
+     *          the content of the item; it is read to the end but not closed.
+     * @return the form item
+     * @throws IOException
+     */
+    static MultiPartFormItem receive(String fieldName, String fileName, String contentType,
+            InputStream formStream) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+        }
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        File spoolFile = null;
+        OutputStream out = byteStream;
+        long length = 0L;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = formStream.read(buffer)) != -1) {
+                md.update(buffer, 0, len);
+                length += len;
+                if (spoolFile == null && length > ParserConsts.SPOOL_THRESHOLD) {
+                    spoolFile = File.createTempFile(SPOOL_FILE_PREFIX, ".tmp");
+                    out = new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE);
+                    byteStream.writeTo(out);
+                    byteStream = null;
+                }
+                out.write(buffer, 0, len);
+            }
+            out.close();
+        } catch (IOException | RuntimeException e) {
+            if (spoolFile != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+                spoolFile.delete();
+            }
+            throw e;
+        }
+        return new MultiPartFormItem(fieldName, fileName, contentType,
+                (spoolFile == null) ? byteStream.toByteArray() : null, spoolFile, length,
+                CommonFieldsBase.newMD5HashUri(md));
+    }
+
+    /**
+     * Copy the remainder of the input stream to the output stream. Neither
+     * stream is closed.
+     * 
+     * @param in
+     * @param out
+     * @throws IOException
+     */
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+    }
+
+    /**
+     * Remove the temporary files holding the content of any large files in
+     * this request. The content of those items can no longer be read.
+     */
+    public void deleteTemporaryFiles() {
+        for (MultiPartFormItem item : items) {
+            item.deleteSpoolFile();
+        }
+    }
+
     public String getSimpleFormField(String fieldName) {
         return simpleFieldNameMap.get(fieldName);
     }
@@ -200,4 +301,13 @@ public class MultiPartFormData {
     public Set<Map.Entry<String,MultiPartFormItem>> getFieldNameEntrySet() {
         return Collections.unmodifiableSet(fieldNameMap.entrySet());
     }
+
+    /**
+     * @return the parts of the request other than the simple form fields
+     *         (i.e., the submission xml and the attachments), in the order
+     *         they were received.
+     */
+    public List<MultiPartFormItem> getItems() {
+        return Collections.unmodifiableList(items);
+    }
 }
@@ -17,7 +17,14 @@
 
 package org.opendatakit.aggregate.parser;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
 
 /**
  * Object representation of multi part form data
@@ -26,7 +33,7 @@ import java.io.ByteArrayOutputStream;
  * @author mitchellsundt@gmail.com
  * 
  */
-public final class MultiPartFormItem {
+public final class MultiPartFormItem implements BinaryContentManipulator.ContentSource {
 
   /**
    * form data field name
@@ -44,10 +51,20 @@ public final class MultiPartFormItem {
   private final String contentType;
 
   /**
-   * form data's stream
+   * form data's content if held in memory; null if spooled to spoolFile
    */
-  private final ByteArrayOutputStream stream;
-  
+  private final byte[] content;
+
+  /**
+   * temporary file holding the form data's content if it was too large to
+   * hold in memory
+   */
+  private final File spoolFile;
+
+  private final long contentLength;
+
+  private final String contentHash;
+
   /**
    * Constructor of a multi part of data 
    * 
@@ -57,14 +74,24 @@ public final class MultiPartFormItem {
    *    form data file name
    * @param contentType
    *    form data content type
-   * @param byteStream
-   *    form data's stream
+   * @param content
+   *    form data's content, or null if it was spooled to a file
+   * @param spoolFile
+   *    file holding the form data's content if it is not held in memory
+   * @param contentLength
+   *    length of the form data's content
+   * @param contentHash
+   *    md5 hash of the form data's content
    */
-  public MultiPartFormItem(String fieldName, String fileName, String contentType, ByteArrayOutputStream byteStream) {
+  MultiPartFormItem(String fieldName, String fileName, String contentType, byte[] content,
+      File spoolFile, long contentLength, String contentHash) {
     this.name = fieldName;
     this.filename = fileName;
     this.contentType = contentType;
-    this.stream = byteStream;
+    this.content = content;
+    this.spoolFile = spoolFile;
+    this.contentLength = contentLength;
+    this.contentHash = contentHash;
   }
   
   /**
@@ -109,12 +136,72 @@ public final class MultiPartFormItem {
   }
 
   /**
-   * Get form data's stream
+   * Open a stream on the form data's content. This may be called more than
+   * once; the caller must close the stream.
    * 
    * @return
    *    stream
+   * @throws IOException
+   */
+  @Override
+  public InputStream openStream() throws IOException {
+    if (content != null) {
+      return new ByteArrayInputStream(content);
+    }
+    return new FileInputStream(spoolFile);
+  }
+
+  @Override
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  @Override
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * Get the form data's content as a byte array. Only use this for form data
+   * that is known to be small (e.g., a form definition); attachments should
+   * be read through {@link #openStream()}.
+   * 
+   * @return
+   *    content
+   * @throws IOException
+   */
+  public byte[] getBytes() throws IOException {
+    if (content != null) {
+      return content;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) contentLength);
+    InputStream in = openStream();
+    try {
+      MultiPartFormData.copy(in, out);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Get the form data's content as a string
+   * 
+   * @param charsetName
+   * @return
+   *    content
+   * @throws IOException
+   */
+  public String getString(String charsetName) throws IOException {
+    return new String(getBytes(), charsetName);
+  }
+
+  /**
+   * Remove the temporary file, if any, holding the form data's content.
    */
-  public ByteArrayOutputStream getStream() {
-    return stream;
+  void deleteSpoolFile() {
+    if (spoolFile != null) {
+      spoolFile.delete();
+    }
   }
 }
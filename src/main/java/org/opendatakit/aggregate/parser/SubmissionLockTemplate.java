@@ -18,6 +18,10 @@ package org.opendatakit.aggregate.parser;
 
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.ITaskLockType;
@@ -28,20 +32,31 @@ import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
 
 /**
- * Make datastore locks a little easier. NOT threadsafe.
- * Copied and modified from LockTemplate for the ODK 2.0
+ * Serializes the modifications of a single submission. NOT threadsafe;
+ * create one per request.
+ * <p>
+ * Both locks are keyed on the form id and the full instanceId, so
+ * submissions of different instances never wait on each other. The requests
+ * of this server first queue on an in-memory lock, so that only one of them
+ * at a time contends for the datastore task lock that serializes them with
+ * the requests of other servers.
  *
  * @author mitchellsundt@gmail.com
  * @author the.dylan.price@gmail.com
  *
  */
 public class SubmissionLockTemplate {
+  // the longest a request waits for another request on the same instance.
+  // This matches the 4 tries and 250ms initial backoff of the task lock
+  // this replaced: 250 + 500 + 1000 + 2000 = 3750
+  private static final long MAX_WAIT_MILLISECONDS = 3750L;
+
   // At 4 tries and 250 initial backoff, the maximum amount of time a single
-  // acquire or release can take is:
+  // acquire or release of the task lock can take is:
   // 250 + 500 + 1000 + 2000 = 3750
   private static final int TRIES = 4;
   private static final int INITIAL_MAX_BACKOFF = 250;
-  
+
   private enum SubmissionTaskLockType implements ITaskLockType {
     MODIFICATION(66000, PersistConsts.MIN_SETTLE_MILLISECONDS);
 
@@ -69,8 +84,22 @@ public class SubmissionLockTemplate {
       return minSettleTime;
     }
   }
-  
-  private String formId;
+
+  /**
+   * A lock and the number of requests holding or waiting for it.
+   */
+  private static final class Holder {
+    final ReentrantLock lock = new ReentrantLock();
+    int users = 0;
+  }
+
+  // the locks of the instances that are being modified or waited on
+  private static final ConcurrentMap<String, Holder> locks = new ConcurrentHashMap<String, Holder>();
+
+  private final String lockKey;
+  private Holder holder = null;
+  private boolean taskLockHeld = false;
+
   private Datastore ds;
   private User user;
   private String lockId;
@@ -79,21 +108,18 @@ public class SubmissionLockTemplate {
 
   /**
    * Lock for updating a submission.
-   * The instanceId is mapped into one of 256 buckets to allow for multiple simultaneous instance-level file
-   * accesses.
    * 
    * @param formId
-   * @param rowId
-   * @param type
+   * @param instanceId
    * @param cc
    */
   public SubmissionLockTemplate(String formId, String instanceId, CallingContext cc) {
     if ( instanceId == null || instanceId.length() == 0 ) {
       throw new IllegalArgumentException("instanceId cannot be null or blank");
     } else {
-      this.formId = "submission|" + formId + "|" + Integer.toHexString(instanceId.hashCode() & 0xff);
+      this.lockKey = "submission|" + formId + "|" + instanceId;
     }
-    
+
     this.ds = cc.getDatastore();
     this.user = cc.getCurrentUser();
     this.lockId = UUID.randomUUID().toString();
@@ -102,57 +128,105 @@ public class SubmissionLockTemplate {
   }
 
   /**
-   * Tries up to 5 times to acquire the lock. If unsuccessful, throws an
+   * Waits up to MAX_WAIT_MILLISECONDS for the in-memory lock, then tries up
+   * to 4 times to acquire the task lock. If unsuccessful, throws an
    * ODKTaskLockException.
    *
    * @throws ODKTaskLockException
    */
   public void acquire() throws ODKTaskLockException {
-    TaskLock lock = ds.createTaskLock(user);
+    if (holder != null) {
+      throw new IllegalStateException("lock is already held: " + lockKey);
+    }
+    Holder h = locks.compute(lockKey, (key, existing) -> {
+      Holder value = (existing == null) ? new Holder() : existing;
+      ++value.users;
+      return value;
+    });
     boolean acquired = false;
-    maxBackoffMs = INITIAL_MAX_BACKOFF;
-    for (int i = 0; i < TRIES; i++) {
-      if (lock.obtainLock(lockId, formId, SubmissionTaskLockType.MODIFICATION)) {
-        acquired = true;
-        break;
-      } else {
-        try {
-          Thread.sleep(getNextBackoff());
-        } catch (RuntimeException e) {
-          throw new ODKTaskLockException(e);
-        } catch (Exception e) {
-          throw new ODKTaskLockException(e);
-        }
+    try {
+      acquired = h.lock.tryLock(MAX_WAIT_MILLISECONDS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ODKTaskLockException(e);
+    } finally {
+      if (!acquired) {
+        unregister(h);
       }
     }
     if (!acquired) {
       throw new ODKTaskLockException(String.format("Timed out acquiring lock. "
-          + "lockId: %s, formId: %s", lockId, formId, SubmissionTaskLockType.MODIFICATION));
+          + "lockKey: %s", lockKey));
+    }
+    holder = h;
+    try {
+      acquireTaskLock();
+    } finally {
+      if (!taskLockHeld) {
+        holder = null;
+        h.lock.unlock();
+        unregister(h);
+      }
+    }
+  }
+
+  private void acquireTaskLock() throws ODKTaskLockException {
+    TaskLock lock = ds.createTaskLock(user);
+    maxBackoffMs = INITIAL_MAX_BACKOFF;
+    for (int i = 0; i < TRIES; i++) {
+      if (lock.obtainLock(lockId, lockKey, SubmissionTaskLockType.MODIFICATION)) {
+        taskLockHeld = true;
+        return;
+      }
+      try {
+        Thread.sleep(getNextBackoff());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ODKTaskLockException(e);
+      }
     }
+    throw new ODKTaskLockException(String.format("Timed out acquiring lock. "
+        + "lockId: %s, lockKey: %s", lockId, lockKey));
   }
 
   /**
-   * Tries up to 5 times to release lock, then gives up. In this case the lock
-   * will eventually timeout and be forced to release.
+   * Releases the locks, if they are held. The task lock release is tried up
+   * to 4 times; if that fails, it will eventually timeout and be forced to
+   * release.
    *
    * @throws ODKTaskLockException
    */
   public void release() throws ODKTaskLockException {
+    if (holder == null) {
+      return;
+    }
+    Holder h = holder;
+    try {
+      if (taskLockHeld) {
+        taskLockHeld = false;
+        releaseTaskLock();
+      }
+    } finally {
+      holder = null;
+      h.lock.unlock();
+      unregister(h);
+    }
+  }
+
+  private void releaseTaskLock() throws ODKTaskLockException {
     TaskLock lock = ds.createTaskLock(user);
     maxBackoffMs = INITIAL_MAX_BACKOFF;
     for (int i = 0; i < TRIES; i++) {
-      if (lock.releaseLock(lockId, formId, SubmissionTaskLockType.MODIFICATION)) {
+      if (lock.releaseLock(lockId, lockKey, SubmissionTaskLockType.MODIFICATION)) {
+        break;
+      }
+      try {
+        Thread.sleep(getNextBackoff());
+      } catch (InterruptedException e) {
+        // just move on, this retry mechanism
+        // is to make things nice
+        Thread.currentThread().interrupt();
         break;
-      } else {
-        try {
-          Thread.sleep(getNextBackoff());
-        } catch (RuntimeException e) {
-          throw new ODKTaskLockException(e);
-        } catch (Exception e) {
-          // just move on, this retry mechanism
-          // is to make things nice
-          break;
-        }
       }
     }
   }
@@ -163,4 +237,17 @@ public class SubmissionLockTemplate {
     return backoff;
   }
 
+  private void unregister(Holder h) {
+    locks.computeIfPresent(lockKey, (key, existing) -> {
+      --existing.users;
+      return (existing.users == 0) ? null : existing;
+    });
+  }
+
+  /**
+   * @return the number of instances with a lock held or waited on; for tests.
+   */
+  static int activeLockCount() {
+    return locks.size();
+  }
 }
@@ -17,20 +17,22 @@
 
 package org.opendatakit.aggregate.parser;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.constants.ParserConsts;
@@ -45,11 +47,14 @@ import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData.Reason;
 import org.opendatakit.aggregate.exception.ODKParseException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.query.submission.SubmissionAggregateCache;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionField;
+import org.opendatakit.aggregate.submission.SubmissionFieldPlan;
 import org.opendatakit.aggregate.submission.SubmissionSet;
 import org.opendatakit.aggregate.submission.type.BlobSubmissionType;
 import org.opendatakit.aggregate.submission.type.RepeatSubmissionType;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -63,15 +68,15 @@ import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
 import org.opendatakit.common.web.constants.HtmlConsts;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 /**
  * Parsers submission xml and saves to datastore
+ * <p>
+ * The xml is read with a StAX stream reader in two passes, so that no DOM is
+ * built: the first finds the form id, the instance id and the other root
+ * attributes (and verifies the document is well-formed), the second walks the
+ * form's element model in step with the xml, storing the values into the
+ * submission as they are read.
  * 
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
@@ -87,9 +92,19 @@ public class SubmissionParser {
   private IForm form;
 
   /**
-   * Root of XML submission
+   * Attributes of the root element of the XML submission, by local name
    */
-  private Element root;
+  private final Map<String, String> rootAttributes = new HashMap<String, String>();
+
+  /**
+   * Default namespace declared on the root element of the XML submission
+   */
+  private String rootNamespace;
+
+  /**
+   * The OpenRosa instanceID in the metadata of the XML submission, if any
+   */
+  private String openRosaInstanceId;
 
   /**
    * Submission object created from xml submission
@@ -108,6 +123,12 @@ public class SubmissionParser {
 
   private EntityKey topLevelTableKey = null;
 
+  /**
+   * Attachments of this request that have been stored (or were found to be
+   * already stored) for the submission.
+   */
+  private final List<MultiPartFormItem> storedAttachments = new ArrayList<MultiPartFormItem>();
+
   /**
    * Get submission object from parse
    * 
@@ -151,7 +172,15 @@ public class SubmissionParser {
   public SubmissionParser(InputStream inputStreamXML, CallingContext cc) throws IOException,
       ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData,
       ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException {
-    constructorHelper(inputStreamXML, false, cc);
+    // the xml is read twice, so hold on to it (on disk if it is large)
+    MultiPartFormItem xml = MultiPartFormData.receive(null, null, null,
+        inputStreamXML);
+    try {
+      constructorHelper(xml, CompletedSubmissionCache.fingerprint(Collections.singletonList(xml)),
+          false, cc);
+    } finally {
+      xml.deleteSpoolFile();
+    }
   }
 
   /**
@@ -190,12 +219,8 @@ public class SubmissionParser {
       throw new IOException("DID NOT GET A SUBMISSION");
     }
 
-    InputStream inputStreamXML = new ByteArrayInputStream(submission.getStream().toByteArray());
-    try {
-      constructorHelper(inputStreamXML, isIncomplete, cc);
-    } finally {
-      inputStreamXML.close();
-    }
+    constructorHelper(submission,
+        CompletedSubmissionCache.fingerprint(submissionFormItems.getItems()), isIncomplete, cc);
   }
 
   private static final String OPEN_ROSA_NAMESPACE_PRELIM = "http://openrosa.org/xforms/metadata";
@@ -204,86 +229,146 @@ public class SubmissionParser {
   private static final String OPEN_ROSA_METADATA_TAG = "meta";
   private static final String OPEN_ROSA_INSTANCE_ID = "instanceID";
 
+  // looking up the StAX implementation is expensive; once configured, the
+  // factory can be shared by concurrent submissions.
+  private static final XMLInputFactory XML_INPUT_FACTORY = newInputFactory();
+
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    return factory;
+  }
+
+  /**
+   * @param in
+   *          the xml to read.
+   * @return a namespace-aware stream reader over the xml that does not
+   *         process DTDs.
+   * @throws IOException
+   */
+  private static XMLStreamReader createReader(InputStream in) throws IOException {
+    try {
+      return XML_INPUT_FACTORY.createXMLStreamReader(in);
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
   /**
-   * Find the OpenRosa instanceID defined for this record, if any.
+   * Advance the reader to the root element of the document.
    * 
-   * @return
+   * @param reader
+   * @throws XMLStreamException
    */
-  private String getOpenRosaInstanceId() {
-    Node n = findMetaTag(root);
-    if (n != null) {
-      NodeList nl = n.getChildNodes();
-      for (int i = 0; i < nl.getLength(); ++i) {
-        Node cn = nl.item(i);
-        String cnUri = cn.getNamespaceURI();
-        String cnName = cn.getLocalName();
-        if (cn.getNodeType() == Node.ELEMENT_NODE
-            && cnName.equals(OPEN_ROSA_INSTANCE_ID)
-            && (cnUri == null || 
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) ||
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) ||
-                cnUri.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
-          NodeList cnl = cn.getChildNodes();
-          boolean textFound = false;
-          int idxText = -1;
-          for (int j = 0; j < cnl.getLength(); ++j) {
-            Node cnln = cnl.item(j);
-            if (cnln.getNodeType() == Node.TEXT_NODE) {
-              if (textFound) {
-                throw new IllegalStateException("Expected a single text node");
-              }
-              textFound = true;
-              idxText = j;
-            }
-          }
-          if (textFound) {
-            return cnl.item(idxText).getNodeValue();
-          }
-        }
+  private static void moveToRootElement(XMLStreamReader reader) throws XMLStreamException {
+    while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+      if (!reader.hasNext()) {
+        throw new XMLStreamException("No root element in submission");
       }
+      reader.next();
     }
-    return null;
+  }
+
+  private static boolean isOpenRosaElement(XMLStreamReader reader, String name) {
+    String namespace = reader.getNamespaceURI();
+    return reader.getLocalName().equals(name)
+        && (namespace == null || namespace.length() == 0
+            || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE)
+            || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH)
+            || namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM));
   }
 
   /**
-   * Traverse submission looking for OpenRosa metadata tag (with or without
-   * namespace).
+   * First pass over the submission. Records the attributes and default
+   * namespace of the root element and the OpenRosa instanceID (the
+   * instanceID under the first OpenRosa metadata tag), if any. The whole
+   * document is read so that malformed xml is rejected before anything is
+   * stored.
    * 
-   * @param parent
-   * @return
+   * @param in
+   * @throws IOException
    */
-  private Node findMetaTag(Node parent) {
-    if (parent.getNodeType() != Node.ELEMENT_NODE)
-      return null;
-    @SuppressWarnings("unused")
-    String parentName = parent.getLocalName();
-    NodeList nl = parent.getChildNodes();
-    for (int i = 0; i < nl.getLength(); ++i) {
-      Node n = nl.item(i);
-      String namespace = n.getNamespaceURI();
-      String name = n.getLocalName();
-      if (n.getNodeType() == Node.ELEMENT_NODE
-          && name.equals(OPEN_ROSA_METADATA_TAG)
-          && (namespace == null || 
-              namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE) ||
-              namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_SLASH) ||
-              namespace.equalsIgnoreCase(OPEN_ROSA_NAMESPACE_PRELIM))) {
-        return n;
-      } else {
-        n = findMetaTag(n);
-        if (n != null)
-          return n;
+  private void readSubmissionHeader(InputStream in) throws IOException {
+    XMLStreamReader reader = createReader(in);
+    try {
+      moveToRootElement(reader);
+      for (int i = 0; i < reader.getAttributeCount(); ++i) {
+        String prefix = reader.getAttributePrefix(i);
+        if (prefix == null || prefix.length() == 0) {
+          rootAttributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+      }
+      rootNamespace = BasicConsts.EMPTY_STRING;
+      for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+        String prefix = reader.getNamespacePrefix(i);
+        if (prefix == null || prefix.length() == 0) {
+          rootNamespace = reader.getNamespaceURI(i);
+        }
+      }
+
+      // depth of the current element; the root is at depth 1
+      int depth = 1;
+      // depth of the metadata tag while within it, 0 otherwise
+      int metaDepth = 0;
+      boolean metaFound = false;
+      while (depth > 0) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          ++depth;
+          if (!metaFound && isOpenRosaElement(reader, OPEN_ROSA_METADATA_TAG)) {
+            metaFound = true;
+            metaDepth = depth;
+          } else if (metaDepth != 0 && depth == metaDepth + 1 && openRosaInstanceId == null
+              && isOpenRosaElement(reader, OPEN_ROSA_INSTANCE_ID)) {
+            openRosaInstanceId = readElementText(reader);
+            // the reader is now on the END_ELEMENT of the instanceID
+            --depth;
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          if (depth == metaDepth) {
+            metaDepth = 0;
+          }
+          --depth;
+        }
+      }
+      // and check there is nothing but whitespace after the root element
+      while (reader.hasNext()) {
+        reader.next();
+      }
+    } catch (XMLStreamException e) {
+      e.printStackTrace();
+      throw new IOException(e);
+    } finally {
+      try {
+        reader.close();
+      } catch (XMLStreamException e) {
+        // ignore
       }
     }
-    return null;
+  }
+
+  /**
+   * @param name
+   * @return the value of the given unprefixed attribute of the root element,
+   *         or the empty string if it is not present.
+   */
+  private String getRootAttribute(String name) {
+    String value = rootAttributes.get(name);
+    return (value == null) ? BasicConsts.EMPTY_STRING : value;
   }
 
   /**
    * Helper Constructor an ODK submission by processing XML submission to
    * extract values
    * 
-   * @param inputStreamXML
-   *          xml submission input stream
+   * @param xml
+   *          xml submission; it is read twice
+   * @param fingerprint
+   *          fingerprint of the content of the upload, used to recognize
+   *          retries of uploads that have already succeeded
    * @param isIncomplete
    * 
    * @throws IOException
@@ -296,39 +381,30 @@ public class SubmissionParser {
    * @throws ODKFormSubmissionsDisabledException
    * @throws ODKTaskLockException 
    */
-  private void constructorHelper(InputStream inputStreamXML, boolean isIncomplete, CallingContext cc)
+  private void constructorHelper(MultiPartFormItem xml, String fingerprint, boolean isIncomplete,
+      CallingContext cc)
       throws IOException, ODKFormNotFoundException, ODKParseException, ODKIncompleteSubmissionData,
       ODKConversionException, ODKDatastoreException, ODKFormSubmissionsDisabledException, ODKTaskLockException {
+    InputStream inputStreamXML = xml.openStream();
     try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setNamespaceAware(true);
-      factory.setIgnoringComments(true);
-      factory.setCoalescing(true);
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document doc = builder.parse(inputStreamXML);
-      root = doc.getDocumentElement();
-      // if debugging: printNode(root);
-
-      // check for odk id
-      formId = root.getAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME);
-
-      // if odk id is not present use namespace
-      if (formId.equalsIgnoreCase(BasicConsts.EMPTY_STRING)) {
-        String schema = root.getAttribute(ParserConsts.NAMESPACE_ATTRIBUTE);
-
-        // TODO: move this into FormDefinition?
-        if (schema == null) {
-          throw new ODKIncompleteSubmissionData(Reason.ID_MISSING);
-        }
+      readSubmissionHeader(inputStreamXML);
+    } finally {
+      inputStreamXML.close();
+    }
 
-        formId = schema;
+    // check for odk id
+    formId = getRootAttribute(ParserConsts.FORM_ID_ATTRIBUTE_NAME);
+
+    // if odk id is not present use namespace
+    if (formId.equalsIgnoreCase(BasicConsts.EMPTY_STRING)) {
+      String schema = rootNamespace;
+
+      // TODO: move this into FormDefinition?
+      if (schema == null) {
+        throw new ODKIncompleteSubmissionData(Reason.ID_MISSING);
       }
 
-    } catch (ParserConfigurationException e) {
-      throw new IOException(e);
-    } catch (SAXException e) {
-      e.printStackTrace();
-      throw new IOException(e);
+      formId = schema;
     }
 
     // need to escape all slashes... for xpath processing...
@@ -341,8 +417,8 @@ public class SubmissionParser {
       throw new ODKFormSubmissionsDisabledException();
     }
 
-    String modelVersionString = root.getAttribute(ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME);
-    String uiVersionString = root.getAttribute(ParserConsts.UI_VERSION_ATTRIBUTE_NAME);
+    String modelVersionString = getRootAttribute(ParserConsts.MODEL_VERSION_ATTRIBUTE_NAME);
+    String uiVersionString = getRootAttribute(ParserConsts.UI_VERSION_ATTRIBUTE_NAME);
     Long modelVersion = null;
     Long uiVersion = null;
     if (modelVersionString != null && modelVersionString.length() > 0) {
@@ -352,91 +428,243 @@ public class SubmissionParser {
       uiVersion = Long.valueOf(uiVersionString);
     }
 
-    String instanceId = getOpenRosaInstanceId();
+    String instanceId = openRosaInstanceId;
     if (instanceId == null) {
-      instanceId = root.getAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
+      instanceId = getRootAttribute(ParserConsts.INSTANCE_ID_ATTRIBUTE_NAME);
       if (instanceId == null || instanceId.length() == 0) {
         instanceId = CommonFieldsBase.newUri();
       }
     }
 
     Date submissionDate = new Date();
-    String submissionDateString = root.getAttribute(ParserConsts.SUBMISSION_DATE_ATTRIBUTE_NAME);
+    String submissionDateString = getRootAttribute(ParserConsts.SUBMISSION_DATE_ATTRIBUTE_NAME);
     if (submissionDateString != null && submissionDateString.length() != 0) {
       submissionDate = WebUtils.parseDate(submissionDateString);
     }
 
     Date markedAsCompleteDate = new Date();
-    String markedAsCompleteDateString = root
-        .getAttribute(ParserConsts.MARKED_AS_COMPLETE_DATE_ATTRIBUTE_NAME);
+    String markedAsCompleteDateString =
+        getRootAttribute(ParserConsts.MARKED_AS_COMPLETE_DATE_ATTRIBUTE_NAME);
     if (markedAsCompleteDateString != null && markedAsCompleteDateString.length() != 0) {
       markedAsCompleteDate = WebUtils.parseDate(markedAsCompleteDateString);
     }
     
+    // a device retrying an upload that has already succeeded; nothing to do
+    if (CompletedSubmissionCache.isRecentlyCompleted(formId, instanceId, fingerprint)
+        && retrieveCompletedSubmission(instanceId, cc)) {
+      return;
+    }
+
     SubmissionLockTemplate modificationLock = new SubmissionLockTemplate(formId, instanceId, cc);
     try {
       modificationLock.acquire();
-      // retrieve the record with this instanceId from the database or
-      // create a new one. This supports submissions having more than
-      // 10MB of attachments. In that case, ODK Collect will post the
-      // submission in multiple parts and Aggregate needs to be able to
-      // merge the parts together. This SHOULD NOT be used to 'update'
-      // an existing submission, only to attach additional binary content
-      // to an already-uploaded submission.
-      boolean preExisting = false;
+      // should the task lock expire while we parse, another request may
+      // store the submission first; the insert of our top level row then
+      // fails on its primary key. Parse the submission again, this time
+      // merging it into the stored one.
+      if (!parseAndPersist(xml, instanceId, modelVersion, uiVersion, submissionDate,
+          markedAsCompleteDate, cc)
+          && !parseAndPersist(xml, instanceId, modelVersion, uiVersion, submissionDate,
+              markedAsCompleteDate, cc)) {
+        throw new ODKDatastoreException("Unable to persist data");
+      }
+    } finally {
+      modificationLock.release();
+    }
+    if (submission.isComplete()) {
+      CompletedSubmissionCache.recordCompleted(formId, instanceId, fingerprint);
+      SubmissionStagingArea.clear(formId, instanceId);
+      SubmissionAggregateCache.invalidate(form.getFormId());
+    } else {
+      // the remaining attachments will come in later requests
+      SubmissionStagingArea.stage(formId, instanceId, storedAttachments);
+    }
+  }
+
+  /**
+   * Retrieve the stored submission with this instanceId, if it is complete,
+   * without the values of its repeat groups and choices.
+   *
+   * @param instanceId
+   * @param cc
+   * @return true if the submission is stored and complete.
+   * @throws ODKDatastoreException
+   */
+  private boolean retrieveCompletedSubmission(String instanceId, CallingContext cc)
+      throws ODKDatastoreException {
+    TopLevelInstanceData fi;
+    try {
+      fi = (TopLevelInstanceData) cc.getDatastore().getEntity(form.getTopLevelGroupElement()
+          .getFormDataModel().getBackingObjectPrototype(), instanceId, cc.getCurrentUser());
+    } catch (ODKEntityNotFoundException e) {
+      // e.g., the submission was deleted
+      CompletedSubmissionCache.forget(formId, instanceId);
+      return false;
+    }
+    if (!Boolean.TRUE.equals(fi.getIsComplete())) {
+      CompletedSubmissionCache.forget(formId, instanceId);
+      return false;
+    }
+    submission = new Submission(fi, form, null,
+        SubmissionFieldPlan.of(Collections.<FormElementModel> emptyList()), cc);
+    topLevelTableKey = submission.getKey();
+    preExistingComplete = true;
+    return true;
+  }
+
+  /**
+   * Retrieve the submission with this instanceId or create a new one, store
+   * the values of the xml into it and persist it.
+   *
+   * @param xml
+   * @param instanceId
+   * @param modelVersion
+   * @param uiVersion
+   * @param submissionDate
+   * @param markedAsCompleteDate
+   * @param cc
+   * @return false if the submission was new but was stored by another
+   *         request before it could be persisted.
+   * @throws IOException
+   * @throws ODKParseException
+   * @throws ODKIncompleteSubmissionData
+   * @throws ODKConversionException
+   * @throws ODKDatastoreException
+   */
+  private boolean parseAndPersist(MultiPartFormItem xml, String instanceId, Long modelVersion,
+      Long uiVersion, Date submissionDate, Date markedAsCompleteDate, CallingContext cc)
+      throws IOException, ODKParseException, ODKIncompleteSubmissionData,
+      ODKConversionException, ODKDatastoreException {
+    storedAttachments.clear();
+    // retrieve the record with this instanceId from the database or
+    // create a new one. This supports submissions having more than
+    // 10MB of attachments. In that case, ODK Collect will post the
+    // submission in multiple parts and Aggregate needs to be able to
+    // merge the parts together. This SHOULD NOT be used to 'update'
+    // an existing submission, only to attach additional binary content
+    // to an already-uploaded submission.
+    boolean preExisting = false;
+    try {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+      TopLevelInstanceData fi = (TopLevelInstanceData) ds.getEntity(form.getTopLevelGroupElement()
+          .getFormDataModel().getBackingObjectPrototype(), instanceId, user);
       try {
-        Datastore ds = cc.getDatastore();
-        User user = cc.getCurrentUser();
-        TopLevelInstanceData fi = (TopLevelInstanceData) ds.getEntity(form.getTopLevelGroupElement()
-            .getFormDataModel().getBackingObjectPrototype(), instanceId, user);
-        try {
-          submission = new Submission(fi, form, cc);
-        } catch (ODKDatastoreException e) {
-          Logger logger = LoggerFactory.getLogger(Submission.class);
-          e.printStackTrace();
-          logger.error("Unable to reconstruct submission for " + fi.getSchemaName() + "."
-              + fi.getTableName() + " uri " + fi.getUri());
-          if ( (e instanceof ODKEntityNotFoundException) ||
-              (e instanceof ODKEnumeratedElementException) ) {
-            // this is a malformed submission...
-            // try to clean this up...
-            DeleteHelper.deleteDamagedSubmission(fi, form.getAllBackingObjects(), cc);
-          }
-          throw e;
+        // only the attachments of an existing submission can change, so
+        // don't fetch the repeat groups and choices that hold none.
+        submission = new Submission(fi, form, null,
+            SubmissionFieldPlan.of(getBinaryElements(form.getTopLevelGroupElement())), cc);
+      } catch (ODKDatastoreException e) {
+        Logger logger = LoggerFactory.getLogger(Submission.class);
+        e.printStackTrace();
+        logger.error("Unable to reconstruct submission for " + fi.getSchemaName() + "."
+            + fi.getTableName() + " uri " + fi.getUri());
+        if ( (e instanceof ODKEntityNotFoundException) ||
+            (e instanceof ODKEnumeratedElementException) ) {
+          // this is a malformed submission...
+          // try to clean this up...
+          DeleteHelper.deleteDamagedSubmission(fi, form.getAllBackingObjects(), cc);
         }
-        preExisting = true;
-        preExistingComplete = submission.isComplete();
-      } catch (ODKEntityNotFoundException e) {
-        submission = new Submission(modelVersion, uiVersion, instanceId, form, submissionDate, cc);
-      }
-  
-      topLevelTableKey = submission.getKey();
-  
-      Map<String, Integer> repeatGroupIndices = new HashMap<String, Integer>();
-      FormElementModel formRoot = form.getTopLevelGroupElement();
-      // if the submission is pre-existing in the datastore, ONLY update binaries
-      boolean uploadAllBinaries = processSubmissionElement(formRoot, root, submission,
-                                                            repeatGroupIndices, preExisting, cc);
-      submission.setIsComplete(uploadAllBinaries);
-      if (uploadAllBinaries) {
-        submission.setMarkedAsCompleteDate(markedAsCompleteDate);
+        throw e;
       }
-      // save the elements inserted into the top-level submission
+      preExisting = true;
+      preExistingComplete = submission.isComplete();
+    } catch (ODKEntityNotFoundException e) {
+      submission = new Submission(modelVersion, uiVersion, instanceId, form, submissionDate, cc);
+    }
+
+    topLevelTableKey = submission.getKey();
+
+    Map<String, Integer> repeatGroupIndices = new HashMap<String, Integer>();
+    FormElementModel formRoot = form.getTopLevelGroupElement();
+    // if the submission is pre-existing in the datastore, ONLY update binaries
+    boolean uploadAllBinaries;
+    InputStream inputStreamValues = xml.openStream();
+    XMLStreamReader reader = createReader(inputStreamValues);
+    try {
+      moveToRootElement(reader);
+      uploadAllBinaries = processSubmissionElement(formRoot, reader, submission,
+                                                    repeatGroupIndices, preExisting, cc);
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    } finally {
       try {
-        submission.persist(cc);
-      } catch (Exception e) {
-        List<EntityKey> keys = new ArrayList<EntityKey>();
-        submission.recursivelyAddEntityKeysForDeletion(keys, cc);
-        keys.add(submission.getKey());
-        try {
-          DeleteHelper.deleteEntities(keys, cc);
-        } catch (Exception ex) {
-          // ignore... we are rolling back...
+        reader.close();
+      } catch (XMLStreamException e) {
+        // ignore
+      }
+      inputStreamValues.close();
+    }
+    submission.setIsComplete(uploadAllBinaries);
+    if (uploadAllBinaries) {
+      submission.setMarkedAsCompleteDate(markedAsCompleteDate);
+    }
+    // save the elements inserted into the top-level submission
+    try {
+      submission.persist(cc);
+    } catch (Exception e) {
+      // where the datastore supports it, the rows of the submission were
+      // written in one transaction and have been rolled back, but the
+      // content of the attachments was persisted as it was received.
+      // Another request storing the submission first is only detected where
+      // the insert fails on the primary key; on GAE a put overwrites, so it
+      // is the task lock that keeps the requests apart there.
+      boolean storedElsewhere = !preExisting && isStored(instanceId, cc);
+      List<EntityKey> keys = new ArrayList<EntityKey>();
+      submission.recursivelyAddEntityKeysForDeletion(keys, cc);
+      if (storedElsewhere) {
+        // the top level row belongs to the request that stored it
+        String uri = submission.getKey().getKey();
+        for (Iterator<EntityKey> it = keys.iterator(); it.hasNext();) {
+          if (it.next().getKey().equals(uri)) {
+            it.remove();
+          }
         }
-        throw new ODKDatastoreException("Unable to persist data", e);
+      } else {
+        keys.add(submission.getKey());
       }
-    } finally {
-      modificationLock.release();
+      try {
+        DeleteHelper.deleteEntities(keys, cc);
+      } catch (Exception ex) {
+        // ignore... we are rolling back...
+      }
+      if (storedElsewhere) {
+        return false;
+      }
+      throw new ODKDatastoreException("Unable to persist data", e);
+    }
+    return true;
+  }
+
+  /**
+   * @param group
+   * @return the binary elements nested under the group.
+   */
+  private static List<FormElementModel> getBinaryElements(FormElementModel group) {
+    List<FormElementModel> binaries = new ArrayList<FormElementModel>();
+    for (FormElementModel m : group.getChildren()) {
+      if (m.getElementType() == FormElementModel.ElementType.BINARY) {
+        binaries.add(m);
+      } else {
+        binaries.addAll(getBinaryElements(m));
+      }
+    }
+    return binaries;
+  }
+
+  /**
+   * @param instanceId
+   * @param cc
+   * @return true if a submission with this instanceId is in the datastore.
+   * @throws ODKDatastoreException
+   */
+  private boolean isStored(String instanceId, CallingContext cc) throws ODKDatastoreException {
+    try {
+      cc.getDatastore().getEntity(form.getTopLevelGroupElement().getFormDataModel()
+          .getBackingObjectPrototype(), instanceId, cc.getCurrentUser());
+      return true;
+    } catch (ODKEntityNotFoundException e) {
+      return false;
     }
   }
 
@@ -448,8 +676,10 @@ public class SubmissionParser {
    * 
    * @param node
    *          form data model of the group or repeat group being parsed.
-   * @param currentSubmissionElement
-   *          xml document element that marks the start of this submission set.
+   * @param reader
+   *          xml stream positioned on the start of the element that marks the
+   *          start of this submission set. On return, it is positioned on the
+   *          end of that element.
    * @param submissionSet
    *          the submission set to add the submission values to.
    * @param repeatGroupIndicies
@@ -462,52 +692,58 @@ public class SubmissionParser {
    * @throws ODKIncompleteSubmissionData
    * @throws ODKConversionException
    * @throws ODKDatastoreException
+   * @throws XMLStreamException
+   * @throws IOException
    */
-  private boolean processSubmissionElement(FormElementModel node, Element currentSubmissionElement,
+  private boolean processSubmissionElement(FormElementModel node, XMLStreamReader reader,
       SubmissionSet submissionSet, Map<String, Integer> repeatGroupIndicies, boolean preExisting,
       CallingContext cc) throws ODKParseException, ODKIncompleteSubmissionData,
-      ODKConversionException, ODKDatastoreException {
+      ODKConversionException, ODKDatastoreException, XMLStreamException, IOException {
 
-    if (node == null || currentSubmissionElement == null) {
+    if (node == null) {
+      skipElement(reader);
       return true;
     }
 
     // the element name of the fdm is the tag name...
     String submissionTag = node.getElementName();
     if (submissionTag == null) {
+      skipElement(reader);
       return true;
     }
 
     // verify that the xml matches the node we are processing...
-    if (!currentSubmissionElement.getLocalName().equals(submissionTag)) {
+    if (!reader.getLocalName().equals(submissionTag)) {
       throw new ODKParseException("Xml document element tag: "
-          + currentSubmissionElement.getLocalName()
+          + reader.getLocalName()
           + " does not match the xform data model tag name: " + submissionTag);
     }
 
-    // get the structure under the fdm tag name...
-    List<Element> elements = getElements(currentSubmissionElement);
-    if (elements.size() == 0) {
-      return true; // the group is not relevant...
-    }
-    // and for each of these, they should be fields under the given fdm
-    // and values within the submissionSet
+    // the structure under the fdm tag name should be fields under the
+    // given fdm and values within the submissionSet. If there are none,
+    // the group is not relevant...
     boolean complete = true;
-    for (Element e : elements) {
-      FormElementModel m = node.findElementByName(e.getLocalName());
+    while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+      if (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      FormElementModel m = node.findElementByName(reader.getLocalName());
       if (m == null) {
+        skipElement(reader);
         continue;
         // throw new ODKParseException();
       }
       switch (m.getElementType()) {
       case METADATA:
         // This keeps lint warnings down
+        skipElement(reader);
         break;
       case GROUP:
         // need to recurse on these elements keeping the same
         // submissionSet...
         complete = complete
-            & processSubmissionElement(m, e, submissionSet, repeatGroupIndicies, preExisting, cc);
+            & processSubmissionElement(m, reader, submissionSet, repeatGroupIndicies, preExisting,
+                cc);
         break;
       case REPEAT:
         // get the field that will hold the repeats...
@@ -542,9 +778,9 @@ public class SubmissionParser {
         } else {
           throw new IllegalStateException("incrementing repeats by more than one!");
         }
-        // populate the instance's submission set with values from e...
+        // populate the instance's submission set with values from the xml...
         complete = complete
-            & processSubmissionElement(m, e, repeatableSubmissionSet, repeatGroupIndicies,
+            & processSubmissionElement(m, reader, repeatableSubmissionSet, repeatGroupIndicies,
                 preExisting, cc);
         break;
       case STRING:
@@ -559,155 +795,211 @@ public class SubmissionParser {
       case SELECT1: // identifies SelectChoice table
       case SELECTN: // identifies SelectChoice table
         if (!preExisting) {
-          String value = getSubmissionValue(e);
+          String value = getSubmissionValue(reader);
           SubmissionField<?> subField = (SubmissionField<?>) submissionSet.getElementValue(m);
           subField.setValueFromString(value);
+        } else {
+          skipElement(reader);
         }
         break;
       case GEOPOINT:
         if (!preExisting) {
-          String value = getSubmissionValue(e);
+          String value = getSubmissionValue(reader);
           ((SubmissionField<?>) submissionSet.getElementValue(m)).setValueFromString(value);
+        } else {
+          skipElement(reader);
         }
         break;
       case BINARY: // identifies BinaryContent table
         {
-          String value = getSubmissionValue(e);
           SubmissionField<?> submissionElement = ((SubmissionField<?>) submissionSet
               .getElementValue(m));
-          complete = complete & processBinarySubmission(m, submissionElement, value, cc);
+          if (submissionFormItems == null) {
+            complete = complete & processInlineBinarySubmission(submissionElement, reader, cc);
+          } else {
+            String value = getSubmissionValue(reader);
+            complete = complete & processBinarySubmission(m, submissionElement, value,
+                preExisting, cc);
+          }
         }
         break;
+      default:
+        skipElement(reader);
+        break;
       }
     }
     return complete;
   }
 
-  private boolean processBinarySubmission(FormElementModel m, SubmissionField<?> submissionElement,
-      String value, CallingContext cc) throws ODKDatastoreException {
-
-    // value will either be a byte array (if not a multipart/form-data
-    // submission)
-    // or the filename of the attached media file
-    // or the name of the filed holding the media file contents.
-    // It will be null only if there is no associated file.
-    if (value == null)
-      return true;
-
-    // check to see if we received a multipart submission
-    if (submissionFormItems == null) {
-      // TODO: problem, only accept a base64 encoded in a direct XML post
-      byte[] receivedBytes = Base64.decodeBase64(value.getBytes());
+  /**
+   * Store the base64-encoded content of the binary element the reader is
+   * positioned on. The content is decoded as it is read and spooled to disk
+   * if it is large, so neither the encoded nor the decoded content is held
+   * in memory in full.
+   * 
+   * @param submissionElement
+   * @param reader
+   * @param cc
+   * @return true
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  private boolean processInlineBinarySubmission(SubmissionField<?> submissionElement,
+      XMLStreamReader reader, CallingContext cc) throws ODKDatastoreException, IOException {
+    // TODO: problem, only accept a base64 encoded in a direct XML post
+    MultiPartFormItem binaryData;
+    InputStream encoded = new XmlElementTextInputStream(reader);
+    try {
       // TODO: problem since we don't know how to tell what type of
       // binary without content type, defaulting to JPG
-      submissionElement.setValueFromByteArray(receivedBytes, HtmlConsts.RESP_TYPE_IMAGE_JPEG,
-          null, false, cc);
-    } else {
-      // attempt to find binary data in multi-part form submission
-      // first searching by file name, then field name
-      MultiPartFormItem binaryData = submissionFormItems.getFormDataByFileName(value);
-      if (binaryData == null) {
-        binaryData = submissionFormItems.getFormDataByFieldName(value);
-      }
-      // after completing the search now check if found anything and
-      // value, otherwise output error
-      if (binaryData != null) {
-        // determine the filename, if any...
-        String fileName = binaryData.getFilename();
-        if (fileName == null || fileName.length() == 0) {
-          fileName = null;
-        }
-        byte[] byteArray = binaryData.getStream().toByteArray();
-        submissionElement.setValueFromByteArray(byteArray, binaryData.getContentType(),
-            fileName, false, cc);
-      } else {
-        // Assume the value is the filename...
-        submissionElement.setValueFromByteArray(null, null, value, false, cc);
-
-        // and if we already have the content loaded, the content hash will be
-        // non-null
+      binaryData = MultiPartFormData.receive(null, null, HtmlConsts.RESP_TYPE_IMAGE_JPEG,
+          new Base64InputStream(encoded));
+    } finally {
+      encoded.close();
+    }
+    try {
+      // there is no associated file if the element is empty
+      if (binaryData.getContentLength() != 0) {
         BlobSubmissionType blob = (BlobSubmissionType) submissionElement;
-        return (blob.getContentHash(1, cc) != null);
+        blob.setValueFromContentSource(binaryData, binaryData.getContentType(), null, false, cc);
       }
+    } finally {
+      binaryData.deleteSpoolFile();
     }
     return true;
   }
 
-  private List<Element> getElements(Element rootNode) {
-    List<Element> elements = new ArrayList<Element>();
+  private boolean processBinarySubmission(FormElementModel m, SubmissionField<?> submissionElement,
+      String value, boolean preExisting, CallingContext cc) throws ODKDatastoreException {
 
-    NodeList nodeList = rootNode.getChildNodes();
+    // value will either be the filename of the attached media file
+    // or the name of the filed holding the media file contents.
+    // It will be null only if there is no associated file.
+    if (value == null)
+      return true;
 
-    for (int i = 0; i < nodeList.getLength(); ++i) {
-      Node node = nodeList.item(i);
-      if (node.getNodeType() == Node.ELEMENT_NODE) {
-        elements.add((Element) node);
+    // attempt to find binary data in multi-part form submission
+    // first searching by file name, then field name
+    MultiPartFormItem binaryData = submissionFormItems.getFormDataByFileName(value);
+    if (binaryData == null) {
+      binaryData = submissionFormItems.getFormDataByFieldName(value);
+    }
+    // after completing the search now check if found anything and
+    // value, otherwise output error
+    if (binaryData != null) {
+      // determine the filename, if any...
+      String fileName = binaryData.getFilename();
+      if (fileName == null || fileName.length() == 0) {
+        fileName = null;
+      }
+      if (preExisting && SubmissionStagingArea.isStored(formId, topLevelTableKey.getKey(),
+          fileName, binaryData.getContentHash())) {
+        // sent again in a later part of a submission sent in several parts
+        return true;
+      }
+      // the attachment may have been spooled to disk; store it from there
+      BlobSubmissionType blob = (BlobSubmissionType) submissionElement;
+      BlobSubmissionOutcome outcome = blob.setValueFromContentSource(binaryData,
+          binaryData.getContentType(), fileName, false, cc);
+      if (outcome != BlobSubmissionOutcome.NEW_FILE_VERSION) {
+        storedAttachments.add(binaryData);
       }
+    } else if (preExisting
+        && SubmissionStagingArea.isStored(formId, topLevelTableKey.getKey(), value, null)) {
+      // received in an earlier part of a submission sent in several parts
+      return true;
+    } else {
+      // Assume the value is the filename...
+      submissionElement.setValueFromByteArray(null, null, value, false, cc);
+
+      // and if we already have the content loaded, the content hash will be
+      // non-null
+      BlobSubmissionType blob = (BlobSubmissionType) submissionElement;
+      return (blob.getContentHash(1, cc) != null);
     }
-    return elements;
+    return true;
   }
 
   /**
-   * Extracts value from the XML submission element by getting value from the
-   * text node
-   * 
-   * @param element
-   *          element that has text child node that will contain the value
+   * Skip the element the reader is positioned on, leaving the reader on its
+   * end.
    * 
-   * @return value contained in the XML submission
+   * @param reader
+   * @throws XMLStreamException
    */
-  private String getSubmissionValue(Element element) {
-    // could not find element, return null
-    if (element == null) {
-      return null;
-    }
-
-    NodeList childNodeList = element.getChildNodes();
-    // get element value
-    for (int i = 0; i < childNodeList.getLength(); i++) {
-      Node node = childNodeList.item(i);
-      if (node.getNodeType() == Node.TEXT_NODE) {
-        String value = node.getNodeValue().trim();
-        if (value.length() > 0) {
-          return value;
-        } // else go to next node
+  private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        ++depth;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        --depth;
       }
-    } // else has no value so continue
+    }
+  }
 
-    return null;
+  private static boolean isText(int event) {
+    return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+        || event == XMLStreamConstants.SPACE;
   }
 
   /**
-   * Recursive function that prints the nodes from an XML tree
+   * Reads the text directly under the element the reader is positioned on,
+   * leaving the reader on its end.
    * 
-   * @param node
-   *          xml node to be recursively printed
+   * @param reader
+   * @return the text, or null if the element holds no text.
+   * @throws XMLStreamException
    */
-  @SuppressWarnings("unused")
-  private void printNode(Element node) {
-    System.out.println(ParserConsts.NODE_FORMATTED + node.getTagName());
-    if (node.hasAttributes()) {
-      NamedNodeMap attributes = node.getAttributes();
-      for (int i = 0; i < attributes.getLength(); i++) {
-        Node attr = attributes.item(i);
-        System.out.println(ParserConsts.ATTRIBUTE_FORMATTED + attr.getNodeName()
-            + BasicConsts.EQUALS + attr.getNodeValue());
+  private static String readElementText(XMLStreamReader reader) throws XMLStreamException {
+    StringBuilder b = null;
+    int event;
+    while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+      if (isText(event)) {
+        if (b == null) {
+          b = new StringBuilder();
+        }
+        b.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        skipElement(reader);
       }
     }
-    if (node.hasChildNodes()) {
-      NodeList children = node.getChildNodes();
-      for (int i = 0; i < children.getLength(); i++) {
-        Node child = children.item(i);
-        if (child.getNodeType() == Node.ELEMENT_NODE) {
-          printNode((Element) child);
-        } else if (child.getNodeType() == Node.TEXT_NODE) {
-          String value = child.getNodeValue().trim();
-          if (value.length() > 0) {
-            System.out.println(ParserConsts.VALUE_FORMATTED + value);
-          }
+    return (b == null) ? null : b.toString();
+  }
+
+  /**
+   * Extracts value from the XML submission element by getting value from the
+   * text under it, leaving the reader on the end of the element.
+   * 
+   * @param reader
+   *          positioned on the element whose text will contain the value
+   * 
+   * @return the first non-blank run of text directly under the element,
+   *         trimmed, or null if there is none.
+   * @throws XMLStreamException
+   */
+  private static String getSubmissionValue(XMLStreamReader reader) throws XMLStreamException {
+    String value = null;
+    StringBuilder b = new StringBuilder();
+    int event;
+    while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+      if (isText(event)) {
+        if (value == null) {
+          b.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
         }
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        // nested elements separate the runs of text
+        if (value == null && b.toString().trim().length() > 0) {
+          value = b.toString().trim();
+        }
+        b.setLength(0);
+        skipElement(reader);
       }
     }
-
+    if (value == null && b.toString().trim().length() > 0) {
+      value = b.toString().trim();
+    }
+    return value;
   }
 }
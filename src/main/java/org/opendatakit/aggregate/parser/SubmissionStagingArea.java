@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks the attachments of incomplete submissions that have already been
+ * received and stored on this server. A device sends a submission with many
+ * attachments in several POSTs (each marked as incomplete but the last), and
+ * may repeat attachments it sent before; those are recognized by their file
+ * name and content hash and are not stored again.
+ * <p>
+ * Only the names and hashes are held; the content of each attachment is
+ * persisted as it is received. The least recently used submissions are
+ * dropped, after which their attachments are checked against the datastore
+ * as usual.
+ */
+final class SubmissionStagingArea {
+
+  static final int MAX_SUBMISSIONS = 1000;
+
+  // form id and instanceId to the file name and content hash of the stored
+  // attachments
+  private static final Map<String, Map<String, String>> staged = new LinkedHashMap<String, Map<String, String>>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+      return size() > MAX_SUBMISSIONS;
+    }
+  };
+
+  private SubmissionStagingArea() {
+  }
+
+  private static String key(String formId, String instanceId) {
+    return formId + "|" + instanceId;
+  }
+
+  /**
+   * @param formId
+   * @param instanceId
+   * @param fileName
+   * @param contentHash
+   *          the hash of the content of the attachment, or null if it was
+   *          not sent in this request.
+   * @return true if the attachment (with the same content, if given) is known
+   *         to be stored for the submission.
+   */
+  static synchronized boolean isStored(String formId, String instanceId, String fileName,
+      String contentHash) {
+    Map<String, String> attachments = staged.get(key(formId, instanceId));
+    if (attachments == null || fileName == null) {
+      return false;
+    }
+    String hash = attachments.get(fileName);
+    return hash != null && (contentHash == null || hash.equals(contentHash));
+  }
+
+  /**
+   * Remember that these attachments are stored for the (still incomplete)
+   * submission.
+   *
+   * @param formId
+   * @param instanceId
+   * @param attachments
+   */
+  static synchronized void stage(String formId, String instanceId,
+      Collection<MultiPartFormItem> attachments) {
+    String key = key(formId, instanceId);
+    Map<String, String> stored = staged.get(key);
+    if (stored == null) {
+      stored = new HashMap<String, String>();
+      staged.put(key, stored);
+    }
+    for (MultiPartFormItem attachment : attachments) {
+      if (attachment.getFilename() != null) {
+        stored.put(attachment.getFilename(), attachment.getContentHash());
+      }
+    }
+  }
+
+  /**
+   * Forget the submission, e.g., once it is complete.
+   *
+   * @param formId
+   * @param instanceId
+   */
+  static synchronized void clear(String formId, String instanceId) {
+    staged.remove(key(formId, instanceId));
+  }
+}
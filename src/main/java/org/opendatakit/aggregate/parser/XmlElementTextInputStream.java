@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the text directly under the current element of an XML stream, a
+ * buffer at a time, as ASCII bytes. Used to decode base64 content without
+ * holding the text of the element in memory. Characters outside of ASCII are
+ * returned as '?'. The text of nested elements is skipped.
+ * <p>
+ * The reader must be positioned on the START_ELEMENT of the element. Once
+ * the stream is exhausted or closed, it is positioned on the matching
+ * END_ELEMENT.
+ */
+final class XmlElementTextInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final XMLStreamReader reader;
+  private final char[] chars = new char[BUFFER_SIZE];
+  private int pos = 0;
+  private int len = 0;
+
+  // depth of the nested element being skipped, 0 if none
+  private int depth = 0;
+  // offset of the next character to copy from the current text event, or -1
+  private int textOffset = -1;
+  private boolean done = false;
+
+  XmlElementTextInputStream(XMLStreamReader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * @return true if chars holds more characters; false at the end of the
+   *         element.
+   * @throws IOException
+   */
+  private boolean fill() throws IOException {
+    try {
+      while (!done) {
+        if (textOffset != -1) {
+          int count = reader.getTextCharacters(textOffset, chars, 0, chars.length);
+          if (count > 0) {
+            textOffset += count;
+            pos = 0;
+            len = count;
+            return true;
+          }
+          textOffset = -1;
+        }
+        switch (reader.next()) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          if (depth == 0) {
+            textOffset = 0;
+          }
+          break;
+        case XMLStreamConstants.START_ELEMENT:
+          ++depth;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (depth == 0) {
+            done = true;
+          } else {
+            --depth;
+          }
+          break;
+        default:
+          break;
+        }
+      }
+      return false;
+    } catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (pos == len && !fill()) {
+      return -1;
+    }
+    char c = chars[pos++];
+    return (c < 0x80) ? c : '?';
+  }
+
+  @Override
+  public int read(byte[] b, int off, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (pos == len && !fill()) {
+      return -1;
+    }
+    int count = Math.min(length, len - pos);
+    for (int i = 0; i < count; ++i) {
+      char c = chars[pos++];
+      b[off + i] = (byte) ((c < 0x80) ? c : '?');
+    }
+    return count;
+  }
+
+  /**
+   * Skip the rest of the element.
+   */
+  @Override
+  public void close() throws IOException {
+    pos = len;
+    while (fill()) {
+      pos = len;
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package org.opendatakit.aggregate.process;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -24,6 +25,8 @@ import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.form.FormFactory;
 import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.query.submission.SubmissionAggregateCache;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
@@ -52,6 +55,7 @@ public class DeleteSubmissions {
 
   public void deleteSubmissions(CallingContext cc) throws ODKOverQuotaException, ODKFormNotFoundException, ODKDatastoreException {
     List<EntityKey> deleteKeys = new ArrayList<EntityKey>();
+    Set<String> formIds = new HashSet<String>();
 
     for (SubmissionKey submissionKey : submissionKeys) {
       List<SubmissionKeyPart> parts = submissionKey.splitSubmissionKey();
@@ -71,6 +75,7 @@ public class DeleteSubmissions {
       if ( tle != null ) {
         // we have the top-level entity. Construct the submission.
         IForm form = FormFactory.retrieveFormByFormId(parts.get(0).getElementName(), cc);
+        formIds.add(form.getFormId());
         try {
           Submission sub = new Submission(tle, form, cc);
           sub.recursivelyAddEntityKeysForDeletion(deleteKeys, cc);
@@ -83,6 +88,13 @@ public class DeleteSubmissions {
         }
       }
     }
+    // exports that include these submissions can no longer be continued
+    for (String formId : formIds) {
+      PersistentResults.forgetCompletedExports(formId, cc);
+    }
     DeleteHelper.deleteEntities(deleteKeys, cc);
+    for (String formId : formIds) {
+      SubmissionAggregateCache.invalidate(formId);
+    }
   }
 }
@@ -99,6 +99,17 @@ public abstract class QueryBase {
     }
   }
 
+  /**
+   * Fetch only these fields (plus the primary key and sort attributes) of
+   * the top-level record. Only useful for callers that work with the
+   * top-level entities directly rather than with full Submissions.
+   * 
+   * @param fields
+   */
+  public void selectOnly(DataField... fields) {
+    query.selectOnly(fields);
+  }
+
   public abstract List<Submission> getResultSubmissions(CallingContext cc) throws ODKIncompleteSubmissionData, ODKDatastoreException;
 
   
@@ -26,6 +26,7 @@ import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.datamodel.ChildRowCache;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.PersistConsts;
@@ -109,11 +110,15 @@ public class QueryByDateRange extends QueryBase {
     // retrieve submissions
     List<? extends CommonFieldsBase> submissionEntities = result.getResultList();
 
+    // fetch the repeat groups, choices and attachments of the whole page at once
+    ChildRowCache childRows = ChildRowCache.forEntities(submissionEntities);
+
     // create a row for each submission
     for (int count = 0; count < submissionEntities.size(); count++) {
       CommonFieldsBase subEntity = submissionEntities.get(count);
       try {
-        retrievedSubmissions.add(new Submission((TopLevelDynamicBase) subEntity, getForm(), cc));
+        retrievedSubmissions.add(new Submission((TopLevelDynamicBase) subEntity, getForm(),
+            childRows, cc));
       } catch ( ODKDatastoreException e ) {
         Logger logger = LoggerFactory.getLogger(QueryByUIFilterGroup.class);
         e.printStackTrace();
@@ -31,8 +31,10 @@ import org.opendatakit.aggregate.client.submission.Column;
 import org.opendatakit.aggregate.client.submission.SubmissionUI;
 import org.opendatakit.aggregate.client.submission.SubmissionUISummary;
 import org.opendatakit.aggregate.constants.common.FormElementNamespace;
+import org.opendatakit.aggregate.datamodel.FormDataModel;
 import org.opendatakit.aggregate.datamodel.FormElementKey;
 import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.datamodel.SelectChoice;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.Row;
@@ -40,9 +42,14 @@ import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.server.UITrans;
 import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.aggregate.submission.SubmissionFieldPlan;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.datamodel.ChildRowCache;
+import org.opendatakit.common.datamodel.DynamicBase;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.GroupedAggregate;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.QueryResult;
@@ -218,11 +225,14 @@ public class QueryByUIFilterGroup extends QueryBase {
     QueryResult results = getQueryResult(cursor, fetchLimit);
     List<? extends CommonFieldsBase> submissionEntities = results.getResultList();
 
+    // fetch the repeat groups, choices and attachments of the whole page at once
+    ChildRowCache childRows = ChildRowCache.forEntities(submissionEntities);
+
     // create a row for each submission
     for (int count = 0; count < submissionEntities.size(); count++) {
       CommonFieldsBase subEntity = submissionEntities.get(count);
       try {
-        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), cc);
+        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), childRows, cc);
         retrievedSubmissions.add(sub);
       } catch (ODKDatastoreException e ) {
         Logger logger = LoggerFactory.getLogger(QueryByUIFilterGroup.class);
@@ -250,6 +260,90 @@ public class QueryByUIFilterGroup extends QueryBase {
     return retrievedSubmissions;
   }
 
+  /**
+   * @return the cursor from which the next query continues, e.g., to
+   *         checkpoint an export.
+   */
+  public QueryResumePoint getResumeCursor() {
+    return cursor;
+  }
+
+  /**
+   * @param fem
+   * @return the field holding the values of the element that can be grouped
+   *         on or aggregated, or null if there is none.
+   */
+  private static DataField getAggregateField(FormElementModel fem) {
+    if (fem.isMetadata()) {
+      return null;
+    }
+    FormDataModel fdm = fem.getFormDataModel();
+    switch (fdm.getElementType()) {
+    case SELECT1: // identifies SelectChoice table
+    case SELECTN: // identifies SelectChoice table
+      return ((SelectChoice) fdm.getBackingObjectPrototype()).value;
+    case STRING:
+    case INTEGER:
+    case DECIMAL:
+    case BOOLEAN:
+      return fdm.getBackingKey();
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Group the submissions selected by the filter group by the value of an
+   * element, in the database, counting them and summing a numeric element.
+   * The choices of a select-multiple element and the elements of repeat
+   * groups are grouped over all the choices (or repeats) of the selected
+   * submissions. The cursor and fetch limit of the filter group are ignored.
+   *
+   * @param groupBy
+   *          a text, select, integer, decimal or boolean element.
+   * @param aggregated
+   *          an integer or decimal element stored in the same table as
+   *          groupBy (e.g., not a select-multiple), or null to only count.
+   * @param cc
+   * @return the groups, ordered by their value.
+   * @throws ODKDatastoreException
+   */
+  public List<GroupedAggregate> getGroupedAggregates(FormElementModel groupBy,
+      FormElementModel aggregated, CallingContext cc) throws ODKDatastoreException {
+    DataField groupField = getAggregateField(groupBy);
+    if (groupField == null) {
+      throw new IllegalArgumentException("Unable to group by " + groupBy.getElementName());
+    }
+    CommonFieldsBase groupTable = groupBy.getFormDataModel().getBackingObjectPrototype();
+
+    DataField valueField = null;
+    if (aggregated != null) {
+      valueField = getAggregateField(aggregated);
+      if (valueField == null
+          || !(aggregated.getElementType() == FormElementModel.ElementType.INTEGER
+              || aggregated.getElementType() == FormElementModel.ElementType.DECIMAL)) {
+        throw new IllegalArgumentException("Unable to sum " + aggregated.getElementName());
+      }
+      if (aggregated.getFormDataModel().getBackingObjectPrototype() != groupTable) {
+        throw new IllegalArgumentException("Unable to sum " + aggregated.getElementName()
+            + " by " + groupBy.getElementName() + " because they are stored apart");
+      }
+    }
+
+    if (groupTable == tbl) {
+      return query.executeGroupedAggregate(groupField, valueField);
+    }
+    if (!(groupTable instanceof DynamicBase)) {
+      throw new IllegalArgumentException("Unable to group by " + groupBy.getElementName());
+    }
+    // the rows of a choice, repeat or overflow table, restricted to those of
+    // the selected submissions
+    Query childQuery = cc.getDatastore().createQuery(groupTable,
+        "QueryByUIFilterGroup.getGroupedAggregates", cc.getCurrentUser());
+    childQuery.addSubqueryFilter(((DynamicBase) groupTable).topLevelAuri, query, tbl.primaryKey);
+    return childQuery.executeGroupedAggregate(groupField, valueField);
+  }
+
   public static final class PartialResults {
     public List<Submission> retrievedSubmissions;
     public List<TopLevelDynamicBase> badTopLevelEntities;
@@ -358,9 +452,13 @@ public class QueryByUIFilterGroup extends QueryBase {
     List<SubmissionUI> submissionList = new ArrayList<SubmissionUI>();
 
     // create a row for each submission
+    // only the repeats and choices of the visible columns are fetched
+    SubmissionFieldPlan fieldPlan = SubmissionFieldPlan.of(filteredElements);
+    ChildRowCache childRows = ChildRowCache.forEntities(results.getResultList());
     for (CommonFieldsBase subEntity : results.getResultList()) {
       try {
-        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), cc);
+        Submission sub = new Submission((TopLevelDynamicBase) subEntity, getForm(), childRows,
+            fieldPlan, cc);
         Row row = sub.getFormattedValuesAsRow(elementTypes, filteredElements, elemFormatter, false,
             cc);
   
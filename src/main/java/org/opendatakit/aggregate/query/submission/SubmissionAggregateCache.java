@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.query.submission;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.common.persistence.GroupedAggregate;
+
+/**
+ * Holds the results of the grouped aggregate queries of each form (see
+ * {@link QueryByUIFilterGroup#getGroupedAggregates}), so that redrawing a
+ * chart does not scan the submissions again. The results of a form are
+ * dropped when its submissions change on this server; submissions received
+ * by other servers are picked up once the results reach
+ * {@link #MAX_AGE_MILLISECONDS}. The forms themselves are dropped when they
+ * are deleted, or when they are the least recently used of more than
+ * {@link #MAX_FORMS} (e.g., forms deleted on other servers).
+ */
+public final class SubmissionAggregateCache {
+
+  static final int MAX_FORMS = 1000;
+
+  static final int MAX_ENTRIES_PER_FORM = 100;
+
+  static final long MAX_AGE_MILLISECONDS = 60000L;
+
+  private static final class CachedGroups {
+    final List<GroupedAggregate> groups;
+    final long cachedAt = System.currentTimeMillis();
+
+    CachedGroups(List<GroupedAggregate> groups) {
+      this.groups = groups;
+    }
+  }
+
+  private static final class FormEntries {
+    // incremented whenever the submissions of the form change
+    long generation = 0L;
+    final Map<String, CachedGroups> entries = new LinkedHashMap<String, CachedGroups>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedGroups> eldest) {
+        return size() > MAX_ENTRIES_PER_FORM;
+      }
+    };
+  }
+
+  private static final Map<String, FormEntries> forms = new LinkedHashMap<String, FormEntries>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, FormEntries> eldest) {
+      return size() > MAX_FORMS;
+    }
+  };
+
+  private SubmissionAggregateCache() {
+  }
+
+  private static FormEntries getFormEntries(String formId) {
+    FormEntries f = forms.get(formId);
+    if (f == null) {
+      f = new FormEntries();
+      forms.put(formId, f);
+    }
+    return f;
+  }
+
+  /**
+   * @param formId
+   * @return the generation to pass to {@link #put}, taken before the results
+   *         are computed.
+   */
+  public static synchronized long getGeneration(String formId) {
+    return getFormEntries(formId).generation;
+  }
+
+  /**
+   * @param formId
+   * @param key
+   *          identifies the filters, grouping and aggregated field.
+   * @return the cached results, or null.
+   */
+  public static synchronized List<GroupedAggregate> get(String formId, String key) {
+    FormEntries f = forms.get(formId);
+    if (f == null) {
+      return null;
+    }
+    CachedGroups e = f.entries.get(key);
+    if (e == null) {
+      return null;
+    }
+    if (e.cachedAt + MAX_AGE_MILLISECONDS < System.currentTimeMillis()) {
+      f.entries.remove(key);
+      return null;
+    }
+    return e.groups;
+  }
+
+  /**
+   * Cache the results, unless the submissions of the form changed, or the
+   * form was dropped, since the generation was taken.
+   *
+   * @param formId
+   * @param generation
+   * @param key
+   * @param groups
+   */
+  public static synchronized void put(String formId, long generation, String key,
+      List<GroupedAggregate> groups) {
+    FormEntries f = forms.get(formId);
+    if (f != null && f.generation == generation) {
+      f.entries.put(key, new CachedGroups(groups));
+    }
+  }
+
+  /**
+   * Drop the results of the form, e.g., because a submission was completed or
+   * deleted.
+   *
+   * @param formId
+   */
+  public static synchronized void invalidate(String formId) {
+    FormEntries f = forms.get(formId);
+    if (f != null) {
+      ++f.generation;
+      f.entries.clear();
+    }
+  }
+
+  /**
+   * Drop the form, because it was deleted.
+   *
+   * @param formId
+   */
+  public static synchronized void remove(String formId) {
+    forms.remove(formId);
+  }
+}
@@ -48,6 +48,7 @@ import org.opendatakit.aggregate.format.element.UiElementFormatter;
 import org.opendatakit.aggregate.process.DeleteSubmissions;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.query.submission.SubmissionAggregateCache;
 import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionElement;
 import org.opendatakit.aggregate.submission.SubmissionKey;
@@ -456,6 +457,7 @@ public class FormAdminServiceImpl extends RemoteServiceServlet implements
         sub.setIsComplete(visitor.getSuccess());
         sub.setMarkedAsCompleteDate(new Date());
         sub.persist(cc);
+        SubmissionAggregateCache.invalidate(form.getFormId());
       } else {
         throw new RequestFailureException("Unable to revise submission");
       }
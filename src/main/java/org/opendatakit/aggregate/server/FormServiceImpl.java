@@ -37,6 +37,8 @@ import org.opendatakit.aggregate.client.form.FormSummary;
 import org.opendatakit.aggregate.client.form.GeopointElementList;
 import org.opendatakit.aggregate.client.form.KmlOptionsSummary;
 import org.opendatakit.aggregate.client.form.KmlSelection;
+import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.SubmissionAggregateUI;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.constants.ErrorConsts;
 import org.opendatakit.aggregate.constants.HtmlUtil;
@@ -233,6 +235,38 @@ public class FormServiceImpl extends RemoteServiceServlet implements
     }
   }
 
+  @Override
+  public ArrayList<SubmissionAggregateUI> getSubmissionAggregates(FilterGroup group,
+      Column groupBy, Column summed) throws RequestFailureException, FormNotAvailableException,
+      DatastoreFailureException {
+    HttpServletRequest req = this.getThreadLocalRequest();
+    CallingContext cc = ContextFactory.getCallingContext(this, req);
+
+    try {
+      IForm form = FormFactory.retrieveFormByFormId(group.getFormId(), cc);
+      if (!form.hasValidFormDefinition()) {
+        throw new RequestFailureException(ErrorConsts.FORM_DEFINITION_INVALID); // ill-formed definition
+      }
+
+      GenerateSubmissionAggregates aggregates = new GenerateSubmissionAggregates(form, group,
+          groupBy, summed);
+      return aggregates.generate(cc);
+
+    } catch (IllegalArgumentException e) {
+      // e.g., a column that cannot be grouped on
+      throw new RequestFailureException(e.getMessage());
+    } catch (ODKFormNotFoundException e) {
+      e.printStackTrace();
+      throw new FormNotAvailableException(e);
+    } catch (ODKOverQuotaException e) {
+      e.printStackTrace();
+      throw new RequestFailureException(ErrorConsts.QUOTA_EXCEEDED);
+    } catch (ODKDatastoreException e) {
+      e.printStackTrace();
+      throw new DatastoreFailureException();
+    }
+  }
+
   @Override
   public Boolean createCsvFromFilter(FilterGroup group) throws AccessDeniedException, FormNotAvailableException, RequestFailureException, DatastoreFailureException {
     HttpServletRequest req = this.getThreadLocalRequest();
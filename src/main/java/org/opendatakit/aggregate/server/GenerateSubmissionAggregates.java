@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.aggregate.client.filter.Filter;
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.client.filter.RowFilter;
+import org.opendatakit.aggregate.client.submission.Column;
+import org.opendatakit.aggregate.client.submission.SubmissionAggregateUI;
+import org.opendatakit.aggregate.datamodel.FormElementKey;
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.query.submission.SubmissionAggregateCache;
+import org.opendatakit.common.persistence.GroupedAggregate;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Counts (and optionally sums) the completed submissions selected by a filter
+ * group, grouped by the values of a column, for charting all of them rather
+ * than the page shown. The grouping is done by the database; the results are
+ * cached per form until its submissions change.
+ */
+public class GenerateSubmissionAggregates {
+
+  private final IForm form;
+  private final FilterGroup filterGroup;
+  private final Column groupBy;
+  private final Column summed;
+
+  /**
+   * @param form
+   * @param filterGroup
+   * @param groupBy
+   *          the column grouped on.
+   * @param summed
+   *          the numeric column summed, or null to only count.
+   */
+  public GenerateSubmissionAggregates(IForm form, FilterGroup filterGroup, Column groupBy,
+      Column summed) {
+    this.form = form;
+    this.filterGroup = filterGroup;
+    this.groupBy = groupBy;
+    this.summed = summed;
+  }
+
+  /**
+   * @return identifies the row filters, grouping and summed column.
+   */
+  private String getCacheKey() {
+    StringBuilder b = new StringBuilder();
+    b.append(groupBy.getColumnEncoding()).append('|')
+        .append((summed == null) ? null : summed.getColumnEncoding());
+    for (Filter filter : filterGroup.getFilters()) {
+      if (filter instanceof RowFilter) {
+        RowFilter rf = (RowFilter) filter;
+        b.append('|').append(rf.getVisibility())
+            .append(',').append(rf.getColumn().getColumnEncoding())
+            .append(',').append(rf.getColumn().getGeopointColumnCode())
+            .append(',').append(rf.getOperation())
+            .append(',').append(rf.getInput());
+      }
+    }
+    return b.toString();
+  }
+
+  private FormElementModel getElement(Column column) {
+    FormElementKey key = new FormElementKey(column.getColumnEncoding());
+    return FormElementModel.retrieveFormElementModel(form, key);
+  }
+
+  /**
+   * @param cc
+   * @return the groups, ordered by their value.
+   * @throws IllegalArgumentException
+   *           if the columns cannot be grouped on or summed.
+   * @throws ODKDatastoreException
+   */
+  public ArrayList<SubmissionAggregateUI> generate(CallingContext cc)
+      throws ODKDatastoreException {
+    String formId = form.getFormId();
+    String key = getCacheKey();
+    List<GroupedAggregate> groups = SubmissionAggregateCache.get(formId, key);
+    if (groups == null) {
+      long generation = SubmissionAggregateCache.getGeneration(formId);
+      QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
+          CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
+      groups = query.getGroupedAggregates(getElement(groupBy),
+          (summed == null) ? null : getElement(summed), cc);
+      SubmissionAggregateCache.put(formId, generation, key, groups);
+    }
+
+    ArrayList<SubmissionAggregateUI> results = new ArrayList<SubmissionAggregateUI>();
+    for (GroupedAggregate g : groups) {
+      results.add(new SubmissionAggregateUI(g.getGroupValue(), g.getCount(),
+          (g.getSum() == null) ? null : g.getSum().doubleValue(),
+          (g.getAverage() == null) ? null : g.getAverage().doubleValue()));
+    }
+    return results;
+  }
+}
@@ -70,6 +70,8 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
   private static final String FASTER_WATCHDOG_CYCLE_ENABLED = "FASTER_WATCHDOG_CYCLE_ENABLED";
   private static final String FASTER_BACKGROUND_ACTIONS_DISABLED = "FASTER_BACKGROUND_ACTIONS_DISABLED";
   private static final String SKIP_MALFORMED_SUBMISSIONS = "SKIP_MALFORMED_SUBMISSIONS";
+  private static final String DEDUPLICATE_ATTACHMENTS_ENABLED = "DEDUPLICATE_ATTACHMENTS_ENABLED";
+  private static final String COMPRESS_EXPORTS_ENABLED = "COMPRESS_EXPORTS_ENABLED";
 
   private static final String ODK_TABLES_SEQUENCER_BASE = "ODK_TABLES_SEQUENCER_BASE";
   // there can be only one APP_ID per ODK Aggregate. Store the app name here.
@@ -276,6 +278,36 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
     setServerPreferencesProperty(cc, SKIP_MALFORMED_SUBMISSIONS, skipMalformedSubmissions.toString());
   }
 
+  public static Boolean getDeduplicateAttachmentsEnabled(CallingContext cc)
+      throws ODKEntityNotFoundException, ODKOverQuotaException {
+    String value = getServerPreferencesProperty(cc, DEDUPLICATE_ATTACHMENTS_ENABLED);
+    if (value != null) {
+      return Boolean.valueOf(value);
+    }
+    // null value should be treated as false
+    return false;
+  }
+
+  public static void setDeduplicateAttachmentsEnabled(CallingContext cc, Boolean enabled)
+      throws ODKEntityNotFoundException, ODKOverQuotaException {
+    setServerPreferencesProperty(cc, DEDUPLICATE_ATTACHMENTS_ENABLED, enabled.toString());
+  }
+
+  public static Boolean getCompressExportsEnabled(CallingContext cc)
+      throws ODKEntityNotFoundException, ODKOverQuotaException {
+    String value = getServerPreferencesProperty(cc, COMPRESS_EXPORTS_ENABLED);
+    if (value != null) {
+      return Boolean.valueOf(value);
+    }
+    // null value should be treated as false
+    return false;
+  }
+
+  public static void setCompressExportsEnabled(CallingContext cc, Boolean enabled)
+      throws ODKEntityNotFoundException, ODKOverQuotaException {
+    setServerPreferencesProperty(cc, COMPRESS_EXPORTS_ENABLED, enabled.toString());
+  }
+
   public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
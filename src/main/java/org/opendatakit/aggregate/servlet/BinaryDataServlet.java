@@ -18,6 +18,7 @@
 package org.opendatakit.aggregate.servlet;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
@@ -58,6 +59,8 @@ public class BinaryDataServlet extends ServletUtilBase {
 
   private static final String NOT_BINARY_OBJECT = "Requested element is not a binary object";
 
+  private static final int BUFFER_SIZE = 8192;
+
   private static final Logger logger = LoggerFactory.getLogger(BinaryDataServlet.class);
 
   /**
@@ -100,6 +103,7 @@ public class BinaryDataServlet extends ServletUtilBase {
 
     Date lastUpdateDate = null;
     byte[] imageBlob = null;
+    InputStream blobStream = null;
     String unrootedFileName = null;
     String contentType = null;
     Long contentLength = null;
@@ -187,7 +191,12 @@ public class BinaryDataServlet extends ServletUtilBase {
             // OK. This is the attachment we want...
             ordinal = ord.intValue();
           }
-          imageBlob = b.getBlob(ordinal, cc);
+          if (previewSize) {
+            imageBlob = b.getBlob(ordinal, cc);
+          } else {
+            // stream the attachment rather than reading it into memory
+            blobStream = b.getBlobInputStream(ordinal, cc);
+          }
           lastUpdateDate = b.getLastUpdateDate(ordinal, cc);
           unrootedFileName = b.getUnrootedFilename(ordinal, cc);
           contentType = b.getContentType(ordinal, cc);
@@ -205,7 +214,8 @@ public class BinaryDataServlet extends ServletUtilBase {
       }
     }
 
-    if (imageBlob != null && imageBlob.length > 0) {
+    if ((imageBlob != null && imageBlob.length > 0)
+        || (blobStream != null && contentLength != null && contentLength > 0L)) {
       if (contentType == null) {
         contentType = HtmlConsts.RESP_TYPE_IMAGE_JPEG;
       }
@@ -245,7 +255,19 @@ public class BinaryDataServlet extends ServletUtilBase {
       }
 
       OutputStream os = resp.getOutputStream();
-      os.write(imageBlob);
+      if (blobStream != null) {
+        try {
+          byte[] buffer = new byte[BUFFER_SIZE];
+          int len;
+          while ((len = blobStream.read(buffer)) != -1) {
+            os.write(buffer, 0, len);
+          }
+        } finally {
+          blobStream.close();
+        }
+      } else {
+        os.write(imageBlob);
+      }
       os.close();
     } else {
       resp.setContentType(HtmlConsts.RESP_TYPE_PLAIN);
@@ -160,9 +160,10 @@ public class EnketoAccountPrivateKeyUploadServlet extends ServletUtilBase {
       return;
     }
 
+    MultiPartFormData uploadedFormItems = null;
     try {
       // process form
-      MultiPartFormData uploadedFormItems = new MultiPartFormData(req);
+      uploadedFormItems = new MultiPartFormData(req);
 
       String enketoApiURL = uploadedFormItems.getSimpleFormField(ENKETO_API_URL);
       if (enketoApiURL != null) {
@@ -205,6 +206,10 @@ public class EnketoAccountPrivateKeyUploadServlet extends ServletUtilBase {
       logger.error("Enketo Webform Integration settings-change error: " + e.getMessage());
       e.printStackTrace(resp.getWriter());
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ErrorConsts.UPLOAD_PROBLEM);
+    } finally {
+      if (uploadedFormItems != null) {
+        uploadedFormItems.deleteTemporaryFiles();
+      }
     }
   }
 }
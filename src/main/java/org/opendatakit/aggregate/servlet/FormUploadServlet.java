@@ -226,9 +226,10 @@ public class FormUploadServlet extends ServletUtilBase {
     // TODO Add in form title process so it will update the changes in the XML
     // of form
 
+    MultiPartFormData uploadedFormItems = null;
     try {
       // process form
-      MultiPartFormData uploadedFormItems = new MultiPartFormData(req);
+      uploadedFormItems = new MultiPartFormData(req);
 
       FormParserForJavaRosa parser = null;
 
@@ -242,12 +243,12 @@ public class FormUploadServlet extends ServletUtilBase {
       String xmlFileName = "default.xml";
 
       if (formNameData != null) {
-        formName = formNameData.getStream().toString(HtmlConsts.UTF8_ENCODE);
+        formName = formNameData.getString(HtmlConsts.UTF8_ENCODE);
       }
       if (formXmlData != null) {
         // TODO: changed added output stream writer. probably something better
         // exists
-        inputXml = formXmlData.getStream().toString(HtmlConsts.UTF8_ENCODE);
+        inputXml = formXmlData.getString(HtmlConsts.UTF8_ENCODE);
         xmlFileName = formXmlData.getFilename();
       }
 
@@ -387,6 +388,10 @@ public class FormUploadServlet extends ServletUtilBase {
       logger.error("Form upload persistence error: " + e.toString());
       e.printStackTrace(resp.getWriter());
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ErrorConsts.UPLOAD_PROBLEM);
+    } finally {
+      if (uploadedFormItems != null) {
+        uploadedFormItems.deleteTemporaryFiles();
+      }
     }
   }
 
@@ -166,6 +166,8 @@ public class SubmissionDownloadListServlet extends ServletUtilBase {
       Query query = cc.getDatastore().createQuery(tbl, "SubmissionDownloadListServlet.doGet", cc.getCurrentUser());
       query.addSort(tbl.lastUpdateDate, Query.Direction.ASCENDING);
       query.addFilter(tbl.isComplete, FilterOperation.EQUAL, true);
+      // only the uri (and lastUpdateDate, for the cursor) are needed
+      query.selectOnly(tbl.lastUpdateDate);
 
       QueryResult result = query.executeQuery(cursor, numEntries);
       List<String> uriList = new ArrayList<String>();
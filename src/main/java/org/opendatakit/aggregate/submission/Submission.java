@@ -32,6 +32,7 @@ import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.common.datamodel.ChildRowCache;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
@@ -68,6 +69,27 @@ public class Submission extends SubmissionSet {
     super(null, submission, form.getTopLevelGroupElement(), form, cc);
   }
 
+  /**
+   * Construct a submission from an entity from the data store, taking the
+   * rows of its repeat groups, choices and attachments from childRows.
+   * 
+   */
+  public Submission(TopLevelDynamicBase submission, IForm form, ChildRowCache childRows,
+      CallingContext cc) throws ODKDatastoreException {
+    this(submission, form, childRows, SubmissionFieldPlan.ALL, cc);
+  }
+
+  /**
+   * Construct a submission from an entity from the data store, fetching the
+   * repeat groups and choices outside of fieldPlan only when they are first
+   * accessed.
+   * 
+   */
+  public Submission(TopLevelDynamicBase submission, IForm form, ChildRowCache childRows,
+      SubmissionFieldPlan fieldPlan, CallingContext cc) throws ODKDatastoreException {
+    super(null, submission, form.getTopLevelGroupElement(), form, childRows, fieldPlan, cc);
+  }
+
   public Submission(String uri, IForm form, CallingContext cc) throws
       ODKDatastoreException {
     super(null, (TopLevelDynamicBase) cc.getDatastore().getEntity(
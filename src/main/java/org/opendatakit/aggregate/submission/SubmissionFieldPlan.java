@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.submission;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.opendatakit.aggregate.datamodel.FormElementModel;
+
+/**
+ * Identifies the elements of a submission whose values a caller will read,
+ * e.g., the visible columns of the submissions table.
+ * <p>
+ * When a submission is reconstructed, the repeat groups and choice lists of
+ * the planned elements are fetched right away; the others are only fetched
+ * from the datastore if they are accessed. Attachments are always fetched on
+ * first access.
+ */
+public final class SubmissionFieldPlan {
+
+  /**
+   * Plan that fetches every element of the submission.
+   */
+  public static final SubmissionFieldPlan ALL = new SubmissionFieldPlan(null);
+
+  // null if every element is fetched. These are lists because
+  // FormElementModel defines equals() but not hashCode().
+  private final List<FormElementModel> elements;
+  // the groups enclosing the planned elements
+  private final List<FormElementModel> enclosingGroups;
+
+  private SubmissionFieldPlan(Collection<FormElementModel> elements) {
+    if (elements == null) {
+      this.elements = null;
+      this.enclosingGroups = null;
+    } else {
+      this.elements = new ArrayList<FormElementModel>(elements);
+      this.enclosingGroups = new ArrayList<FormElementModel>();
+      for (FormElementModel m : elements) {
+        for (FormElementModel p = m.getParent(); p != null; p = p.getParent()) {
+          if (!enclosingGroups.contains(p)) {
+            enclosingGroups.add(p);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param elements
+   *          the elements the caller will read.
+   * @return a plan that fetches those elements (and everything nested under
+   *         them) up front.
+   */
+  public static SubmissionFieldPlan of(Collection<FormElementModel> elements) {
+    return new SubmissionFieldPlan(elements);
+  }
+
+  /**
+   * @param m
+   * @return true if the value of m should be fetched when the submission is
+   *         reconstructed rather than on first access.
+   */
+  public boolean isEager(FormElementModel m) {
+    if (elements == null || enclosingGroups.contains(m)) {
+      return true;
+    }
+    for (FormElementModel p = m; p != null; p = p.getParent()) {
+      if (elements.contains(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
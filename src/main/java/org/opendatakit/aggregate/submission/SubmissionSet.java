@@ -29,6 +29,7 @@ import org.opendatakit.aggregate.submission.type.*;
 import org.opendatakit.aggregate.submission.type.jr.JRDateTimeType;
 import org.opendatakit.aggregate.submission.type.jr.JRDateType;
 import org.opendatakit.aggregate.submission.type.jr.JRTimeType;
+import org.opendatakit.common.datamodel.ChildRowCache;
 import org.opendatakit.common.datamodel.DynamicBase;
 import org.opendatakit.common.datamodel.DynamicCommonFieldsBase;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -107,6 +108,19 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
    */
   private final Map<FormElementModel, SubmissionValue> elementsToValues = new HashMap<FormElementModel, SubmissionValue>();
 
+  /**
+   * Rows of the subordinate relations already fetched for a set of
+   * submissions, or null if they are to be queried individually. Only used
+   * while the submission set is being reconstructed from the datastore.
+   */
+  private final ChildRowCache childRows;
+
+  /**
+   * The elements whose repeat groups and choice lists are fetched when the
+   * submission set is reconstructed; the others are fetched on first access.
+   */
+  private final SubmissionFieldPlan fieldPlan;
+
   /**
    * Construct an empty repeating group.
    *
@@ -123,6 +137,8 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     this.form = form;
     this.group = group;
     this.enclosingSet = enclosingSet;
+    this.childRows = null;
+    this.fieldPlan = SubmissionFieldPlan.ALL;
     Datastore datastore = cc.getDatastore();
     User user = cc.getCurrentUser();
     DynamicBase tlg = (DynamicBase) datastore.createEntityUsingRelation(group.getFormDataModel()
@@ -149,6 +165,8 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     this.form = form;
     this.group = form.getTopLevelGroupElement();
     this.enclosingSet = null;
+    this.childRows = null;
+    this.fieldPlan = SubmissionFieldPlan.ALL;
     Datastore datastore = cc.getDatastore();
     User user = cc.getCurrentUser();
     // this is a top level table...
@@ -228,9 +246,32 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
    */
   public SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row,
                        FormElementModel group, IForm form, CallingContext cc) throws ODKDatastoreException {
+    this(enclosingSet, row, group, form, null, SubmissionFieldPlan.ALL, cc);
+  }
+
+  /**
+   * Construct a submission set from the datastore, taking the rows of its
+   * subordinate relations from childRows rather than querying for them and
+   * deferring the repeat groups and choice lists outside of fieldPlan.
+   *
+   * @param enclosingSet   - the enclosing submission set.
+   * @param row            - the base record for this submission set.
+   * @param group          - the form group mapped to the base record.
+   * @param formDefinition - the definition of the form.
+   * @param childRows      - the rows fetched for a set of submissions; may be null.
+   * @param fieldPlan      - the elements to fetch now rather than on first access.
+   * @param cc             - the CallingContext of this request.
+   * @throws ODKDatastoreException
+   */
+  public SubmissionSet(SubmissionSet enclosingSet, DynamicCommonFieldsBase row,
+                       FormElementModel group, IForm form, ChildRowCache childRows,
+                       SubmissionFieldPlan fieldPlan, CallingContext cc)
+      throws ODKDatastoreException {
     this.form = form;
     this.group = group;
     this.enclosingSet = enclosingSet;
+    this.childRows = childRows;
+    this.fieldPlan = fieldPlan;
     this.key = row.getEntityKey();
     Datastore datastore = cc.getDatastore();
     User user = cc.getCurrentUser();
@@ -277,10 +318,15 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
         } else {
           if (mBackingObject == null) {
             DynamicBase mBaseRelation = (DynamicBase) mRelation;
-            Query query = datastore.createQuery(mBaseRelation,
-                "SubmissionSet.recursivelyGetEntities", user);
-            query.addFilter(mBaseRelation.parentAuri, FilterOperation.EQUAL, uriParent);
-            List<? extends CommonFieldsBase> rows = query.executeQuery();
+            List<? extends CommonFieldsBase> rows;
+            if (childRows != null) {
+              rows = childRows.getRows(mBaseRelation, uriParent, datastore, user);
+            } else {
+              Query query = datastore.createQuery(mBaseRelation,
+                  "SubmissionSet.recursivelyGetEntities", user);
+              query.addFilter(mBaseRelation.parentAuri, FilterOperation.EQUAL, uriParent);
+              rows = query.executeQuery();
+            }
             if (rows.size() > 1) {
               throw new IllegalStateException(
                   "Expected exactly one match in phantom reconstruction! " + " SELECT * FROM "
@@ -448,27 +494,31 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
             break;
           case BINARY: // identifies BinaryContent table
             submissionField = new BlobSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey,
-                constructSubmissionKey(m));
+                constructSubmissionKey(m), childRows);
             // pass in row we occur under (to access parentAuri)
             submissionField.getValueFromEntity(cc);
             elementsToValues.put(m, submissionField);
             break;
           case SELECT1: // identifies SelectChoice table
-            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey); // pass
-            // in row we occur under to access parentAuri
-            submissionField.getValueFromEntity(cc);
-            elementsToValues.put(m, submissionField);
-            break;
           case SELECTN: // identifies SelectChoice table
-            submissionField = new ChoiceSubmissionType(m, groupRowGroup.getUri(), topLevelTableKey); // pass
+            ChoiceSubmissionType choiceField = new ChoiceSubmissionType(m,
+                groupRowGroup.getUri(), topLevelTableKey, childRows); // pass
             // in row we occur under to access parentAuri
-            submissionField.getValueFromEntity(cc);
-            elementsToValues.put(m, submissionField);
+            if (fieldPlan.isEager(m)) {
+              choiceField.getValueFromEntity(cc);
+            } else {
+              choiceField.deferValueFromEntity(cc);
+            }
+            elementsToValues.put(m, choiceField);
             break;
           case REPEAT:
             RepeatSubmissionType repeatNode = new RepeatSubmissionType(this, m,
-                groupRowGroup.getUri(), form);
-            repeatNode.getValueFromEntity(cc);
+                groupRowGroup.getUri(), form, childRows, fieldPlan);
+            if (fieldPlan.isEager(m)) {
+              repeatNode.getValueFromEntity(cc);
+            } else {
+              repeatNode.deferValueFromEntity(cc);
+            }
             elementsToValues.put(m, repeatNode);
             break;
           case BINARY_CONTENT_REF_BLOB: // association between
@@ -851,8 +901,34 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
     elementsToValues.remove(m);
   }
 
+  /**
+   * Persist this submission set and everything underneath it. The rows are
+   * gathered first and then written per relation, in batches, within one
+   * transaction.
+   *
+   * @param cc
+   * @throws ODKEntityPersistException
+   * @throws ODKOverQuotaException
+   */
   public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
-    // persist everything underneath us...
+    List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+    addEntitiesToPersist(rows, cc);
+    cc.getDatastore().putEntitiesInTransaction(rows, cc.getCurrentUser());
+  }
+
+  /**
+   * Add the rows of this submission set and everything underneath it to the
+   * rows to be persisted. The backing object of this set is added last.
+   *
+   * @param rows
+   *          the rows being persisted.
+   * @param cc
+   * @throws ODKEntityPersistException
+   * @throws ODKOverQuotaException
+   */
+  public void addEntitiesToPersist(List<CommonFieldsBase> rows, CallingContext cc)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    // gather everything underneath us...
     for (Map.Entry<FormElementModel, SubmissionValue> entry : elementsToValues.entrySet()) {
       FormElementModel m = entry.getKey();
       // isPhantomOfGroup() handles groups, phantoms and geopoints...
@@ -874,28 +950,32 @@ public class SubmissionSet implements Comparable<SubmissionSet>, SubmissionEleme
         case METADATA:
           // This case keeps lint warnings down.
           break;
-        case SELECT1:
-        case SELECTN:
-        case BINARY:
         case GEOTRACE: // since based on string
         case GEOSHAPE: // since based on string
         case STRING:
+          // long strings are not split out into other tables
+          break;
+        case SELECT1:
+        case SELECTN:
+          ((ChoiceSubmissionType) entry.getValue()).addEntitiesToPersist(rows, cc);
+          break;
+        case BINARY:
+          ((BlobSubmissionType) entry.getValue()).addEntitiesToPersist(rows);
+          break;
         case REPEAT:
-          entry.getValue().persist(cc);
+          ((RepeatSubmissionType) entry.getValue()).addEntitiesToPersist(rows, cc);
           break;
       }
     }
 
-    // persist phantom tables excluding ourselves...
+    // phantom tables excluding ourselves...
     Set<CommonFieldsBase> others = new HashSet<CommonFieldsBase>();
     others.addAll(dbEntities.values());
     others.remove(getGroupBackingObject());
-    Datastore ds = cc.getDatastore();
-    User user = cc.getCurrentUser();
-    ds.putEntities(others, user);
+    rows.addAll(others);
 
-    // and finally, persist us...
-    ds.putEntity(getGroupBackingObject(), user);
+    // and finally, us...
+    rows.add(getGroupBackingObject());
   }
 
   public int compareTo(SubmissionSet obj) {
@@ -17,6 +17,7 @@
 
 package org.opendatakit.aggregate.submission.type;
 
+import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
 
@@ -33,7 +34,9 @@ import org.opendatakit.aggregate.submission.SubmissionValue;
 import org.opendatakit.common.datamodel.BinaryContent;
 import org.opendatakit.common.datamodel.BinaryContentManipulator;
 import org.opendatakit.common.datamodel.BinaryContentRefBlob;
+import org.opendatakit.common.datamodel.ChildRowCache;
 import org.opendatakit.common.datamodel.RefBlob;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -82,6 +85,10 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.getBlob(ordinal, cc);
   }
 
+  public InputStream getBlobInputStream(int ordinal, CallingContext cc) throws ODKDatastoreException {
+    return bcm.getBlobInputStream(ordinal, cc);
+  }
+
   /**
    * Constructor
    * 
@@ -90,6 +97,19 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
    */
   public BlobSubmissionType(FormElementModel element, String parentKey, EntityKey topLevelTableKey,
       SubmissionKey submissionKey) {
+    this(element, parentKey, topLevelTableKey, submissionKey, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param propertyName
+   *          Name of submission element
+   * @param childRows
+   *          the rows already fetched for a set of submissions; may be null
+   */
+  public BlobSubmissionType(FormElementModel element, String parentKey, EntityKey topLevelTableKey,
+      SubmissionKey submissionKey, ChildRowCache childRows) {
     super(element);
     this.parentKey = parentKey;
     this.submissionKey = submissionKey;
@@ -101,7 +121,8 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     FormDataModel blobModel = ctntRefDataModel.getChildren().get(0);
     RefBlob blb = (RefBlob) blobModel.getBackingObjectPrototype();
 
-    this.bcm = new BinaryContentManipulator(parentKey, topLevelTableKey.getKey(), ctnt, ref, blb);
+    this.bcm = new BinaryContentManipulator(parentKey, topLevelTableKey.getKey(), ctnt, ref, blb,
+        childRows);
   }
 
   /**
@@ -134,6 +155,33 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     return bcm.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
   }
 
+  /**
+   * As {@link #setValueFromByteArray(byte[], String, String, boolean, CallingContext)},
+   * but the content is read from the source (e.g., an upload spooled to disk)
+   * rather than held in memory.
+   * 
+   * @param content
+   *          the content of the value
+   * @param contentType
+   *          type of binary data
+   * @param unrootedFilePath
+   *          the filename for this content
+   * @param overwriteOK
+   *          true if overwriting an existing value is OK.
+   * @param cc
+   *          calling context
+   * @return the outcome of the storage attempt. md5 hashes are used to
+   *         determine file equivalence.
+   * @throws ODKDatastoreException
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromContentSource(
+      BinaryContentManipulator.ContentSource content, String contentType,
+      String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException {
+
+    return bcm.setValueFromContentSource(content, contentType, unrootedFilePath, overwriteOK, cc);
+  }
+
   /**
    * Cannot convert blob from a string
    * 
@@ -155,6 +203,17 @@ public class BlobSubmissionType extends SubmissionFieldBase<SubmissionKey> {
     bcm.persist(cc);
   }
 
+  /**
+   * Add the attachment declarations to the rows to be persisted. The content
+   * of the attachments is persisted as it is set.
+   *
+   * @param rows
+   *          the rows being persisted.
+   */
+  public void addEntitiesToPersist(List<CommonFieldsBase> rows) {
+    bcm.addEntitiesToPersist(rows);
+  }
+
   /**
    * Restore to a BlobSubmissionType with no attachments at all.
    * 
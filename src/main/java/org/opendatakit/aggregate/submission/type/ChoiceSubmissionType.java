@@ -25,6 +25,7 @@ import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.submission.SubmissionKeyPart;
 import org.opendatakit.aggregate.submission.SubmissionValue;
+import org.opendatakit.common.datamodel.ChildRowCache;
 import org.opendatakit.common.datamodel.DeleteHelper;
 import org.opendatakit.common.datamodel.ODKEnumeratedElementException;
 import org.opendatakit.common.persistence.CommonFieldsBase;
@@ -54,35 +55,73 @@ public class ChoiceSubmissionType extends SubmissionFieldBase<List<String>> {
 
   private final String parentKey;
   private final EntityKey topLevelTableKey;
+  // choices already fetched for a set of submissions; used on the first load only
+  private ChildRowCache childRows;
+  // non-null until the deferred choices have been fetched
+  private CallingContext deferredContext = null;
 
   public ChoiceSubmissionType(FormElementModel element, String parentKey, EntityKey topLevelTableKey) {
+    this(element, parentKey, topLevelTableKey, null);
+  }
+
+  public ChoiceSubmissionType(FormElementModel element, String parentKey,
+      EntityKey topLevelTableKey, ChildRowCache childRows) {
     super(element);
     this.parentKey = parentKey;
     this.topLevelTableKey = topLevelTableKey;
+    this.childRows = childRows;
   }
 
   @Override
   public void formatValue(ElementFormatter elemFormatter, Row row, String ordinalValue,
       CallingContext cc) throws ODKDatastoreException {
+    fetchDeferredValue();
     elemFormatter.formatChoices(values, element, ordinalValue, row);
   }
 
   @Override
   public List<String> getValue() {
+    try {
+      fetchDeferredValue();
+    } catch (ODKDatastoreException e) {
+      throw new IllegalStateException("Unable to fetch choices of " + element.getElementName(), e);
+    }
     return values;
   }
 
+  /**
+   * Fetch the choices from the datastore when they are first accessed rather
+   * than now.
+   *
+   * @param cc
+   *          the CallingContext used to fetch them.
+   */
+  public void deferValueFromEntity(CallingContext cc) {
+    deferredContext = cc;
+  }
+
+  private void fetchDeferredValue() throws ODKDatastoreException {
+    if (deferredContext != null) {
+      getValueFromEntity(deferredContext);
+    }
+  }
+
   @Override
   public void getValueFromEntity(CallingContext cc) throws ODKDatastoreException {
 
     SelectChoice sel = (SelectChoice) element.getFormDataModel().getBackingObjectPrototype();
-    Query q = cc.getDatastore().createQuery(element.getFormDataModel().getBackingObjectPrototype(),
-        "ChoiceSubmissionType.getValueFromEntity", cc.getCurrentUser());
-    q.addFilter(sel.parentAuri, FilterOperation.EQUAL, parentKey);
-    q.addSort(sel.parentAuri, Direction.ASCENDING); // for GAE work-around
-    q.addSort(sel.ordinalNumber, Direction.ASCENDING);
-
-    List<? extends CommonFieldsBase> choiceHits = q.executeQuery();
+    List<? extends CommonFieldsBase> choiceHits;
+    if (childRows != null) {
+      choiceHits = childRows.getRows(sel, parentKey, cc.getDatastore(), cc.getCurrentUser());
+      childRows = null;
+    } else {
+      Query q = cc.getDatastore().createQuery(element.getFormDataModel().getBackingObjectPrototype(),
+          "ChoiceSubmissionType.getValueFromEntity", cc.getCurrentUser());
+      q.addFilter(sel.parentAuri, FilterOperation.EQUAL, parentKey);
+      q.addSort(sel.parentAuri, Direction.ASCENDING); // for GAE work-around
+      q.addSort(sel.ordinalNumber, Direction.ASCENDING);
+      choiceHits = q.executeQuery();
+    }
     choices.clear();
     values.clear();
     long expectedOrdinal = 1L;
@@ -100,11 +139,14 @@ public class ChoiceSubmissionType extends SubmissionFieldBase<List<String>> {
       values.add(choice.getValue());
     }
     isChanged = false;
+    deferredContext = null;
   }
 
   @Override
   public void setValueFromString(String concatenatedValues) throws ODKConversionException,
       ODKDatastoreException {
+    // the existing choices must be known to replace them
+    fetchDeferredValue();
     isChanged = true;
     values.clear();
     if (concatenatedValues != null) {
@@ -117,7 +159,9 @@ public class ChoiceSubmissionType extends SubmissionFieldBase<List<String>> {
   }
 
   @Override
-  public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList, CallingContext cc) {
+  public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList, CallingContext cc)
+      throws ODKDatastoreException {
+    fetchDeferredValue();
     for (SelectChoice s : choices) {
       keyList.add(s.getEntityKey());
     }
@@ -125,6 +169,24 @@ public class ChoiceSubmissionType extends SubmissionFieldBase<List<String>> {
 
   @Override
   public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
+    List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+    addEntitiesToPersist(rows, cc);
+    cc.getDatastore().putEntitiesInTransaction(rows, cc.getCurrentUser());
+  }
+
+  /**
+   * Replace the old choice records with new ones for the current values and
+   * add the new records to the rows to be persisted. The old records are
+   * deleted right away.
+   *
+   * @param rows
+   *          the rows being persisted.
+   * @param cc
+   * @throws ODKEntityPersistException
+   * @throws ODKOverQuotaException
+   */
+  public void addEntitiesToPersist(List<CommonFieldsBase> rows, CallingContext cc)
+      throws ODKEntityPersistException, ODKOverQuotaException {
 
     if (isChanged) {
       Datastore ds = cc.getDatastore();
@@ -152,7 +214,7 @@ public class ChoiceSubmissionType extends SubmissionFieldBase<List<String>> {
         c.setValue(v);
         choices.add(c);
       }
-      ds.putEntities(choices, user);
+      rows.addAll(choices);
       isChanged = false;
     }
   }
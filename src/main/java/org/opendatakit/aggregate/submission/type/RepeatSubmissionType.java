@@ -25,6 +25,7 @@ import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.format.Row;
 import org.opendatakit.aggregate.format.element.ElementFormatter;
 import org.opendatakit.aggregate.submission.*;
+import org.opendatakit.common.datamodel.ChildRowCache;
 import org.opendatakit.common.datamodel.DynamicBase;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
@@ -69,13 +70,33 @@ public class RepeatSubmissionType implements SubmissionRepeat {
    */
   private List<SubmissionSet> submissionSets = new ArrayList<>();
   private Map<Long, SubmissionSet> submissionSetIndex = new HashMap<>();
+  /**
+   * Rows already fetched for a set of submissions; used on the first load only
+   */
+  private ChildRowCache childRows;
+  /**
+   * Elements of the repeats to fetch when they are reconstructed
+   */
+  private final SubmissionFieldPlan fieldPlan;
+  /**
+   * Non-null until the deferred submission sets have been fetched
+   */
+  private CallingContext deferredContext = null;
 
   public RepeatSubmissionType(SubmissionSet enclosingSet, FormElementModel repeatGroup,
                               String uriAssociatedRow, IForm form) {
+    this(enclosingSet, repeatGroup, uriAssociatedRow, form, null, SubmissionFieldPlan.ALL);
+  }
+
+  public RepeatSubmissionType(SubmissionSet enclosingSet, FormElementModel repeatGroup,
+                              String uriAssociatedRow, IForm form, ChildRowCache childRows,
+                              SubmissionFieldPlan fieldPlan) {
     this.enclosingSet = enclosingSet;
     this.form = form;
     this.repeatGroup = repeatGroup;
     this.uriAssociatedRow = uriAssociatedRow;
+    this.childRows = childRows;
+    this.fieldPlan = fieldPlan;
   }
 
   @Override
@@ -93,15 +114,18 @@ public class RepeatSubmissionType implements SubmissionRepeat {
   }
 
   public void addSubmissionSet(SubmissionSet submissionSet) {
+    fetchDeferredSets();
     submissionSets.add(submissionSet);
     submissionSetIndex.put(submissionSet.getOrdinalNumber(), submissionSet);
   }
 
   public List<SubmissionSet> getSubmissionSets() {
+    fetchDeferredSets();
     return submissionSets;
   }
 
   public int getNumberRepeats() {
+    fetchDeferredSets();
     return submissionSets.size();
   }
 
@@ -122,6 +146,9 @@ public class RepeatSubmissionType implements SubmissionRepeat {
   @Override
   public void formatValue(ElementFormatter elemFormatter, Row row, String ordinalValue,
                           CallingContext cc) throws ODKDatastoreException {
+    if (deferredContext != null) {
+      getValueFromEntity(cc);
+    }
     elemFormatter.formatRepeats(this, repeatGroup, row, cc);
   }
 
@@ -133,10 +160,33 @@ public class RepeatSubmissionType implements SubmissionRepeat {
 
     for (List<DynamicBase> groupOfRepeatRows : groupPerOrdinalNumber(submission, repeatRows)) {
       DynamicBase row = chooseOneFrom(groupOfRepeatRows);
-      SubmissionSet submissionSet = new SubmissionSet(enclosingSet, row, repeatGroup, form, cc);
+      SubmissionSet submissionSet = new SubmissionSet(enclosingSet, row, repeatGroup, form,
+          childRows, fieldPlan, cc);
       submissionSets.add(submissionSet);
       submissionSetIndex.put(row.getOrdinalNumber(), submissionSet);
     }
+    childRows = null;
+    deferredContext = null;
+  }
+
+  /**
+   * Fetch the submission sets from the datastore when they are first accessed
+   * rather than now.
+   *
+   * @param cc the CallingContext used to fetch them.
+   */
+  public void deferValueFromEntity(CallingContext cc) {
+    deferredContext = cc;
+  }
+
+  private void fetchDeferredSets() {
+    if (deferredContext != null) {
+      try {
+        getValueFromEntity(deferredContext);
+      } catch (ODKDatastoreException e) {
+        throw new IllegalStateException("Unable to fetch repeats of " + repeatGroup.getElementName(), e);
+      }
+    }
 
   }
 
@@ -159,6 +209,10 @@ public class RepeatSubmissionType implements SubmissionRepeat {
 
   @SuppressWarnings("unchecked")
   private List<CommonFieldsBase> getRepeatRows(CallingContext cc, DynamicBase submission) throws ODKDatastoreException {
+    if (childRows != null) {
+      return new ArrayList<CommonFieldsBase>(
+          childRows.getRows(submission, uriAssociatedRow, cc.getDatastore(), cc.getCurrentUser()));
+    }
     Query q = cc.getDatastore().createQuery(submission, "RepeatSubmissionType.getRepeatRows", cc.getCurrentUser());
     q.addFilter(submission.parentAuri, FilterOperation.EQUAL, uriAssociatedRow);
     q.addSort(submission.parentAuri, Direction.ASCENDING); // for GAE work-around
@@ -188,6 +242,8 @@ public class RepeatSubmissionType implements SubmissionRepeat {
     }
 
     RepeatSubmissionType other = (RepeatSubmissionType) obj;
+    fetchDeferredSets();
+    other.fetchDeferredSets();
     return form.equals(other.form) && repeatGroup.equals(other.repeatGroup)
         && submissionSets.equals(other.submissionSets);
   }
@@ -197,6 +253,7 @@ public class RepeatSubmissionType implements SubmissionRepeat {
    */
   @Override
   public int hashCode() {
+    fetchDeferredSets();
     int hashCode = 13;
 
     hashCode += form.hashCode();
@@ -211,6 +268,7 @@ public class RepeatSubmissionType implements SubmissionRepeat {
    */
   @Override
   public String toString() {
+    fetchDeferredSets();
     String str = enclosingSet.constructSubmissionKey(repeatGroup) + "\n";
     for (SubmissionSet set : submissionSets) {
       str += FormatConsts.TO_STRING_DELIMITER + set.toString();
@@ -221,6 +279,9 @@ public class RepeatSubmissionType implements SubmissionRepeat {
   @Override
   public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList, CallingContext cc)
       throws ODKDatastoreException {
+    if (deferredContext != null) {
+      getValueFromEntity(cc);
+    }
     // the keyList will be deleted in reverse order.
     // so by adding the repeats in-order, we ensure
     // that the last repeat to delete is ordinal 1.
@@ -233,8 +294,26 @@ public class RepeatSubmissionType implements SubmissionRepeat {
 
   @Override
   public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
+    List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+    addEntitiesToPersist(rows, cc);
+    cc.getDatastore().putEntitiesInTransaction(rows, cc.getCurrentUser());
+  }
+
+  /**
+   * Add the rows of every submission set of the repeat group to the rows to
+   * be persisted.
+   *
+   * @param rows
+   *          the rows being persisted.
+   * @param cc
+   * @throws ODKEntityPersistException
+   * @throws ODKOverQuotaException
+   */
+  public void addEntitiesToPersist(List<CommonFieldsBase> rows, CallingContext cc)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    // deferred submission sets have not been fetched, so cannot have changed
     for (SubmissionSet s : submissionSets) {
-      s.persist(cc);
+      s.addEntitiesToPersist(rows, cc);
     }
   }
 
@@ -253,6 +332,7 @@ public class RepeatSubmissionType implements SubmissionRepeat {
     if (visitor.traverse(this))
       return true;
 
+    fetchDeferredSets();
     for (SubmissionSet s : submissionSets) {
       if (s.depthFirstTraversal(visitor))
         return true;
@@ -263,6 +343,7 @@ public class RepeatSubmissionType implements SubmissionRepeat {
   public List<SubmissionValue> findElementValue(FormElementModel element) {
     List<SubmissionValue> values = new ArrayList<SubmissionValue>();
 
+    fetchDeferredSets();
     for (SubmissionSet s : submissionSets) {
       values.addAll(s.findElementValue(element));
     }
@@ -272,6 +353,7 @@ public class RepeatSubmissionType implements SubmissionRepeat {
   @Override
   public SubmissionElement resolveSubmissionKeyBeginningAt(int i, List<SubmissionKeyPart> parts) {
     SubmissionKeyPart p = parts.get(i);
+    fetchDeferredSets();
 
     Long ordinalNumber = p.getOrdinalNumber();
     if (ordinalNumber != null) {
@@ -15,11 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.Date;
-import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,13 +26,10 @@ import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.ResumableSubmissionFormatter;
 import org.opendatakit.aggregate.format.table.CsvFormatterWithFilters;
-import org.opendatakit.aggregate.query.submission.QueryBase;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
-import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
@@ -71,9 +64,6 @@ public class CsvWorkerImpl {
                 " form " + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
-
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
 
@@ -81,8 +71,7 @@ public class CsvWorkerImpl {
       SubmissionFilterGroup subFilterGroup = null;
 
       // create CSV
-      QueryBase query;
-      SubmissionFormatter formatter;
+      ResumableSubmissionFormatter formatter;
       FilterGroup filterGroup;
 
       // figure out the filterGroup...
@@ -94,34 +83,36 @@ public class CsvWorkerImpl {
       }
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
 
-      query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
-      formatter = new CsvFormatterWithFilters(form, cc.getServerURL(), pw, filterGroup);
+      // the csv is written into the PersistentResults table as it is generated
+      String exportHash = r.getExportHash(form, subFilterGroup, cc);
+      StreamedExportFile file = new StreamedExportFile(form, persistentResultsKey, attemptCount,
+          exportHash, cc);
+      QueryResumePoint cursor = file.open(HtmlConsts.RESP_TYPE_CSV,
+          form.getViewableFormNameSuitableAsFileName() + ServletConsts.CSV_FILENAME_APPEND);
+
+      formatter = new CsvFormatterWithFilters(form, cc.getServerURL(), file.getWriter(), filterGroup);
+      PartitionedExport export = new PartitionedExport(form, filterGroup,
+          (out) -> new CsvFormatterWithFilters(form, cc.getServerURL(), out, filterGroup), cc);
 
       logger.info("after setup of CSV file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (;;) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if ( submissions.isEmpty()) break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting csv for " + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
+      if (file.isResumed()) {
+        logger.info("resuming csv generation after " + file.getSubmissionCount()
+            + " submissions for " + form.getFormId());
+        formatter.resumeProcessSubmissions(file.getSubmissionCount(), cc);
+      } else {
+        formatter.beforeProcessSubmissions(cc);
+      }
+      if (!export.writeSubmissions(file, cursor)) {
+        logger.warn("stale CSV activity - stop writing file in PersistentResults table for " + form.getFormId());
+        return;
       }
       logger.info("wrapping up csv generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
-      pw.close();
-      byte[] outputFile = stream.toByteArray();
-
-      // refetch because this might have taken a while...
-      r = new PersistentResults(persistentResultsKey, cc);
-      if (attemptCount.equals(r.getAttemptCount())) {
-        logger.info("saving csv into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_CSV,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.CSV_FILENAME_APPEND, false, cc);
+      // complete the file; refetches because this might have taken a while...
+      r = file.finish();
+      if (r != null) {
+        logger.info("saved csv into PersistentResults table for " + form.getFormId());
         r.setStatus(ExportStatus.AVAILABLE);
         r.setCompletionDate(new Date());
         if(subFilterGroup != null) {
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The threads shared by all running exports to query and format their
+ * partitions (see {@link PartitionedExport}). An export keeps at most
+ * {@link #getThreadsPerExport()} of its partitions on these threads, and
+ * queues the next one as each ends, so concurrent exports take turns.
+ * <p>
+ * The server configures the pool at startup. Where it does not, e.g. on App
+ * Engine, which does not allow unmanaged threads, exports run on the thread of
+ * their task.
+ */
+public final class ExportPartitionExecutor {
+
+  private static ExecutorService executor = null;
+  private static int threads = 0;
+
+  private ExportPartitionExecutor() {
+  }
+
+  /**
+   * Use the given pool for the partitions of all exports.
+   *
+   * @param pool
+   * @param poolThreads
+   *          the number of threads of the pool.
+   */
+  public static synchronized void initialize(ExecutorService pool, int poolThreads) {
+    if (executor != null) {
+      throw new IllegalStateException("called after the export threads were created");
+    }
+    if (poolThreads < 1) {
+      throw new IllegalArgumentException("poolThreads must be positive");
+    }
+    executor = pool;
+    threads = poolThreads;
+  }
+
+  /**
+   * @return the shared pool, or null if none was configured.
+   */
+  static synchronized ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * @return the most partitions of one export on the threads at a time.
+   */
+  static synchronized int getThreadsPerExport() {
+    if (executor == null) {
+      return 1;
+    }
+    return Math.max(1, Math.min(threads, Runtime.getRuntime().availableProcessors()));
+  }
+}
@@ -35,6 +35,7 @@ import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.MiscTasks.TaskType;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.process.DeleteSubmissions;
+import org.opendatakit.aggregate.query.submission.SubmissionAggregateCache;
 import org.opendatakit.aggregate.submission.SubmissionKey;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
@@ -390,6 +391,7 @@ public class FormDeleteWorkerImpl {
 
     // delete the form.
     form.deleteForm(cc);
+    SubmissionAggregateCache.remove(form.getFormId());
 
     doMarkAsComplete(t);
     return true;
@@ -15,11 +15,7 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.Date;
-import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,13 +27,10 @@ import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.ResumableSubmissionFormatter;
 import org.opendatakit.aggregate.format.structure.JsonFormatterWithFilters;
-import org.opendatakit.aggregate.query.submission.QueryBase;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
-import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
@@ -72,9 +65,6 @@ public class JsonFileWorkerImpl {
                 " form " + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
-
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
 
@@ -82,8 +72,7 @@ public class JsonFileWorkerImpl {
       SubmissionFilterGroup subFilterGroup = null;
 
       // create CSV
-      QueryBase query;
-      SubmissionFormatter formatter;
+      ResumableSubmissionFormatter formatter;
       FilterGroup filterGroup;
 
       // figure out the filterGroup...
@@ -95,34 +84,36 @@ public class JsonFileWorkerImpl {
       }
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
 
-      query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
-      formatter = new JsonFormatterWithFilters(pw, form, filterGroup, BinaryOption.PROVIDE_LINKS, true, cc.getServerURL());
+      // the JSON is written into the PersistentResults table as it is generated
+      String exportHash = r.getExportHash(form, subFilterGroup, cc);
+      StreamedExportFile file = new StreamedExportFile(form, persistentResultsKey, attemptCount,
+          exportHash, cc);
+      QueryResumePoint cursor = file.open(HtmlConsts.RESP_TYPE_JSON,
+          form.getViewableFormNameSuitableAsFileName() + ServletConsts.JSON_FILENAME_APPEND);
+
+      formatter = new JsonFormatterWithFilters(file.getWriter(), form, filterGroup, BinaryOption.PROVIDE_LINKS, true, cc.getServerURL());
+      PartitionedExport export = new PartitionedExport(form, filterGroup,
+          (out) -> new JsonFormatterWithFilters(out, form, filterGroup, BinaryOption.PROVIDE_LINKS, true, cc.getServerURL()), cc);
 
       logger.info("after setup of JSON file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (;;) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for " + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if ( submissions.isEmpty()) break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting JSON for " + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
+      if (file.isResumed()) {
+        logger.info("resuming JSON generation after " + file.getSubmissionCount()
+            + " submissions for " + form.getFormId());
+        formatter.resumeProcessSubmissions(file.getSubmissionCount(), cc);
+      } else {
+        formatter.beforeProcessSubmissions(cc);
+      }
+      if (!export.writeSubmissions(file, cursor)) {
+        logger.warn("stale JSON activity - stop writing file in PersistentResults table for " + form.getFormId());
+        return;
       }
       logger.info("wrapping up JSON generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
-      pw.close();
-      byte[] outputFile = stream.toByteArray();
-
-      // refetch because this might have taken a while...
-      r = new PersistentResults(persistentResultsKey, cc);
-      if (attemptCount.equals(r.getAttemptCount())) {
-        logger.info("saving JSON into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_JSON,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.JSON_FILENAME_APPEND, false, cc);
+      // complete the file; refetches because this might have taken a while...
+      r = file.finish();
+      if (r != null) {
+        logger.info("saved JSON into PersistentResults table for " + form.getFormId());
         r.setStatus(ExportStatus.AVAILABLE);
         r.setCompletionDate(new Date());
         if(subFilterGroup != null) {
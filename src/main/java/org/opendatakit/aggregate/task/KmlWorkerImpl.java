@@ -15,9 +15,6 @@
  */
 package org.opendatakit.aggregate.task;
 
-import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.Date;
 import java.util.List;
 
@@ -31,13 +28,10 @@ import org.opendatakit.aggregate.constants.common.UIConsts;
 import org.opendatakit.aggregate.filter.SubmissionFilterGroup;
 import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.form.PersistentResults;
-import org.opendatakit.aggregate.format.SubmissionFormatter;
+import org.opendatakit.aggregate.format.ResumableSubmissionFormatter;
 import org.opendatakit.aggregate.format.structure.KmlFormatterWithFilters;
-import org.opendatakit.aggregate.query.submission.QueryBase;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
-import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
-import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
@@ -71,9 +65,6 @@ public class KmlWorkerImpl {
         + form.getFormId());
 
     try {
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      PrintWriter pw = new PrintWriter(new OutputStreamWriter(stream, HtmlConsts.UTF8_ENCODE));
-
       PersistentResults r = new PersistentResults(persistentResultsKey, cc);
       String filterGroupUri = r.getFilterGroupUri();
 
@@ -81,8 +72,7 @@ public class KmlWorkerImpl {
       SubmissionFilterGroup subFilterGroup = null;
 
       // create KML
-      QueryBase query;
-      SubmissionFormatter formatter;
+      ResumableSubmissionFormatter formatter;
       FilterGroup filterGroup;
 
       // figure out the filterGroup...
@@ -94,40 +84,39 @@ public class KmlWorkerImpl {
       }
       filterGroup.setQueryFetchLimit(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE);
 
-      query = new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS,
-          cc);
-      formatter = new KmlFormatterWithFilters(form, cc.getServerURL(), kmlElementsToInclude, pw,
-          filterGroup, cc);
+      // the kml is written into the PersistentResults table as it is generated
+      String exportHash = r.getExportHash(form, subFilterGroup, cc);
+      StreamedExportFile file = new StreamedExportFile(form, persistentResultsKey, attemptCount,
+          exportHash, cc);
+      QueryResumePoint cursor = file.open(HtmlConsts.RESP_TYPE_KML,
+          form.getViewableFormNameSuitableAsFileName() + ServletConsts.KML_FILENAME_APPEND);
+
+      formatter = new KmlFormatterWithFilters(form, cc.getServerURL(), kmlElementsToInclude,
+          file.getWriter(), filterGroup, cc);
+      PartitionedExport export = new PartitionedExport(form, filterGroup,
+          (out) -> new KmlFormatterWithFilters(form, cc.getServerURL(), kmlElementsToInclude, out,
+              filterGroup, cc), cc);
 
       logger.info("after setup of KML file generation for " + form.getFormId());
-      formatter.beforeProcessSubmissions(cc);
-      List<Submission> submissions;
-      int count = 0;
-      for (;;) {
-        count++;
-        logger.info("iteration " + Integer.toString(count) + " before issuing query for "
-            + form.getFormId());
-        submissions = query.getResultSubmissions(cc);
-        if (submissions.isEmpty())
-          break;
-        logger.info("iteration " + Integer.toString(count) + " before emitting kml for "
+      if (file.isResumed()) {
+        logger.info("resuming kml generation after " + file.getSubmissionCount()
+            + " submissions for " + form.getFormId());
+        formatter.resumeProcessSubmissions(file.getSubmissionCount(), cc);
+      } else {
+        formatter.beforeProcessSubmissions(cc);
+      }
+      if (!export.writeSubmissions(file, cursor)) {
+        logger.warn("stale KML activity - stop writing file in PersistentResults table for "
             + form.getFormId());
-        formatter.processSubmissionSegment(submissions, cc);
+        return;
       }
       logger.info("wrapping up kml generation for " + form.getFormId());
       formatter.afterProcessSubmissions(cc);
 
-      // output file
-      pw.close();
-      byte[] outputFile = stream.toByteArray();
-
-      // refetch because this might have taken a while...
-      r = new PersistentResults(persistentResultsKey, cc);
-      if (attemptCount.equals(r.getAttemptCount())) {
-        logger.info("saving kml into PersistentResults table for " + form.getFormId());
-        r.setResultFile(outputFile, HtmlConsts.RESP_TYPE_KML,
-            form.getViewableFormNameSuitableAsFileName() + ServletConsts.KML_FILENAME_APPEND,
-            false, cc);
+      // complete the file; refetches because this might have taken a while...
+      r = file.finish();
+      if (r != null) {
+        logger.info("saved kml into PersistentResults table for " + form.getFormId());
         r.setStatus(ExportStatus.AVAILABLE);
         r.setCompletionDate(new Date());
         if (subFilterGroup != null) {
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import org.opendatakit.aggregate.client.filter.FilterGroup;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.format.ResumableSubmissionFormatter;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
+import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
+import org.opendatakit.aggregate.submission.Submission;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.BasicConsts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the completed submissions of an export into its result file.
+ * <p>
+ * The _MARKED_AS_COMPLETE_DATE range of the submissions is split into
+ * partitions. Each partition is queried, reconstructed and formatted on a
+ * thread of the {@link ExportPartitionExecutor} shared by all exports, a few
+ * segments ahead of the output, and the
+ * formatted segments are merged into the file in the order of the query. As
+ * each segment is merged, the file is checkpointed with the cursor after it;
+ * since the partitions follow the sort order of the query, that cursor is
+ * also where a retried attempt continues.
+ * <p>
+ * Where no threads are configured, the submissions are queried and formatted
+ * on the calling thread instead, in a single partition.
+ */
+final class PartitionedExport {
+
+  private static final Logger logger = LoggerFactory.getLogger(PartitionedExport.class);
+
+  /**
+   * more partitions than threads, so that a busy stretch of the date range
+   * does not leave the other threads idle
+   */
+  private static final int PARTITIONS_PER_THREAD = 4;
+
+  /** the formatted segments a partition may hold before it is merged */
+  private static final int SEGMENTS_AHEAD = 2;
+
+  private static final Segment END = new Segment(null, null, false, null);
+
+  /**
+   * A page of submissions and its formatted output.
+   */
+  private static final class Segment {
+    final List<Submission> submissions;
+    final String output;
+    // whether the output was formatted as following other submissions
+    final boolean followsOthers;
+    final QueryResumePoint cursor;
+    final Exception failure;
+
+    Segment(List<Submission> submissions, String output, boolean followsOthers,
+        QueryResumePoint cursor) {
+      this.submissions = submissions;
+      this.output = output;
+      this.followsOthers = followsOthers;
+      this.cursor = cursor;
+      this.failure = null;
+    }
+
+    Segment(Exception failure) {
+      this.submissions = null;
+      this.output = null;
+      this.followsOthers = false;
+      this.cursor = null;
+      this.failure = failure;
+    }
+  }
+
+  private final class Partition implements Runnable {
+    final int index;
+    final QueryByUIFilterGroup query;
+    final StringWriter buffer = new StringWriter();
+    final ResumableSubmissionFormatter formatter;
+    final boolean followsOthers;
+    final BlockingQueue<Segment> segments = new ArrayBlockingQueue<Segment>(SEGMENTS_AHEAD);
+
+    Partition(int index, QueryByUIFilterGroup query, boolean followsOthers) {
+      this.index = index;
+      this.query = query;
+      this.formatter = formatters.apply(new PrintWriter(buffer));
+      this.followsOthers = followsOthers;
+    }
+
+    @Override
+    public void run() {
+      try {
+        try {
+          boolean follows = followsOthers;
+          formatter.resumeProcessSubmissions(follows ? 1L : 0L, cc);
+          for (;;) {
+            List<Submission> submissions = query.getResultSubmissions(cc);
+            if (submissions.isEmpty()) {
+              break;
+            }
+            formatter.processSubmissionSegment(submissions, cc);
+            String output = buffer.toString();
+            buffer.getBuffer().setLength(0);
+            segments.put(new Segment(submissions, output, follows, query.getResumeCursor()));
+            follows = true;
+          }
+          segments.put(END);
+        } catch (ODKDatastoreException | RuntimeException e) {
+          logger.error("Export partition " + index + " failed for " + form.getFormId(), e);
+          segments.put(new Segment(e));
+        }
+      } catch (InterruptedException e) {
+        // the export was abandoned
+      } finally {
+        startNextPartition();
+      }
+    }
+  }
+
+  private final IForm form;
+  private final FilterGroup filterGroup;
+  private final Function<PrintWriter, ResumableSubmissionFormatter> formatters;
+  private final CallingContext cc;
+
+  private ExecutorService executor;
+  private List<Partition> partitions;
+  // guarded by this
+  private int nextPartition = 0;
+  private boolean abandoned = false;
+  private final List<Future<?>> started = new ArrayList<Future<?>>();
+
+  /**
+   * @param form
+   * @param filterGroup
+   *          the filter group of the export, with its query fetch limit set.
+   * @param formatters
+   *          creates a formatter of the export that writes to the given
+   *          writer.
+   * @param cc
+   */
+  PartitionedExport(IForm form, FilterGroup filterGroup,
+      Function<PrintWriter, ResumableSubmissionFormatter> formatters, CallingContext cc) {
+    this.form = form;
+    this.filterGroup = filterGroup;
+    this.formatters = formatters;
+    this.cc = cc;
+  }
+
+  /**
+   * Queue the next partition on the shared threads. The partitions are queued
+   * in order, so the one being merged has always been queued before those of
+   * this export that can block waiting for it.
+   */
+  private synchronized void startNextPartition() {
+    if (abandoned || nextPartition == partitions.size()) {
+      return;
+    }
+    Partition partition = partitions.get(nextPartition++);
+    try {
+      started.add(executor.submit(partition));
+    } catch (RejectedExecutionException e) {
+      // the server is stopping; the queue of an unstarted partition is empty
+      partition.segments.offer(new Segment(e));
+    }
+  }
+
+  private synchronized void abandonPartitions() {
+    abandoned = true;
+    for (Future<?> f : started) {
+      f.cancel(true);
+    }
+  }
+
+  private QueryByUIFilterGroup newQuery(QueryResumePoint cursor, int fetchLimit) {
+    int exportFetchLimit = filterGroup.getQueryFetchLimit();
+    filterGroup.setCursor((cursor == null) ? null : cursor.transform());
+    filterGroup.setQueryFetchLimit(fetchLimit);
+    try {
+      return new QueryByUIFilterGroup(form, filterGroup, CompletionFlag.ONLY_COMPLETE_SUBMISSIONS,
+          cc);
+    } finally {
+      filterGroup.setCursor(null);
+      filterGroup.setQueryFetchLimit(exportFetchLimit);
+    }
+  }
+
+  /**
+   * @param startCursor
+   * @return the completion date of the first submission to export, or null
+   *         if there is none.
+   * @throws ODKDatastoreException
+   */
+  private Date getFirstDate(QueryResumePoint startCursor) throws ODKDatastoreException {
+    List<TopLevelDynamicBase> first = newQuery(startCursor, 1).getTopLevelSubmissionObjects(cc);
+    return first.isEmpty() ? null : first.get(0).getMarkedAsCompleteDate();
+  }
+
+  /**
+   * @return the latest completion date of the submissions of the form, or null
+   *         if there is none.
+   * @throws ODKDatastoreException
+   */
+  private Date getLastDate() throws ODKDatastoreException {
+    TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+        .getFormDataModel().getBackingObjectPrototype();
+    Query query = cc.getDatastore().createQuery(tbl, "PartitionedExport.getLastDate",
+        cc.getCurrentUser());
+    query.addSort(tbl.markedAsCompleteDate, Query.Direction.DESCENDING);
+    query.addFilter(tbl.markedAsCompleteDate, Query.FilterOperation.GREATER_THAN,
+        BasicConsts.EPOCH);
+    List<? extends CommonFieldsBase> last = query.executeQuery(null, 1).getResultList();
+    return last.isEmpty() ? null : ((TopLevelDynamicBase) last.get(0)).getMarkedAsCompleteDate();
+  }
+
+  /**
+   * Split the dates from the first to the last submission into equal spans.
+   * The first partition continues from the cursor and the last one is open
+   * ended, so that submissions completed during the export are included.
+   */
+  private List<Partition> partition(QueryResumePoint startCursor, long submissionCount,
+      int partitionCount) throws ODKDatastoreException {
+    List<Date> bounds = new ArrayList<Date>();
+    Date first = getFirstDate(startCursor);
+    Date last = getLastDate();
+    if (first != null && last != null) {
+      long span = last.getTime() - first.getTime();
+      for (int i = 1; i < partitionCount; ++i) {
+        Date bound = new Date(first.getTime() + (span * i) / partitionCount);
+        if (bound.after(first) && (bounds.isEmpty() || bound.after(bounds.get(bounds.size() - 1)))) {
+          bounds.add(bound);
+        }
+      }
+    }
+
+    int fetchLimit = filterGroup.getQueryFetchLimit();
+    List<Partition> partitions = new ArrayList<Partition>();
+    for (int i = 0; i <= bounds.size(); ++i) {
+      QueryByUIFilterGroup query = newQuery((i == 0) ? startCursor : null, fetchLimit);
+      if (i > 0) {
+        query.addFilterByPrimaryDate(Query.FilterOperation.GREATER_THAN_OR_EQUAL,
+            bounds.get(i - 1));
+      }
+      if (i < bounds.size()) {
+        query.addFilterByPrimaryDate(Query.FilterOperation.LESS_THAN, bounds.get(i));
+      }
+      partitions.add(new Partition(i, query, i > 0 || submissionCount > 0));
+    }
+    return partitions;
+  }
+
+  /**
+   * Write the submissions from the cursor on into the file, checkpointing it
+   * after each segment.
+   *
+   * @param file
+   *          the opened result file.
+   * @param startCursor
+   *          the cursor returned when opening the file, or null.
+   * @return false if this is no longer the active attempt, which must then
+   *         stop without touching the file.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  boolean writeSubmissions(StreamedExportFile file, QueryResumePoint startCursor)
+      throws ODKDatastoreException, IOException, InterruptedException {
+    executor = ExportPartitionExecutor.getExecutor();
+    if (executor == null) {
+      return writeSubmissionsInline(file, startCursor);
+    }
+    int threads = ExportPartitionExecutor.getThreadsPerExport();
+    partitions = partition(startCursor, file.getSubmissionCount(),
+        threads * PARTITIONS_PER_THREAD);
+    logger.info("exporting " + form.getFormId() + " in " + partitions.size()
+        + " partitions on up to " + threads + " shared threads");
+
+    // each partition that ends queues the next one, so this export holds at
+    // most that many threads
+    try {
+      for (int i = 0; i < threads; ++i) {
+        startNextPartition();
+      }
+      for (Partition partition : partitions) {
+        for (;;) {
+          Segment segment = partition.segments.take();
+          if (segment == END) {
+            break;
+          }
+          if (segment.failure instanceof ODKDatastoreException) {
+            throw (ODKDatastoreException) segment.failure;
+          } else if (segment.failure != null) {
+            throw (RuntimeException) segment.failure;
+          }
+          if (segment.followsOthers == (file.getSubmissionCount() > 0)) {
+            file.getWriter().write(segment.output);
+          } else {
+            // every earlier partition turned out to be empty; format again
+            ResumableSubmissionFormatter formatter = formatters.apply(file.getWriter());
+            formatter.resumeProcessSubmissions(file.getSubmissionCount(), cc);
+            formatter.processSubmissionSegment(segment.submissions, cc);
+          }
+          if (!checkpoint(file, segment.submissions, segment.cursor)) {
+            return false;
+          }
+        }
+      }
+      file.endOfSubmissions();
+      return true;
+    } finally {
+      abandonPartitions();
+    }
+  }
+
+  /**
+   * Write the submissions from the cursor on into the file on the calling
+   * thread, checkpointing it after each page.
+   *
+   * @see #writeSubmissions(StreamedExportFile, QueryResumePoint)
+   */
+  private boolean writeSubmissionsInline(StreamedExportFile file, QueryResumePoint startCursor)
+      throws ODKDatastoreException, IOException {
+    logger.info("exporting " + form.getFormId() + " on the calling thread");
+    QueryByUIFilterGroup query = newQuery(startCursor, filterGroup.getQueryFetchLimit());
+    ResumableSubmissionFormatter formatter = formatters.apply(file.getWriter());
+    formatter.resumeProcessSubmissions(file.getSubmissionCount(), cc);
+    for (;;) {
+      List<Submission> submissions = query.getResultSubmissions(cc);
+      if (submissions.isEmpty()) {
+        break;
+      }
+      formatter.processSubmissionSegment(submissions, cc);
+      if (!checkpoint(file, submissions, query.getResumeCursor())) {
+        return false;
+      }
+    }
+    file.endOfSubmissions();
+    return true;
+  }
+
+  private static boolean checkpoint(StreamedExportFile file, List<Submission> submissions,
+      QueryResumePoint cursor) throws ODKDatastoreException, IOException {
+    Submission last = submissions.get(submissions.size() - 1);
+    return file.checkpoint(cursor, submissions.size(), last.getMarkedAsCompleteDate());
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.util.List;
+
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.constants.common.OperationalStatus;
+import org.opendatakit.aggregate.exception.ODKExternalServiceException;
+import org.opendatakit.aggregate.externalservice.ExternalService;
+import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.util.BackendActionsTable;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Common worker implementation for notifying the publishers of a form that
+ * new submissions have been completed.
+ */
+public class PublishNewSubmissionsWorkerImpl {
+
+  private static final Logger logger = LoggerFactory.getLogger(PublishNewSubmissionsWorkerImpl.class);
+
+  private final IForm form;
+  private final CallingContext cc;
+
+  public PublishNewSubmissionsWorkerImpl(IForm form, CallingContext cc) {
+    this.form = form;
+    this.cc = cc;
+  }
+
+  /**
+   * Create upload tasks for the active publishers of the form, unless a
+   * publish request was issued for the form recently (as mediated by the
+   * BackendActionsTable). Publication failures are logged; the Watchdog will
+   * find and publish any submissions that are missed.
+   */
+  public void publishNewSubmissions() {
+    boolean wasDaemon = cc.getAsDeamon();
+    cc.setAsDaemon(true);
+    try {
+      if (!BackendActionsTable.triggerPublisher(form.getUri(), cc)) {
+        return;
+      }
+      // send information to remote servers that need to be notified
+      List<ExternalService> tmp = FormServiceCursor.getExternalServicesForForm(form, cc);
+      UploadSubmissions uploadTask = (UploadSubmissions) cc.getBean(BeanDefs.UPLOAD_TASK_BEAN);
+      for (ExternalService rs : tmp) {
+        // only create upload tasks for active publishers
+        if (rs.getFormServiceCursor().getOperationalStatus() == OperationalStatus.ACTIVE) {
+          uploadTask.createFormUploadTask(rs.getFormServiceCursor(), false, cc);
+        }
+      }
+    } catch (ODKDatastoreException | ODKExternalServiceException e) {
+      logger.info("Publishing enqueue failure (this is recoverable) - " + e.getMessage());
+      e.printStackTrace();
+    } finally {
+      cc.setAsDaemon(wasDaemon);
+    }
+  }
+}
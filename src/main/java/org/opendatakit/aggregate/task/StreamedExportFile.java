@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.opendatakit.aggregate.constants.ServletConsts;
+import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.form.PersistentResults;
+import org.opendatakit.aggregate.form.PersistentResults.Checkpoint;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.submission.SubmissionKey;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobOutputStream;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.QueryResumePoint;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.constants.HtmlConsts;
+
+/**
+ * The result file of an export, written into the PersistentResults blob as the
+ * formatter produces it rather than assembled in memory. After each segment
+ * of submissions, the output is persisted and the query cursor is recorded,
+ * so that a retried attempt (see the Watchdog) continues the file instead of
+ * starting over.
+ * <p>
+ * If compressed exports are enabled, the file is gzipped. Each segment is a
+ * separate gzip member, so that a resumed attempt can append to it; the
+ * members of a gzip file decompress as one.
+ * <p>
+ * Once complete, the file records its last settled checkpoint: one after a
+ * submission completed well before the export was requested, so that every
+ * submission sorting before it that was stored by then is in the file. A
+ * later export of the same content (see
+ * {@link PersistentResults#getExportHash(org.opendatakit.aggregate.form.IForm, org.opendatakit.aggregate.filter.SubmissionFilterGroup, CallingContext)})
+ * starts from a copy of the file up to there and queries the submissions
+ * after it, unless submissions have since been stored behind it.
+ */
+final class StreamedExportFile {
+
+  private static final Logger logger = LoggerFactory.getLogger(StreamedExportFile.class);
+
+  /**
+   * how long before an export was requested a submission must have been
+   * stored for that export to have seen it; covers slow transactions and
+   * clock differences between servers
+   */
+  private static final long LATE_SUBMISSION_GRACE_MILLISECONDS = 10L * 60L * 1000L;
+
+  private final IForm form;
+  private final SubmissionKey persistentResultsKey;
+  private final Long attemptCount;
+  private final String exportHash;
+  private final CallingContext cc;
+
+  private BlobOutputStream blob;
+  private boolean gzip;
+  private GZIPOutputStream member = null;
+  private PrintWriter writer;
+  private boolean resumed = false;
+  private long submissionCount = 0L;
+  // checkpoints of submissions completed before this are settled
+  private Date settledBefore = null;
+  private Checkpoint settled = null;
+  private boolean submissionsEnded = false;
+
+  /**
+   * Routes the encoded output into the current gzip member, or straight into
+   * the blob.
+   */
+  private final OutputStream segmentStream = new OutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      target().write(b, off, len);
+    }
+  };
+
+  /**
+   * @param form
+   * @param persistentResultsKey
+   * @param attemptCount
+   * @param exportHash
+   *          identifies the content of the file, other than the submissions.
+   * @param cc
+   */
+  StreamedExportFile(IForm form, SubmissionKey persistentResultsKey, Long attemptCount,
+      String exportHash, CallingContext cc) {
+    this.form = form;
+    this.persistentResultsKey = persistentResultsKey;
+    this.attemptCount = attemptCount;
+    this.exportHash = exportHash;
+    this.cc = cc;
+  }
+
+  private OutputStream target() throws IOException {
+    if (!gzip) {
+      return blob;
+    }
+    if (member == null) {
+      member = new GZIPOutputStream(blob);
+    }
+    return member;
+  }
+
+  private void finishMember() throws IOException {
+    if (member != null) {
+      member.finish();
+      member = null;
+    }
+  }
+
+  /**
+   * Start the result file, or continue the one left by an earlier attempt, or
+   * start it from a copy of the submissions of a completed export.
+   *
+   * @param contentType
+   * @param unrootedFilePath
+   * @return the cursor from which the query continues, or null if the file
+   *         was started anew.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  QueryResumePoint open(String contentType, String unrootedFilePath)
+      throws ODKDatastoreException, IOException {
+    PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+    if (r.getRequestDate() != null) {
+      settledBefore = new Date(r.getRequestDate().getTime() - LATE_SUBMISSION_GRACE_MILLISECONDS);
+    }
+    Checkpoint checkpoint = r.getCheckpoint(cc);
+    if (checkpoint != null && checkpoint.websafeCursor != null) {
+      String existingContentType = r.getResultFileContentType(cc);
+      if (contentType.equals(existingContentType)
+          || HtmlConsts.RESP_TYPE_GZIP.equals(existingContentType)) {
+        blob = r.resumeResultFile(checkpoint, cc);
+        gzip = HtmlConsts.RESP_TYPE_GZIP.equals(existingContentType);
+      }
+    }
+
+    if (blob == null) {
+      // discard whatever an earlier attempt left behind
+      r.deleteResultFile(cc);
+      checkpoint = copyCompletedExport(r, contentType);
+      // nothing was stored behind the copy before it was checked
+      settled = checkpoint;
+    }
+
+    QueryResumePoint cursor = null;
+    if (blob != null) {
+      resumed = true;
+      submissionCount = checkpoint.submissionCount;
+      cursor = QueryResumePoint.fromWebsafeCursor(checkpoint.websafeCursor);
+    } else {
+      gzip = ServerPreferencesProperties.getCompressExportsEnabled(cc);
+      if (gzip) {
+        blob = r.openResultFile(HtmlConsts.RESP_TYPE_GZIP,
+            unrootedFilePath + ServletConsts.GZIP_FILENAME_APPEND, cc);
+      } else {
+        blob = r.openResultFile(contentType, unrootedFilePath, cc);
+      }
+    }
+    writer = new PrintWriter(new OutputStreamWriter(segmentStream, HtmlConsts.UTF8_ENCODE));
+    return cursor;
+  }
+
+  /**
+   * Start the result file from a copy of the submissions of the most recent
+   * completed export of the same content, if there is one.
+   *
+   * @param r
+   * @param contentType
+   * @return the checkpoint after the copied submissions, or null if the file
+   *         was not started.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  private Checkpoint copyCompletedExport(PersistentResults r, String contentType)
+      throws ODKDatastoreException, IOException {
+    PersistentResults completed = PersistentResults.findCompletedExport(r.getFormId(),
+        exportHash, cc);
+    if (completed == null) {
+      return null;
+    }
+    Checkpoint end = completed.getCompletedExport(cc);
+    String completedContentType = completed.getResultFileContentType(cc);
+    if (end == null || end.websafeCursor == null
+        || !(contentType.equals(completedContentType)
+            || HtmlConsts.RESP_TYPE_GZIP.equals(completedContentType))) {
+      return null;
+    }
+    if (hasLateSubmissions(completed, end)) {
+      logger.info("not starting from export " + completed.getUri()
+          + "; submissions were stored behind where it ends");
+      return null;
+    }
+    blob = r.copyResultFile(completed, end, cc);
+    if (blob == null) {
+      return null;
+    }
+    gzip = HtmlConsts.RESP_TYPE_GZIP.equals(completedContentType);
+    logger.info("starting from the " + end.submissionCount + " submissions of export "
+        + completed.getUri());
+    // a retried attempt continues from the copy
+    Checkpoint copied = new Checkpoint(end.websafeCursor, blob.checkpoint(), end.submissionCount);
+    r.setCheckpoint(copied, cc);
+    return copied;
+  }
+
+  /**
+   * Submissions are exported in the order of their _MARKED_AS_COMPLETE_DATE,
+   * which is set before the submission is stored, or supplied by the device
+   * (e.g., Briefcase). A submission stored after the completed export ran can
+   * therefore sort before where that export ends, and would be missed by
+   * continuing from there. Look for one among the submissions whose
+   * _LAST_UPDATE_DATE, which the server assigns when storing them, is later
+   * than shortly before the completed export was requested. This is a
+   * read-only scan, so the rows are streamed rather than paged.
+   *
+   * @param completed
+   * @param end
+   *          where the submissions of the completed export end.
+   * @return true if the completed export must not be reused.
+   * @throws ODKDatastoreException
+   */
+  private boolean hasLateSubmissions(PersistentResults completed, Checkpoint end)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+        .getFormDataModel().getBackingObjectPrototype();
+    QueryResumePoint endCursor = QueryResumePoint.fromWebsafeCursor(end.websafeCursor);
+    Date endDate;
+    try {
+      endDate = ds.getEntity(tbl, endCursor.getUriLastReturnedValue(), user)
+          .getMarkedAsCompleteDate();
+    } catch (ODKEntityNotFoundException e) {
+      return true;
+    }
+    if (endDate == null || completed.getRequestDate() == null) {
+      return true;
+    }
+    Date storedSince = new Date(completed.getRequestDate().getTime()
+        - LATE_SUBMISSION_GRACE_MILLISECONDS);
+
+    Query query = ds.createQuery(tbl, "StreamedExportFile.hasLateSubmissions", user);
+    query.addSort(tbl.lastUpdateDate, Query.Direction.ASCENDING);
+    query.addFilter(tbl.lastUpdateDate, Query.FilterOperation.GREATER_THAN_OR_EQUAL,
+        storedSince);
+    AtomicBoolean late = new AtomicBoolean(false);
+    query.stream(ServletConsts.EXPORT_CURSOR_CHUNK_SIZE, cb -> {
+      Date completedDate = ((TopLevelDynamicBase) cb).getMarkedAsCompleteDate();
+      if (completedDate != null && !completedDate.after(endDate)) {
+        late.set(true);
+      }
+    });
+    return late.get();
+  }
+
+  PrintWriter getWriter() {
+    return writer;
+  }
+
+  /**
+   * @return true if the file continues one left by an earlier attempt.
+   */
+  boolean isResumed() {
+    return resumed;
+  }
+
+  /**
+   * @return the number of submissions written up to the last checkpoint.
+   */
+  long getSubmissionCount() {
+    return submissionCount;
+  }
+
+  private void flush() throws IOException {
+    writer.flush();
+    if (writer.checkError()) {
+      throw new IOException("unable to write the result file");
+    }
+    finishMember();
+  }
+
+  /**
+   * Persist the output of a segment of submissions and record the cursor
+   * after it.
+   *
+   * @param cursor
+   *          the cursor from which the query continues.
+   * @param segmentSize
+   *          the number of submissions in the segment.
+   * @param lastCompletedDate
+   *          the completion date of the last submission in the segment.
+   * @return false if this is no longer the active attempt, which must then
+   *         stop without touching the file.
+   * @throws IOException
+   * @throws ODKDatastoreException
+   */
+  boolean checkpoint(QueryResumePoint cursor, int segmentSize, Date lastCompletedDate)
+      throws IOException, ODKDatastoreException {
+    flush();
+    PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+    if (!attemptCount.equals(r.getAttemptCount())) {
+      return false;
+    }
+    long partCount = blob.checkpoint();
+    submissionCount += segmentSize;
+    Checkpoint checkpoint = new Checkpoint((cursor == null) ? null : cursor.asWebsafeCursor(),
+        partCount, submissionCount);
+    r.setCheckpoint(checkpoint, cc);
+    if (cursor != null && settledBefore != null && lastCompletedDate != null
+        && lastCompletedDate.before(settledBefore)) {
+      settled = checkpoint;
+    }
+    // keep the Watchdog from restarting an export that is making progress
+    r.setLastRetryDate(new Date());
+    r.persist(cc);
+    return true;
+  }
+
+  /**
+   * Mark the end of the submissions; what follows (e.g., the closing of a
+   * JSON array) is not part of the copy that a later export starts from.
+   */
+  void endOfSubmissions() {
+    submissionsEnded = true;
+  }
+
+  /**
+   * Complete the result file, unless this is no longer the active attempt.
+   *
+   * @return the refetched PersistentResults, or null if this is no longer
+   *         the active attempt.
+   * @throws IOException
+   * @throws ODKDatastoreException
+   */
+  PersistentResults finish() throws IOException, ODKDatastoreException {
+    flush();
+    PersistentResults r = new PersistentResults(persistentResultsKey, cc);
+    if (!attemptCount.equals(r.getAttemptCount())) {
+      return null;
+    }
+    blob.close();
+    r.deleteCheckpoint(cc);
+    if (submissionsEnded && settled != null) {
+      r.setCompletedExport(exportHash, settled, cc);
+    }
+    return r;
+  }
+}
@@ -17,6 +17,7 @@ package org.opendatakit.aggregate.task;
 
 import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.common.web.CallingContext;
 
 /**
@@ -47,4 +48,14 @@ public interface UploadSubmissions {
    */
   public void createFormUploadTask(FormServiceCursor fsc, boolean onBackground, CallingContext cc)
       throws ODKExternalServiceException;
+
+  /**
+   * Notify the publishers of the form that a submission has been completed.
+   * Implementations may do this after returning, and may drop the request
+   * under load; the Watchdog publishes any submissions that are missed.
+   *
+   * @param form
+   * @param cc
+   */
+  public void publishNewSubmissions(IForm form, CallingContext cc);
 }
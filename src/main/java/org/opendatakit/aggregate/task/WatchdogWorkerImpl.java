@@ -43,7 +43,6 @@ import org.opendatakit.aggregate.form.MiscTasks;
 import org.opendatakit.aggregate.form.PersistentResults;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup;
 import org.opendatakit.aggregate.query.submission.QueryByUIFilterGroup.CompletionFlag;
-import org.opendatakit.aggregate.submission.Submission;
 import org.opendatakit.aggregate.util.BackendActionsTable;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.QueryResumePoint;
@@ -110,10 +109,16 @@ public class WatchdogWorkerImpl {
     QueryByUIFilterGroup query = new QueryByUIFilterGroup(form, filterGroup,
         CompletionFlag.ONLY_COMPLETE_SUBMISSIONS, cc);
 
-    List<Submission> submissions = query.getResultSubmissions(cc);
+    // only the key and marked-as-complete date are needed -- don't
+    // fetch the rest of the submission.
+    TopLevelDynamicBase tbl = (TopLevelDynamicBase) form.getTopLevelGroupElement()
+        .getFormDataModel().getBackingObjectPrototype();
+    query.selectOnly(tbl.markedAsCompleteDate);
+
+    List<TopLevelDynamicBase> submissions = query.getTopLevelSubmissionObjects(cc);
     if (submissions != null && submissions.size() >= 1) {
-      Submission lastSubmission = submissions.get(0);
-      metadata = new SubmissionMetadata(lastSubmission.getKey().getKey(),
+      TopLevelDynamicBase lastSubmission = submissions.get(0);
+      metadata = new SubmissionMetadata(lastSubmission.getUri(),
           lastSubmission.getMarkedAsCompleteDate());
       formSubmissionsMap.put(form.getUri(), metadata);
       return metadata;
@@ -340,6 +345,8 @@ public class WatchdogWorkerImpl {
         logger.info("Found stalled request: " + persistentResult.getSubmissionKey());
         long attemptCount = persistentResult.getAttemptCount();
         persistentResult.setAttemptCount(++attemptCount);
+        // the new attempt checkpoints its progress; give it the full interval
+        persistentResult.setLastRetryDate(new Date());
         persistentResult.persist(cc);
         IForm form = FormFactory.retrieveFormByFormId(persistentResult.getFormId(), cc);
         if (!form.hasValidFormDefinition()) {
@@ -18,7 +18,9 @@ package org.opendatakit.aggregate.task.gae;
 import org.opendatakit.aggregate.constants.externalservice.ExternalServiceConsts;
 import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.form.IForm;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.aggregate.task.PublishNewSubmissionsWorkerImpl;
 import org.opendatakit.aggregate.task.UploadSubmissions;
 import org.opendatakit.aggregate.task.gae.servlet.UploadSubmissionsTaskServlet;
 import org.opendatakit.aggregate.util.BackendActionsTable;
@@ -65,4 +67,11 @@ public class UploadSubmissionsImpl implements UploadSubmissions {
 
   }
 
+  @Override
+  public void publishNewSubmissions(IForm form, CallingContext cc) {
+    // the upload tasks are already enqueued on the task queue; there is no
+    // background thread here to defer the remaining work to.
+    new PublishNewSubmissionsWorkerImpl(form, cc).publishNewSubmissions();
+  }
+
 }
@@ -15,12 +15,24 @@
  */
 package org.opendatakit.aggregate.task.tomcat;
 
-import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.opendatakit.aggregate.task.ExportPartitionExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.TaskScheduler;
 
 /**
+ * Runs the background tasks of each {@link TaskFamily} on its own bounded
+ * pool of threads, and the periodic watchdog on the task scheduler. The
+ * partitions of the running exports share one more bounded pool; see
+ * {@link ExportPartitionExecutor}.
  *
  * @author wbrunette@gmail.com
  * @author mitchellsundt@gmail.com
@@ -28,12 +40,14 @@ import org.springframework.scheduling.TaskScheduler;
  */
 public class AggregrateThreadExecutor {
 
+  private static final Logger logger = LoggerFactory.getLogger(AggregrateThreadExecutor.class);
+
   private static AggregrateThreadExecutor classInstance = null;
 
-  public synchronized static void initialize( TaskScheduler taskScheduler ) {
+  public synchronized static void initialize( TaskScheduler taskScheduler, Map<TaskFamily, Integer> threadCounts, int queueCapacity, int exportPartitionThreads ) {
       if ( classInstance != null ) throw new IllegalStateException("called after having set the task scheduler");
 
-      classInstance = new AggregrateThreadExecutor(taskScheduler);
+      classInstance = new AggregrateThreadExecutor(taskScheduler, threadCounts, queueCapacity, exportPartitionThreads);
   }
 
   public synchronized static AggregrateThreadExecutor getAggregateThreadExecutor() {
@@ -43,13 +57,75 @@ public class AggregrateThreadExecutor {
   }
 
   private TaskScheduler exec;
+  private final Map<TaskFamily, ExecutorService> workers = new EnumMap<TaskFamily, ExecutorService>(TaskFamily.class);
+  private final Map<TaskFamily, TaskFamilyExecutor> families = new EnumMap<TaskFamily, TaskFamilyExecutor>(TaskFamily.class);
+
+  private ExecutorService exportPartitions;
 
-  private AggregrateThreadExecutor(TaskScheduler taskScheduler) {
+  private AggregrateThreadExecutor(TaskScheduler taskScheduler, Map<TaskFamily, Integer> threadCounts, int queueCapacity, int exportPartitionThreads) {
     exec = taskScheduler;
+    for (TaskFamily family : TaskFamily.values()) {
+      Integer threads = threadCounts.get(family);
+      if ( threads == null ) throw new IllegalArgumentException("no thread count for " + family.name());
+
+      String name = family.name().toLowerCase();
+      ExecutorService pool = Executors.newFixedThreadPool(threads, newThreadFactory(name));
+      workers.put(family, pool);
+      families.put(family, new TaskFamilyExecutor(name, pool, threads, queueCapacity));
+    }
+    exportPartitions = Executors.newFixedThreadPool(exportPartitionThreads, newThreadFactory("export-partition"));
+    ExportPartitionExecutor.initialize(exportPartitions, exportPartitionThreads);
   }
 
-  public void execute(Runnable task) {
-      exec.schedule(task, new Date(System.currentTimeMillis() + 100));
+  private static ThreadFactory newThreadFactory(final String name) {
+    final AtomicInteger threadNumber = new AtomicInteger(1);
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "aggregate-" + name + "-" + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Queue a task on the threads of its family. Tasks of the same key (e.g.,
+   * the form) take turns with those of other keys.
+   *
+   * @param family
+   * @param key
+   * @param task
+   * @return false if the task was rejected because the queue of the family is
+   *         full; the watchdog will retry it.
+   */
+  public boolean execute(TaskFamily family, String key, Runnable task) {
+    TaskFamilyExecutor familyExecutor = families.get(family);
+    boolean queued = familyExecutor.offer(key, task);
+    if (!queued) {
+      logger.warn("Background " + familyExecutor.getName() + " queue is full - deferring to watchdog: " + key);
+    }
+    return queued;
+  }
+
+  /**
+   * Log the queue depths and run times of the task families.
+   */
+  public void logMetrics() {
+    for (TaskFamilyExecutor familyExecutor : families.values()) {
+      logger.info(familyExecutor.getMetrics());
+    }
+  }
+
+  /**
+   * Stop the threads of the task families; queued tasks are abandoned to the
+   * watchdog.
+   */
+  public void shutdown() {
+    for (ExecutorService pool : workers.values()) {
+      pool.shutdownNow();
+    }
+    exportPartitions.shutdownNow();
   }
 
   /**
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A bounded queue of tasks, drained one at a time, in order, by a single
+ * dispatcher running on an executor. A task offered while another task with
+ * the same key is still waiting is dropped, so that e.g. a burst of
+ * submissions to one form is handled once. Tasks are dropped when the queue
+ * is full; they must be safe to lose (e.g., recovered by the Watchdog).
+ */
+class CoalescingTaskQueue {
+
+  private final Executor executor;
+  private final int capacity;
+
+  // key to the waiting task, in arrival order
+  private final Map<String, Runnable> pending = new LinkedHashMap<String, Runnable>();
+  private boolean dispatching = false;
+
+  private final Runnable dispatcher = new Runnable() {
+    @Override
+    public void run() {
+      Runnable task;
+      while ((task = next()) != null) {
+        try {
+          task.run();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  };
+
+  CoalescingTaskQueue(Executor executor, int capacity) {
+    this.executor = executor;
+    this.capacity = capacity;
+  }
+
+  /**
+   * @param key
+   * @param task
+   * @return false if the task was dropped because the queue is full.
+   */
+  boolean offer(String key, Runnable task) {
+    synchronized (this) {
+      if (pending.containsKey(key)) {
+        return true;
+      }
+      if (pending.size() >= capacity) {
+        return false;
+      }
+      pending.put(key, task);
+      if (dispatching) {
+        return true;
+      }
+      dispatching = true;
+    }
+    try {
+      executor.execute(dispatcher);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        dispatching = false;
+        pending.remove(key);
+      }
+      throw e;
+    }
+    return true;
+  }
+
+  /**
+   * @return the next task, or null (and the dispatcher stops) if there is
+   *         none.
+   */
+  private synchronized Runnable next() {
+    Iterator<Runnable> it = pending.values().iterator();
+    if (!it.hasNext()) {
+      dispatching = false;
+      return null;
+    }
+    Runnable task = it.next();
+    it.remove();
+    return task;
+  }
+}
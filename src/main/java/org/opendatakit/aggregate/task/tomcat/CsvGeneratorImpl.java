@@ -55,6 +55,6 @@ public class CsvGeneratorImpl implements CsvGenerator {
     // use watchdog's calling context in runner...
     CsvRunner runner = new CsvRunner(form, persistentResultsKey, attemptCount, wd.getCallingContext() );
     AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(runner);
+    exec.execute(TaskFamily.EXPORT, form.getFormId(), runner);
   }
 }
@@ -55,7 +55,7 @@ public class JsonFileGeneratorImpl implements JsonFileGenerator {
     // use watchdog's calling context in runner...
     JsonRunner runner = new JsonRunner(form, persistentResultsKey, attemptCount, wd.getCallingContext() );
      AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-     exec.execute(runner);
+     exec.execute(TaskFamily.EXPORT, form.getFormId(), runner);
 
   }
 
@@ -81,6 +81,6 @@ public class KmlGeneratorImpl implements KmlGenerator {
     KmlRunner runner = new KmlRunner(form, persistentResults.getSubmissionKey(), attemptCount,
         kmlElementsToInclude, wd.getCallingContext());
     AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(runner);
+    exec.execute(TaskFamily.EXPORT, form.getFormId(), runner);
   }
 }
@@ -61,6 +61,6 @@ public class PurgeOlderSubmissionsImpl implements PurgeOlderSubmissions {
     // use watchdog's calling context in runner...
     PurgeOlderSubmissionsRunner dr = new PurgeOlderSubmissionsRunner(form, miscTasksKey, attemptCount, wd.getCallingContext());
     AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(dr);
+    exec.execute(TaskFamily.MAINTENANCE, form.getFormId(), dr);
   }
 }
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+/**
+ * The kinds of background tasks, each run on its own bounded pool of threads
+ * so that e.g. long exports do not hold up the publishers. The watchdog runs
+ * on the task scheduler.
+ */
+public enum TaskFamily {
+  /**
+   * csv, kml and json file generation. The partitions of each export run on
+   * the exportPartitionThreads shared by all exports.
+   */
+  EXPORT,
+  /** uploads to publishers, including the creation of worksheets */
+  PUBLISH,
+  /** form deletes and submission purges */
+  MAINTENANCE;
+}
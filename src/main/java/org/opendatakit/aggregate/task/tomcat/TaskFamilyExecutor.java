@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the background tasks of one family (e.g., exports) on at most a fixed
+ * number of threads. Waiting tasks are held per key (the form), and the keys
+ * take turns, so that one form with many tasks does not hold up the others.
+ * Once the queue is full, further tasks are rejected; every background task
+ * is retried by the watchdog, so rejecting one only defers it.
+ */
+class TaskFamilyExecutor {
+
+  private static final Logger logger = LoggerFactory.getLogger(TaskFamilyExecutor.class);
+
+  private static final class QueuedTask {
+    final Runnable task;
+    final long queuedAt = System.currentTimeMillis();
+
+    QueuedTask(Runnable task) {
+      this.task = task;
+    }
+  }
+
+  private final String name;
+  private final Executor workers;
+  private final int threads;
+  private final int capacity;
+
+  // key to its waiting tasks; the key served next comes first
+  private final Map<String, Deque<QueuedTask>> waiting =
+      new LinkedHashMap<String, Deque<QueuedTask>>();
+  private int queueDepth = 0;
+  private int running = 0;
+
+  private long submittedCount = 0L;
+  private long rejectedCount = 0L;
+  private long completedCount = 0L;
+  private long failedCount = 0L;
+  private long totalWaitMillis = 0L;
+  private long totalRunMillis = 0L;
+  private long maxRunMillis = 0L;
+
+  private final Runnable dispatcher = new Runnable() {
+    @Override
+    public void run() {
+      QueuedTask queued;
+      while ((queued = next()) != null) {
+        long start = System.currentTimeMillis();
+        boolean failed = false;
+        try {
+          queued.task.run();
+        } catch (Exception e) {
+          failed = true;
+          logger.error("Background " + name + " task failed", e);
+        }
+        completed(start - queued.queuedAt, System.currentTimeMillis() - start, failed);
+      }
+    }
+  };
+
+  /**
+   * @param name
+   *          the name of the family, for logging.
+   * @param workers
+   *          the executor providing the threads; it must be able to run
+   *          this many tasks at once.
+   * @param threads
+   *          the most tasks run at a time.
+   * @param capacity
+   *          the most tasks waiting at a time.
+   */
+  TaskFamilyExecutor(String name, Executor workers, int threads, int capacity) {
+    if (threads < 1 || capacity < 1) {
+      throw new IllegalArgumentException("a task family needs at least one thread and queue slot");
+    }
+    this.name = name;
+    this.workers = workers;
+    this.threads = threads;
+    this.capacity = capacity;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * @param key
+   *          the key the task takes turns under, e.g., the form.
+   * @param task
+   * @return false if the task was rejected because the queue is full.
+   */
+  boolean offer(String key, Runnable task) {
+    QueuedTask queued;
+    synchronized (this) {
+      if (queueDepth >= capacity) {
+        ++rejectedCount;
+        return false;
+      }
+      Deque<QueuedTask> tasks = waiting.get(key);
+      if (tasks == null) {
+        tasks = new ArrayDeque<QueuedTask>();
+        waiting.put(key, tasks);
+      }
+      queued = new QueuedTask(task);
+      tasks.addLast(queued);
+      ++queueDepth;
+      ++submittedCount;
+      if (running >= threads) {
+        return true;
+      }
+      ++running;
+    }
+    try {
+      workers.execute(dispatcher);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        --running;
+        Deque<QueuedTask> tasks = waiting.get(key);
+        if (tasks != null && tasks.remove(queued)) {
+          --queueDepth;
+          --submittedCount;
+          if (tasks.isEmpty()) {
+            waiting.remove(key);
+          }
+        }
+      }
+      throw e;
+    }
+    return true;
+  }
+
+  /**
+   * @return the next task of the key whose turn it is, or null (and the
+   *         dispatcher stops) if there is none.
+   */
+  private synchronized QueuedTask next() {
+    Iterator<Map.Entry<String, Deque<QueuedTask>>> it = waiting.entrySet().iterator();
+    if (!it.hasNext()) {
+      --running;
+      return null;
+    }
+    Map.Entry<String, Deque<QueuedTask>> entry = it.next();
+    it.remove();
+    QueuedTask queued = entry.getValue().removeFirst();
+    if (!entry.getValue().isEmpty()) {
+      // back of the line
+      waiting.put(entry.getKey(), entry.getValue());
+    }
+    --queueDepth;
+    return queued;
+  }
+
+  private synchronized void completed(long waitMillis, long runMillis, boolean failed) {
+    ++completedCount;
+    if (failed) {
+      ++failedCount;
+    }
+    totalWaitMillis += waitMillis;
+    totalRunMillis += runMillis;
+    maxRunMillis = Math.max(maxRunMillis, runMillis);
+  }
+
+  synchronized int getQueueDepth() {
+    return queueDepth;
+  }
+
+  synchronized int getRunningCount() {
+    return running;
+  }
+
+  synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  synchronized long getCompletedCount() {
+    return completedCount;
+  }
+
+  /**
+   * @return a one-line summary of the queue and the run times of the tasks.
+   */
+  synchronized String getMetrics() {
+    long averageWait = (completedCount == 0) ? 0 : totalWaitMillis / completedCount;
+    long averageRun = (completedCount == 0) ? 0 : totalRunMillis / completedCount;
+    return name + ": running " + running + "/" + threads + " queued " + queueDepth + "/"
+        + capacity + " submitted " + submittedCount + " rejected " + rejectedCount
+        + " completed " + completedCount + " failed " + failedCount + " avg wait "
+        + averageWait + "ms avg run " + averageRun + "ms max run " + maxRunMillis + "ms";
+  }
+}
@@ -15,9 +15,16 @@
  */
 package org.opendatakit.aggregate.task.tomcat;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.externalservice.FormServiceCursor;
+import org.opendatakit.aggregate.form.IForm;
+import org.opendatakit.aggregate.task.PublishNewSubmissionsWorkerImpl;
 import org.opendatakit.aggregate.task.UploadSubmissions;
 import org.opendatakit.aggregate.task.UploadSubmissionsWorkerImpl;
 import org.opendatakit.common.web.CallingContext;
@@ -32,6 +39,29 @@ import org.opendatakit.common.web.CallingContext;
  *
  */
 public class UploadSubmissionsImpl implements UploadSubmissions {
+
+  private static final Logger logger = LoggerFactory.getLogger(UploadSubmissionsImpl.class);
+
+  /**
+   * Most forms with new submissions waiting to notify their publishers.
+   */
+  private static final int MAX_PENDING_PUBLISH_FORMS = 100;
+
+  /**
+   * The publish queue is drained by one dispatcher, so it takes its turn
+   * with the uploads of each form as a whole.
+   */
+  private static final String PUBLISH_QUEUE_KEY = "publishNewSubmissions";
+
+  private final CoalescingTaskQueue publishQueue = new CoalescingTaskQueue(new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      if (!AggregrateThreadExecutor.getAggregateThreadExecutor().execute(TaskFamily.PUBLISH,
+          PUBLISH_QUEUE_KEY, command)) {
+        throw new RejectedExecutionException("publish queue is full");
+      }
+    }
+  }, MAX_PENDING_PUBLISH_FORMS);
 
     static class UploadSubmissionsRunner implements Runnable {
         final UploadSubmissionsWorkerImpl impl;
@@ -59,6 +89,28 @@ public class UploadSubmissionsImpl implements UploadSubmissions {
     UploadSubmissionsRunner ur = new UploadSubmissionsRunner(fsc, wd.getFasterWatchdogCycleEnabled(), wd.getCallingContext());
     System.out.println("UPLOAD TASK IN TOMCAT");
     AggregrateThreadExecutor exec = AggregrateThreadExecutor.getAggregateThreadExecutor();
-    exec.execute(ur);
+    exec.execute(TaskFamily.PUBLISH, fsc.getFormId(), ur);
+  }
+
+  @Override
+  public void publishNewSubmissions(IForm form, CallingContext cc) {
+    WatchdogImpl wd = (WatchdogImpl) cc.getBean(BeanDefs.WATCHDOG);
+    // use watchdog's calling context; the request will have completed...
+    final PublishNewSubmissionsWorkerImpl worker = new PublishNewSubmissionsWorkerImpl(form,
+        wd.getCallingContext());
+    boolean queued;
+    try {
+      queued = publishQueue.offer(form.getUri(), new Runnable() {
+        @Override
+        public void run() {
+          worker.publishNewSubmissions();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      queued = false;
+    }
+    if (!queued) {
+      logger.warn("Publish queue is full - deferring to watchdog: " + form.getFormId());
+    }
   }
 }
@@ -17,6 +17,8 @@ package org.opendatakit.aggregate.task.tomcat;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 
 import javax.servlet.ServletContext;
@@ -46,6 +48,7 @@ import org.opendatakit.common.utils.HttpClientFactory;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.constants.BasicConsts;
 import org.opendatakit.common.web.constants.HtmlConsts;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.context.SmartLifecycle;
 import org.springframework.scheduling.TaskScheduler;
@@ -58,7 +61,7 @@ import org.springframework.web.context.ServletContextAware;
  * @author mitchellsundt@gmail.com
  *
  */
-public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
+public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean, DisposableBean,
     ServletContextAware {
 
   private Logger logger = LoggerFactory.getLogger(WatchdogImpl.class);
@@ -88,6 +91,17 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
   HttpClientFactory httpClientFactory = null;
   ImageUtil imageUtil = null;
 
+  /** threads running exports */
+  int exportThreads = 2;
+  /** threads, shared by the running exports, querying and formatting their partitions */
+  int exportPartitionThreads = 4;
+  /** threads running uploads to publishers */
+  int publishThreads = 2;
+  /** threads running form deletes and purges */
+  int maintenanceThreads = 1;
+  /** the most tasks of each family waiting for a thread */
+  int taskQueueCapacity = 100;
+
   /**
    * Implementation of CallingContext for use by watchdog-launched tasks.
    *
@@ -255,6 +269,7 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
       try {
         System.out.println("RUNNING WATCHDOG TASK IN TOMCAT") ;
         impl.checkTasks(cc);
+        AggregrateThreadExecutor.getAggregateThreadExecutor().logMetrics();
       } catch (Exception e) {
         e.printStackTrace();
         // TODO: Problem - decide what to do if an exception occurs
@@ -444,6 +459,46 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
     this.imageUtil = imageUtil;
   }
 
+  public int getExportThreads() {
+    return exportThreads;
+  }
+
+  public void setExportThreads(int exportThreads) {
+    this.exportThreads = exportThreads;
+  }
+
+  public int getExportPartitionThreads() {
+    return exportPartitionThreads;
+  }
+
+  public void setExportPartitionThreads(int exportPartitionThreads) {
+    this.exportPartitionThreads = exportPartitionThreads;
+  }
+
+  public int getPublishThreads() {
+    return publishThreads;
+  }
+
+  public void setPublishThreads(int publishThreads) {
+    this.publishThreads = publishThreads;
+  }
+
+  public int getMaintenanceThreads() {
+    return maintenanceThreads;
+  }
+
+  public void setMaintenanceThreads(int maintenanceThreads) {
+    this.maintenanceThreads = maintenanceThreads;
+  }
+
+  public int getTaskQueueCapacity() {
+    return taskQueueCapacity;
+  }
+
+  public void setTaskQueueCapacity(int taskQueueCapacity) {
+    this.taskQueueCapacity = taskQueueCapacity;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     System.out.println("afterPropertiesSet WATCHDOG TASK IN TOMCAT");
@@ -471,7 +526,18 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
       throw new IllegalStateException("no httpClientFactory specified");
     if (imageUtil == null)
       throw new IllegalStateException("no imageUtil specified");
-    AggregrateThreadExecutor.initialize(taskScheduler);
+    Map<TaskFamily, Integer> threadCounts = new EnumMap<TaskFamily, Integer>(TaskFamily.class);
+    threadCounts.put(TaskFamily.EXPORT, exportThreads);
+    threadCounts.put(TaskFamily.PUBLISH, publishThreads);
+    threadCounts.put(TaskFamily.MAINTENANCE, maintenanceThreads);
+    AggregrateThreadExecutor.initialize(taskScheduler, threadCounts, taskQueueCapacity,
+        exportPartitionThreads);
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    System.out.println("destroy WATCHDOG TASK IN TOMCAT");
+    AggregrateThreadExecutor.getAggregateThreadExecutor().shutdown();
   }
 
   @Override
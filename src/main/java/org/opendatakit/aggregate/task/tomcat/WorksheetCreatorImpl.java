@@ -89,6 +89,6 @@ public class WorksheetCreatorImpl implements WorksheetCreator {
         System.out.println("THIS IS CREATE WORKSHEET IN TOMCAT");
         AggregrateThreadExecutor exec = AggregrateThreadExecutor
                 .getAggregateThreadExecutor();
-        exec.execute(wr);
+        exec.execute(TaskFamily.PUBLISH, form.getFormId(), wr);
     }
 }
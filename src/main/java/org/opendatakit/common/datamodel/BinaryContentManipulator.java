@@ -13,14 +13,26 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
@@ -28,8 +40,10 @@ import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.Direction;
 import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
 
@@ -58,6 +72,189 @@ public class BinaryContentManipulator {
     FILE_UNCHANGED, NEW_FILE_VERSION, COMPLETELY_NEW_FILE
   }
 
+  /**
+   * The content of an attachment that is not held in memory, e.g., an upload
+   * that was spooled to a temporary file. Its length and hash are known
+   * without reading it, and it can be read more than once (to compare it
+   * against identical content and then to store it).
+   */
+  public interface ContentSource {
+
+    /**
+     * @return a new stream over the content. The caller closes it.
+     * @throws IOException
+     */
+    InputStream openStream() throws IOException;
+
+    long getContentLength();
+
+    /**
+     * @return the hash of the content, as computed by
+     *         {@link CommonFieldsBase#newMD5HashUri(byte[])}.
+     */
+    String getContentHash();
+  }
+
+  private static final class ByteArrayContentSource implements ContentSource {
+    private final byte[] byteArray;
+    private String contentHash = null;
+
+    ByteArrayContentSource(byte[] byteArray) {
+      this.byteArray = byteArray;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new ByteArrayInputStream(byteArray);
+    }
+
+    @Override
+    public long getContentLength() {
+      return byteArray.length;
+    }
+
+    @Override
+    public String getContentHash() {
+      if (contentHash == null) {
+        contentHash = CommonFieldsBase.newMD5HashUri(byteArray);
+      }
+      return contentHash;
+    }
+  }
+
+  /**
+   * The content of an attachment that is written as it is produced, e.g., an
+   * export, rather than read from a source. Parts are persisted as they fill,
+   * so the content is never held in memory in full. The attachment has no
+   * content hash (and is therefore incomplete) until the stream is closed.
+   *
+   * @see BinaryContentManipulator#newBlobOutputStream(String, String, CallingContext)
+   * @see BinaryContentManipulator#resumeBlobOutputStream(String, long, CallingContext)
+   */
+  public final class BlobOutputStream extends OutputStream {
+    private final Datastore ds;
+    private final User user;
+    private final BinaryContent bc;
+    private final MessageDigest md;
+    private final byte[] buffer;
+    private int count = 0;
+    private long partCount;
+    private long contentLength;
+    private boolean closed = false;
+
+    private BlobOutputStream(BinaryContent bc, long partCount, long contentLength,
+        MessageDigest md, CallingContext cc) {
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      this.bc = bc;
+      this.partCount = partCount;
+      this.contentLength = contentLength;
+      this.md = md;
+      this.buffer = new byte[(int) Math.min(blbRelation.value.getMaxCharLen(),
+          BlobManipulator.MAX_PART_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == buffer.length) {
+        writePart();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (count == buffer.length) {
+          writePart();
+        }
+        int n = Math.min(len, buffer.length - count);
+        System.arraycopy(b, off, buffer, count, n);
+        count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    private void writePart() throws IOException {
+      if (closed) {
+        throw new IOException("stream is closed");
+      }
+      if (count == 0) {
+        return;
+      }
+      byte[] partialBlob = Arrays.copyOf(buffer, count);
+      RefBlob eBlob = ds.createEntityUsingRelation(blbRelation, user);
+      eBlob.setTopLevelAuri(topLevelKey);
+      eBlob.setValue(partialBlob);
+      BinaryContentRefBlob bcb = ds.createEntityUsingRelation(vrefRelation, user);
+      bcb.setTopLevelAuri(topLevelKey);
+      bcb.setDomAuri(bc.getUri());
+      bcb.setSubAuri(eBlob.getUri());
+      bcb.setPart(partCount + 1L);
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      // the blob part precedes its reference
+      rows.add(eBlob);
+      rows.add(bcb);
+      try {
+        ds.putEntities(rows, user);
+      } catch (ODKDatastoreException e) {
+        throw new IOException("unable to persist blob part", e);
+      }
+      md.update(partialBlob);
+      contentLength += count;
+      ++partCount;
+      count = 0;
+    }
+
+    /**
+     * Persist everything written so far, including a final partial part. The
+     * stream can be continued from this point by
+     * {@link BinaryContentManipulator#resumeBlobOutputStream(String, long, CallingContext)}
+     * .
+     *
+     * @return the number of parts persisted.
+     * @throws IOException
+     */
+    public long checkpoint() throws IOException {
+      writePart();
+      return partCount;
+    }
+
+    /**
+     * @return the number of bytes written, including those of a resumed
+     *         stream.
+     */
+    public long getContentLength() {
+      return contentLength + count;
+    }
+
+    /**
+     * Persist the remaining content and mark the attachment as complete.
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      writePart();
+      closed = true;
+      bc.setContentLength(contentLength);
+      bc.setContentHash(CommonFieldsBase.newMD5HashUri(md));
+      try {
+        ds.putEntity(bc, user);
+      } catch (ODKDatastoreException e) {
+        throw new IOException("unable to complete attachment", e);
+      }
+    }
+  }
+
+  /**
+   * Number of attachments with a matching content hash that are compared
+   * against new content when deduplicating attachments.
+   */
+  private static final int MAX_DEDUPLICATION_CANDIDATES = 5;
+
   private final String parentKey;
   private final String topLevelKey;
 
@@ -69,65 +266,139 @@ public class BinaryContentManipulator {
   // implement lazy access to the attachment fields
   private boolean refreshBeforeUse = true;
   private final Map<Long,BinaryContent> attachments = new HashMap<Long,BinaryContent>();
+  // attachment declarations already fetched for a set of submissions;
+  // used on the first refresh only
+  private ChildRowCache childRows;
 
   /**
-   * Manipulator class for handling an in-memory blob
+   * Manipulator class for handling a blob
    *
    * @author mitchellsundt@gmail.com
    *
    */
   public static class BlobManipulator {
 
-    private List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
-    private List<RefBlob> dbRefBlobList = new ArrayList<RefBlob>();
+    /**
+     * Largest part a blob is split into when it is written. Each part is
+     * read and written as a single byte[], so this bounds the memory needed
+     * to stream a blob regardless of the size the datastore would allow.
+     */
+    private static final int MAX_PART_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Number of parts that are written, or fetched by a single query, at a
+     * time.
+     */
+    private static final int PARTS_PER_BATCH = 4;
+
+    /**
+     * Largest value set used in a single query (GAE limits IN filters to 30
+     * values).
+     */
+    static final int MAX_VALUE_SET_SIZE = 30;
+
+    private final Datastore ds;
+    private final User user;
+    private final BinaryContentRefBlob bcbRef;
+    private final RefBlob ref;
+    private final List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
 
     /**
      * Construct an blob entity and persist it into the data store
      *
      * @param blob
      * @param uriVersionedContent
-     * @param versionedBinaryContentRefBlobModel
-     * @param formDefinition
-     * @param colocationKey
+     * @param bcbRef
+     * @param ref
+     * @param topLevelKey
      * @param cc
      *          - the CallingContext of this request
      * @throws ODKDatastoreException
      */
     public BlobManipulator(byte[] blob, String uriVersionedContent, BinaryContentRefBlob bcbRef,
         RefBlob ref, String topLevelKey, CallingContext cc) throws ODKDatastoreException {
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      this.bcbRef = bcbRef;
+      this.ref = ref;
+      try {
+        persistParts(new ByteArrayInputStream(blob), uriVersionedContent, bcbRef, topLevelKey);
+      } catch (IOException e) {
+        throw new IllegalStateException("unexpected failure reading an in-memory blob", e);
+      }
+    }
 
-      // loop to create the VBCRB and RB entries for each part of the
-      // larger blob
-      long blobLimit = ref.value.getMaxCharLen();
-      long part = 1L;
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
-      for (long index = 0; index < blob.length; index = index + blobLimit) {
-        long endCopy = index + blobLimit;
-        if (endCopy > blob.length)
-          endCopy = blob.length;
-        byte[] partialBlob = Arrays.copyOfRange(blob, (int) index, (int) endCopy);
-        RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
-        eBlob.setTopLevelAuri(topLevelKey);
-        eBlob.setValue(partialBlob);
-        dbRefBlobList.add(eBlob);
+    /**
+     * Construct an blob entity from the content of the stream and persist it
+     * into the data store. The stream is read one part at a time and the
+     * parts are persisted in batches, so the blob is never held in memory in
+     * full. The stream is not closed.
+     *
+     * @param blob
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param topLevelKey
+     * @param cc
+     *          - the CallingContext of this request
+     * @throws ODKDatastoreException
+     * @throws IOException
+     *           if the stream could not be read
+     */
+    public BlobManipulator(InputStream blob, String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, RefBlob ref, String topLevelKey, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      this.bcbRef = bcbRef;
+      this.ref = ref;
+      persistParts(blob, uriVersionedContent, bcbRef, topLevelKey);
+    }
+
+    /**
+     * Construct the part references of a blob whose content is identical to
+     * that of an existing blob and persist them into the data store. The
+     * parts themselves are not copied; they are shared by both blobs.
+     *
+     * @param content
+     *          the existing blob
+     * @param uriVersionedContent
+     * @param topLevelKey
+     * @param cc
+     *          - the CallingContext of this request
+     * @throws ODKDatastoreException
+     */
+    public BlobManipulator(BlobManipulator content, String uriVersionedContent,
+        String topLevelKey, CallingContext cc) throws ODKDatastoreException {
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      this.bcbRef = content.bcbRef;
+      this.ref = content.ref;
+
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      for (BinaryContentRefBlob part : content.dbBcbEntityList) {
         BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
         bcb.setTopLevelAuri(topLevelKey);
         bcb.setDomAuri(uriVersionedContent);
-        bcb.setSubAuri(eBlob.getUri());
-        bcb.setPart(part++);
+        bcb.setSubAuri(part.getSubAuri());
+        bcb.setPart(part.getPart());
         dbBcbEntityList.add(bcb);
-        ds.putEntity(eBlob, user);
-        ds.putEntity(bcb, user);
+        rows.add(bcb);
       }
+      ds.putEntities(rows, user);
     }
 
     public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
         CallingContext cc) throws ODKDatastoreException {
 
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      this.bcbRef = bcbRef;
+      this.ref = ref;
       // gather the ordered list of parts...
+      // the blob parts themselves are only fetched when the blob is read.
       Query q = ds.createQuery(bcbRef, "BinaryContentManipulator.BlobManipulator.constructor", user);
       q.addFilter(bcbRef.domAuri, FilterOperation.EQUAL, uriVersionedContent);
       q.addSort(bcbRef.domAuri, Direction.ASCENDING); // gae optimization
@@ -146,15 +417,98 @@ public class BinaryContentManipulator {
         ++expectedPart;
         dbBcbEntityList.add(bcref);
       }
+    }
+
+    private void persistParts(InputStream blob, String uriVersionedContent,
+        BinaryContentRefBlob bcbRef, String topLevelKey) throws ODKDatastoreException, IOException {
+
+      // loop to create the VBCRB and RB entries for each part of the
+      // larger blob
+      int partSize = (int) Math.min(ref.value.getMaxCharLen(), MAX_PART_SIZE);
+      long part = 1L;
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      for (;;) {
+        byte[] partialBlob = readPart(blob, partSize);
+        if (partialBlob == null) {
+          break;
+        }
+        RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
+        eBlob.setTopLevelAuri(topLevelKey);
+        eBlob.setValue(partialBlob);
+        BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
+        bcb.setTopLevelAuri(topLevelKey);
+        bcb.setDomAuri(uriVersionedContent);
+        bcb.setSubAuri(eBlob.getUri());
+        bcb.setPart(part++);
+        dbBcbEntityList.add(bcb);
+        // the blob part precedes its reference
+        rows.add(eBlob);
+        rows.add(bcb);
+        if (rows.size() >= 2 * PARTS_PER_BATCH) {
+          ds.putEntities(rows, user);
+          rows.clear();
+        }
+      }
+      if (!rows.isEmpty()) {
+        ds.putEntities(rows, user);
+      }
+    }
+
+    /**
+     * @param blob
+     * @param partSize
+     * @return the next partSize bytes of the stream (fewer at the end of the
+     *         stream), or null if the stream is exhausted.
+     * @throws IOException
+     */
+    private static byte[] readPart(InputStream blob, int partSize) throws IOException {
+      byte[] buffer = new byte[partSize];
+      int len = 0;
+      while (len < partSize) {
+        int count = blob.read(buffer, len, partSize - len);
+        if (count == -1) {
+          break;
+        }
+        len += count;
+      }
+      if (len == 0) {
+        return null;
+      }
+      return (len == partSize) ? buffer : Arrays.copyOf(buffer, len);
+    }
 
-      // and gather the blob parts themselves...
-      for (BinaryContentRefBlob b : dbBcbEntityList) {
-        RefBlob eBlob = ds.getEntity(ref, b.getSubAuri(), user);
+    /**
+     * Fetch the given parts of the blob with a single query.
+     *
+     * @param fromIdx
+     *          index of the first part in dbBcbEntityList
+     * @param toIdx
+     *          index after the last part in dbBcbEntityList
+     * @return the content of the parts, in part order
+     * @throws ODKDatastoreException
+     */
+    private List<byte[]> fetchParts(int fromIdx, int toIdx) throws ODKDatastoreException {
+      List<String> subAuris = new ArrayList<String>();
+      for (int i = fromIdx; i < toIdx; ++i) {
+        subAuris.add(dbBcbEntityList.get(i).getSubAuri());
+      }
+      Query q = ds.createQuery(ref, "BinaryContentManipulator.BlobManipulator.fetchParts", user);
+      q.addValueSetFilter(ref.primaryKey, subAuris);
+      List<? extends CommonFieldsBase> refBlobList = q.executeQuery();
+      Map<String, RefBlob> blobs = new HashMap<String, RefBlob>();
+      for (CommonFieldsBase cb : refBlobList) {
+        blobs.put(cb.getUri(), (RefBlob) cb);
+      }
+      List<byte[]> parts = new ArrayList<byte[]>();
+      for (String subAuri : subAuris) {
+        RefBlob eBlob = blobs.get(subAuri);
         if (eBlob == null) {
           throw new IllegalStateException("Missing blob part!");
         }
-        dbRefBlobList.add(eBlob);
+        byte[] value = eBlob.getValue();
+        parts.add((value == null) ? new byte[0] : value);
       }
+      return parts;
     }
 
     public String getTopLevelAuri() {
@@ -173,61 +527,234 @@ public class BinaryContentManipulator {
       return dbBcbEntityList.get(0).getDomAuri();
     }
 
-    public byte[] getBlob() {
+    public byte[] getBlob() throws ODKDatastoreException {
       ByteArrayOutputStream reconstructedBlob = new ByteArrayOutputStream();
-      for (RefBlob partialBlob : dbRefBlobList) {
-        byte[] part = partialBlob.getValue();
-        reconstructedBlob.write(part, 0, part.length);
+      for (int i = 0; i < dbBcbEntityList.size(); i += PARTS_PER_BATCH) {
+        int toIdx = Math.min(i + PARTS_PER_BATCH, dbBcbEntityList.size());
+        for (byte[] part : fetchParts(i, toIdx)) {
+          reconstructedBlob.write(part, 0, part.length);
+        }
       }
       return reconstructedBlob.toByteArray();
     }
 
+    /**
+     * @param content
+     * @return true if the blob holds exactly the given content.
+     * @throws ODKDatastoreException
+     */
+    /**
+     * @param other
+     * @return true if both blobs consist of the same parts, in the same order.
+     */
+    boolean hasSameParts(BlobManipulator other) {
+      if (dbBcbEntityList.size() != other.dbBcbEntityList.size()) {
+        return false;
+      }
+      for (int i = 0; i < dbBcbEntityList.size(); ++i) {
+        String sub = dbBcbEntityList.get(i).getSubAuri();
+        if (sub == null || !sub.equals(other.dbBcbEntityList.get(i).getSubAuri())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public boolean hasContent(byte[] content) throws ODKDatastoreException {
+      return hasContent(new ByteArrayInputStream(content));
+    }
+
+    /**
+     * @param content
+     *          read up to the first difference; it is not closed.
+     * @return true if the blob holds exactly the content of the stream.
+     * @throws ODKDatastoreException
+     */
+    public boolean hasContent(InputStream content) throws ODKDatastoreException {
+      InputStream in = getBlobInputStream();
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] expected = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+          int offset = 0;
+          while (offset < len) {
+            int count = content.read(expected, offset, len - offset);
+            if (count == -1) {
+              return false;
+            }
+            offset += count;
+          }
+          for (int i = 0; i < len; ++i) {
+            if (buffer[i] != expected[i]) {
+              return false;
+            }
+          }
+        }
+        return content.read() == -1;
+      } catch (IOException e) {
+        if (e.getCause() instanceof ODKDatastoreException) {
+          throw (ODKDatastoreException) e.getCause();
+        }
+        throw new ODKDatastoreException(e);
+      } catch (IllegalStateException e) {
+        // a part is missing -- this blob is damaged
+        return false;
+      } finally {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    /**
+     * @return a stream that fetches the parts of the blob from the datastore,
+     *         a batch at a time, as it is read.
+     */
+    public InputStream getBlobInputStream() {
+      return new BlobPartInputStream();
+    }
+
+    private class BlobPartInputStream extends InputStream {
+      private final ArrayDeque<byte[]> fetchedParts = new ArrayDeque<byte[]>();
+      private int nextPartIdx = 0;
+      private byte[] current = null;
+      private int pos = 0;
+
+      /**
+       * @return true if there is an unread byte in current.
+       * @throws IOException
+       */
+      private boolean advance() throws IOException {
+        while (current == null || pos == current.length) {
+          if (fetchedParts.isEmpty()) {
+            if (nextPartIdx == dbBcbEntityList.size()) {
+              return false;
+            }
+            int toIdx = Math.min(nextPartIdx + PARTS_PER_BATCH, dbBcbEntityList.size());
+            try {
+              fetchedParts.addAll(fetchParts(nextPartIdx, toIdx));
+            } catch (ODKDatastoreException e) {
+              throw new IOException("unable to fetch blob parts", e);
+            }
+            nextPartIdx = toIdx;
+          }
+          current = fetchedParts.removeFirst();
+          pos = 0;
+        }
+        return true;
+      }
+
+      @Override
+      public int read() throws IOException {
+        if (!advance()) {
+          return -1;
+        }
+        return current[pos++] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        if (!advance()) {
+          return -1;
+        }
+        int count = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, count);
+        pos += count;
+        return count;
+      }
+
+      @Override
+      public void close() {
+        fetchedParts.clear();
+        current = null;
+        nextPartIdx = dbBcbEntityList.size();
+      }
+    }
+
     /**
      * Recursively add the keys for this entry to keyList.
      * Pay attention to the order of insertion so that if
      * we reverse the resulting keyList, we can delete the
      * entities in order and not get into a bad database
-     * state. 
-     *  
+     * state.
+     *
+     * Parts may be shared with a blob of another top level
+     * entity (see {@link #BlobManipulator(BlobManipulator, String, String, CallingContext)});
+     * {@link DeleteHelper#deleteEntities(List, CallingContext)}
+     * leaves those in place, and removes them along with the
+     * last blob that refers to them.
+     *
      * @param keyList
+     * @throws ODKDatastoreException
      */
-    public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList) {
-      HashMap<String, RefBlob> blobs = new HashMap<String, RefBlob>();
-      for ( RefBlob r : dbRefBlobList ) {
-        blobs.put(r.getUri(), r);
-      }
-      
-      for ( int i = 0 ; i < dbBcbEntityList.size() ; ++i ) {
-        BinaryContentRefBlob e = dbBcbEntityList.get(i);
+    public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList)
+        throws ODKDatastoreException {
+      // the blob parts need not be fetched to delete them
+      Set<String> subAuris = new HashSet<String>();
+      for ( BinaryContentRefBlob e : dbBcbEntityList ) {
         String sub = e.getSubAuri();
-        RefBlob r = blobs.get(sub);
-        if ( r != null ) {
-          keyList.add(r.getEntityKey());
-          blobs.remove(sub);
+        if ( sub != null && subAuris.add(sub) ) {
+          keyList.add(new BlobPartKey(ref, sub, bcbRef));
         }
         keyList.add(e.getEntityKey());
       }
-      for (RefBlob r : blobs.values()) {
-        keyList.add(r.getEntityKey());
-      }
     }
 
-    public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
-      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
-      rows.addAll(dbRefBlobList);
-      rows.addAll(dbBcbEntityList);
-      cc.getDatastore().putEntities(rows, cc.getCurrentUser());
+    /**
+     * Determine which of the given blob parts are referenced by a part
+     * reference that is not being deleted.
+     *
+     * @param ds
+     * @param user
+     * @param bcbRef
+     * @param subAuris
+     *          the URIs of the RefBlob parts
+     * @param deletedRefs
+     *          the URIs of the part references that are being deleted
+     * @return the subset of subAuris that is referenced elsewhere
+     * @throws ODKDatastoreException
+     */
+    static Set<String> getSharedParts(Datastore ds, User user, BinaryContentRefBlob bcbRef,
+        Collection<String> subAuris, Set<String> deletedRefs) throws ODKDatastoreException {
+      Set<String> shared = new HashSet<String>();
+      List<String> remaining = new ArrayList<String>(subAuris);
+      for (int i = 0; i < remaining.size(); i += MAX_VALUE_SET_SIZE) {
+        List<String> batch = remaining.subList(i,
+            Math.min(i + MAX_VALUE_SET_SIZE, remaining.size()));
+        Query q = ds.createQuery(bcbRef, "BinaryContentManipulator.BlobManipulator.getSharedParts",
+            user);
+        q.addValueSetFilter(bcbRef.subAuri, batch);
+        for (CommonFieldsBase cb : q.executeQuery()) {
+          BinaryContentRefBlob bcb = (BinaryContentRefBlob) cb;
+          if (!deletedRefs.contains(bcb.getUri())) {
+            shared.add(bcb.getSubAuri());
+          }
+        }
+      }
+      return shared;
     }
 
   }
 
   public BinaryContentManipulator(String parentKey, String topLevelKey, BinaryContent ctntRelation,
       BinaryContentRefBlob vrefRelation, RefBlob blbRelation) {
+    this(parentKey, topLevelKey, ctntRelation, vrefRelation, blbRelation, null);
+  }
+
+  public BinaryContentManipulator(String parentKey, String topLevelKey, BinaryContent ctntRelation,
+      BinaryContentRefBlob vrefRelation, RefBlob blbRelation, ChildRowCache childRows) {
     this.parentKey = parentKey;
     this.topLevelKey = topLevelKey;
     this.ctntRelation = ctntRelation;
     this.vrefRelation = vrefRelation;
     this.blbRelation = blbRelation;
+    this.childRows = childRows;
   }
 
   private int internalGetAttachmentCount() {
@@ -358,6 +885,26 @@ public class BinaryContentManipulator {
     return blbManipulator.getBlob();
   }
 
+  /**
+   * The returned stream reads the parts of the attachment from the datastore
+   * as it is consumed, so the attachment is never held in memory in full.
+   *
+   * @param ordinal
+   * @param cc
+   * @return a stream over the content of the attachment.
+   * @throws ODKDatastoreException
+   */
+  public InputStream getBlobInputStream(int ordinal, CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    BlobManipulator blbManipulator = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, cc);
+    return blbManipulator.getBlobInputStream();
+  }
+
   /**
    * Atomically rename the given source file path to the destination path.
    * Will fail if the destination path already exists.
@@ -428,9 +975,29 @@ public class BinaryContentManipulator {
   public BinaryContentManipulator.BlobSubmissionOutcome setValueFromByteArray(byte[] byteArray,
       String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
       throws ODKDatastoreException {
+    ContentSource content = (byteArray == null) ? null : new ByteArrayContentSource(byteArray);
+    return setValueFromContentSource(content, contentType, unrootedFilePath, overwriteOK, cc);
+  }
+
+  /**
+   * Save the attachment to the database, reading its content from the given
+   * source rather than from memory. The content is stored a part at a time.
+   * Otherwise identical to
+   * {@link #setValueFromByteArray(byte[], String, String, boolean, CallingContext)}.
+   *
+   * @param content
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK -- if the file exists and is different, must be true to overwrite existing value.
+   * @param cc
+   * @return COMPLETELY_NEW_FILE on successful save; FILE_UNCHANGED on hash
+   *         equivalence; NEW_FILE_VERSION on updating existing file (save not allowed unless overwriteOK).
+   * @throws ODKDatastoreException
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromContentSource(
+      ContentSource content, String contentType, String unrootedFilePath, boolean overwriteOK,
+      CallingContext cc) throws ODKDatastoreException {
 
-    @SuppressWarnings("unused")
-  Long contentLength = (byteArray == null) ? null : Long.valueOf(byteArray.length);
     // search for a matching entry for unrootedFilePath
     BinaryContent matchedBc = null;
     String currentContentHash = null;
@@ -449,7 +1016,7 @@ public class BinaryContentManipulator {
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
 
-    if (byteArray == null && contentType == null) {
+    if (content == null && contentType == null) {
       // adding a file entry without any actual file...
 
       if (matchedBc == null) {
@@ -469,10 +1036,10 @@ public class BinaryContentManipulator {
         // record already exists (and it might have file data, too)...
         return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
       }
-    } else if (byteArray != null && contentType != null) {
+    } else if (content != null && contentType != null) {
       // adding a file entry with an actual file...
 
-      String md5Hash = CommonFieldsBase.newMD5HashUri(byteArray);
+      String md5Hash = content.getContentHash();
 
       if (matchedBc == null || currentContentHash == null) {
         // either
@@ -500,7 +1067,7 @@ public class BinaryContentManipulator {
 
         // Step (1)
         matchedBc.setContentType(contentType);
-        matchedBc.setContentLength(Long.valueOf(byteArray.length));
+        matchedBc.setContentLength(Long.valueOf(content.getContentLength()));
         ds.putEntity(matchedBc, user);
 
         if (newBc) {
@@ -517,9 +1084,7 @@ public class BinaryContentManipulator {
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistContent(content, md5Hash, matchedBc, cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -540,10 +1105,9 @@ public class BinaryContentManipulator {
         // (4) update contentHash to indicate that data is properly stored.
 
         // Step (1)
-        matchedBc.setContentHash(null);
         matchedBc.setContentType(contentType);
-        matchedBc.setContentLength(Long.valueOf(byteArray.length));
-        ds.putEntity(matchedBc, user);
+        matchedBc.setContentLength(Long.valueOf(content.getContentLength()));
+        retireContent(matchedBc, cc);
 
         // Step (2)
         BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
@@ -553,9 +1117,7 @@ public class BinaryContentManipulator {
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        persistContent(content, md5Hash, matchedBc, cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -568,6 +1130,343 @@ public class BinaryContentManipulator {
     }
   }
 
+  private BinaryContent findAttachment(String unrootedFilePath) {
+    for (BinaryContent bc : attachments.values()) {
+      String bcFilePath = bc.getUnrootedFilePath();
+      if ((bcFilePath == null) ? (unrootedFilePath == null)
+          : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
+        return bc;
+      }
+    }
+    return null;
+  }
+
+  private static MessageDigest newMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
+  /**
+   * Start an attachment whose content is written through the returned stream.
+   * An incomplete attachment with the same path is replaced.
+   *
+   * @param contentType
+   * @param unrootedFilePath
+   * @param cc
+   * @return the stream; the attachment is complete once it is closed.
+   * @throws ODKDatastoreException
+   */
+  public synchronized BlobOutputStream newBlobOutputStream(String contentType,
+      String unrootedFilePath, CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent matchedBc = findAttachment(unrootedFilePath);
+    if (matchedBc != null && matchedBc.getContentHash() != null) {
+      throw new IllegalStateException("Attachment already exists: " + unrootedFilePath);
+    }
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    boolean newBc = (matchedBc == null);
+    if (newBc) {
+      matchedBc = ds.createEntityUsingRelation(ctntRelation, user);
+      matchedBc.setTopLevelAuri(topLevelKey);
+      matchedBc.setParentAuri(parentKey);
+      matchedBc.setOrdinalNumber(internalGetAttachmentCount() + 1L);
+      matchedBc.setUnrootedFilePath(unrootedFilePath);
+    }
+    matchedBc.setContentType(contentType);
+    matchedBc.setContentLength(0L);
+    ds.putEntity(matchedBc, user);
+    if (newBc) {
+      attachments.put(matchedBc.getOrdinalNumber(), matchedBc);
+    } else {
+      // discard the parts of the earlier, incomplete content
+      BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
+      List<EntityKey> keyList = new ArrayList<EntityKey>();
+      b.recursivelyAddEntityKeysForDeletion(keyList);
+      DeleteHelper.deleteEntities(keyList, cc);
+    }
+    return new BlobOutputStream(matchedBc, 0L, 0L, newMD5Digest(), cc);
+  }
+
+  /**
+   * Continue writing an incomplete attachment that was started by
+   * {@link #newBlobOutputStream(String, String, CallingContext)}. Parts
+   * persisted after the given checkpoint are discarded; the content of the
+   * parts that are kept is read back to compute the content hash.
+   *
+   * @param unrootedFilePath
+   * @param partCount
+   *          the value returned by {@link BlobOutputStream#checkpoint()}.
+   * @param cc
+   * @return the stream, or null if there is no incomplete attachment with at
+   *         least that many parts.
+   * @throws ODKDatastoreException
+   */
+  public synchronized BlobOutputStream resumeBlobOutputStream(String unrootedFilePath,
+      long partCount, CallingContext cc) throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent matchedBc = findAttachment(unrootedFilePath);
+    if (matchedBc == null || matchedBc.getContentHash() != null) {
+      return null;
+    }
+    BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
+    List<BinaryContentRefBlob> parts = b.dbBcbEntityList;
+    if (parts.size() < partCount) {
+      return null;
+    }
+
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    for (BinaryContentRefBlob e : parts.subList((int) partCount, parts.size())) {
+      keyList.add(new EntityKey(blbRelation, e.getSubAuri()));
+      keyList.add(e.getEntityKey());
+    }
+    if (!keyList.isEmpty()) {
+      DeleteHelper.deleteEntities(keyList, cc);
+    }
+
+    MessageDigest md = newMD5Digest();
+    long contentLength = 0L;
+    for (int i = 0; i < partCount; i += BlobManipulator.PARTS_PER_BATCH) {
+      int toIdx = (int) Math.min(i + BlobManipulator.PARTS_PER_BATCH, partCount);
+      for (byte[] part : b.fetchParts(i, toIdx)) {
+        md.update(part);
+        contentLength += part.length;
+      }
+    }
+    return new BlobOutputStream(matchedBc, partCount, contentLength, md, cc);
+  }
+
+  /**
+   * Start an attachment whose content begins with the first parts of an
+   * attachment of another manipulator, e.g., to append to a copy of a file
+   * that was checkpointed with {@link BlobOutputStream#checkpoint()}. The new
+   * attachment has the path and content type of the source attachment.
+   *
+   * @param source
+   * @param ordinal
+   *          the ordinal of the attachment of the source.
+   * @param partCount
+   *          the number of parts to copy.
+   * @param cc
+   * @return the stream, positioned after the copied content, or null if the
+   *         source attachment has fewer parts.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public synchronized BlobOutputStream copyBlobOutputStream(BinaryContentManipulator source,
+      int ordinal, long partCount, CallingContext cc) throws ODKDatastoreException, IOException {
+    source.updateAttachments(cc);
+    BinaryContent sourceBc = source.attachments.get(Long.valueOf(ordinal));
+    if (sourceBc == null) {
+      return null;
+    }
+    BlobManipulator b = new BlobManipulator(sourceBc.getUri(), source.vrefRelation,
+        source.blbRelation, cc);
+    if (b.dbBcbEntityList.size() < partCount) {
+      return null;
+    }
+
+    BlobOutputStream stream = newBlobOutputStream(sourceBc.getContentType(),
+        sourceBc.getUnrootedFilePath(), cc);
+    for (int i = 0; i < partCount; i += BlobManipulator.PARTS_PER_BATCH) {
+      int toIdx = (int) Math.min(i + BlobManipulator.PARTS_PER_BATCH, partCount);
+      for (byte[] part : b.fetchParts(i, toIdx)) {
+        stream.write(part);
+      }
+    }
+    return stream;
+  }
+
+  /**
+   * Persist the content of an attachment. If attachment deduplication is
+   * enabled and an attachment of another top level entity in these relations
+   * has identical content, the parts of that attachment are shared rather
+   * than stored again.
+   *
+   * @param content
+   * @param md5Hash
+   * @param bc
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  private void persistContent(ContentSource content, String md5Hash, BinaryContent bc,
+      CallingContext cc) throws ODKDatastoreException {
+    try {
+      if (content.getContentLength() != 0
+          && ServerPreferencesProperties.getDeduplicateAttachmentsEnabled(cc)) {
+        BlobManipulator identical = findIdenticalContent(content, md5Hash, cc);
+        if (identical != null) {
+          // hold the lock while linking so that the parts cannot be deleted
+          // underneath us. If it is busy, just store our own copy.
+          ContentSharingLock lock = new ContentSharingLock(ctntRelation, cc);
+          if (lock.acquire()) {
+            try {
+              if (isStillShareable(identical, md5Hash, cc)) {
+                new BlobManipulator(identical, bc.getUri(), topLevelKey, cc);
+                return;
+              }
+            } finally {
+              lock.release();
+            }
+          }
+        }
+      }
+      InputStream in = content.openStream();
+      try {
+        new BlobManipulator(in, bc.getUri(), vrefRelation, blbRelation, topLevelKey, cc);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new ODKDatastoreException("unable to read attachment content", e);
+    } catch (ODKTaskLockException e) {
+      throw new ODKDatastoreException("unable to lock attachment content", e);
+    }
+  }
+
+  /**
+   * Whether the attachment found by
+   * {@link #findIdenticalContent(ContentSource, String, CallingContext)} can
+   * still be shared, i.e., it has not been retired (and perhaps rewritten)
+   * since. Called with the {@link ContentSharingLock} held.
+   *
+   * @param identical
+   * @param md5Hash
+   * @param cc
+   * @return true if the parts of identical can be linked to.
+   * @throws ODKDatastoreException
+   */
+  private boolean isStillShareable(BlobManipulator identical, String md5Hash, CallingContext cc)
+      throws ODKDatastoreException {
+    String uri = identical.dbBcbEntityList.get(0).getDomAuri();
+    try {
+      BinaryContent bc = cc.getDatastore().getEntity(ctntRelation, uri, cc.getCurrentUser());
+      if (!md5Hash.equals(bc.getContentHash())) {
+        return false;
+      }
+      return identical.hasSameParts(new BlobManipulator(uri, vrefRelation, blbRelation, cc));
+    } catch (ODKEntityNotFoundException e) {
+      return false;
+    } catch (ODKEnumeratedElementException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Clear the content hash of an attachment whose parts are about to be
+   * deleted, and persist it.
+   *
+   * @param bc
+   * @param cc
+   * @throws ODKDatastoreException
+   * @see #retireContents(BinaryContent, List, CallingContext)
+   */
+  static void retireContent(BinaryContent bc, CallingContext cc) throws ODKDatastoreException {
+    if (bc.getContentHash() == null
+        || !ServerPreferencesProperties.getDeduplicateAttachmentsEnabled(cc)) {
+      bc.setContentHash(null);
+      cc.getDatastore().putEntity(bc, cc.getCurrentUser());
+      return;
+    }
+    retireContents(bc, Collections.singletonList(bc), cc);
+  }
+
+  /**
+   * Clear the content hashes of attachments whose parts are about to be
+   * deleted, and persist them in one batch. Once this returns, no other
+   * attachment can start sharing those parts, and any that already did is
+   * visible to {@link BlobManipulator#getSharedParts}, so the parts still
+   * referenced are skipped by the delete.
+   *
+   * @param ctntRelation
+   *          the table holding all of the attachments
+   * @param contents
+   * @param cc
+   * @throws ODKDatastoreException
+   *           if the table could not be locked; nothing is deleted then.
+   */
+  static void retireContents(BinaryContent ctntRelation, List<BinaryContent> contents,
+      CallingContext cc) throws ODKDatastoreException {
+    if (contents.isEmpty()) {
+      return;
+    }
+    ContentSharingLock lock = new ContentSharingLock(ctntRelation, cc);
+    try {
+      if (!lock.acquire()) {
+        throw new ODKEntityPersistException("Timed out locking attachments of "
+            + ctntRelation.getSchemaName() + "." + ctntRelation.getTableName());
+      }
+      try {
+        for (BinaryContent bc : contents) {
+          bc.setContentHash(null);
+        }
+        cc.getDatastore().putEntities(contents, cc.getCurrentUser());
+      } finally {
+        lock.release();
+      }
+    } catch (ODKTaskLockException e) {
+      throw new ODKDatastoreException("unable to lock attachment content", e);
+    }
+  }
+
+  /**
+   * Find a complete attachment of another top level entity whose content is
+   * byte-for-byte identical to that of the source. The content is compared,
+   * not just the hash, since MD5 collisions can be constructed.
+   *
+   * @param content
+   * @param md5Hash
+   * @param cc
+   * @return the blob of the matching attachment, or null if there is none.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the source could not be read
+   */
+  private BlobManipulator findIdenticalContent(ContentSource content, String md5Hash,
+      CallingContext cc) throws ODKDatastoreException, IOException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    Query q = ds.createQuery(ctntRelation, "BinaryContentManipulator.findIdenticalContent", user);
+    q.addFilter(ctntRelation.contentHash, FilterOperation.EQUAL, md5Hash);
+    q.addSort(ctntRelation.contentHash, Direction.ASCENDING);
+
+    List<? extends CommonFieldsBase> candidates = q.executeQuery(null, MAX_DEDUPLICATION_CANDIDATES)
+        .getResultList();
+    for (CommonFieldsBase cb : candidates) {
+      BinaryContent bc = (BinaryContent) cb;
+      Long contentLength = bc.getContentLength();
+      // parts are never shared within a top level entity so that deleting
+      // that entity always removes them.
+      if (topLevelKey.equals(bc.getTopLevelAuri()) || contentLength == null
+          || contentLength.longValue() != content.getContentLength()) {
+        continue;
+      }
+      // the query may lag a retirement (GAE); the entity itself does not.
+      try {
+        bc = ds.getEntity(ctntRelation, bc.getUri(), user);
+      } catch (ODKEntityNotFoundException e) {
+        continue;
+      }
+      if (!md5Hash.equals(bc.getContentHash())) {
+        continue;
+      }
+      BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, cc);
+      InputStream in = content.openStream();
+      try {
+        if (b.hasContent(in)) {
+          return b;
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return null;
+  }
+
   public synchronized void updateAttachments(CallingContext cc) throws ODKDatastoreException {
     if ( refreshBeforeUse ) {
       // clear our mutable state.
@@ -575,13 +1474,19 @@ public class BinaryContentManipulator {
 
       Datastore ds = cc.getDatastore();
       User user = cc.getCurrentUser();
-      Query q = ds.createQuery(ctntRelation, "BinaryContentManipulator.refreshFromDatabase", user);
-      q.addFilter(ctntRelation.parentAuri, FilterOperation.EQUAL, parentKey);
-      q.addSort(ctntRelation.parentAuri, Direction.ASCENDING); // GAE work-around
-      q.addSort(ctntRelation.ordinalNumber, Direction.ASCENDING);
+      List<? extends CommonFieldsBase> contentHits;
+      if ( childRows != null ) {
+        contentHits = childRows.getRows(ctntRelation, parentKey, ds, user);
+        childRows = null;
+      } else {
+        Query q = ds.createQuery(ctntRelation, "BinaryContentManipulator.refreshFromDatabase", user);
+        q.addFilter(ctntRelation.parentAuri, FilterOperation.EQUAL, parentKey);
+        q.addSort(ctntRelation.parentAuri, Direction.ASCENDING); // GAE work-around
+        q.addSort(ctntRelation.ordinalNumber, Direction.ASCENDING);
+        contentHits = q.executeQuery();
+      }
 
       List<String> errors = new ArrayList<String>();
-      List<? extends CommonFieldsBase> contentHits = q.executeQuery();
       attachments.clear();
       long expectedOrdinal = 1L;
       for (CommonFieldsBase cb : contentHits) {
@@ -610,10 +1515,21 @@ public class BinaryContentManipulator {
   }
 
   public synchronized void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
+    List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+    addEntitiesToPersist(rows);
+    cc.getDatastore().putEntities(rows, cc.getCurrentUser());
+  }
+
+  /**
+   * Add the attachment records to the rows to be persisted.
+   *
+   * @param rows
+   */
+  public synchronized void addEntitiesToPersist(List<CommonFieldsBase> rows) {
     // if we need to refresh, then we don't have anything to persist...
     if ( !refreshBeforeUse ) {
       // the items to store are the attachments vector.
-      cc.getDatastore().putEntities(attachments.values(), cc.getCurrentUser());
+      rows.addAll(attachments.values());
     }
   }
 
@@ -684,6 +1600,14 @@ public class BinaryContentManipulator {
       if (bc.getContentHash() != null) {
         BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, cc);
         b.recursivelyAddEntityKeysForDeletion(keyList);
+      } else {
+        // incomplete, or retired by an earlier delete that failed part way.
+        try {
+          BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, cc);
+          b.recursivelyAddEntityKeysForDeletion(keyList);
+        } catch (ODKEnumeratedElementException e) {
+          // some parts are already gone; leave the rest, as before.
+        }
       }
       keyList.add(bc.getEntityKey());
     }
@@ -14,6 +14,7 @@
 package org.opendatakit.common.datamodel;
 
 import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.IndexType;
 import org.opendatakit.common.security.User;
 
 /**
@@ -47,6 +48,8 @@ public final class BinaryContentRefBlob extends DynamicAssociationBase {
      */
     public BinaryContentRefBlob(String databaseSchema, String tableName) {
         super(databaseSchema, tableName);
+        // looked up by part when checking whether a part is shared
+        subAuri.setIndexable(IndexType.HASH);
         fieldList.add(part = new DataField(PART));
     }
 
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.datamodel;
+
+import org.opendatakit.common.persistence.EntityKey;
+
+/**
+ * Key of a blob part. Attachments with identical content share their parts,
+ * so {@link DeleteHelper#deleteEntities} only deletes the part if none of the
+ * part references that are not deleted along with it refer to it.
+ */
+class BlobPartKey extends EntityKey {
+
+  /**
+   * The relation holding the references to the part.
+   */
+  private final BinaryContentRefBlob bcbRef;
+
+  BlobPartKey(RefBlob ref, String key, BinaryContentRefBlob bcbRef) {
+    super(ref, key);
+    this.bcbRef = bcbRef;
+  }
+
+  BinaryContentRefBlob getReferenceRelation() {
+    return bcbRef;
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+
+/**
+ * Holds the rows of the subordinate relations (phantom tables, repeat groups,
+ * choice lists and attachment declarations) of a set of top level entities,
+ * e.g., a page of submissions.
+ * <p>
+ * When the children of a row are first asked for, the children of that
+ * relation are fetched for every row of the same kind in the set (every top
+ * level entity, or every row of the relation holding the parent row), using
+ * the _PARENT_AURI index. Later requests for the children of any of those
+ * rows are answered from memory. Relations that are never asked for are
+ * never fetched.
+ * <p>
+ * The rows are returned grouped by their _PARENT_AURI, in the order of their
+ * ordinal numbers. This is not thread-safe and is meant to be used while
+ * reconstructing one set of entities.
+ */
+public final class ChildRowCache {
+
+  private static final Comparator<DynamicBase> ORDINAL_ORDER = new Comparator<DynamicBase>() {
+    @Override
+    public int compare(DynamicBase o1, DynamicBase o2) {
+      Long l1 = o1.getOrdinalNumber();
+      Long l2 = o2.getOrdinalNumber();
+      if (l1 == null) {
+        return (l2 == null) ? 0 : 1;
+      }
+      return (l2 == null) ? -1 : l1.compareTo(l2);
+    }
+  };
+
+  /**
+   * The fetched rows of one relation.
+   */
+  private static final class RelationRows {
+    // parent auri to rows in ordinal order
+    final Map<String, List<DynamicBase>> children = new HashMap<String, List<DynamicBase>>();
+    // parent auris whose children have been fetched
+    final Set<String> fetchedParents = new HashSet<String>();
+    // uris of all fetched rows, in fetch order
+    final List<String> uris = new ArrayList<String>();
+  }
+
+  private final List<String> topLevelAuris;
+
+  // fully qualified table name to its fetched rows
+  private final Map<String, RelationRows> rowsByRelation = new HashMap<String, RelationRows>();
+
+  // uri of a fetched row to the rows of its relation
+  private final Map<String, RelationRows> relationOfUri = new HashMap<String, RelationRows>();
+
+  /**
+   * @param topLevelAuris
+   *          the uris of the top level entities of the set.
+   */
+  public ChildRowCache(Collection<String> topLevelAuris) {
+    this.topLevelAuris = new ArrayList<String>(topLevelAuris);
+  }
+
+  /**
+   * @param entities
+   *          the top level entities of the set.
+   * @return an empty cache for the subordinate rows of the entities.
+   */
+  public static ChildRowCache forEntities(Collection<? extends CommonFieldsBase> entities) {
+    List<String> uris = new ArrayList<String>();
+    for (CommonFieldsBase entity : entities) {
+      uris.add(entity.getUri());
+    }
+    return new ChildRowCache(uris);
+  }
+
+  /**
+   * @param relation
+   * @param uriParent
+   * @param ds
+   * @param user
+   * @return the rows of the relation whose parent is uriParent, in ordinal
+   *         order.
+   * @throws ODKDatastoreException
+   */
+  public List<DynamicBase> getRows(DynamicBase relation, String uriParent, Datastore ds,
+      User user) throws ODKDatastoreException {
+    String name = relation.getSchemaName() + "." + relation.getTableName();
+    RelationRows rows = rowsByRelation.get(name);
+    if (rows == null) {
+      rows = new RelationRows();
+      rowsByRelation.put(name, rows);
+    }
+    if (!rows.fetchedParents.contains(uriParent)) {
+      fetchRows(relation, rows, siblingsOf(uriParent), ds, user);
+    }
+    List<DynamicBase> children = rows.children.get(uriParent);
+    if (children == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(children);
+  }
+
+  /**
+   * @param uriParent
+   * @return the uris of all the rows in the set of the same kind as
+   *         uriParent (including uriParent).
+   */
+  private List<String> siblingsOf(String uriParent) {
+    RelationRows parentRows = relationOfUri.get(uriParent);
+    if (parentRows != null) {
+      return parentRows.uris;
+    }
+    if (topLevelAuris.contains(uriParent)) {
+      return topLevelAuris;
+    }
+    // e.g., a row that was created in memory
+    return Collections.singletonList(uriParent);
+  }
+
+  private void fetchRows(DynamicBase relation, RelationRows rows, List<String> parents,
+      Datastore ds, User user) throws ODKDatastoreException {
+    List<String> remaining = new ArrayList<String>();
+    for (String uri : parents) {
+      if (rows.fetchedParents.add(uri)) {
+        remaining.add(uri);
+      }
+    }
+
+    Set<String> changed = new HashSet<String>();
+    int batchSize = ds.getMaxValueSetSize();
+    for (int i = 0; i < remaining.size(); i += batchSize) {
+      List<String> batch = remaining.subList(i, Math.min(i + batchSize, remaining.size()));
+      Query q = ds.createQuery(relation, "ChildRowCache.fetchRows", user);
+      q.addValueSetFilter(relation.parentAuri, batch);
+      for (CommonFieldsBase cb : q.executeQuery()) {
+        DynamicBase row = (DynamicBase) cb;
+        List<DynamicBase> children = rows.children.get(row.getParentAuri());
+        if (children == null) {
+          children = new ArrayList<DynamicBase>();
+          rows.children.put(row.getParentAuri(), children);
+        }
+        children.add(row);
+        changed.add(row.getParentAuri());
+        rows.uris.add(row.getUri());
+        relationOfUri.put(row.getUri(), rows);
+      }
+    }
+
+    for (String uriParent : changed) {
+      Collections.sort(rows.children.get(uriParent), ORDINAL_ORDER);
+    }
+  }
+}
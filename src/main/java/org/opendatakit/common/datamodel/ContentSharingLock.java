@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.datamodel;
+
+import java.util.Random;
+import java.util.UUID;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.ITaskLockType;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Datastore lock serializing the sharing of attachment parts with the
+ * retiring of the attachments of one content table. A single lock per table
+ * lets a batch delete retire all of its attachments at once. NOT threadsafe.
+ * Modelled on SubmissionLockTemplate.
+ */
+class ContentSharingLock {
+  // At 4 tries and 250 initial backoff, the maximum amount of time a single
+  // acquire or release can take is:
+  // 250 + 500 + 1000 + 2000 = 3750
+  private static final int TRIES = 4;
+  private static final int INITIAL_MAX_BACKOFF = 250;
+
+  private enum ContentSharingTaskLockType implements ITaskLockType {
+    SHARING(120000, PersistConsts.MIN_SETTLE_MILLISECONDS);
+
+    private long timeout;
+    private long minSettleTime;
+
+    private ContentSharingTaskLockType(long timeout, long minSettle) {
+      this.timeout = timeout;
+      this.minSettleTime = minSettle;
+    }
+
+    @Override
+    public long getLockExpirationTimeout() {
+      return timeout;
+    }
+
+    @Override
+    public String getName() {
+      return name();
+    }
+
+    @Override
+    public long getMinSettleTime() {
+      return minSettleTime;
+    }
+  }
+
+  private String lockName;
+  private Datastore ds;
+  private User user;
+  private String lockId;
+  private long maxBackoffMs;
+  private Random rand;
+
+  /**
+   * Lock for the attachments of one content table.
+   *
+   * @param ctntRelation table holding the attachment headers
+   * @param cc
+   */
+  ContentSharingLock(CommonFieldsBase ctntRelation, CallingContext cc) {
+    this.lockName = "attachment|" + ctntRelation.getSchemaName() + "."
+        + ctntRelation.getTableName();
+    this.ds = cc.getDatastore();
+    this.user = cc.getCurrentUser();
+    this.lockId = UUID.randomUUID().toString();
+    this.maxBackoffMs = INITIAL_MAX_BACKOFF;
+    this.rand = new Random();
+  }
+
+  /**
+   * Tries up to 4 times to acquire the lock.
+   *
+   * @return true if the lock is held and must be released.
+   * @throws ODKTaskLockException
+   */
+  boolean acquire() throws ODKTaskLockException {
+    TaskLock lock = ds.createTaskLock(user);
+    maxBackoffMs = INITIAL_MAX_BACKOFF;
+    for (int i = 0; i < TRIES; i++) {
+      if (lock.obtainLock(lockId, lockName, ContentSharingTaskLockType.SHARING)) {
+        return true;
+      }
+      try {
+        Thread.sleep(getNextBackoff());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ODKTaskLockException(e);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tries up to 4 times to release the lock, then gives up. In this case the
+   * lock will eventually timeout and be forced to release.
+   *
+   * @throws ODKTaskLockException
+   */
+  void release() throws ODKTaskLockException {
+    TaskLock lock = ds.createTaskLock(user);
+    maxBackoffMs = INITIAL_MAX_BACKOFF;
+    for (int i = 0; i < TRIES; i++) {
+      if (lock.releaseLock(lockId, lockName, ContentSharingTaskLockType.SHARING)) {
+        break;
+      }
+      try {
+        Thread.sleep(getNextBackoff());
+      } catch (InterruptedException e) {
+        // just move on, this retry mechanism
+        // is to make things nice
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+  }
+
+  private long getNextBackoff() {
+    long backoff = (long) (rand.nextDouble() * maxBackoffMs);
+    maxBackoffMs *= 2;
+    return backoff;
+  }
+}
@@ -15,15 +15,20 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.Query;
@@ -45,6 +50,11 @@ public class DeleteHelper {
    * of the keys in the supplied list (the supplied list is easier to construct
    * in retrieval order, and we generally want to delete using a
    * reverse-retrieval order).
+   * <p>
+   * Attachments among the keys are retired first, in one batch per
+   * attachment table, so that no other attachment starts sharing their blob
+   * parts. Blob parts that are still shared with attachments that are not
+   * being deleted are then left in place.
    * 
    * @param keys
    * @param cc
@@ -52,6 +62,9 @@ public class DeleteHelper {
    */
   public static void deleteEntities(List<EntityKey> keys, CallingContext cc)
       throws ODKDatastoreException {
+    retireAttachments(keys, cc);
+    removeSharedBlobParts(keys, cc);
+
     // reverse the list of entities so that we delete them
     // in the reverse order...
     Collections.reverse(keys);
@@ -140,13 +153,41 @@ public class DeleteHelper {
     logger.info("deleteDamagedSubmissions begin purging records for badTopLevelEntity: "
         + tle.getUri());
 
+    // stop other submissions from sharing the attachment parts being deleted
+    if (ServerPreferencesProperties.getDeduplicateAttachmentsEnabled(cc)) {
+      for (DynamicBase dd : groups) {
+        if (!(dd instanceof BinaryContent)) {
+          continue;
+        }
+        BinaryContent bc = (BinaryContent) dd;
+        Query q = cc.getDatastore().createQuery(bc, "purge(damaged) - attachments",
+            cc.getCurrentUser());
+        q.addFilter(bc.topLevelAuri, FilterOperation.EQUAL, tle.getUri());
+        List<BinaryContent> retiring = new ArrayList<BinaryContent>();
+        for (CommonFieldsBase c : q.executeQuery()) {
+          if (((BinaryContent) c).getContentHash() != null) {
+            retiring.add((BinaryContent) c);
+          }
+        }
+        BinaryContentManipulator.retireContents(bc, retiring, cc);
+      }
+    }
+
     // delete documents
     for (DynamicDocumentBase dd : documents) {
       Query q = cc.getDatastore().createQuery(dd, "purge(damaged) - documents",
           cc.getCurrentUser());
       q.addFilter(dd.topLevelAuri, FilterOperation.EQUAL, tle.getUri());
       List<? extends CommonFieldsBase> results = q.executeQuery();
+      Set<String> shared = Collections.emptySet();
+      if (dd instanceof RefBlob && !results.isEmpty()) {
+        // blob parts may also be referenced by attachments of other submissions
+        shared = getSharedBlobParts(results, associations, tle, cc);
+      }
       for (CommonFieldsBase c : results) {
+        if (shared.contains(c.getUri())) {
+          continue;
+        }
         cc.getDatastore().deleteEntity(c.getEntityKey(), cc.getCurrentUser());
       }
     }
@@ -177,4 +218,134 @@ public class DeleteHelper {
     logger.info("deleteDamagedSubmissions end purging records for badTopLevelEntity: "
         + tle.getUri());
   }
+
+  /**
+   * @param parts
+   *          RefBlob rows of the damaged submission
+   * @param associations
+   *          the association relations of the submission's form
+   * @param tle
+   *          the damaged submission
+   * @param cc
+   * @return the URIs of the parts that are shared with attachments of other
+   *         submissions and must not be deleted.
+   * @throws ODKDatastoreException
+   */
+  private static Set<String> getSharedBlobParts(List<? extends CommonFieldsBase> parts,
+      Set<DynamicAssociationBase> associations, TopLevelDynamicBase tle, CallingContext cc)
+      throws ODKDatastoreException {
+    List<String> subAuris = new ArrayList<String>();
+    for (CommonFieldsBase c : parts) {
+      subAuris.add(c.getUri());
+    }
+    Set<String> shared = new HashSet<String>();
+    for (DynamicAssociationBase da : associations) {
+      if (da instanceof BinaryContentRefBlob) {
+        // all of the part references of the damaged submission are deleted
+        Query q = cc.getDatastore().createQuery(da, "purge(damaged) - part references",
+            cc.getCurrentUser());
+        q.addFilter(da.topLevelAuri, FilterOperation.EQUAL, tle.getUri());
+        Set<String> deletedRefs = new HashSet<String>();
+        for (CommonFieldsBase c : q.executeQuery()) {
+          deletedRefs.add(c.getUri());
+        }
+        shared.addAll(BinaryContentManipulator.BlobManipulator.getSharedParts(cc.getDatastore(),
+            cc.getCurrentUser(), (BinaryContentRefBlob) da, subAuris, deletedRefs));
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Retire the attachments among the keys (see
+   * {@link BinaryContentManipulator#retireContents(BinaryContent, List, CallingContext)}).
+   * This takes one lock round trip and one write per attachment table,
+   * however many attachments are deleted.
+   *
+   * @param keys
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  private static void retireAttachments(List<EntityKey> keys, CallingContext cc)
+      throws ODKDatastoreException {
+    Map<BinaryContent, List<String>> attachments = new TreeMap<BinaryContent, List<String>>(
+        DynamicCommonFieldsBase.sameTableName);
+    for (EntityKey key : keys) {
+      if (key.getRelation() instanceof BinaryContent) {
+        BinaryContent ctnt = (BinaryContent) key.getRelation();
+        List<String> uris = attachments.get(ctnt);
+        if (uris == null) {
+          uris = new ArrayList<String>();
+          attachments.put(ctnt, uris);
+        }
+        uris.add(key.getKey());
+      }
+    }
+    // without deduplication, no other attachment can start sharing the parts
+    if (attachments.isEmpty()
+        || !ServerPreferencesProperties.getDeduplicateAttachmentsEnabled(cc)) {
+      return;
+    }
+    int batchSize = BinaryContentManipulator.BlobManipulator.MAX_VALUE_SET_SIZE;
+    for (Map.Entry<BinaryContent, List<String>> e : attachments.entrySet()) {
+      BinaryContent ctnt = e.getKey();
+      List<String> uris = e.getValue();
+      List<BinaryContent> retiring = new ArrayList<BinaryContent>();
+      for (int i = 0; i < uris.size(); i += batchSize) {
+        Query q = cc.getDatastore().createQuery(ctnt, "DeleteHelper.retireAttachments",
+            cc.getCurrentUser());
+        q.addValueSetFilter(ctnt.primaryKey, uris.subList(i, Math.min(i + batchSize, uris.size())));
+        for (CommonFieldsBase c : q.executeQuery()) {
+          if (((BinaryContent) c).getContentHash() != null) {
+            retiring.add((BinaryContent) c);
+          }
+        }
+      }
+      BinaryContentManipulator.retireContents(ctnt, retiring, cc);
+    }
+  }
+
+  /**
+   * Remove the keys of the blob parts that are referenced by a part reference
+   * that is not among the keys, i.e., parts shared with an attachment that is
+   * not being deleted. Parts shared only among the attachments being deleted
+   * are deleted with them.
+   *
+   * @param keys
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  private static void removeSharedBlobParts(List<EntityKey> keys, CallingContext cc)
+      throws ODKDatastoreException {
+    Map<BinaryContentRefBlob, List<String>> parts = new TreeMap<BinaryContentRefBlob, List<String>>(
+        DynamicCommonFieldsBase.sameTableName);
+    Set<String> deletedRefs = new HashSet<String>();
+    for (EntityKey key : keys) {
+      if (key instanceof BlobPartKey) {
+        BinaryContentRefBlob bcbRef = ((BlobPartKey) key).getReferenceRelation();
+        List<String> subAuris = parts.get(bcbRef);
+        if (subAuris == null) {
+          subAuris = new ArrayList<String>();
+          parts.put(bcbRef, subAuris);
+        }
+        subAuris.add(key.getKey());
+      } else if (key.getRelation() instanceof BinaryContentRefBlob) {
+        deletedRefs.add(key.getKey());
+      }
+    }
+    if (parts.isEmpty()) {
+      return;
+    }
+    Set<String> shared = new HashSet<String>();
+    for (Map.Entry<BinaryContentRefBlob, List<String>> e : parts.entrySet()) {
+      shared.addAll(BinaryContentManipulator.BlobManipulator.getSharedParts(cc.getDatastore(),
+          cc.getCurrentUser(), e.getKey(), e.getValue(), deletedRefs));
+    }
+    for (Iterator<EntityKey> it = keys.iterator(); it.hasNext();) {
+      EntityKey key = it.next();
+      if (key instanceof BlobPartKey && shared.contains(key.getKey())) {
+        it.remove();
+      }
+    }
+  }
 }
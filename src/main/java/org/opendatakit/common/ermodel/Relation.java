@@ -126,7 +126,7 @@ public class Relation {
       throw new IllegalArgumentException(
           "Expected an UPPER_CASE table name beginning with an upper case letter.");
     }
-    this.backingTableName = "__" + namespace + "__" + tableName;
+    this.backingTableName = getBackingTableName(namespace, tableName);
     if (backingTableName.length() > MAX_PERSISTENCE_NAME_LENGTH) {
       throw new IllegalArgumentException("Backing table name is too long: " + backingTableName);
     }
@@ -198,6 +198,26 @@ public class Relation {
     initialize(fields, cc);
   }
 
+  private static String getBackingTableName(String namespace, String tableName) {
+    return "__" + namespace + "__" + tableName;
+  }
+
+  /**
+   * Discard the datastore's cached definition of the table backing the
+   * (namespace, tableName) relation. Call this when the structure of that
+   * table is changed or removed by something other than this Relation, so
+   * that the next Relation constructed for it is verified against the
+   * database.
+   *
+   * @param namespace
+   * @param tableName
+   * @param cc
+   */
+  public static void invalidateRelation(String namespace, String tableName, CallingContext cc) {
+    Datastore ds = cc.getDatastore();
+    ds.invalidateRelation(ds.getDefaultSchemaName(), getBackingTableName(namespace, tableName));
+  }
+
   /**
    * Create a new entity. This entity does not exist in the database until you
    * put() it there.
@@ -774,11 +794,10 @@ public class Relation {
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
     String schema = ds.getDefaultSchemaName();
-    synchronized (Relation.class) {
-      RelationImpl candidate = new RelationImpl(schema, backingTableName, definedFields);
-      ds.assertRelation(candidate, user);
-      prototype = candidate;
-    }
+    // the datastore serializes assertions of the same table
+    RelationImpl candidate = new RelationImpl(schema, backingTableName, definedFields);
+    ds.assertRelation(candidate, user);
+    prototype = candidate;
   }
 
   /**
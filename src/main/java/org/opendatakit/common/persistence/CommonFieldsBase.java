@@ -16,14 +16,13 @@ package org.opendatakit.common.persistence;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 
 import org.opendatakit.common.persistence.DataField.DataType;
@@ -70,9 +69,21 @@ public abstract class CommonFieldsBase {
   protected final String schemaName;
   protected final String tableName;
   private boolean fromDatabase = false;
+  private boolean partial = false;
   private Object opaquePersistenceData = null;
   protected final List<DataField> fieldList = new ArrayList<DataField>();
-  protected final Map<DataField, Object> fieldValueMap = new HashMap<DataField, Object>();
+
+  /**
+   * Field values, indexed by the position of the field within fieldList.
+   * INTEGER, DATETIME and BOOLEAN values are held unboxed in primitiveValues;
+   * their slot in fieldValues holds PRIMITIVE_VALUE when the value is
+   * non-null. Both arrays are grown on demand since subclasses append to
+   * fieldList after this class is constructed.
+   */
+  private static final Object PRIMITIVE_VALUE = new Object();
+  private static final Object[] NO_VALUES = new Object[0];
+  private Object[] fieldValues = NO_VALUES;
+  private long[] primitiveValues = null;
 
   public final DataField primaryKey;
   public final DataField creatorUriUser;
@@ -119,11 +130,68 @@ public abstract class CommonFieldsBase {
     fieldList.addAll(ref.fieldList);
 
     // populate the audit fields...
-    Date now = new Date();
-    fieldValueMap.put(creationDate, now);
-    fieldValueMap.put(lastUpdateDate, now);
-    fieldValueMap.put(creatorUriUser, user.getUriUser());
-    fieldValueMap.put(primaryKey, CommonFieldsBase.newUri());
+    long now = System.currentTimeMillis();
+    putPrimitiveValue(fieldList.indexOf(creationDate), now);
+    putPrimitiveValue(fieldList.indexOf(lastUpdateDate), now);
+    putValue(fieldList.indexOf(creatorUriUser), user.getUriUser());
+    putValue(fieldList.indexOf(primaryKey), CommonFieldsBase.newUri());
+  }
+
+  private int getFieldIndex(DataField f, String action) {
+    if (f == null) {
+      throw new IllegalArgumentException("Field value is null!");
+    }
+    int idx = fieldList.indexOf(f);
+    if (idx == -1) {
+      throw new IllegalArgumentException("Attempting to " + action + " a field " + f.getName()
+          + " not belonging to " + schemaName + "." + tableName);
+    }
+    return idx;
+  }
+
+  private Object getValue(int idx) {
+    return (idx < fieldValues.length) ? fieldValues[idx] : null;
+  }
+
+  private long getPrimitiveValue(int idx, DataField f, DataType expected) {
+    // the setters ensure that only fields of this type hold primitive values
+    if (f.getDataType() != expected) {
+      throw new ClassCastException("Attempting to get " + f.getDataType() + " field "
+          + f.getName() + " as " + expected + " in " + schemaName + "." + tableName);
+    }
+    return primitiveValues[idx];
+  }
+
+  private void ensureCapacity(int idx) {
+    if (idx >= fieldValues.length) {
+      Object[] values = new Object[Math.max(idx + 1, fieldList.size())];
+      System.arraycopy(fieldValues, 0, values, 0, fieldValues.length);
+      fieldValues = values;
+    }
+  }
+
+  private void putValue(int idx, Object value) {
+    ensureCapacity(idx);
+    fieldValues[idx] = value;
+  }
+
+  private void putPrimitiveValue(int idx, long value) {
+    ensureCapacity(idx);
+    if (primitiveValues == null || idx >= primitiveValues.length) {
+      long[] values = new long[fieldValues.length];
+      if (primitiveValues != null) {
+        System.arraycopy(primitiveValues, 0, values, 0, primitiveValues.length);
+      }
+      primitiveValues = values;
+    }
+    primitiveValues[idx] = value;
+    fieldValues[idx] = PRIMITIVE_VALUE;
+  }
+
+  private void removeValue(int idx) {
+    if (idx < fieldValues.length) {
+      fieldValues[idx] = null;
+    }
   }
 
   public final EntityKey getEntityKey() {
@@ -166,28 +234,13 @@ public abstract class CommonFieldsBase {
   }
 
   public final boolean hasField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    return fieldValueMap.containsKey(f);
+    int idx = getFieldIndex(f, "get");
+    return getValue(idx) != null;
   }
 
   public final String getStringField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
-    if (o == null)
-      return null;
-    return (String) o;
+    int idx = getFieldIndex(f, "get");
+    return (String) getValue(idx);
   }
 
   /**
@@ -201,13 +254,7 @@ public abstract class CommonFieldsBase {
    * @return false if the value had to be truncated.
    */
   public final boolean setStringField(DataField f, String value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int idx = getFieldIndex(f, "set");
     if (!((f.getDataType() == DataType.STRING) || (f.getDataType() == DataType.LONG_STRING) || (f
         .getDataType() == DataType.URI))) {
       throw new IllegalArgumentException("Attempting to set non-string field " + f.getName()
@@ -219,7 +266,7 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      removeValue(idx);
       return true;
     } else if (f.getMaxCharLen().compareTo(Long.valueOf(value.length())) < 0) {
       if (f.getDataType() == DataType.LONG_STRING) {
@@ -232,32 +279,19 @@ public abstract class CommonFieldsBase {
       noOverflow = false;
       value = value.substring(0, f.getMaxCharLen().intValue());
     }
-    fieldValueMap.put(f, value);
+    putValue(idx, value);
     return noOverflow;
   }
 
   public final Long getLongField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
-    if (o == null)
+    int idx = getFieldIndex(f, "get");
+    if (getValue(idx) == null)
       return null;
-    return (Long) o;
+    return Long.valueOf(getPrimitiveValue(idx, f, DataType.INTEGER));
   }
 
   public final void setLongField(DataField f, Long value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int idx = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.INTEGER) {
       throw new IllegalArgumentException("Attempting to set non-integer field " + f.getName()
           + " with a Long in " + schemaName + "." + tableName);
@@ -267,34 +301,19 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      removeValue(idx);
       return;
     }
-    fieldValueMap.put(f, value);
+    putPrimitiveValue(idx, value.longValue());
   }
 
   public final WrappedBigDecimal getNumericField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
-    if (o == null)
-      return null;
-    return (WrappedBigDecimal) o;
+    int idx = getFieldIndex(f, "get");
+    return (WrappedBigDecimal) getValue(idx);
   }
 
   public final void setNumericField(DataField f, WrappedBigDecimal value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int idx = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.DECIMAL) {
       throw new IllegalArgumentException("Attempting to set non-decimal field " + f.getName()
           + " with a BigDecimal in " + schemaName + "." + tableName);
@@ -304,39 +323,26 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      removeValue(idx);
       return;
     }
     if ( !f.isDoublePrecision()  && !value.isSpecialValue() ) {
       // enforce scaling here...
-      fieldValueMap.put(f, value.setScale(f.getNumericScale(), BigDecimal.ROUND_HALF_UP));
+      putValue(idx, value.setScale(f.getNumericScale(), RoundingMode.HALF_UP));
     } else {
-      fieldValueMap.put(f, value);
+      putValue(idx, value);
     }
   }
 
   public final Date getDateField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
-    if (o == null)
+    int idx = getFieldIndex(f, "get");
+    if (getValue(idx) == null)
       return null;
-    return (Date) o;
+    return new Date(getPrimitiveValue(idx, f, DataType.DATETIME));
   }
 
   public final void setDateField(DataField f, Date value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int idx = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.DATETIME) {
       throw new IllegalArgumentException("Attempting to set non-datetime field " + f.getName()
           + " with a Date in " + schemaName + "." + tableName);
@@ -346,34 +352,21 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      removeValue(idx);
       return;
     }
-    fieldValueMap.put(f, value);
+    putPrimitiveValue(idx, value.getTime());
   }
 
   public final Boolean getBooleanField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
-    if (o == null)
+    int idx = getFieldIndex(f, "get");
+    if (getValue(idx) == null)
       return null;
-    return (Boolean) o;
+    return Boolean.valueOf(getPrimitiveValue(idx, f, DataType.BOOLEAN) != 0L);
   }
 
   public final void setBooleanField(DataField f, Boolean value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int idx = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.BOOLEAN) {
       throw new IllegalArgumentException("Attempting to set non-boolean field " + f.getName()
           + " with a Boolean in " + schemaName + "." + tableName);
@@ -383,34 +376,19 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      removeValue(idx);
       return;
     }
-    fieldValueMap.put(f, value);
+    putPrimitiveValue(idx, value ? 1L : 0L);
   }
 
   public final byte[] getBlobField(DataField f) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to get a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
-    Object o = fieldValueMap.get(f);
-    if (o == null)
-      return null;
-    return (byte[]) o;
+    int idx = getFieldIndex(f, "get");
+    return (byte[]) getValue(idx);
   }
 
   public final void setBlobField(DataField f, byte[] value) {
-    if (f == null) {
-      throw new IllegalArgumentException("Field value is null!");
-    }
-    if (!fieldList.contains(f)) {
-      throw new IllegalArgumentException("Attempting to set a field " + f.getName()
-          + " not belonging to " + schemaName + "." + tableName);
-    }
+    int idx = getFieldIndex(f, "set");
     if (f.getDataType() != DataType.BINARY) {
       throw new IllegalArgumentException("Attempting to set non-blob field " + f.getName()
           + " with byte-array in " + schemaName + "." + tableName);
@@ -420,10 +398,10 @@ public abstract class CommonFieldsBase {
         throw new IllegalStateException("Attempting to set null value in non-null field "
             + f.getName() + " in " + schemaName + "." + tableName);
       }
-      fieldValueMap.remove(f);
+      removeValue(idx);
       return;
     }
-    fieldValueMap.put(f, value);
+    putValue(idx, value);
   }
 
   public final static String newUri() {
@@ -459,19 +437,29 @@ public abstract class CommonFieldsBase {
     try {
       MessageDigest md = MessageDigest.getInstance("MD5");
       md.update(asBytes);
-
-      byte[] messageDigest = md.digest();
-
-      BigInteger number = new BigInteger(1, messageDigest);
-      String md5 = number.toString(16);
-      while (md5.length() < 32)
-        md5 = "0" + md5;
-      return "md5:" + md5;
+      return newMD5HashUri(md);
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalStateException("Unexpected problem computing md5 hash", e);
     }
   }
 
+  /**
+   * For content that is hashed as it is received rather than held in memory.
+   *
+   * @param md
+   *          an MD5 digest that has been updated with the content
+   * @return the same value as newMD5HashUri(content)
+   */
+  public final static String newMD5HashUri(MessageDigest md) {
+    byte[] messageDigest = md.digest();
+
+    BigInteger number = new BigInteger(1, messageDigest);
+    String md5 = number.toString(16);
+    while (md5.length() < 32)
+      md5 = "0" + md5;
+    return "md5:" + md5;
+  }
+
   /**********************************************************************************
    **********************************************************************************
    **********************************************************************************
@@ -510,6 +498,26 @@ public abstract class CommonFieldsBase {
     this.fromDatabase = fromDatabase;
   }
 
+  /**
+   * @return true if the row was read through a projection (see
+   *         {@link Query#selectOnly(DataField...)}) and holds only some of its
+   *         field values. Such rows are read-only: the datastore refuses to
+   *         persist them.
+   */
+  public final boolean isPartial() {
+    return partial;
+  }
+
+  /**
+   * Set whether or not the row holds only some of its field values. This
+   * should only be called from within the persistence layer implementation.
+   *
+   * @param partial
+   */
+  public final void setPartial(boolean partial) {
+    this.partial = partial;
+  }
+
   /**
    * @return the opaque object linked to this row by the persistence layer.
    */
@@ -530,7 +538,8 @@ public abstract class CommonFieldsBase {
   }
 
   public final boolean isNull(DataField f) {
-    return (fieldValueMap.get(f) == null);
+    int idx = fieldList.indexOf(f);
+    return (idx == -1) || (getValue(idx) == null);
   }
 
   public boolean sameTable(CommonFieldsBase ref) {
@@ -47,6 +47,13 @@ public interface Datastore {
      * @return the maximum length of a column name in this persistence layer implementation
      */
     public int getMaxLenColumnName();
+
+    /**
+     * @return the maximum number of values to pass to a single
+     *         {@link Query#addValueSetFilter(DataField, java.util.Collection)}
+     *         in this persistence layer implementation
+     */
+    public int getMaxValueSetSize();
     
     /**
      * Asserts that the relation exists in the datastore.  The details of the 
@@ -85,6 +92,17 @@ public interface Datastore {
      */
     public void dropRelation(CommonFieldsBase relation, User user ) throws ODKDatastoreException;
 
+    /**
+     * Discards any cached definition of the given table so that the next 
+     * assertRelation() of it is verified against the datastore.  Callers 
+     * that change the structure of a table through some other channel 
+     * (e.g., ODK Tables schema changes) should invoke this.
+     * 
+     * @param schema
+     * @param tableName
+     */
+    public void invalidateRelation(String schema, String tableName);
+
     /**
      * Quick API to test whether a relation with the given schema and tableName 
      * already exists in the datastore.  This is used when determining the 
@@ -177,6 +195,24 @@ public interface Datastore {
     public void putEntities(Collection<? extends CommonFieldsBase> entities, User user)
             throws ODKEntityPersistException, ODKOverQuotaException;
 
+    /**
+     * Puts multiple entities into the Datastore as a single unit of work.
+     * The inserts and updates to each relation are sent as batches and,
+     * where the datastore supports it, all of them are written within one
+     * transaction; if any of them fails, none of them are written and the
+     * entities that were to be inserted remain marked as new.
+     *
+     * @param entities
+     *            the entities to put into the Datastore
+     * @param user non-null user responsible for this request.
+     * @throws ODKEntityPersistException
+     *             if there was an error persisting the Entities
+     * @throws ODKOverQuotaException
+     *             if there was a quota limit violation
+     */
+    public void putEntitiesInTransaction(Collection<? extends CommonFieldsBase> entities, User user)
+            throws ODKEntityPersistException, ODKOverQuotaException;
+
     /**
      * Deletes the entity corresponding to the given EntityKey.
      * 
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * One group of the result of
+ * {@link Query#executeGroupedAggregate(DataField, DataField)}: the value
+ * grouped on, the number of entities with that value and, if a field was
+ * aggregated, the count and sum of its non-null values.
+ */
+public final class GroupedAggregate {
+
+  private final String groupValue;
+  private final long count;
+  private final long valueCount;
+  private final BigDecimal sum;
+
+  public GroupedAggregate(String groupValue, long count, long valueCount, BigDecimal sum) {
+    this.groupValue = groupValue;
+    this.count = count;
+    this.valueCount = valueCount;
+    this.sum = sum;
+  }
+
+  /**
+   * @return the value grouped on, or null for the entities without one.
+   */
+  public String getGroupValue() {
+    return groupValue;
+  }
+
+  /**
+   * @return the number of entities in the group.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the number of entities in the group with a value in the
+   *         aggregated field.
+   */
+  public long getValueCount() {
+    return valueCount;
+  }
+
+  /**
+   * @return the sum of the aggregated field, or null if no field was
+   *         aggregated or none of its values were non-null.
+   */
+  public BigDecimal getSum() {
+    return sum;
+  }
+
+  /**
+   * The average is derived from the sum and count rather than computed by the
+   * database, which would truncate it to an integer for integer fields on some
+   * databases.
+   *
+   * @return the average of the non-null values of the aggregated field, or
+   *         null if there are none.
+   */
+  public BigDecimal getAverage() {
+    if (sum == null || valueCount == 0L) {
+      return null;
+    }
+    return sum.divide(BigDecimal.valueOf(valueCount), MathContext.DECIMAL64);
+  }
+}
@@ -16,6 +16,7 @@ package org.opendatakit.common.persistence;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
@@ -76,6 +77,38 @@ public interface Query {
    * @param valueSet
    */
   public void addValueSetFilter(DataField attributeName, Collection<?> valueSet );
+
+  /**
+   * Adds a filter to the query using the given attribute name, filtered by the values
+   * IN the subqueryField of the entities matching the subquery, e.g., to restrict the
+   * rows of a child table to those of the top level records selected by a filter.
+   * The filters of the subquery must all have been added before this call; its sorts
+   * are ignored. Datastores that cannot nest queries execute the subquery right away.
+   *
+   * @param attributeName
+   * @param subquery a query created by the same datastore
+   * @param subqueryField a field of the relation of the subquery
+   * @throws ODKDatastoreException if the subquery was executed and failed
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public void addSubqueryFilter(DataField attributeName, Query subquery, DataField subqueryField)
+      throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Restricts the columns fetched by executeQuery() to the given fields, the
+   * primary key, and any sort attributes. Use this to avoid reading large
+   * LONG_STRING or BINARY columns when only keys or dates are needed.
+   * 
+   * The returned entities are partial: fields that were not fetched hold
+   * unspecified values, and the entities must not be written back. They are
+   * marked {@link CommonFieldsBase#isPartial()}, and putting one fails with
+   * an ODKEntityPersistException rather than overwriting the columns that
+   * were not fetched. Datastores that always fetch whole entities may ignore
+   * this and return whole, writable entities.
+   * 
+   * @param fields the fields to fetch
+   */
+  public void selectOnly(DataField... fields);
   
   /**
    * Returns a list of all the entities which are the results of executing the query.
@@ -96,6 +129,20 @@ public interface Query {
    * @throws ODKOverQuotaException if the usage quota was exceeded
    */
   public QueryResult executeQuery(QueryResumePoint startCursor, int fetchLimit) throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Passes each entity that matches the query to the rowHandler as it is read,
+   * rather than accumulating the full result set in memory. The JDBC
+   * datastores read the rows within a read-only transaction, fetchSize rows
+   * at a time; the rowHandler must therefore not modify the datastore.
+   * 
+   * @param fetchSize -- number of rows to read from the database at a time
+   * @param rowHandler -- called once for each entity, in query order
+   * @throws ODKDatastoreException if there was a problem executing the Query
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public void stream(int fetchSize, Consumer<? super CommonFieldsBase> rowHandler)
+      throws ODKDatastoreException, ODKOverQuotaException;
   
   /**
    * Returns a list of distinct EntityKeys of the topLevelAuri for the set of records
@@ -121,4 +168,19 @@ public interface Query {
    * @throws ODKOverQuotaException if the usage quota was exceeded
    */
   public List<?> executeDistinctValueForDataField(DataField dataField) throws ODKDatastoreException, ODKOverQuotaException;
+
+  /**
+   * Groups the entities matching the query filters by the value of groupByField
+   * (GROUP BY in the database) and returns the number of entities in each group
+   * and, if aggregatedField is non-null, the count and sum of its non-null values.
+   * The groups are ordered by their value; sorts added to the query are ignored.
+   *
+   * @param groupByField
+   * @param aggregatedField a numeric field, or null to only count the entities
+   * @return
+   * @throws ODKDatastoreException
+   * @throws ODKOverQuotaException if the usage quota was exceeded
+   */
+  public List<GroupedAggregate> executeGroupedAggregate(DataField groupByField,
+      DataField aggregatedField) throws ODKDatastoreException, ODKOverQuotaException;
 }
@@ -17,6 +17,7 @@
 package org.opendatakit.common.persistence;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 /**
  * Wrapper to encapsulate and pass through the special double values of NaN,
@@ -87,6 +88,14 @@ public class WrappedBigDecimal implements Comparable<WrappedBigDecimal> {
     return new WrappedBigDecimal(bd.setScale(scale, roundingMode));
   }
 
+  public WrappedBigDecimal setScale(int scale, RoundingMode roundingMode) {
+    if (isSpecialValue()) {
+      // immutable
+      return this;
+    }
+    return new WrappedBigDecimal(bd.setScale(scale, roundingMode));
+  }
+
   public double doubleValue() {
     if (isSpecialValue()) {
       return d;
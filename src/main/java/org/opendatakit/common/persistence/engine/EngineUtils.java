@@ -14,11 +14,22 @@
 package org.opendatakit.common.persistence.engine;
 
 import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.utils.WebUtils;
 
 public class EngineUtils {
@@ -256,4 +267,103 @@ public class EngineUtils {
         return value;
     }
 
+    /**
+     * Rejects rows read through a projection. Writing one back would insert
+     * or overwrite the full record with the columns that were not fetched.
+     *
+     * @param entity
+     * @throws ODKEntityPersistException if the row is partial
+     */
+    public static final void assertNotPartial(CommonFieldsBase entity)
+        throws ODKEntityPersistException {
+        if ( entity.isPartial() ) {
+            throw new ODKEntityPersistException("Row " + entity.getUri() + " of "
+                + entity.getTableName() + " was read through a projection and cannot be persisted");
+        }
+    }
+
+    /**
+     * Partitions the entities into groups that belong to the same relation and
+     * that are either all inserts or all updates. Each group can then be
+     * written as a single batch. Groups are returned in the order in which
+     * they are first encountered; an entity listed more than once is only
+     * written once.
+     *
+     * @param entityList
+     * @return the list of groups
+     */
+    public static final List<List<CommonFieldsBase>> groupForBatchPut(
+        Collection<? extends CommonFieldsBase> entityList) {
+        Map<String, List<CommonFieldsBase>> groups = new LinkedHashMap<String, List<CommonFieldsBase>>();
+        Set<CommonFieldsBase> seen = Collections.newSetFromMap(new IdentityHashMap<CommonFieldsBase, Boolean>());
+        for ( CommonFieldsBase entity : entityList ) {
+            if ( !seen.add(entity) ) {
+                continue;
+            }
+            String groupKey = (entity.isFromDatabase() ? "U:" : "I:") +
+                entity.getSchemaName() + "." + entity.getTableName();
+            List<CommonFieldsBase> group = groups.get(groupKey);
+            if ( group == null ) {
+                group = new ArrayList<CommonFieldsBase>();
+                groups.put(groupKey, group);
+            }
+            group.add(entity);
+        }
+        return new ArrayList<List<CommonFieldsBase>>(groups.values());
+    }
+
+    /**
+     * Partitions the keys into groups that belong to the same relation, in the
+     * order in which the relations are first encountered.
+     *
+     * @param keys
+     * @return the list of groups
+     */
+    public static final List<List<EntityKey>> groupByRelation(Collection<EntityKey> keys) {
+        Map<String, List<EntityKey>> groups = new LinkedHashMap<String, List<EntityKey>>();
+        for ( EntityKey key : keys ) {
+            CommonFieldsBase relation = key.getRelation();
+            String groupKey = relation.getSchemaName() + "." + relation.getTableName();
+            List<EntityKey> group = groups.get(groupKey);
+            if ( group == null ) {
+                group = new ArrayList<EntityKey>();
+                groups.put(groupKey, group);
+            }
+            group.add(key);
+        }
+        return new ArrayList<List<EntityKey>>(groups.values());
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Computes a stable 64-bit key (FNV-1a) identifying the resource guarded by
+     * a task lock. The database engines use this to name the advisory or
+     * application lock that serializes updates to the task lock rows of that
+     * one (formId, taskType) pair. A hash collision merely serializes two
+     * unrelated resources; it does not affect lock correctness.
+     *
+     * @param formId
+     * @param taskType
+     * @return the key
+     */
+    public static final long getTaskLockKey(String formId, String taskType) {
+        long hash = 0xcbf29ce484222325L;
+        for ( byte b : (formId + "\u0000" + taskType).getBytes(UTF8) ) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @param formId
+     * @param taskType
+     * @return a name for the application lock of this resource that fits
+     *         within the 64-character limit of MySQL GET_LOCK().
+     */
+    public static final String getTaskLockName(String formId, String taskType) {
+        return "odk_task_lock_" + Long.toHexString(getTaskLockKey(formId, taskType));
+    }
+
 }
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.BadSqlGrammarException;
+
+/**
+ * Remembers the storage dimensions of relations that have already been
+ * asserted against the database so that constructing another prototype of
+ * the same relation does not need to re-read the database catalog.
+ *
+ * Definitions are keyed by the fully qualified table name and by a signature
+ * of the requested column set. A prototype whose columns differ in any way
+ * from a cached definition is a cache miss and must be asserted against the
+ * database (which will then cache that column set, too).
+ *
+ * Also hands out a per-table lock object so that concurrent assertions of
+ * different tables do not serialize on one another.
+ *
+ * Definitions are only invalidated on this server; another server may drop
+ * or recreate a table at any time. Statements against a relation are run
+ * through {@link #retryIfStale(Datastore, CommonFieldsBase, User, Callable)}
+ * so that such a change is picked up the first time it causes a failure.
+ *
+ * One instance is held by each DatastoreImpl.
+ */
+public final class RelationDefinitionCache {
+
+  /**
+   * The storage dimensions that assertRelation() copies from the database
+   * into each DataField.
+   */
+  private static final class ColumnDimensions {
+    final Long maxCharLen;
+    final Integer numericPrecision;
+    final Integer numericScale;
+    final boolean isDoublePrecision;
+
+    ColumnDimensions(DataField f) {
+      maxCharLen = f.getMaxCharLen();
+      numericPrecision = f.getNumericPrecision();
+      numericScale = f.getNumericScale();
+      isDoublePrecision = f.isDoublePrecision();
+    }
+
+    void applyTo(DataField f) {
+      f.setMaxCharLen(maxCharLen);
+      f.setNumericPrecision(numericPrecision);
+      f.setNumericScale(numericScale);
+      f.asDoublePrecision(isDoublePrecision);
+    }
+  }
+
+  // fully qualified table name to (column-set signature to dimensions)
+  private final Map<String, Map<String, List<ColumnDimensions>>> definitions = new ConcurrentHashMap<String, Map<String, List<ColumnDimensions>>>();
+
+  // fully qualified table name to lock object
+  private final ConcurrentHashMap<String, Object> tableLocks = new ConcurrentHashMap<String, Object>();
+
+  private static String qualifiedName(String schema, String tableName) {
+    return schema + "." + tableName;
+  }
+
+  /**
+   * Compute the signature of the column set of the relation as requested by
+   * the caller. This must be computed before the relation is asserted, since
+   * asserting it updates the dimensions of its DataFields.
+   *
+   * @param relation
+   * @return the signature
+   */
+  public String getSignature(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    for (DataField f : relation.getFieldList()) {
+      b.append(f.getName()).append(':').append(f.getDataType().name()).append(':')
+          .append(f.getNullable()).append(':').append(f.getMaxCharLen()).append(':')
+          .append(f.getNumericPrecision()).append(':').append(f.getNumericScale()).append(':')
+          .append(f.isDoublePrecision()).append(';');
+    }
+    return b.toString();
+  }
+
+  /**
+   * @param relation
+   * @return the object to synchronize on when asserting or dropping this
+   *         relation.
+   */
+  public Object getTableLock(CommonFieldsBase relation) {
+    String name = qualifiedName(relation.getSchemaName(), relation.getTableName());
+    Object lock = tableLocks.get(name);
+    if (lock == null) {
+      Object newLock = new Object();
+      lock = tableLocks.putIfAbsent(name, newLock);
+      if (lock == null) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * If the column set of this relation has already been asserted, update its
+   * DataFields with the cached storage dimensions.
+   *
+   * @param relation
+   * @param signature
+   *          the value of getSignature(relation) before any assertion.
+   * @return true if the cached definition was applied; false if the relation
+   *         must be asserted against the database.
+   */
+  public boolean applyCachedDefinition(CommonFieldsBase relation, String signature) {
+    Map<String, List<ColumnDimensions>> tableDefinitions = definitions
+        .get(qualifiedName(relation.getSchemaName(), relation.getTableName()));
+    if (tableDefinitions == null) {
+      return false;
+    }
+    List<ColumnDimensions> columns = tableDefinitions.get(signature);
+    if (columns == null) {
+      return false;
+    }
+    List<DataField> fields = relation.getFieldList();
+    for (int i = 0; i < fields.size(); ++i) {
+      columns.get(i).applyTo(fields.get(i));
+    }
+    return true;
+  }
+
+  /**
+   * Record the storage dimensions of a relation that has just been
+   * successfully asserted against the database.
+   *
+   * @param relation
+   * @param signature
+   *          the value of getSignature(relation) before the assertion.
+   */
+  public void putDefinition(CommonFieldsBase relation, String signature) {
+    String name = qualifiedName(relation.getSchemaName(), relation.getTableName());
+    Map<String, List<ColumnDimensions>> tableDefinitions = definitions.get(name);
+    if (tableDefinitions == null) {
+      tableDefinitions = new ConcurrentHashMap<String, List<ColumnDimensions>>();
+      definitions.put(name, tableDefinitions);
+    }
+    List<ColumnDimensions> columns = new ArrayList<ColumnDimensions>();
+    for (DataField f : relation.getFieldList()) {
+      columns.add(new ColumnDimensions(f));
+    }
+    tableDefinitions.put(signature, columns);
+  }
+
+  /**
+   * Forget all cached definitions of the given table.
+   *
+   * @param schema
+   * @param tableName
+   */
+  public void invalidate(String schema, String tableName) {
+    definitions.remove(qualifiedName(schema, tableName));
+  }
+
+  /**
+   * Run a statement against the table of a relation. If it fails as it
+   * would if the table had been dropped or recreated by another server
+   * since its definition was cached here, forget the definition, assert the
+   * relation again and run the statement once more.
+   *
+   * @param ds
+   * @param relation
+   *          the relation or any entity of that relation
+   * @param user
+   * @param statement
+   * @return the result of the statement
+   * @throws Exception
+   *           the failure of the statement
+   */
+  public static <T> T retryIfStale(Datastore ds, CommonFieldsBase relation, User user,
+      Callable<T> statement) throws Exception {
+    try {
+      return statement.call();
+    } catch (BadSqlGrammarException e) {
+      LoggerFactory.getLogger(RelationDefinitionCache.class).warn("Reloading the definition of "
+          + relation.getSchemaName() + "." + relation.getTableName() + " after: " + e.toString());
+      ds.invalidateRelation(relation.getSchemaName(), relation.getTableName());
+      try {
+        ds.assertRelation(relation, user);
+      } catch (ODKDatastoreException ex) {
+        e.addSuppressed(ex);
+        throw e;
+      }
+      return statement.call();
+    }
+  }
+}
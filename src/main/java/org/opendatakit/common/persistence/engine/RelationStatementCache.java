@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Holds the SQL text of the single-row statements of each relation so that
+ * it is assembled once rather than on every put, get or delete.
+ *
+ * The statements are keyed by the fully qualified table name and are only
+ * reused for a relation whose field list holds the very same DataField
+ * objects (entities share the DataFields of their relation prototype).
+ * Any other field list causes the statements to be regenerated.
+ *
+ * One instance is held by each DatastoreImpl.
+ */
+public final class RelationStatementCache {
+
+  private static final String K_SELECT = "SELECT ";
+  private static final String K_INSERT_INTO = "INSERT INTO ";
+  private static final String K_UPDATE = "UPDATE ";
+  private static final String K_DELETE_FROM = "DELETE FROM ";
+  private static final String K_FROM = " FROM ";
+  private static final String K_SET = " SET ";
+  private static final String K_WHERE = " WHERE ";
+  private static final String K_VALUES = " VALUES ";
+  private static final String K_OPEN_PAREN = " ( ";
+  private static final String K_CLOSE_PAREN = " ) ";
+  private static final String K_CS = ", ";
+  private static final String K_EQ = " = ";
+  private static final String K_BIND_VALUE = "?";
+
+  /**
+   * The SQL text and bind order of the statements of one relation.
+   */
+  public static final class CompiledStatements {
+    private final DataField[] fields;
+    private final DataField[] updateBindFields;
+
+    /** "schema"."table" */
+    public final String qualifiedTableName;
+    /** "col1", "col2", ... in field list order */
+    public final String columnList;
+    /** SELECT "col1", ... FROM "schema"."table" */
+    public final String selectPrefix;
+    /** selectPrefix WHERE "_URI" = ? */
+    public final String selectByPk;
+    /** INSERT INTO "schema"."table" ( "col1", ... ) VALUES ( ?, ... ) */
+    public final String insert;
+    /** UPDATE "schema"."table" SET "col2" = ?, ... WHERE "_URI" = ? */
+    public final String updateByPk;
+    /** DELETE FROM "schema"."table" WHERE "_URI" = ? */
+    public final String deleteByPk;
+
+    private CompiledStatements(CommonFieldsBase relation, String quote) {
+      List<DataField> fieldList = relation.getFieldList();
+      fields = fieldList.toArray(new DataField[fieldList.size()]);
+      updateBindFields = new DataField[fields.length];
+
+      StringBuilder b = new StringBuilder();
+      b.append(quote).append(relation.getSchemaName()).append(quote).append(".");
+      b.append(quote).append(relation.getTableName()).append(quote);
+      qualifiedTableName = b.toString();
+      b.setLength(0);
+
+      String pkEq = K_WHERE + quote + relation.primaryKey.getName() + quote + K_EQ + K_BIND_VALUE;
+
+      for (int i = 0; i < fields.length; ++i) {
+        if (i != 0) {
+          b.append(K_CS);
+        }
+        b.append(quote).append(fields[i].getName()).append(quote);
+      }
+      columnList = b.toString();
+      b.setLength(0);
+
+      selectPrefix = K_SELECT + columnList + K_FROM + qualifiedTableName;
+      selectByPk = selectPrefix + pkEq;
+
+      b.append(K_INSERT_INTO).append(qualifiedTableName);
+      b.append(K_OPEN_PAREN).append(columnList).append(K_CLOSE_PAREN);
+      b.append(K_VALUES).append(K_OPEN_PAREN);
+      for (int i = 0; i < fields.length; ++i) {
+        if (i != 0) {
+          b.append(K_CS);
+        }
+        b.append(K_BIND_VALUE);
+      }
+      b.append(K_CLOSE_PAREN);
+      insert = b.toString();
+      b.setLength(0);
+
+      // primary key goes in the where clause...
+      b.append(K_UPDATE).append(qualifiedTableName).append(K_SET);
+      int idx = 0;
+      for (DataField f : fields) {
+        if (f == relation.primaryKey)
+          continue;
+        if (idx != 0) {
+          b.append(K_CS);
+        }
+        b.append(quote).append(f.getName()).append(quote).append(K_EQ).append(K_BIND_VALUE);
+        updateBindFields[idx++] = f;
+      }
+      updateBindFields[idx] = relation.primaryKey;
+      b.append(pkEq);
+      updateByPk = b.toString();
+
+      deleteByPk = K_DELETE_FROM + qualifiedTableName + pkEq;
+    }
+
+    /**
+     * @return the fields in the order they are bound in the insert statement
+     *         (i.e., field list order). Do not modify.
+     */
+    public DataField[] getInsertBindFields() {
+      return fields;
+    }
+
+    /**
+     * @return the fields in the order they are bound in the update statement
+     *         (non-key fields, then the primary key). Do not modify.
+     */
+    public DataField[] getUpdateBindFields() {
+      return updateBindFields;
+    }
+
+    private boolean matches(List<DataField> fieldList) {
+      if (fieldList.size() != fields.length) {
+        return false;
+      }
+      for (int i = 0; i < fields.length; ++i) {
+        if (fieldList.get(i) != fields[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private final String quote;
+
+  // fully qualified table name to statements
+  private final ConcurrentHashMap<String, CompiledStatements> statements = new ConcurrentHashMap<String, CompiledStatements>();
+
+  /**
+   * @param quote
+   *          the identifier quote character of the database
+   */
+  public RelationStatementCache(String quote) {
+    this.quote = quote;
+  }
+
+  private static String qualifiedName(String schema, String tableName) {
+    return schema + "." + tableName;
+  }
+
+  /**
+   * @param relation
+   *          the relation or any entity of that relation
+   * @return the statements for the relation
+   */
+  public CompiledStatements getStatements(CommonFieldsBase relation) {
+    String name = qualifiedName(relation.getSchemaName(), relation.getTableName());
+    CompiledStatements s = statements.get(name);
+    if (s == null || !s.matches(relation.getFieldList())) {
+      s = new CompiledStatements(relation, quote);
+      statements.put(name, s);
+    }
+    return s;
+  }
+
+  /**
+   * Forget the statements of the given table.
+   *
+   * @param schema
+   * @param tableName
+   */
+  public void invalidate(String schema, String tableName) {
+    statements.remove(qualifiedName(schema, tableName));
+  }
+}
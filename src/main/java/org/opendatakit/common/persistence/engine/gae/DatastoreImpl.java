@@ -27,6 +27,7 @@ import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.EngineUtils;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -60,6 +61,7 @@ public class DatastoreImpl implements Datastore {
   private static final int BLOB_MAX_SIZE = 1000000 - 1;
 
   private static final int MAX_IDENTIFIER_LEN = 64;
+  private static final int MAX_IN_FILTER_VALUES = 30;
 
   private static final Long GAE_MAX_STRING_LEN = 255L;
   // these aren't actually used for filtering...
@@ -124,6 +126,12 @@ public class DatastoreImpl implements Datastore {
     return MAX_IDENTIFIER_LEN;
   }
 
+  @Override
+  public int getMaxValueSetSize() {
+    // GAE limits IN filters to 30 values
+    return MAX_IN_FILTER_VALUES;
+  }
+
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
     int nColumns = 0;
@@ -211,6 +219,12 @@ public class DatastoreImpl implements Datastore {
     // case.
   }
 
+  @Override
+  public void invalidateRelation(String schema, String tableName) {
+    // nothing to do -- string field lengths are tracked by the
+    // StringFieldLengthMapping and removed by dropRelation().
+  }
+
   private String constructGaeKind(CommonFieldsBase entity) {
     return entity.getSchemaName() + "." + entity.getTableName();
   }
@@ -401,6 +415,7 @@ public class DatastoreImpl implements Datastore {
 
   @Override
   public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException, ODKOverQuotaException {
+    EngineUtils.assertNotPartial(entity);
     com.google.appengine.api.datastore.Entity e = prepareGaeFromRow(entity, user);
     dam.recordPutUsage(entity);
     try {
@@ -412,11 +427,20 @@ public class DatastoreImpl implements Datastore {
     }
   }
 
+  @Override
+  public void putEntitiesInTransaction(Collection<? extends CommonFieldsBase> entities, User user)
+      throws ODKEntityPersistException, ODKOverQuotaException {
+    // the rows of a submission span many entity groups, which a single
+    // GAE transaction cannot; the entities are still sent in one batch put.
+    putEntities(entities, user);
+  }
+
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entities, User user)
       throws ODKEntityPersistException, ODKOverQuotaException {
     List<com.google.appengine.api.datastore.Entity> gaeEntities = new ArrayList<com.google.appengine.api.datastore.Entity>();
     for (CommonFieldsBase entity : entities) {
+      EngineUtils.assertNotPartial(entity);
       dam.recordPutUsage(entity);
       gaeEntities.add(prepareGaeFromRow(entity, user));
     }
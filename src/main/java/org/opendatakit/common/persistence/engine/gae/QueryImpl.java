@@ -24,6 +24,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +32,7 @@ import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.DataType;
 import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.GroupedAggregate;
 import org.opendatakit.common.persistence.QueryResult;
 import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
@@ -77,6 +79,9 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
   private final Logger logger;
   private final ExecutionTimeLogger gaeCostLogger;
 
+  // entities read at a time when grouping them locally
+  private static final int GROUPED_AGGREGATE_PAGE_SIZE = 1000;
+
   private static final long ACTIVE_COST_LOGGING_CHECK_INTERVAL = 10 * 1000; // 10
                                                                             // seconds
   static long costLoggingMinimumMegacyclesThreshold = 10 * 1200; // 10
@@ -235,6 +240,20 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
     }
   }
 
+  @Override
+  public void addSubqueryFilter(DataField attribute,
+      org.opendatakit.common.persistence.Query subquery, DataField subqueryField)
+      throws ODKDatastoreException, ODKOverQuotaException {
+    // queries cannot be nested -- fetch the values of the subquery now
+    addValueSetFilter(attribute, subquery.executeDistinctValueForDataField(subqueryField));
+  }
+
+  @Override
+  public void selectOnly(DataField... fields) {
+    // entities are always fetched whole from the datastore, so they are
+    // not marked partial and may be written back
+  }
+
   @Override
   public void addSort(DataField attribute, Direction direction) {
     // do the sort locally -- later...
@@ -953,6 +972,65 @@ public class QueryImpl implements org.opendatakit.common.persistence.Query {
     }
   }
 
+  @Override
+  public void stream(int fetchSize, Consumer<? super CommonFieldsBase> rowHandler)
+      throws ODKDatastoreException, ODKOverQuotaException {
+    // there is no long-lived cursor -- page through the result set so that
+    // only one page of entities is held in memory at a time.
+    establishDominantSort();
+    QueryResumePoint startCursor = null;
+    QueryResult result;
+    do {
+      result = executeQuery(startCursor, fetchSize);
+      for (CommonFieldsBase cb : result.getResultList()) {
+        rowHandler.accept(cb);
+      }
+      startCursor = result.getResumeCursor();
+    } while (result.hasMoreResults());
+  }
+
+  @Override
+  public List<GroupedAggregate> executeGroupedAggregate(DataField groupByField,
+      final DataField aggregatedField) throws ODKDatastoreException, ODKOverQuotaException {
+    // there is no GROUP BY -- group the entities locally as they are read
+    final Map<String, long[]> counts = new HashMap<String, long[]>();
+    final Map<String, BigDecimal> sums = new HashMap<String, BigDecimal>();
+    stream(GROUPED_AGGREGATE_PAGE_SIZE, cb -> {
+      String groupValue = EngineUtils.getDominantSortAttributeValueAsString(cb, groupByField);
+      long[] count = counts.get(groupValue);
+      if (count == null) {
+        count = new long[2];
+        counts.put(groupValue, count);
+      }
+      ++count[0];
+      if (aggregatedField != null) {
+        BigDecimal value;
+        if (aggregatedField.getDataType() == DataType.DECIMAL) {
+          WrappedBigDecimal wbd = cb.getNumericField(aggregatedField);
+          value = (wbd == null || wbd.isSpecialValue()) ? null : wbd.bd;
+        } else {
+          Long l = cb.getLongField(aggregatedField);
+          value = (l == null) ? null : BigDecimal.valueOf(l);
+        }
+        if (value != null) {
+          ++count[1];
+          BigDecimal sum = sums.get(groupValue);
+          sums.put(groupValue, (sum == null) ? value : sum.add(value));
+        }
+      }
+    });
+
+    List<String> groupValues = new ArrayList<String>(counts.keySet());
+    Collections.sort(groupValues, (a, b) -> (a == null) ? ((b == null) ? 0 : -1)
+        : ((b == null) ? 1 : a.compareTo(b)));
+    List<GroupedAggregate> groups = new ArrayList<GroupedAggregate>();
+    for (String groupValue : groupValues) {
+      long[] count = counts.get(groupValue);
+      groups.add(new GroupedAggregate(groupValue, count[0], count[1], sums.get(groupValue)));
+    }
+    return groups;
+  }
+
   @Override
   public Set<EntityKey> executeForeignKeyQuery(CommonFieldsBase topLevelTable,
       DataField topLevelAuri) throws ODKDatastoreException, ODKOverQuotaException {
@@ -16,6 +16,7 @@ package org.opendatakit.common.persistence.engine.mysql;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
@@ -32,13 +33,47 @@ import org.springframework.jdbc.core.RowMapper;
 public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
 
   private final CommonFieldsBase relation;
+  private final DataField[] fields;
+  private final boolean isPartialRow;
   private final User user;
 
+  // the column index of each of the fields within the last ResultSet
+  private ResultSet indexedResultSet = null;
+  private int[] columnIndexes = null;
+
   RelationRowMapper(CommonFieldsBase relation, User user) {
+    this(relation, null, user);
+  }
+
+  /**
+   * @param relation
+   * @param projection
+   *          the subset of the fields that the query selects, or null if it
+   *          selects all the fields of the relation. Rows read through a
+   *          projection are marked partial, so that they cannot be persisted
+   *          over the full record.
+   * @param user
+   */
+  RelationRowMapper(CommonFieldsBase relation, DataField[] projection, User user) {
     this.relation = relation;
+    this.isPartialRow = (projection != null);
+    if (projection == null) {
+      List<DataField> fieldList = relation.getFieldList();
+      this.fields = fieldList.toArray(new DataField[fieldList.size()]);
+    } else {
+      this.fields = projection;
+    }
     this.user = user;
   }
 
+  private void resolveColumnIndexes(ResultSet rs) throws SQLException {
+    columnIndexes = new int[fields.length];
+    for (int i = 0; i < fields.length; ++i) {
+      columnIndexes[i] = rs.findColumn(fields[i].getName());
+    }
+    indexedResultSet = rs;
+  }
+
   @Override
   public CommonFieldsBase mapRow(ResultSet rs, int rowNum) throws SQLException {
 
@@ -46,26 +81,34 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
     try {
       row = relation.getEmptyRow(user);
       row.setFromDatabase(true);
+      row.setPartial(isPartialRow);
     } catch (Exception e) {
       throw new IllegalStateException("failed to create empty row", e);
     }
 
+    // look up the column names once per ResultSet
+    if (rs != indexedResultSet) {
+      resolveColumnIndexes(rs);
+    }
+
     /**
      * Correct for the funky handling of nulls by the various accessors...
      */
-    for (DataField f : relation.getFieldList()) {
+    for (int i = 0; i < fields.length; ++i) {
+      DataField f = fields[i];
+      int idx = columnIndexes[i];
       switch (f.getDataType()) {
       case BINARY:
-        byte[] blobBytes = rs.getBytes(f.getName());
+        byte[] blobBytes = rs.getBytes(idx);
         row.setBlobField(f, blobBytes);
         break;
       case LONG_STRING:
       case URI:
       case STRING:
-        row.setStringField(f, rs.getString(f.getName()));
+        row.setStringField(f, rs.getString(idx));
         break;
       case INTEGER:
-        long l = rs.getLong(f.getName());
+        long l = rs.getLong(idx);
         if (rs.wasNull()) {
           row.setLongField(f, null);
         } else {
@@ -73,7 +116,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
       case DECIMAL: {
-        String value = rs.getString(f.getName());
+        String value = rs.getString(idx);
         if ( value == null ) {
           row.setNumericField(f, null);
         } else {
@@ -82,7 +125,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
       }
         break;
       case BOOLEAN:
-        Boolean b = rs.getBoolean(f.getName());
+        Boolean b = rs.getBoolean(idx);
         if (rs.wasNull()) {
           row.setBooleanField(f, null);
         } else {
@@ -90,7 +133,7 @@ public class RelationRowMapper implements RowMapper<CommonFieldsBase> {
         }
         break;
       case DATETIME:
-        Date d = rs.getTimestamp(f.getName());
+        Date d = rs.getTimestamp(idx);
         if (d == null) {
           row.setDateField(f, null);
         } else {
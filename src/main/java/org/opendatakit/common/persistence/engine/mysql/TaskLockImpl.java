@@ -16,6 +16,7 @@
 package org.opendatakit.common.persistence.engine.mysql;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -31,6 +32,7 @@ import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.ITaskLockType;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.EngineUtils;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -61,6 +63,12 @@ public class TaskLockImpl implements TaskLock {
 
   private static final String K_BQ = "`";
 
+  private static final String K_GET_LOCK = "SELECT GET_LOCK(?, ?)";
+  private static final String K_RELEASE_LOCK = "SELECT RELEASE_LOCK(?)";
+
+  // how long to wait for a concurrent transaction on the same resource
+  private static final int NAMED_LOCK_TIMEOUT_SECONDS = 10;
+
   private TaskLockTable doTransaction(TaskLockTable entity, long l)
       throws ODKEntityNotFoundException, ODKTaskLockException {
     boolean first;
@@ -73,7 +81,10 @@ public class TaskLockImpl implements TaskLock {
         + TaskLockTable.TABLE_NAME + K_BQ;
     // String tableName= TaskLockTable.TABLE_NAME;
 
-    b.append("SET SESSION TRANSACTION ISOLATION LEVEL SERIALIZABLE");
+    // the named lock obtained in the ConnectionCallback below serializes all
+    // writers of the rows for this resource and task type; each statement
+    // then sees the rows committed by earlier lock holders.
+    b.append("SET SESSION TRANSACTION ISOLATION LEVEL READ COMMITTED");
     stmts.add(b.toString());
     b.setLength(0);
     b.append("START TRANSACTION WITH CONSISTENT SNAPSHOT");
@@ -96,11 +107,6 @@ public class TaskLockImpl implements TaskLock {
     b.append(1000L * l);
     stmts.add(b.toString());
     b.setLength(0);
-    b.append("LOCK TABLES ");
-    b.append(tableName);
-    b.append(" WRITE ");
-    stmts.add(b.toString());
-    b.setLength(0);
 
     dam.recordPutUsage(TaskLockTable.TABLE_NAME);
     if (!entity.isFromDatabase()) {
@@ -186,12 +192,20 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks for this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ");
     b.append(tableName);
     b.append(" WHERE ");
     b.append(K_BQ);
+    b.append(entity.formId.getName());
+    b.append(K_BQ);
+    b.append(" = @formId AND ");
+    b.append(K_BQ);
+    b.append(entity.taskType.getName());
+    b.append(K_BQ);
+    b.append(" = @taskType AND ");
+    b.append(K_BQ);
     b.append(entity.expirationDateTime.getName());
     b.append(K_BQ);
     b.append(" <= CAST(@present AS DATETIME)");
@@ -309,13 +323,12 @@ public class TaskLockImpl implements TaskLock {
     b.append(" = CAST(@minExpiration AS DATETIME)");
     stmts.add(b.toString());
     b.setLength(0);
-    b.append("UNLOCK TABLES");
-    stmts.add(b.toString());
-    b.setLength(0);
     b.append("COMMIT");
     stmts.add(b.toString());
     b.setLength(0);
     
+    final String lockName = EngineUtils.getTaskLockName(entity.getFormId(), entity.getTaskType());
+
     TaskLockTable relation;
     try {
       relation = TaskLockTable.assertRelation(datastore, user);
@@ -332,10 +345,21 @@ public class TaskLockImpl implements TaskLock {
         @Override
         public Object doInConnection(Connection conn) throws SQLException, DataAccessException {
           boolean success = false;
+          boolean locked = false;
           boolean oldValue = conn.getAutoCommit();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            PreparedStatement lockStmt = conn.prepareStatement(K_GET_LOCK);
+            lockStmt.setString(1, lockName);
+            lockStmt.setInt(2, NAMED_LOCK_TIMEOUT_SECONDS);
+            ResultSet lockRs = lockStmt.executeQuery();
+            locked = lockRs.next() && lockRs.getInt(1) == 1;
+            lockRs.close();
+            lockStmt.close();
+            if ( !locked ) {
+              throw new SQLException("GET_LOCK failed for " + lockName);
+            }
             String lastResult = null;
             for (String s : stmts) {
               Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, ResultSet.CLOSE_CURSORS_AT_COMMIT);
@@ -356,10 +380,12 @@ public class TaskLockImpl implements TaskLock {
             e.printStackTrace();
             conn.rollback();
           } finally {
-            if ( !success ) {
-              Statement stmt = conn.createStatement();
-              LoggerFactory.getLogger(TaskLockImpl.class).info("UNLOCK TABLES");
-              stmt.execute("UNLOCK TABLES");
+            if ( locked ) {
+              // named locks are held by the session, not the transaction
+              PreparedStatement releaseStmt = conn.prepareStatement(K_RELEASE_LOCK);
+              releaseStmt.setString(1, lockName);
+              releaseStmt.executeQuery().close();
+              releaseStmt.close();
               conn.commit();
             }
           }
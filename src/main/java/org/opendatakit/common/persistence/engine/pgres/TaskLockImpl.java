@@ -30,6 +30,7 @@ import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.ITaskLockType;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.EngineUtils;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -88,7 +89,10 @@ public class TaskLockImpl implements TaskLock {
     String lifetimeIntervalMilliseconds = b.toString();
     b.setLength(0);
 
-    b.append("LOCK TABLE ").append(tableName).append(" IN ACCESS EXCLUSIVE MODE");
+    // serialize only against other transactions on this same resource and
+    // task type. The advisory lock is released when the transaction ends.
+    b.append("SELECT pg_advisory_xact_lock(")
+        .append(EngineUtils.getTaskLockKey(entity.getFormId(), entity.getTaskType())).append(")");
     stmts.add(b.toString());
     b.setLength(0);
 
@@ -178,9 +182,13 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks for this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ").append(tableName).append(" WHERE ");
+    b.append(K_BQ).append(entity.formId.getName()).append(K_BQ).append(" = ")
+        .append(formIdInline).append(" AND ");
+    b.append(K_BQ).append(entity.taskType.getName()).append(K_BQ).append(" = ")
+        .append(taskTypeInline).append(" AND ");
     b.append(K_BQ).append(entity.expirationDateTime.getName()).append(K_BQ).append(" <= NOW()");
     stmts.add(b.toString());
     b.setLength(0);
@@ -234,7 +242,9 @@ public class TaskLockImpl implements TaskLock {
           int oldTransactionValue = conn.getTransactionIsolation();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            // the advisory lock serializes all writers of these rows; each
+            // statement then sees the rows committed by earlier lock holders.
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             Statement stmt = conn.createStatement();
             for (String s : stmts) {
               // for debugging: LoggerFactory.getLogger(TaskLockImpl.class).info(s);
@@ -37,10 +37,13 @@ import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
-import org.opendatakit.common.persistence.Query.FilterOperation;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.EngineUtils;
+import org.opendatakit.common.persistence.engine.RelationDefinitionCache;
+import org.opendatakit.common.persistence.engine.RelationStatementCache;
+import org.opendatakit.common.persistence.engine.RelationStatementCache.CompiledStatements;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -49,6 +52,7 @@ import org.springframework.beans.factory.InitializingBean;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.SqlParameterValue;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
@@ -76,6 +80,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   
   // limit on SqlServer capacity (minus about 100 for where clause filters)
   private static final int MAX_BIND_PARAMS = 2000;
+  private static final int MAX_OTHER_BIND_PARAMS = 100;
 
   static final String PATTERN_ISO8601_NO_ZONE = "yyyy-MM-dd'T'HH:mm:ss.SSS";
 
@@ -83,6 +88,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   private static final Long MAX_BLOB_SIZE = 65536 * 4096L;
 
   private final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+  private final RelationDefinitionCache relationCache = new RelationDefinitionCache();
+  private final RelationStatementCache statementCache = new RelationStatementCache(K_BQ);
   private DataSource dataSource = null;
   private DataSourceTransactionManager tm = null;
 
@@ -139,6 +146,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_UPDATE = "UPDATE ";
   public static final String K_SET = " SET ";
   public static final String K_DELETE_FROM = "DELETE FROM ";
+  public static final String K_IN = " IN ";
 
   public static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   public static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
@@ -438,6 +446,39 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return new JdbcTemplate(dataSource);
   }
 
+  /**
+   * Execute a query within a read-only transaction, passing each row to the
+   * handler as it is read. With adaptive response buffering (the driver
+   * default), the rows are read from the server as the handler consumes them.
+   *
+   * @param query
+   * @param args
+   * @param fetchSize
+   *          number of rows to read from the server at a time
+   * @param handler
+   * @throws ODKDatastoreException
+   */
+  void streamQuery(String query, Object[] args, int fetchSize, RowCallbackHandler handler)
+      throws ODKDatastoreException {
+    TransactionStatus status = null;
+    try {
+      DefaultTransactionDefinition paramTransactionDefinition = new DefaultTransactionDefinition();
+      paramTransactionDefinition.setReadOnly(true);
+      status = tm.getTransaction(paramTransactionDefinition);
+
+      JdbcTemplate jc = getJdbcConnection();
+      jc.setFetchSize(fetchSize);
+      jc.query(query, args, handler);
+
+      tm.commit(status);
+    } catch (Exception e) {
+      if (status != null && !status.isCompleted()) {
+        tm.rollback(status);
+      }
+      throw new ODKDatastoreException(e);
+    }
+  }
+
   @Override
   public int getMaxLenColumnName() {
     return MAX_COLUMN_NAME_LEN;
@@ -448,6 +489,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return MAX_TABLE_NAME_LEN;
   }
 
+  @Override
+  public int getMaxValueSetSize() {
+    // leave room for the bind parameters of the other filters
+    return MAX_BIND_PARAMS - MAX_OTHER_BIND_PARAMS;
+  }
+
   private final boolean updateRelation(JdbcTemplate jc, CommonFieldsBase relation,
       String originalStatement) {
 
@@ -546,6 +593,27 @@ public class DatastoreImpl implements Datastore, InitializingBean {
    */
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    String signature = relationCache.getSignature(relation);
+    synchronized (relationCache.getTableLock(relation)) {
+      if (relationCache.applyCachedDefinition(relation, signature)) {
+        return;
+      }
+      assertRelationInDatabase(relation, user);
+      relationCache.putDefinition(relation, signature);
+    }
+  }
+
+  /**
+   * Verify the relation against the database, creating it if it does not
+   * exist, and update its DataFields with the storage dimensions of the
+   * table.
+   *
+   * @param relation
+   * @param user
+   * @throws ODKDatastoreException
+   */
+  private void assertRelationInDatabase(CommonFieldsBase relation, User user)
+      throws ODKDatastoreException {
     JdbcTemplate jc = getJdbcConnection();
     TransactionStatus status = null;
     try {
@@ -781,6 +849,20 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void dropRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    synchronized (relationCache.getTableLock(relation)) {
+      invalidateRelation(relation.getSchemaName(), relation.getTableName());
+      dropRelationInDatabase(relation, user);
+    }
+  }
+
+  @Override
+  public void invalidateRelation(String schema, String tableName) {
+    statementCache.invalidate(schema, tableName);
+    relationCache.invalidate(schema, tableName);
+  }
+
+  private void dropRelationInDatabase(CommonFieldsBase relation, User user)
+      throws ODKDatastoreException {
     try {
       StringBuilder b = new StringBuilder();
       b.append(K_DROP_TABLE);
@@ -826,22 +908,35 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   @Override
   public <T extends CommonFieldsBase> T getEntity(T relation, String uri, User user)
       throws ODKEntityNotFoundException {
-    Query query = new QueryImpl(relation, "getEntity", this, user);
-    query.addFilter(relation.primaryKey, FilterOperation.EQUAL, uri);
     dam.recordGetUsage(relation);
     try {
-      List<? extends CommonFieldsBase> results = query.executeQuery();
-      if (results == null || results.size() != 1) {
+      CompiledStatements s = getCompiledStatements(relation);
+      List<? extends CommonFieldsBase> results = RelationDefinitionCache.retryIfStale(this,
+          relation, user, () -> getJdbcConnection().query(s.selectByPk, new Object[] { uri },
+              new RelationRowMapper(relation, user)));
+      dam.recordQueryUsage(relation, results.size());
+      if (results.size() != 1) {
         throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
             + relation.getTableName() + " key: " + uri);
       }
       return (T) results.get(0);
-    } catch (ODKDatastoreException e) {
+    } catch (ODKEntityNotFoundException e) {
+      throw e;
+    } catch (Exception e) {
       throw new ODKEntityNotFoundException("Unable to retrieve " + relation.getSchemaName() + "."
           + relation.getTableName() + " key: " + uri, e);
     }
   }
 
+  /**
+   * @param relation
+   *          the relation or any entity of that relation
+   * @return the cached SQL statements for this relation
+   */
+  CompiledStatements getCompiledStatements(CommonFieldsBase relation) {
+    return statementCache.getStatements(relation);
+  }
+
   @Override
   public Query createQuery(CommonFieldsBase relation, String loggingContextTag, User user) {
     Query query = new QueryImpl(relation, loggingContextTag, this, user);
@@ -947,101 +1042,37 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void putEntity(CommonFieldsBase entity, User user) throws ODKEntityPersistException {
+    EngineUtils.assertNotPartial(entity);
     dam.recordPutUsage(entity);
     try {
-      boolean first;
-      StringBuilder b = new StringBuilder();
+      CompiledStatements s = getCompiledStatements(entity);
       if (entity.isFromDatabase()) {
         // we need to do an update
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
 
-        b.append(K_UPDATE);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        b.append(K_SET);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          // primary key goes in the where clause...
-          if (f == entity.primaryKey)
-            continue;
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
+        DataField[] bindFields = s.getUpdateBindFields();
+        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>(bindFields.length);
+        for (DataField f : bindFields) {
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_WHERE);
-        b.append(K_BQ);
-        b.append(entity.primaryKey.getName());
-        b.append(K_BQ);
-        b.append(K_EQ);
-        b.append(K_BIND_VALUE);
-        buildArgumentList(pv, entity, entity.primaryKey);
 
         // update...
-        String sql = b.toString();
-        ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
-        getJdbcConnection().update(sql, setter);
+        ReusableStatementSetter setter = new ReusableStatementSetter(s.updateByPk, pv);
+        RelationDefinitionCache.retryIfStale(this, entity, user,
+            () -> getJdbcConnection().update(s.updateByPk, setter));
       } else {
         // not yet in database -- insert
-        b.append(K_INSERT_INTO);
-        b.append(K_BQ);
-        b.append(entity.getSchemaName());
-        b.append(K_BQ);
-        b.append(".");
-        b.append(K_BQ);
-        b.append(entity.getTableName());
-        b.append(K_BQ);
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BQ);
-          b.append(f.getName());
-          b.append(K_BQ);
-        }
-        b.append(K_CLOSE_PAREN);
-        b.append(K_VALUES);
-
-        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
-        first = true;
-        b.append(K_OPEN_PAREN);
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (!first) {
-            b.append(K_CS);
-          }
-          first = false;
-          b.append(K_BIND_VALUE);
+        DataField[] bindFields = s.getInsertBindFields();
+        ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>(bindFields.length);
+        for (DataField f : bindFields) {
           buildArgumentList(pv, entity, f);
         }
-        b.append(K_CLOSE_PAREN);
 
         // insert...
-        String sql = b.toString();
-        ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
-        getJdbcConnection().update(sql, setter);
+        ReusableStatementSetter setter = new ReusableStatementSetter(s.insert, pv);
+        RelationDefinitionCache.retryIfStale(this, entity, user,
+            () -> getJdbcConnection().update(s.insert, setter));
         entity.setFromDatabase(true); // now it is in the database...
       }
     } catch (Exception e) {
@@ -1052,8 +1083,48 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entityList, User user)
       throws ODKEntityPersistException {
-    for (CommonFieldsBase d : entityList) {
-      putEntity(d, user);
+    // reject the whole list before any of it is written
+    for (CommonFieldsBase entity : entityList) {
+      EngineUtils.assertNotPartial(entity);
+    }
+    // send each group of inserts or updates to the same relation as a batch
+    for (List<CommonFieldsBase> group : EngineUtils.groupForBatchPut(entityList)) {
+      if (group.size() == 1) {
+        putEntity(group.get(0), user);
+      } else {
+        batchAlterData(group, user);
+      }
+    }
+  }
+
+  @Override
+  public void putEntitiesInTransaction(Collection<? extends CommonFieldsBase> entityList,
+      User user) throws ODKEntityPersistException {
+    // remember the entities that are inserted, so they can be marked as new
+    // again if the transaction is rolled back
+    List<CommonFieldsBase> inserts = new ArrayList<CommonFieldsBase>();
+    for (CommonFieldsBase entity : entityList) {
+      if (!entity.isFromDatabase()) {
+        inserts.add(entity);
+      }
+    }
+
+    TransactionStatus status = null;
+    try {
+      status = tm.getTransaction(new DefaultTransactionDefinition());
+      putEntities(entityList, user);
+      tm.commit(status);
+    } catch (Exception e) {
+      if (status != null && !status.isCompleted()) {
+        tm.rollback(status);
+      }
+      for (CommonFieldsBase entity : inserts) {
+        entity.setFromDatabase(false);
+      }
+      if (e instanceof ODKEntityPersistException) {
+        throw (ODKEntityPersistException) e;
+      }
+      throw new ODKEntityPersistException(e);
     }
   }
 
@@ -1087,6 +1158,10 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     if (changes.isEmpty()) {
       return;
     }
+    // reject the whole batch before its first chunk is written
+    for (CommonFieldsBase entity : changes) {
+      EngineUtils.assertNotPartial(entity);
+    }
 
     // we need to be careful -- SqlServer only allows a small number of 
     // bind parameters on a request. This severely limits the batch size
@@ -1110,129 +1185,45 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       return;
     }
 
-    boolean generateSQL = true;
-    String sql = null;
+    // all entities in the batch are either inserts or updates of one relation
+    CommonFieldsBase firstEntity = allChanges.get(idxStart);
+    CompiledStatements s = getCompiledStatements(firstEntity);
+    DataField[] bindFields;
+    String sql;
+    if (firstEntity.isFromDatabase()) {
+      bindFields = s.getUpdateBindFields();
+      sql = s.updateByPk + K_COLON;
+    } else {
+      bindFields = s.getInsertBindFields();
+      sql = s.insert + K_COLON;
+    }
     List<List<SqlParameterValue> > batchArgs = new ArrayList<List<SqlParameterValue> >();
-    StringBuilder b = new StringBuilder();
 
     for (int idx = idxStart ; idx < idxAfterEnd ; ++idx ) {
       CommonFieldsBase entity = allChanges.get(idx);
       dam.recordPutUsage(entity);
 
-      boolean first;
-      b.setLength(0);
-
-      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>();
-
       if (entity.isFromDatabase()) {
         // we need to do an update
         entity.setDateField(entity.lastUpdateDate, new Date());
         entity.setStringField(entity.lastUpdateUriUser, user.getUriUser());
-
-        if (generateSQL) {
-          b.append(K_UPDATE);
-          b.append(K_BQ);
-          b.append(entity.getSchemaName());
-          b.append(K_BQ);
-          b.append(".");
-          b.append(K_BQ);
-          b.append(entity.getTableName());
-          b.append(K_BQ);
-          b.append(K_SET);
-        }
-
-        first = true;
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          // primary key goes in the where clause...
-          if (f == entity.primaryKey)
-            continue;
-
-          if (generateSQL) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BQ);
-            b.append(f.getName());
-            b.append(K_BQ);
-            b.append(K_EQ);
-            b.append(K_BIND_VALUE);
-          }
-
-          buildArgumentList(pv, entity, f);
-        }
-        if (generateSQL) {
-          b.append(K_WHERE);
-          b.append(K_BQ);
-          b.append(entity.primaryKey.getName());
-          b.append(K_BQ);
-          b.append(K_EQ);
-          b.append(K_BIND_VALUE);
-        }
-        buildArgumentList(pv, entity, entity.primaryKey);
-
-      } else {
-        if (generateSQL) {
-          // not yet in database -- insert
-          b.append(K_INSERT_INTO);
-          b.append(K_BQ);
-          b.append(entity.getSchemaName());
-          b.append(K_BQ);
-          b.append(".");
-          b.append(K_BQ);
-          b.append(entity.getTableName());
-          b.append(K_BQ);
-          first = true;
-          b.append(K_OPEN_PAREN);
-          // fields...
-          for (DataField f : entity.getFieldList()) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BQ);
-            b.append(f.getName());
-            b.append(K_BQ);
-          }
-          b.append(K_CLOSE_PAREN);
-          b.append(K_VALUES);
-          b.append(K_OPEN_PAREN);
-        }
-
-        first = true;
-        // fields...
-        for (DataField f : entity.getFieldList()) {
-          if (generateSQL) {
-            if (!first) {
-              b.append(K_CS);
-            }
-            first = false;
-            b.append(K_BIND_VALUE);
-          }
-          buildArgumentList(pv, entity, f);
-        }
-
-        if (generateSQL) {
-          b.append(K_CLOSE_PAREN);
-        }
       }
 
-      if (generateSQL) {
-        b.append(K_COLON);
-        sql = b.toString();
+      ArrayList<SqlParameterValue> pv = new ArrayList<SqlParameterValue>(bindFields.length);
+      for (DataField f : bindFields) {
+        buildArgumentList(pv, entity, f);
       }
-      generateSQL = false;
       batchArgs.add(pv);
     }
 
     try {
       // update...
       BatchStatementFieldSetter setter = new BatchStatementFieldSetter(sql, batchArgs);
-      getJdbcConnection().batchUpdate(sql, setter);
+      RelationDefinitionCache.retryIfStale(this, firstEntity, user,
+          () -> getJdbcConnection().batchUpdate(setter.sql, setter));
 
       // if this was an insert, set the fromDatabase flag in the entities
-      if (!allChanges.get(0).isFromDatabase()) {
+      if (!firstEntity.isFromDatabase()) {
         for (int idx = idxStart ; idx < idxAfterEnd ; ++idx ) {
           CommonFieldsBase entity = allChanges.get(idx);
           entity.setFromDatabase(true);
@@ -1248,27 +1239,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
     dam.recordDeleteUsage(key);
     try {
-      CommonFieldsBase d = key.getRelation();
-
-      StringBuilder b = new StringBuilder();
-      b.append(K_DELETE_FROM);
-      b.append(K_BQ);
-      b.append(d.getSchemaName());
-      b.append(K_BQ);
-      b.append(".");
-      b.append(K_BQ);
-      b.append(d.getTableName());
-      b.append(K_BQ);
-      b.append(K_WHERE);
-      b.append(K_BQ);
-      b.append(d.primaryKey.getName());
-      b.append(K_BQ);
-      b.append(K_EQ);
-      b.append(K_BIND_VALUE);
+      CompiledStatements s = getCompiledStatements(key.getRelation());
 
-      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Executing " + s.deleteByPk + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[] { key.getKey() });
+      RelationDefinitionCache.retryIfStale(this, key.getRelation(), user,
+          () -> getJdbcConnection().update(s.deleteByPk, new Object[] { key.getKey() }));
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
     }
@@ -1277,13 +1253,24 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   @Override
   public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
     ODKDatastoreException e = null;
-    for (EntityKey k : keys) {
-      try {
-        deleteEntity(k, user);
-      } catch (ODKDatastoreException ex) {
-        ex.printStackTrace();
-        if (e == null) {
-          e = ex; // save the first exception...
+    for (List<EntityKey> group : EngineUtils.groupByRelation(keys)) {
+      // delete in chunks that fit within the bind parameter limit
+      for (int idxStart = 0; idxStart < group.size(); idxStart += MAX_BIND_PARAMS) {
+        int idxAfterEnd = idxStart + MAX_BIND_PARAMS;
+        if (idxAfterEnd > group.size()) {
+          idxAfterEnd = group.size();
+        }
+        try {
+          if (idxAfterEnd - idxStart == 1) {
+            deleteEntity(group.get(idxStart), user);
+          } else {
+            partialDeleteEntities(group.subList(idxStart, idxAfterEnd), user);
+          }
+        } catch (ODKDatastoreException ex) {
+          ex.printStackTrace();
+          if (e == null) {
+            e = ex; // save the first exception...
+          }
         }
       }
     }
@@ -1291,6 +1278,50 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       throw e; // throw the first exception...
   }
 
+  /**
+   * Deletes the given keys, all of which must belong to the same relation,
+   * with a single DELETE ... WHERE _URI IN (...) statement.
+   *
+   * @param keys
+   * @param user
+   * @throws ODKDatastoreException
+   */
+  private void partialDeleteEntities(List<EntityKey> keys, User user)
+      throws ODKDatastoreException {
+
+    try {
+      CommonFieldsBase d = keys.get(0).getRelation();
+
+      StringBuilder b = new StringBuilder();
+      b.append(K_DELETE_FROM);
+      b.append(getCompiledStatements(d).qualifiedTableName);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(d.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_IN);
+      b.append(K_OPEN_PAREN);
+      Object[] args = new Object[keys.size()];
+      for (int i = 0; i < keys.size(); ++i) {
+        EntityKey key = keys.get(i);
+        dam.recordDeleteUsage(key);
+        if (i != 0) {
+          b.append(K_CS);
+        }
+        b.append(K_BIND_VALUE);
+        args[i] = key.getKey();
+      }
+      b.append(K_CLOSE_PAREN);
+
+      LoggerFactory.getLogger(DatastoreImpl.class).info("Deleting " + keys.size()
+          + " rows from " + d.getSchemaName() + "." + d.getTableName() + " by user "
+          + user.getUriUser());
+      getJdbcConnection().update(b.toString(), args);
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    }
+  }
+
   @Override
   public TaskLock createTaskLock(User user) {
     return new TaskLockImpl(this, dam, user);
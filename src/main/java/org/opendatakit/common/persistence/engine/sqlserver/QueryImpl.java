@@ -13,28 +13,35 @@
  */
 package org.opendatakit.common.persistence.engine.sqlserver;
 
+import java.math.BigDecimal;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.GroupedAggregate;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.QueryResult;
 import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.engine.EngineUtils;
+import org.opendatakit.common.persistence.engine.RelationDefinitionCache;
+import org.opendatakit.common.persistence.engine.RelationStatementCache.CompiledStatements;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.security.User;
 import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
 /**
@@ -58,6 +65,15 @@ public class QueryImpl implements Query {
   private static final String K_IN_CLOSE = ")";
   private static final String K_BIND_VALUE = " ? ";
   private static final String K_ORDER_BY = " ORDER BY ";
+  private static final String K_GROUP_BY = " GROUP BY ";
+  private static final String K_COUNT_ALL = "COUNT(*)";
+  private static final String K_COUNT_OPEN = "COUNT(";
+  private static final String K_SUM_OPEN = "SUM(";
+  private static final String K_TOP_OPEN = "TOP (";
+  private static final String K_TOP_CLOSE = ") ";
+  private static final String K_OPEN = "(";
+  private static final String K_CLOSE = ")";
+  private static final String K_OR = " OR ";
 
   private static Map<FilterOperation, String> operationMap = new HashMap<FilterOperation, String>();
   private static Map<Direction, String> directionMap = new HashMap<Direction, String>();
@@ -81,6 +97,14 @@ public class QueryImpl implements Query {
   private DataField dominantSortAttr = null;
   private Direction dominantSortDirection = null;
   private boolean isSortedByUri = false;
+  private int sortCount = 0;
+  // true if the PK is sorted immediately after the dominant sort and in the
+  // same direction, i.e., (dominant, PK) is a total order usable for keyset
+  // continuation.
+  private boolean isUriSecondarySort = false;
+  private final List<DataField> sortAttrs = new ArrayList<DataField>();
+  // null if all fields of the relation are fetched
+  private List<DataField> projection = null;
 
   private final StringBuilder queryBindBuilder = new StringBuilder();
   private final List<Object> bindValues = new ArrayList<Object>();
@@ -95,30 +119,35 @@ public class QueryImpl implements Query {
     this.user = user;
   }
 
-  private String generateQuery() {
+  /**
+   * Generates the SELECT ... FROM portion of the query.
+   *
+   * @param selectedFields
+   *          the fields to fetch, or null for all fields.
+   * @param rowLimit
+   *          maximum number of rows to return; 0 for no limit.
+   * @return the query string
+   */
+  private String generateQuery(DataField[] selectedFields, int rowLimit) {
+    CompiledStatements s = dataStoreImpl.getCompiledStatements(relation);
+    if (selectedFields == null && rowLimit <= 0) {
+      // the SELECT ... FROM portion depends only upon the relation
+      return s.selectPrefix;
+    }
+
     // generate the query
     StringBuilder baseQueryBuilder = new StringBuilder();
 
     baseQueryBuilder.append(K_SELECT);
-
-    boolean first = true;
-    for (DataField f : relation.getFieldList()) {
-      if (!first) {
-        baseQueryBuilder.append(K_CS);
-      }
-      first = false;
-      baseQueryBuilder.append(K_BQ);
-      baseQueryBuilder.append(f.getName());
-      baseQueryBuilder.append(K_BQ);
+    if (rowLimit > 0) {
+      baseQueryBuilder.append(K_TOP_OPEN);
+      baseQueryBuilder.append(Integer.toString(rowLimit));
+      baseQueryBuilder.append(K_TOP_CLOSE);
     }
+    baseQueryBuilder.append((selectedFields == null) ? s.columnList
+        : getColumnList(selectedFields));
     baseQueryBuilder.append(K_FROM);
-    baseQueryBuilder.append(K_BQ);
-    baseQueryBuilder.append(relation.getSchemaName());
-    baseQueryBuilder.append(K_BQ);
-    baseQueryBuilder.append(".");
-    baseQueryBuilder.append(K_BQ);
-    baseQueryBuilder.append(relation.getTableName());
-    baseQueryBuilder.append(K_BQ);
+    baseQueryBuilder.append(s.qualifiedTableName);
 
     return baseQueryBuilder.toString();
   }
@@ -173,12 +202,18 @@ public class QueryImpl implements Query {
    * Constructs the necessary filter clause to append to the Query filters to
    * support continuation cursors.
    * 
+   * If uriLastReturned is non-null, the (dominant sort, PK) pair is a total
+   * order for this query and the filter seeks directly past the last returned
+   * record (keyset continuation). Otherwise, the filter only bounds the
+   * dominant sort value and the caller must skip the already-returned records.
+   * 
    * @param queryContinuationBindBuilder
    * @param continuationValue
+   * @param uriLastReturned
    * @return the updated bindArgs
    */
   private ArrayList<Object> addContinuationFilter(StringBuilder queryContinuationBindBuilder,
-      Object continuationValue) {
+      Object continuationValue, String uriLastReturned) {
     if (dominantSortAttr == null) {
       throw new IllegalStateException("unexpected state");
     }
@@ -191,18 +226,59 @@ public class QueryImpl implements Query {
     } else {
       queryContinuationBindBuilder.append(K_AND);
     }
-    queryContinuationBindBuilder.append(K_BQ);
-    queryContinuationBindBuilder.append(dominantSortAttr.getName());
-    queryContinuationBindBuilder.append(K_BQ);
-    queryContinuationBindBuilder.append(operationMap.get(dominantSortDirection
-        .equals(Direction.ASCENDING) ? FilterOperation.GREATER_THAN_OR_EQUAL
-        : FilterOperation.LESS_THAN_OR_EQUAL));
-    queryContinuationBindBuilder.append(K_BIND_VALUE);
-    
+
+    boolean isAscending = dominantSortDirection.equals(Direction.ASCENDING);
+    String strictOp = operationMap.get(isAscending ? FilterOperation.GREATER_THAN
+        : FilterOperation.LESS_THAN);
+
     ArrayList<Object> values = new ArrayList<Object>();
     values.addAll(bindValues);
-    values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
-    
+
+    if (uriLastReturned == null) {
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(operationMap.get(isAscending
+          ? FilterOperation.GREATER_THAN_OR_EQUAL : FilterOperation.LESS_THAN_OR_EQUAL));
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
+    } else if (dominantSortAttr.equals(relation.primaryKey)) {
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(relation.primaryKey.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(strictOp);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      values.add(DatastoreImpl.getBindValue(relation.primaryKey, uriLastReturned));
+    } else {
+      // SQL Server does not support row-value comparisons; expand
+      // (dominant, PK) > (?, ?) into its equivalent disjunction.
+      queryContinuationBindBuilder.append(K_OPEN);
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(strictOp);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      queryContinuationBindBuilder.append(K_OR);
+      queryContinuationBindBuilder.append(K_OPEN);
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(operationMap.get(FilterOperation.EQUAL));
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      queryContinuationBindBuilder.append(K_AND);
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(relation.primaryKey.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(strictOp);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      queryContinuationBindBuilder.append(K_CLOSE);
+      queryContinuationBindBuilder.append(K_CLOSE);
+      Object dominantValue = DatastoreImpl.getBindValue(dominantSortAttr, continuationValue);
+      values.add(dominantValue);
+      values.add(dominantValue);
+      values.add(DatastoreImpl.getBindValue(relation.primaryKey, uriLastReturned));
+    }
+
     return values;
   }
 
@@ -229,6 +305,37 @@ public class QueryImpl implements Query {
     queryBindBuilder.append(K_IN_CLOSE);
   }
 
+  @Override
+  public void addSubqueryFilter(DataField attributeName, Query subquery, DataField subqueryField) {
+    if (!(subquery instanceof QueryImpl)) {
+      throw new IllegalArgumentException("subquery was not created by this datastore");
+    }
+    QueryImpl sub = (QueryImpl) subquery;
+    if (!sub.relation.getFieldList().contains(subqueryField)) {
+      throw new IllegalArgumentException("Attempting to select a field " + subqueryField.getName()
+          + " not belonging to " + sub.relation.getSchemaName() + "."
+          + sub.relation.getTableName());
+    }
+    if (queryBindBuilder.length() == 0) {
+      queryBindBuilder.append(K_WHERE);
+    } else {
+      queryBindBuilder.append(K_AND);
+    }
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(attributeName.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_IN_OPEN);
+    queryBindBuilder.append(K_SELECT);
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(subqueryField.getName());
+    queryBindBuilder.append(K_BQ);
+    queryBindBuilder.append(K_FROM);
+    queryBindBuilder.append(sub.dataStoreImpl.getCompiledStatements(sub.relation).qualifiedTableName);
+    queryBindBuilder.append(sub.queryBindBuilder);
+    queryBindBuilder.append(K_IN_CLOSE);
+    bindValues.addAll(sub.bindValues);
+  }
+
   @Override
   public void addSort(DataField attributeName, Direction direction) {
     if (querySortBuilder.length() == 0) {
@@ -250,21 +357,71 @@ public class QueryImpl implements Query {
     // track whether or not the PK is a sort criteria
     if (attributeName.equals(relation.primaryKey)) {
       isSortedByUri = true;
+      if (sortCount == 1 && direction.equals(dominantSortDirection)) {
+        isUriSecondarySort = true;
+      }
     }
+    ++sortCount;
+    sortAttrs.add(attributeName);
+  }
+
+  @Override
+  public void selectOnly(DataField... fields) {
+    List<DataField> fieldList = relation.getFieldList();
+    for (DataField f : fields) {
+      if (!fieldList.contains(f)) {
+        throw new IllegalArgumentException("Attempting to select a field " + f.getName()
+            + " not belonging to " + relation.getSchemaName() + "." + relation.getTableName());
+      }
+    }
+    projection = Arrays.asList(fields);
+  }
+
+  /**
+   * @return the fields to fetch, in relation order, or null if all fields are
+   *         fetched. The PK and the sort attributes are always fetched so that
+   *         cursors can be constructed from the results.
+   */
+  private DataField[] getSelectedFields() {
+    if (projection == null) {
+      return null;
+    }
+    List<DataField> selected = new ArrayList<DataField>();
+    for (DataField f : relation.getFieldList()) {
+      if (f == relation.primaryKey || projection.contains(f) || sortAttrs.contains(f)) {
+        selected.add(f);
+      }
+    }
+    return selected.toArray(new DataField[selected.size()]);
+  }
+
+  private String getColumnList(DataField[] selectedFields) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < selectedFields.length; ++i) {
+      if (i != 0) {
+        b.append(K_CS);
+      }
+      b.append(K_BQ);
+      b.append(selectedFields[i].getName());
+      b.append(K_BQ);
+    }
+    return b.toString();
   }
 
   @Override
   public List<? extends CommonFieldsBase> executeQuery() throws ODKDatastoreException {
 
-    String query = generateQuery() + queryBindBuilder.toString() + querySortBuilder.toString()
-        + ";";
-    RowMapper<? extends CommonFieldsBase> rowMapper = null;
-    rowMapper = new RelationRowMapper(relation, user);
+    DataField[] selectedFields = getSelectedFields();
+    String query = generateQuery(selectedFields, 0) + queryBindBuilder.toString()
+        + querySortBuilder.toString() + ";";
+    RowMapper<? extends CommonFieldsBase> rowMapper = new RelationRowMapper(relation,
+        selectedFields, user);
 
     try {
       queryStringLogger.debug(query);
-      List<? extends CommonFieldsBase> l = dataStoreImpl.getJdbcConnection().query(query,
-          bindValues.toArray(), rowMapper);
+      List<? extends CommonFieldsBase> l = RelationDefinitionCache.retryIfStale(dataStoreImpl,
+          relation, user,
+          () -> dataStoreImpl.getJdbcConnection().query(query, bindValues.toArray(), rowMapper));
       dataStoreImpl.recordQueryUsage(relation, l.size());
       return l;
     } catch (Exception e) {
@@ -274,6 +431,24 @@ public class QueryImpl implements Query {
     }
   }
 
+  @Override
+  public void stream(int fetchSize, Consumer<? super CommonFieldsBase> rowHandler)
+      throws ODKDatastoreException {
+
+    DataField[] selectedFields = getSelectedFields();
+    String query = generateQuery(selectedFields, 0) + queryBindBuilder.toString()
+        + querySortBuilder.toString() + ";";
+    StreamingRowCallbackHandler handler = new StreamingRowCallbackHandler(
+        new RelationRowMapper(relation, selectedFields, user), rowHandler);
+
+    try {
+      queryStringLogger.debug(query);
+      dataStoreImpl.streamQuery(query, bindValues.toArray(), fetchSize, handler);
+    } finally {
+      dataStoreImpl.recordQueryUsage(relation, handler.getRowCount());
+    }
+  }
+
   @Override
   public List<?> executeDistinctValueForDataField(DataField dataField) throws ODKDatastoreException {
 
@@ -282,8 +457,9 @@ public class QueryImpl implements Query {
 
     List<?> keys = null;
     try {
-      keys = dataStoreImpl.getJdbcConnection().queryForList(query, bindValues.toArray(),
-          String.class);
+      keys = RelationDefinitionCache.retryIfStale(dataStoreImpl, relation, user,
+          () -> dataStoreImpl.getJdbcConnection().queryForList(query, bindValues.toArray(),
+              String.class));
       dataStoreImpl.recordQueryUsage(relation, keys.size());
     } catch (Exception e) {
       dataStoreImpl.recordQueryUsage(relation, 0);
@@ -293,6 +469,70 @@ public class QueryImpl implements Query {
     return keys;
   }
 
+  @Override
+  public List<GroupedAggregate> executeGroupedAggregate(DataField groupByField,
+      DataField aggregatedField) throws ODKDatastoreException {
+    List<DataField> fieldList = relation.getFieldList();
+    if (!fieldList.contains(groupByField)
+        || (aggregatedField != null && !fieldList.contains(aggregatedField))) {
+      throw new IllegalStateException("Attempting to aggregate a field not belonging to "
+          + relation.getSchemaName() + "." + relation.getTableName());
+    }
+
+    String groupColumn = K_BQ + groupByField.getName() + K_BQ;
+    StringBuilder b = new StringBuilder();
+    b.append(K_SELECT);
+    b.append(groupColumn);
+    b.append(K_CS);
+    b.append(K_COUNT_ALL);
+    if (aggregatedField != null) {
+      String valueColumn = K_BQ + aggregatedField.getName() + K_BQ;
+      b.append(K_CS);
+      b.append(K_COUNT_OPEN);
+      b.append(valueColumn);
+      b.append(K_CLOSE);
+      b.append(K_CS);
+      b.append(K_SUM_OPEN);
+      b.append(valueColumn);
+      b.append(K_CLOSE);
+    }
+    b.append(K_FROM);
+    b.append(dataStoreImpl.getCompiledStatements(relation).qualifiedTableName);
+    b.append(queryBindBuilder);
+    b.append(K_GROUP_BY);
+    b.append(groupColumn);
+    b.append(K_ORDER_BY);
+    b.append(groupColumn);
+    b.append(";");
+    String query = b.toString();
+
+    final boolean hasValue = (aggregatedField != null);
+    try {
+      queryStringLogger.debug(query);
+      List<GroupedAggregate> groups = RelationDefinitionCache.retryIfStale(dataStoreImpl,
+          relation, user, () -> dataStoreImpl.getJdbcConnection().query(query,
+          bindValues.toArray(), new RowMapper<GroupedAggregate>() {
+            @Override
+            public GroupedAggregate mapRow(ResultSet rs, int rowNum) throws SQLException {
+              String groupValue = rs.getString(1);
+              long count = rs.getLong(2);
+              if (!hasValue) {
+                return new GroupedAggregate(groupValue, count, 0L, null);
+              }
+              long valueCount = rs.getLong(3);
+              BigDecimal sum = rs.getBigDecimal(4);
+              return new GroupedAggregate(groupValue, count, valueCount, sum);
+            }
+          }));
+      dataStoreImpl.recordQueryUsage(relation, groups.size());
+      return groups;
+    } catch (Exception e) {
+      dataStoreImpl.recordQueryUsage(relation, 0);
+      e.printStackTrace();
+      throw new ODKDatastoreException(e);
+    }
+  }
+
   @Override
   public Set<EntityKey> executeForeignKeyQuery(CommonFieldsBase topLevelTable,
       DataField topLevelAuri) throws ODKDatastoreException {
@@ -322,16 +562,46 @@ public class QueryImpl implements Query {
     }
   }
 
+  private static class StreamingRowCallbackHandler implements RowCallbackHandler {
+
+    private int rowCount = 0;
+    private final RowMapper<? extends CommonFieldsBase> rowMapper;
+    private final Consumer<? super CommonFieldsBase> rowHandler;
+
+    StreamingRowCallbackHandler(RowMapper<? extends CommonFieldsBase> rowMapper,
+        Consumer<? super CommonFieldsBase> rowHandler) {
+      this.rowMapper = rowMapper;
+      this.rowHandler = rowHandler;
+    }
+
+    @Override
+    public void processRow(ResultSet rs) throws SQLException {
+      rowHandler.accept(rowMapper.mapRow(rs, rowCount++));
+    }
+
+    public int getRowCount() {
+      return rowCount;
+    }
+  }
+
   private class RowMapperFilteredResultSetExtractor implements ResultSetExtractor<CoreResult> {
 
     private int readCount = 0;
-    private final QueryResumePoint startCursor;
+    private final String startUri;
     private final int fetchLimit;
     private final RowMapper<? extends CommonFieldsBase> rowMapper;
 
-    RowMapperFilteredResultSetExtractor(QueryResumePoint startCursor, int fetchLimit,
+    /**
+     * @param startUri
+     *          if non-null, rows are skipped up to and including the row with
+     *          this PK. Null if the query already starts after the last
+     *          returned row.
+     * @param fetchLimit
+     * @param rowMapper
+     */
+    RowMapperFilteredResultSetExtractor(String startUri, int fetchLimit,
         RowMapper<? extends CommonFieldsBase> rowMapper) {
-      this.startCursor = startCursor;
+      this.startUri = startUri;
       this.fetchLimit = fetchLimit;
       this.rowMapper = rowMapper;
     }
@@ -340,7 +610,6 @@ public class QueryImpl implements Query {
     public CoreResult extractData(ResultSet rs) throws SQLException {
       boolean hasMoreResults = false;
       List<CommonFieldsBase> results = new ArrayList<CommonFieldsBase>();
-      String startUri = (startCursor == null) ? null : startCursor.getUriLastReturnedValue();
       boolean beforeUri = (startUri != null);
       while (rs.next()) {
         ++readCount;
@@ -383,6 +652,8 @@ public class QueryImpl implements Query {
     // for continuation executions of queries
     StringBuilder queryContinuationBindBuilder = new StringBuilder();
     List<Object> values;
+    // PK of the last returned row if rows must be skipped client-side
+    String skipToUri = null;
 
     if (startCursor != null) {
       DataField matchingStartCursorAttr = null;
@@ -405,23 +676,39 @@ public class QueryImpl implements Query {
 
       Object continuationValue = EngineUtils.getDominantSortAttributeValueFromString(
           startCursor.getValue(), dominantSortAttr);
-      values = addContinuationFilter(queryContinuationBindBuilder, continuationValue);
+      String uriLastReturned = startCursor.getUriLastReturnedValue();
+      // seek directly past the last returned row if (dominant, PK) is the
+      // full sort order; otherwise, fall back to skipping rows client-side.
+      if (uriLastReturned != null
+          && !(isUriSecondarySort || dominantSortAttr.equals(relation.primaryKey))) {
+        skipToUri = uriLastReturned;
+        uriLastReturned = null;
+      }
+      values = addContinuationFilter(queryContinuationBindBuilder, continuationValue,
+          uriLastReturned);
     } else {
       values = bindValues;
     }
 
-    String query = generateQuery() + queryBindBuilder.toString()
+    // fetch one extra row to determine whether there are more results.
+    // The limit cannot be pushed down if rows are skipped client-side.
+    int rowLimit = (fetchLimit == 0 || skipToUri != null) ? 0 : fetchLimit + 1;
+
+    DataField[] selectedFields = getSelectedFields();
+    String query = generateQuery(selectedFields, rowLimit) + queryBindBuilder.toString()
         + queryContinuationBindBuilder.toString() + querySortBuilder.toString() + ";";
     RowMapper<? extends CommonFieldsBase> rowMapper = null;
-    rowMapper = new RelationRowMapper(relation, user);
-    RowMapperFilteredResultSetExtractor rse = new RowMapperFilteredResultSetExtractor(startCursor,
+    rowMapper = new RelationRowMapper(relation, selectedFields, user);
+    RowMapperFilteredResultSetExtractor rse = new RowMapperFilteredResultSetExtractor(skipToUri,
         fetchLimit, rowMapper);
 
     try {
       CoreResult r;
       try {
         queryStringLogger.debug(query);
-        r = dataStoreImpl.getJdbcConnection().query(query, values.toArray(), rse);
+        Object[] args = values.toArray();
+        r = RelationDefinitionCache.retryIfStale(dataStoreImpl, relation, user,
+            () -> dataStoreImpl.getJdbcConnection().query(query, args, rse));
       } finally {
         dataStoreImpl.recordQueryUsage(relation, rse.getReadCount());
       }
@@ -30,6 +30,7 @@ import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.ITaskLockType;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.EngineUtils;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -60,6 +61,9 @@ public class TaskLockImpl implements TaskLock {
 
   private static final String K_BQ = "\"";
 
+  // how long to wait for a concurrent transaction on the same resource
+  private static final int APP_LOCK_TIMEOUT_MILLISECONDS = 10000;
+
   private TaskLockTable doTransaction(TaskLockTable entity, long l)
       throws ODKEntityNotFoundException, ODKTaskLockException {
     boolean first;
@@ -88,7 +92,13 @@ public class TaskLockImpl implements TaskLock {
     String nowPlusLifetimeIntervalMilliseconds = b.toString();
     b.setLength(0);
 
-    b.append("SELECT  COUNT(1) FROM ").append(tableName).append(" WITH (TABLOCKX, HOLDLOCK)");
+    // serialize only against other transactions on this same resource and
+    // task type. The application lock is released when the transaction ends.
+    b.append("DECLARE @result INT; EXEC @result = sp_getapplock @Resource = N'")
+        .append(EngineUtils.getTaskLockName(entity.getFormId(), entity.getTaskType()))
+        .append("', @LockMode = 'Exclusive', @LockOwner = 'Transaction', @LockTimeout = ")
+        .append(APP_LOCK_TIMEOUT_MILLISECONDS)
+        .append("; IF @result < 0 RAISERROR('sp_getapplock failed', 16, 1)");
     stmts.add(b.toString());
     b.setLength(0);
 
@@ -176,9 +186,13 @@ public class TaskLockImpl implements TaskLock {
       stmts.add(b.toString());
       b.setLength(0);
     }
-    // delete stale locks (don't care who's)
+    // delete stale locks for this resource and task type (don't care who's)
     dam.recordDeleteUsage(TaskLockTable.TABLE_NAME);
     b.append("DELETE FROM ").append(tableName).append(" WHERE ");
+    b.append(K_BQ).append(entity.formId.getName()).append(K_BQ).append(" = ")
+        .append(formIdInline).append(" AND ");
+    b.append(K_BQ).append(entity.taskType.getName()).append(K_BQ).append(" = ")
+        .append(taskTypeInline).append(" AND ");
     b.append(K_BQ).append(entity.expirationDateTime.getName()).append(K_BQ).append(" <= SYSUTCDATETIME()");
     stmts.add(b.toString());
     b.setLength(0);
@@ -232,7 +246,9 @@ public class TaskLockImpl implements TaskLock {
           int oldTransactionValue = conn.getTransactionIsolation();
           try {
             conn.setAutoCommit(false);
-            conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            // the application lock serializes all writers of these rows; each
+            // statement then sees the rows committed by earlier lock holders.
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             Statement stmt = conn.createStatement();
             for (String s : stmts) {
               // for debugging: LoggerFactory.getLogger(TaskLockImpl.class).info(s);
@@ -24,8 +24,16 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -83,6 +91,37 @@ public class WebUtils {
 
   private static final String PURGE_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
 
+  private static final ZoneId GMT = ZoneId.of("GMT");
+
+  // DateTimeFormatter is immutable and thread-safe
+  private static final DateTimeFormatter RFC1123_FORMATTER = DateTimeFormatter
+      .ofPattern(PATTERN_RFC1123).withZone(GMT);
+  private static final DateTimeFormatter PURGE_DATE_FORMATTER = DateTimeFormatter
+      .ofPattern(PURGE_DATE_FORMAT);
+
+  private static final String[] ISO8601_PARSE_PATTERNS = new String[] { PATTERN_ISO8601 };
+
+  private static final String[] LOCALIZED_PARSE_PATTERNS = new String[] {
+      // try the common HTTP date formats that have time zones
+      PATTERN_RFC1123, PATTERN_RFC1036, PATTERN_DATE_TOSTRING };
+
+  private static final String[] LOCALIZED_NO_TZ_PARSE_PATTERNS = new String[] {
+      // ones without timezones... (will assume UTC)
+      PATTERN_ASCTIME };
+
+  private static final String[] TZ_PARSE_PATTERNS = new String[] { PATTERN_ISO8601,
+      PATTERN_ISO8601_DATE, PATTERN_ISO8601_TIME };
+
+  private static final String[] NO_TZ_PARSE_PATTERNS = new String[] {
+      // ones without timezones... (will assume UTC)
+      PATTERN_ISO8601_WITHOUT_ZONE, PATTERN_NO_DATE_TIME_ONLY,
+      PATTERN_YYYY_MM_DD_DATE_ONLY_NO_TIME_DASH, PATTERN_GOOGLE_DOCS };
+
+  // SDF is not thread-safe; the lenient parsers are kept per thread, keyed by
+  // locale and pattern.
+  private static final ThreadLocal<Map<String, SimpleDateFormat>> parsers = ThreadLocal
+      .withInitial(HashMap::new);
+
   private WebUtils() {
   };
 
@@ -181,22 +220,28 @@ public class WebUtils {
     return b;
   }
 
+  private static SimpleDateFormat getParser(String pattern, Locale l) {
+    Map<String, SimpleDateFormat> cache = parsers.get();
+    String key = ((l == null) ? "" : l.toString()) + "|" + pattern;
+    SimpleDateFormat parser = cache.get(key);
+    if (parser == null) {
+      if (l == null) {
+        parser = new SimpleDateFormat(pattern);
+      } else {
+        parser = new SimpleDateFormat(pattern, l);
+      }
+      cache.put(key, parser);
+    }
+    return parser;
+  }
+
   private static final Date parseDateSubset(String value, String[] parsePatterns, Locale l,
       TimeZone tz) {
     // borrowed from apache.commons.lang.DateUtils...
     Date d = null;
-    SimpleDateFormat parser = null;
     ParsePosition pos = new ParsePosition(0);
     for (int i = 0; i < parsePatterns.length; i++) {
-      if (i == 0) {
-        if (l == null) {
-          parser = new SimpleDateFormat(parsePatterns[0]);
-        } else {
-          parser = new SimpleDateFormat(parsePatterns[0], l);
-        }
-      } else {
-        parser.applyPattern(parsePatterns[i]);
-      }
+      SimpleDateFormat parser = getParser(parsePatterns[i], l);
       parser.setTimeZone(tz); // enforce UTC for formats without timezones
       pos.setIndex(0);
       d = parser.parse(value, pos);
@@ -219,27 +264,11 @@ public class WebUtils {
     if (value == null || value.length() == 0)
       return null;
 
-    String[] iso8601Pattern = new String[] { PATTERN_ISO8601 };
-
-    String[] localizedParsePatterns = new String[] {
-        // try the common HTTP date formats that have time zones
-        PATTERN_RFC1123, PATTERN_RFC1036, PATTERN_DATE_TOSTRING };
-
-    String[] localizedNoTzParsePatterns = new String[] {
-    // ones without timezones... (will assume UTC)
-    PATTERN_ASCTIME };
-
-    String[] tzParsePatterns = new String[] { PATTERN_ISO8601, PATTERN_ISO8601_DATE,
-        PATTERN_ISO8601_TIME };
-
-    String[] noTzParsePatterns = new String[] {
-        // ones without timezones... (will assume UTC)
-        PATTERN_ISO8601_WITHOUT_ZONE, PATTERN_NO_DATE_TIME_ONLY,
-        PATTERN_YYYY_MM_DD_DATE_ONLY_NO_TIME_DASH, PATTERN_GOOGLE_DOCS };
+    TimeZone gmt = TimeZone.getTimeZone("GMT");
 
     Date d = null;
     // iso8601 parsing is sometimes off-by-one when JR does it...
-    d = parseDateSubset(value, iso8601Pattern, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, ISO8601_PARSE_PATTERNS, null, gmt);
     if (d != null)
       return d;
     // try to parse with the JavaRosa parsers
@@ -254,24 +283,23 @@ public class WebUtils {
       return d;
     // try localized and english text parsers (for Web headers and interactive
     // filter spec.)
-    d = parseDateSubset(value, localizedParsePatterns, Locale.ENGLISH, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_PARSE_PATTERNS, Locale.ENGLISH, gmt);
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_PARSE_PATTERNS, null, gmt);
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedNoTzParsePatterns, Locale.ENGLISH,
-        TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_NO_TZ_PARSE_PATTERNS, Locale.ENGLISH, gmt);
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedNoTzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_NO_TZ_PARSE_PATTERNS, null, gmt);
     if (d != null)
       return d;
     // try other common patterns that might not quite match JavaRosa parsers
-    d = parseDateSubset(value, tzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, TZ_PARSE_PATTERNS, null, gmt);
     if (d != null)
       return d;
-    d = parseDateSubset(value, noTzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, NO_TZ_PARSE_PATTERNS, null, gmt);
     if (d != null)
       return d;
     // try the locale- and timezone- specific parsers
@@ -356,6 +384,33 @@ public class WebUtils {
     return b.toString();
   }
 
+  private static void appendPadded(StringBuilder b, int value, int width) {
+    for (int limit = 10; width > 1; --width, limit *= 10) {
+      if (value < limit) {
+        b.append('0');
+      }
+    }
+    b.append(value);
+  }
+
+  /**
+   * @param d
+   * @return the date as a GMT date-time, or null if it is before the Gregorian
+   *         cutover (where SimpleDateFormat uses the Julian calendar) or its
+   *         year does not have four digits.
+   */
+  private static LocalDateTime asGmtDateTime(Date d) {
+    LocalDateTime t = LocalDateTime.ofInstant(d.toInstant(), ZoneOffset.UTC);
+    return (t.getYear() < 1583 || t.getYear() > 9999) ? null : t;
+  }
+
+  private static String formatAsGmt(String pattern, Date d) {
+    // SDF is not thread-safe
+    SimpleDateFormat formatter = new SimpleDateFormat(pattern);
+    formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return formatter.format(d);
+  }
+
   /**
    * Return the GoogleDocs datetime string representation of a datetime.
    *
@@ -365,9 +420,26 @@ public class WebUtils {
   public static final String googleDocsDateTime(Date d) {
     if (d == null)
       return null;
-    SimpleDateFormat asGoogleDoc = new SimpleDateFormat(PATTERN_GOOGLE_DOCS);
-    asGoogleDoc.setTimeZone(TimeZone.getTimeZone("GMT"));
-    return asGoogleDoc.format(d);
+    LocalDateTime t = asGmtDateTime(d);
+    if (t == null) {
+      return formatAsGmt(PATTERN_GOOGLE_DOCS, d);
+    }
+    // written by hand; this is called for every datetime cell of an export
+    StringBuilder b = new StringBuilder(PATTERN_GOOGLE_DOCS.length());
+    appendPadded(b, t.getMonthValue(), 2);
+    b.append('/');
+    appendPadded(b, t.getDayOfMonth(), 2);
+    b.append('/');
+    b.append(t.getYear());
+    b.append(' ');
+    appendPadded(b, t.getHour(), 2);
+    b.append(':');
+    appendPadded(b, t.getMinute(), 2);
+    b.append(':');
+    appendPadded(b, t.getSecond(), 2);
+    b.append('.');
+    appendPadded(b, t.getNano() / 1000000, 3);
+    return b.toString();
   }
 
   /**
@@ -379,9 +451,17 @@ public class WebUtils {
   public static final String googleDocsDateOnly(Date d) {
     if (d == null)
       return null;
-    SimpleDateFormat asGoogleDocDateOnly = new SimpleDateFormat(PATTERN_GOOGLE_DOCS_DATE_ONLY);
-    asGoogleDocDateOnly.setTimeZone(TimeZone.getTimeZone("GMT"));
-    return asGoogleDocDateOnly.format(d);
+    LocalDateTime t = asGmtDateTime(d);
+    if (t == null) {
+      return formatAsGmt(PATTERN_GOOGLE_DOCS_DATE_ONLY, d);
+    }
+    StringBuilder b = new StringBuilder(PATTERN_GOOGLE_DOCS_DATE_ONLY.length());
+    appendPadded(b, t.getMonthValue(), 2);
+    b.append('/');
+    appendPadded(b, t.getDayOfMonth(), 2);
+    b.append('/');
+    b.append(t.getYear());
+    return b.toString();
   }
 
   /**
@@ -393,12 +473,27 @@ public class WebUtils {
   public static final String iso8601Date(Date d) {
     if (d == null)
       return null;
-    // SDF is not thread-safe
-    SimpleDateFormat asGMTiso8601 = new SimpleDateFormat(PATTERN_ISO8601); // with
-                                                                           // time
-                                                                           // zone
-    asGMTiso8601.setTimeZone(TimeZone.getTimeZone("GMT"));
-    return asGMTiso8601.format(d);
+    LocalDateTime t = asGmtDateTime(d);
+    if (t == null) {
+      return formatAsGmt(PATTERN_ISO8601, d);
+    }
+    // yyyy-MM-dd'T'HH:mm:ss.SSS+0000
+    StringBuilder b = new StringBuilder(28);
+    b.append(t.getYear());
+    b.append('-');
+    appendPadded(b, t.getMonthValue(), 2);
+    b.append('-');
+    appendPadded(b, t.getDayOfMonth(), 2);
+    b.append('T');
+    appendPadded(b, t.getHour(), 2);
+    b.append(':');
+    appendPadded(b, t.getMinute(), 2);
+    b.append(':');
+    appendPadded(b, t.getSecond(), 2);
+    b.append('.');
+    appendPadded(b, t.getNano() / 1000000, 3);
+    b.append("+0000");
+    return b.toString();
   }
 
   /**
@@ -410,29 +505,28 @@ public class WebUtils {
   public static final String rfc1123Date(Date d) {
     if (d == null)
       return null;
-    // SDF is not thread-safe
-    SimpleDateFormat asGMTrfc1123 = new SimpleDateFormat(PATTERN_RFC1123); // with
-                                                                           // time
-                                                                           // zone
-    asGMTrfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
-    return asGMTrfc1123.format(d);
+    return RFC1123_FORMATTER.format(d.toInstant());
   }
 
   public static final String purgeDateString(Date d) {
     if (d == null)
       return null;
-    // SDF is not thread-safe
-    SimpleDateFormat purgeDateFormat = new SimpleDateFormat(PURGE_DATE_FORMAT);
-    return purgeDateFormat.format(d);
+    return PURGE_DATE_FORMATTER
+        .format(ZonedDateTime.ofInstant(d.toInstant(), ZoneId.systemDefault()));
   }
 
   public static final Date parsePurgeDateString(String str) throws ParseException {
     if (str == null) {
       return null;
     }
-    // SDF is not thread-safe
-    SimpleDateFormat purgeDateFormat = new SimpleDateFormat(PURGE_DATE_FORMAT);
-    return purgeDateFormat.parse(str);
+    try {
+      return Date.from(LocalDateTime.parse(str, PURGE_DATE_FORMATTER)
+          .atZone(ZoneId.systemDefault()).toInstant());
+    } catch (DateTimeParseException e) {
+      ParseException ex = new ParseException(e.getMessage(), e.getErrorIndex());
+      ex.initCause(e);
+      throw ex;
+    }
   }
 
   /**
@@ -141,6 +141,8 @@ public final class HtmlConsts {
 
    public static final String RESP_TYPE_JSON = "application/json; charset=utf-8";
 
+   public static final String RESP_TYPE_GZIP = "application/gzip";
+
     /**
      * Encoding scheme for servlets
      */
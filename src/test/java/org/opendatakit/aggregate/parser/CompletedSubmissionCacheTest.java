@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CompletedSubmissionCacheTest {
+
+  private static MultiPartFormItem item(String fileName, String content) throws Exception {
+    return MultiPartFormData.receive(fileName, fileName, "text/plain",
+        new ByteArrayInputStream(content.getBytes("UTF-8")));
+  }
+
+  @Test
+  public void fingerprint_depends_on_the_content_but_not_the_order_of_the_parts()
+      throws Exception {
+    MultiPartFormItem xml = item("submission.xml", "<data id=\"form\"/>");
+    MultiPartFormItem photo = item("photo.jpg", "photo");
+    String fingerprint = CompletedSubmissionCache.fingerprint(Arrays.asList(xml, photo));
+
+    assertEquals(fingerprint, CompletedSubmissionCache.fingerprint(Arrays.asList(photo, xml)));
+    assertEquals(fingerprint, CompletedSubmissionCache.fingerprint(
+        Arrays.asList(item("submission.xml", "<data id=\"form\"/>"), item("photo.jpg", "photo"))));
+    assertNotEquals(fingerprint,
+        CompletedSubmissionCache.fingerprint(Arrays.asList(xml, item("photo.jpg", "other"))));
+    assertNotEquals(fingerprint, CompletedSubmissionCache.fingerprint(Arrays.asList(xml)));
+  }
+
+  @Test
+  public void only_a_retry_with_the_same_content_is_recognized() throws Exception {
+    String fingerprint = CompletedSubmissionCache
+        .fingerprint(Arrays.asList(item("submission.xml", "<data/>")));
+    assertFalse(CompletedSubmissionCache.isRecentlyCompleted("form", "uuid:1", fingerprint));
+
+    CompletedSubmissionCache.recordCompleted("form", "uuid:1", fingerprint);
+    assertTrue(CompletedSubmissionCache.isRecentlyCompleted("form", "uuid:1", fingerprint));
+    assertFalse(CompletedSubmissionCache.isRecentlyCompleted("other", "uuid:1", fingerprint));
+    assertFalse(CompletedSubmissionCache.isRecentlyCompleted("form", "uuid:1", "md5:other"));
+
+    CompletedSubmissionCache.forget("form", "uuid:1");
+    assertFalse(CompletedSubmissionCache.isRecentlyCompleted("form", "uuid:1", fingerprint));
+  }
+}
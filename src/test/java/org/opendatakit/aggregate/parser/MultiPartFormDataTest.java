@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+
+public class MultiPartFormDataTest {
+
+  private static final String BOUNDARY = "----odk-test-boundary";
+
+  private static byte[] content(int length) {
+    byte[] blob = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      blob[i] = (byte) (i * 31);
+    }
+    return blob;
+  }
+
+  private static void writePart(ByteArrayOutputStream body, String fieldName, String fileName,
+      String contentType, byte[] content) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("--").append(BOUNDARY).append("\r\n");
+    b.append("Content-Disposition: form-data; name=\"").append(fieldName).append("\"");
+    if (fileName != null) {
+      b.append("; filename=\"").append(fileName).append("\"");
+    }
+    b.append("\r\n");
+    if (contentType != null) {
+      b.append("Content-Type: ").append(contentType).append("\r\n");
+    }
+    b.append("\r\n");
+    body.write(b.toString().getBytes("UTF-8"));
+    body.write(content);
+    body.write("\r\n".getBytes("UTF-8"));
+  }
+
+  private static HttpServletRequest request(byte[] body) throws IOException {
+    final InputStream in = new ByteArrayInputStream(body);
+    ServletInputStream servletStream = mock(ServletInputStream.class);
+    when(servletStream.read()).thenAnswer(inv -> in.read());
+    when(servletStream.read(any(byte[].class), anyInt(), anyInt()))
+        .thenAnswer(inv -> in.read(inv.getArgument(0), inv.getArgument(1), inv.getArgument(2)));
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    when(req.getMethod()).thenReturn("POST");
+    when(req.getContentType()).thenReturn("multipart/form-data; boundary=" + BOUNDARY);
+    when(req.getContentLength()).thenReturn(body.length);
+    when(req.getInputStream()).thenReturn(servletStream);
+    return req;
+  }
+
+  private static byte[] readAll(MultiPartFormItem item) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = item.openStream()) {
+      MultiPartFormData.copy(in, out);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void large_files_are_spooled_and_hashed_as_they_are_received() throws Exception {
+    byte[] xml = "<data id=\"form\"/>".getBytes("UTF-8");
+    byte[] photo = content(3 * ParserConsts.SPOOL_THRESHOLD + 17);
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writePart(body, "isIncomplete", null, null, "yes".getBytes("UTF-8"));
+    writePart(body, "xml_submission_file", "submission.xml", "text/xml", xml);
+    writePart(body, "photo.jpg", "photo.jpg", "image/jpeg", photo);
+    body.write(("--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+
+    MultiPartFormData data = new MultiPartFormData(request(body.toByteArray()));
+    assertEquals("yes", data.getSimpleFormField("isIncomplete"));
+
+    MultiPartFormItem xmlItem = data.getFormDataByFieldName("xml_submission_file");
+    assertArrayEquals(xml, xmlItem.getBytes());
+    assertEquals(xml.length, xmlItem.getContentLength());
+    assertEquals(CommonFieldsBase.newMD5HashUri(xml), xmlItem.getContentHash());
+
+    MultiPartFormItem photoItem = data.getFormDataByFileName("photo.jpg");
+    assertEquals("image/jpeg", photoItem.getContentType());
+    assertEquals(photo.length, photoItem.getContentLength());
+    assertEquals(CommonFieldsBase.newMD5HashUri(photo), photoItem.getContentHash());
+    // the content can be read more than once
+    assertArrayEquals(photo, readAll(photoItem));
+    assertArrayEquals(photo, readAll(photoItem));
+
+    data.deleteTemporaryFiles();
+    // small files are held in memory; large ones are gone with their spool file
+    assertArrayEquals(xml, readAll(xmlItem));
+    try {
+      photoItem.openStream().close();
+      fail("spool file should have been deleted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
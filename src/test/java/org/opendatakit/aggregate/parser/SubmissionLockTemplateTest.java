@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.ITaskLockType;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+public class SubmissionLockTemplateTest {
+
+  private TaskLock taskLock;
+  private CallingContext cc;
+
+  @Before
+  public void setUp() throws Exception {
+    User user = mock(User.class);
+    taskLock = mock(TaskLock.class);
+    when(taskLock.obtainLock(anyString(), anyString(), any(ITaskLockType.class))).thenReturn(true);
+    when(taskLock.releaseLock(anyString(), anyString(), any(ITaskLockType.class))).thenReturn(true);
+    Datastore ds = mock(Datastore.class);
+    when(ds.createTaskLock(user)).thenReturn(taskLock);
+    cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+  }
+
+  @Test
+  public void the_instance_is_also_locked_in_the_datastore() throws Exception {
+    SubmissionLockTemplate lock = new SubmissionLockTemplate("form", "uuid:1", cc);
+    lock.acquire();
+    verify(taskLock).obtainLock(anyString(), eq("submission|form|uuid:1"),
+        any(ITaskLockType.class));
+    lock.release();
+    verify(taskLock).releaseLock(anyString(), eq("submission|form|uuid:1"),
+        any(ITaskLockType.class));
+    assertEquals(0, SubmissionLockTemplate.activeLockCount());
+  }
+
+  @Test
+  public void the_memory_lock_is_released_when_the_datastore_lock_is_held_elsewhere()
+      throws Exception {
+    when(taskLock.obtainLock(anyString(), anyString(), any(ITaskLockType.class)))
+        .thenReturn(false);
+    SubmissionLockTemplate lock = new SubmissionLockTemplate("form", "uuid:1", cc);
+    try {
+      lock.acquire();
+      fail("expected the acquire to time out");
+    } catch (ODKTaskLockException e) {
+      // expected
+    }
+    assertEquals(0, SubmissionLockTemplate.activeLockCount());
+  }
+
+  @Test
+  public void different_instances_do_not_wait_on_each_other() throws Exception {
+    SubmissionLockTemplate first = new SubmissionLockTemplate("form", "uuid:1", cc);
+    first.acquire();
+    try {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        Future<?> other = executor.submit(() -> {
+          SubmissionLockTemplate second = new SubmissionLockTemplate("form", "uuid:2", cc);
+          second.acquire();
+          second.release();
+          return null;
+        });
+        // well below the wait for a lock held on the same instance
+        other.get(1, TimeUnit.SECONDS);
+      } finally {
+        executor.shutdownNow();
+      }
+    } finally {
+      first.release();
+    }
+    assertEquals(0, SubmissionLockTemplate.activeLockCount());
+  }
+
+  @Test
+  public void the_same_instance_is_modified_by_one_request_at_a_time() throws Exception {
+    SubmissionLockTemplate first = new SubmissionLockTemplate("form", "uuid:1", cc);
+    first.acquire();
+    CountDownLatch acquired = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> other = executor.submit(() -> {
+        SubmissionLockTemplate second = new SubmissionLockTemplate("form", "uuid:1", cc);
+        second.acquire();
+        acquired.countDown();
+        second.release();
+        return null;
+      });
+      assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+      first.release();
+      assertTrue(acquired.await(1, TimeUnit.SECONDS));
+      other.get(1, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(0, SubmissionLockTemplate.activeLockCount());
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SubmissionStagingAreaTest {
+
+  private static MultiPartFormItem item(String fileName, String content) throws Exception {
+    return MultiPartFormData.receive(fileName, fileName, "image/jpeg",
+        new ByteArrayInputStream(content.getBytes("UTF-8")));
+  }
+
+  @Test
+  public void attachments_stored_by_earlier_parts_are_recognized() throws Exception {
+    MultiPartFormItem photo1 = item("photo1.jpg", "first");
+    MultiPartFormItem photo2 = item("photo2.jpg", "second");
+    assertFalse(SubmissionStagingArea.isStored("form", "uuid:1", "photo1.jpg", null));
+
+    SubmissionStagingArea.stage("form", "uuid:1", Arrays.asList(photo1));
+    SubmissionStagingArea.stage("form", "uuid:1", Arrays.asList(photo2));
+
+    // sent in an earlier part
+    assertTrue(SubmissionStagingArea.isStored("form", "uuid:1", "photo1.jpg", null));
+    // sent again with the same content
+    assertTrue(SubmissionStagingArea.isStored("form", "uuid:1", "photo2.jpg",
+        photo2.getContentHash()));
+    // sent again with different content
+    assertFalse(SubmissionStagingArea.isStored("form", "uuid:1", "photo2.jpg",
+        item("photo2.jpg", "changed").getContentHash()));
+    assertFalse(SubmissionStagingArea.isStored("form", "uuid:1", "photo3.jpg", null));
+    assertFalse(SubmissionStagingArea.isStored("form", "uuid:2", "photo1.jpg", null));
+
+    SubmissionStagingArea.clear("form", "uuid:1");
+    assertFalse(SubmissionStagingArea.isStored("form", "uuid:1", "photo1.jpg", null));
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.junit.Test;
+import org.opendatakit.aggregate.constants.ParserConsts;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+
+public class XmlElementTextInputStreamTest {
+
+  private static XMLStreamReader readerOn(String xml, String element) throws Exception {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    XMLStreamReader reader = factory
+        .createXMLStreamReader(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    while (reader.next() != XMLStreamConstants.START_ELEMENT
+        || !reader.getLocalName().equals(element)) {
+      // advance
+    }
+    return reader;
+  }
+
+  @Test
+  public void inline_base64_content_is_decoded_and_spooled_as_it_is_read() throws Exception {
+    byte[] photo = new byte[3 * ParserConsts.SPOOL_THRESHOLD + 5];
+    for (int i = 0; i < photo.length; ++i) {
+      photo[i] = (byte) (i * 31);
+    }
+    String encoded = Base64.encodeBase64String(photo);
+    // split the content into lines and around a CDATA section
+    String body = encoded.substring(0, 1000) + "\n  " + encoded.substring(1000, 5000)
+        + "<![CDATA[" + encoded.substring(5000, 6000) + "]]>" + encoded.substring(6000);
+    String xml = "<data id=\"form\"><photo>" + body + "</photo><name>x</name></data>";
+
+    XMLStreamReader reader = readerOn(xml, "photo");
+    InputStream in = new XmlElementTextInputStream(reader);
+    MultiPartFormItem item = MultiPartFormData.receive(null, null, "image/jpeg",
+        new Base64InputStream(in));
+    in.close();
+    try {
+      assertEquals(photo.length, item.getContentLength());
+      assertEquals(CommonFieldsBase.newMD5HashUri(photo), item.getContentHash());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream content = item.openStream()) {
+        MultiPartFormData.copy(content, out);
+      }
+      assertArrayEquals(photo, out.toByteArray());
+    } finally {
+      item.deleteSpoolFile();
+    }
+
+    // the reader is left on the end of the element
+    assertEquals(XMLStreamConstants.END_ELEMENT, reader.getEventType());
+    assertEquals("photo", reader.getLocalName());
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals("name", reader.getLocalName());
+  }
+
+  @Test
+  public void closing_skips_the_rest_of_the_element() throws Exception {
+    XMLStreamReader reader = readerOn("<data><a>abc<b>def</b>ghi</a><c/></data>", "a");
+    InputStream in = new XmlElementTextInputStream(reader);
+    assertEquals('a', in.read());
+    in.close();
+    assertEquals("a", reader.getLocalName());
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals("c", reader.getLocalName());
+
+    reader = readerOn("<data><a>abc<b>def</b>ghi</a></data>", "a");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MultiPartFormData.copy(new XmlElementTextInputStream(reader), out);
+    assertEquals("abcghi", out.toString("UTF-8"));
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.query.submission;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.opendatakit.common.persistence.GroupedAggregate;
+
+public class SubmissionAggregateCacheTest {
+
+  private static List<GroupedAggregate> groups() {
+    return Collections.singletonList(new GroupedAggregate("a", 2L, 2L, BigDecimal.ONE));
+  }
+
+  @Test
+  public void results_are_kept_per_form_until_invalidated() {
+    List<GroupedAggregate> groups = groups();
+    SubmissionAggregateCache.put("form1", SubmissionAggregateCache.getGeneration("form1"), "key",
+        groups);
+    assertSame(groups, SubmissionAggregateCache.get("form1", "key"));
+    assertNull(SubmissionAggregateCache.get("form1", "other"));
+    assertNull(SubmissionAggregateCache.get("form2", "key"));
+
+    SubmissionAggregateCache.invalidate("form1");
+    assertNull(SubmissionAggregateCache.get("form1", "key"));
+  }
+
+  @Test
+  public void results_computed_before_an_invalidation_are_not_kept() {
+    long generation = SubmissionAggregateCache.getGeneration("form3");
+    SubmissionAggregateCache.invalidate("form3");
+    SubmissionAggregateCache.put("form3", generation, "key", groups());
+    assertNull(SubmissionAggregateCache.get("form3", "key"));
+
+    List<GroupedAggregate> groups = groups();
+    SubmissionAggregateCache.put("form3", SubmissionAggregateCache.getGeneration("form3"), "key",
+        groups);
+    assertSame(groups, SubmissionAggregateCache.get("form3", "key"));
+  }
+
+  @Test
+  public void deleted_forms_are_dropped() {
+    long generation = SubmissionAggregateCache.getGeneration("form4");
+    SubmissionAggregateCache.put("form4", generation, "key", groups());
+    SubmissionAggregateCache.remove("form4");
+    assertNull(SubmissionAggregateCache.get("form4", "key"));
+
+    // results computed while the form was being deleted
+    SubmissionAggregateCache.put("form4", generation, "key", groups());
+    assertNull(SubmissionAggregateCache.get("form4", "key"));
+  }
+
+  @Test
+  public void least_recently_used_forms_are_dropped() {
+    SubmissionAggregateCache.put("form5", SubmissionAggregateCache.getGeneration("form5"), "key",
+        groups());
+    for (int i = 0; i < SubmissionAggregateCache.MAX_FORMS; ++i) {
+      SubmissionAggregateCache.getGeneration("other" + i);
+    }
+    assertNull(SubmissionAggregateCache.get("form5", "key"));
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CoalescingTaskQueueTest {
+
+  private final List<Runnable> scheduled = new ArrayList<Runnable>();
+  private final List<String> ran = new ArrayList<String>();
+
+  private Runnable task(String name) {
+    return () -> ran.add(name);
+  }
+
+  @Test
+  public void tasks_for_a_waiting_key_are_coalesced_and_run_by_one_dispatcher() {
+    CoalescingTaskQueue queue = new CoalescingTaskQueue(scheduled::add, 10);
+    assertTrue(queue.offer("formA", task("A1")));
+    assertTrue(queue.offer("formB", task("B1")));
+    assertTrue(queue.offer("formA", task("A2")));
+    assertEquals(1, scheduled.size());
+
+    scheduled.get(0).run();
+    assertEquals(Arrays.asList("A1", "B1"), ran);
+
+    // once drained, the next offer starts a new dispatcher
+    assertTrue(queue.offer("formA", task("A3")));
+    assertEquals(2, scheduled.size());
+    scheduled.get(1).run();
+    assertEquals(Arrays.asList("A1", "B1", "A3"), ran);
+  }
+
+  @Test
+  public void tasks_are_dropped_when_the_queue_is_full() {
+    CoalescingTaskQueue queue = new CoalescingTaskQueue(scheduled::add, 2);
+    assertTrue(queue.offer("formA", task("A")));
+    assertTrue(queue.offer("formB", task("B")));
+    assertFalse(queue.offer("formC", task("C")));
+    // already waiting, so nothing is lost
+    assertTrue(queue.offer("formB", task("B2")));
+
+    scheduled.get(0).run();
+    assertEquals(Arrays.asList("A", "B"), ran);
+  }
+
+  @Test
+  public void a_failing_task_does_not_stop_the_dispatcher() {
+    CoalescingTaskQueue queue = new CoalescingTaskQueue(scheduled::add, 10);
+    queue.offer("formA", () -> {
+      throw new IllegalStateException("publisher failure");
+    });
+    queue.offer("formB", task("B"));
+    scheduled.get(0).run();
+    assertEquals(Arrays.asList("B"), ran);
+  }
+}
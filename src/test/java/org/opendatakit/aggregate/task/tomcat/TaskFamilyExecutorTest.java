@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.task.tomcat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TaskFamilyExecutorTest {
+
+  private final List<Runnable> scheduled = new ArrayList<Runnable>();
+  private final List<String> ran = new ArrayList<String>();
+
+  private Runnable task(String name) {
+    return () -> ran.add(name);
+  }
+
+  @Test
+  public void forms_take_turns() {
+    TaskFamilyExecutor executor = new TaskFamilyExecutor("export", scheduled::add, 1, 10);
+    assertTrue(executor.offer("formA", task("A1")));
+    assertTrue(executor.offer("formA", task("A2")));
+    assertTrue(executor.offer("formA", task("A3")));
+    assertTrue(executor.offer("formB", task("B1")));
+    assertTrue(executor.offer("formC", task("C1")));
+    assertTrue(executor.offer("formB", task("B2")));
+    // one thread, so one dispatcher
+    assertEquals(1, scheduled.size());
+    assertEquals(6, executor.getQueueDepth());
+
+    scheduled.get(0).run();
+    assertEquals(Arrays.asList("A1", "B1", "C1", "A2", "B2", "A3"), ran);
+    assertEquals(0, executor.getQueueDepth());
+    assertEquals(0, executor.getRunningCount());
+    assertEquals(6, executor.getCompletedCount());
+  }
+
+  @Test
+  public void dispatchers_are_started_up_to_the_thread_count() {
+    TaskFamilyExecutor executor = new TaskFamilyExecutor("publish", scheduled::add, 2, 10);
+    executor.offer("formA", task("A"));
+    executor.offer("formB", task("B"));
+    executor.offer("formC", task("C"));
+    assertEquals(2, scheduled.size());
+    assertEquals(2, executor.getRunningCount());
+
+    scheduled.get(0).run();
+    assertEquals(Arrays.asList("A", "B", "C"), ran);
+    // the other dispatcher finds nothing left
+    scheduled.get(1).run();
+    assertEquals(0, executor.getRunningCount());
+  }
+
+  @Test
+  public void tasks_are_rejected_when_the_queue_is_full() {
+    TaskFamilyExecutor executor = new TaskFamilyExecutor("maintenance", scheduled::add, 1, 2);
+    assertTrue(executor.offer("formA", task("A")));
+    assertTrue(executor.offer("formB", task("B")));
+    assertFalse(executor.offer("formC", task("C")));
+    assertEquals(1, executor.getRejectedCount());
+
+    scheduled.get(0).run();
+    assertEquals(Arrays.asList("A", "B"), ran);
+    assertTrue(executor.offer("formC", task("C")));
+  }
+
+  @Test
+  public void a_failing_task_does_not_stop_the_dispatcher() {
+    TaskFamilyExecutor executor = new TaskFamilyExecutor("export", scheduled::add, 1, 10);
+    executor.offer("formA", () -> {
+      throw new IllegalStateException("export failure");
+    });
+    executor.offer("formB", task("B"));
+    scheduled.get(0).run();
+    assertEquals(Arrays.asList("B"), ran);
+    assertEquals(2, executor.getCompletedCount());
+    assertTrue(executor.getMetrics().contains("failed 1"));
+  }
+}
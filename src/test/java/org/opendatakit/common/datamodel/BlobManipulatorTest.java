@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobManipulator;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobOutputStream;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+public class BlobManipulatorTest {
+
+  private static final String URI_VERSIONED_CONTENT = "uuid:content";
+  private static final String TOP_LEVEL_KEY = "uuid:toplevel";
+
+  private final BinaryContentRefBlob bcbRef = new BinaryContentRefBlob("schema", "T_VREF");
+  private final RefBlob ref = new RefBlob("schema", "T_BLB");
+  private final BinaryContent ctnt = new BinaryContent("schema", "T_BIN");
+
+  private final Map<String, CommonFieldsBase> stored = new LinkedHashMap<String, CommonFieldsBase>();
+  private final List<Integer> putBatchSizes = new ArrayList<Integer>();
+  private final List<Integer> fetchBatchSizes = new ArrayList<Integer>();
+
+  private Datastore ds;
+  private CallingContext cc;
+
+  @Before
+  public void setUp() throws Exception {
+    final User user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:test@example.org");
+
+    ds = mock(Datastore.class);
+    when(ds.createEntityUsingRelation(any(CommonFieldsBase.class), eq(user)))
+        .thenAnswer(inv -> ((CommonFieldsBase) inv.getArgument(0)).getEmptyRow(user));
+    doAnswer(inv -> {
+      Collection<?> rows = inv.getArgument(0);
+      putBatchSizes.add(rows.size());
+      for (Object row : rows) {
+        CommonFieldsBase cb = (CommonFieldsBase) row;
+        stored.put(cb.getUri(), cb);
+      }
+      return null;
+    }).when(ds).putEntities(any(), eq(user));
+
+    doAnswer(inv -> {
+      CommonFieldsBase cb = inv.getArgument(0);
+      stored.put(cb.getUri(), cb);
+      return null;
+    }).when(ds).putEntity(any(), eq(user));
+    doAnswer(inv -> {
+      for (Object key : (Collection<?>) inv.getArgument(0)) {
+        stored.remove(((EntityKey) key).getKey());
+      }
+      return null;
+    }).when(ds).deleteEntities(any(), eq(user));
+
+    when(ds.createQuery(eq(bcbRef), anyString(), eq(user))).thenAnswer(inv -> bcbQuery());
+
+    Query ctntQuery = mock(Query.class);
+    when(ctntQuery.executeQuery()).thenAnswer(inv -> {
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      for (CommonFieldsBase cb : stored.values()) {
+        if (cb instanceof BinaryContent) {
+          rows.add(cb);
+        }
+      }
+      return rows;
+    });
+    when(ds.createQuery(eq(ctnt), anyString(), eq(user))).thenReturn(ctntQuery);
+
+    final List<Object> valueSet = new ArrayList<Object>();
+    Query blbQuery = mock(Query.class);
+    doAnswer(inv -> {
+      valueSet.clear();
+      valueSet.addAll((Collection<?>) inv.getArgument(1));
+      return null;
+    }).when(blbQuery).addValueSetFilter(eq(ref.primaryKey), any());
+    when(blbQuery.executeQuery()).thenAnswer(inv -> {
+      fetchBatchSizes.add(valueSet.size());
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      // return the parts out of order; the manipulator must reorder them
+      for (int i = valueSet.size() - 1; i >= 0; --i) {
+        rows.add(stored.get(valueSet.get(i)));
+      }
+      return rows;
+    });
+    when(ds.createQuery(eq(ref), anyString(), eq(user))).thenReturn(blbQuery);
+
+    cc = mock(CallingContext.class);
+    when(cc.getDatastore()).thenReturn(ds);
+    when(cc.getCurrentUser()).thenReturn(user);
+
+    ref.value.setMaxCharLen(10L);
+    // as if the relation had been asserted
+    for (DataField f : ctnt.getFieldList()) {
+      if (f.getMaxCharLen() == null) {
+        f.setMaxCharLen(255L);
+      }
+    }
+  }
+
+  /**
+   * @return a query on the part references that honors the filters used by
+   *         BlobManipulator.
+   */
+  private Query bcbQuery() throws Exception {
+    final List<Object> domAuri = new ArrayList<Object>();
+    final List<Object> subAuris = new ArrayList<Object>();
+    Query q = mock(Query.class);
+    doAnswer(inv -> domAuri.add(inv.getArgument(2))).when(q)
+        .addFilter(eq(bcbRef.domAuri), eq(FilterOperation.EQUAL), any());
+    doAnswer(inv -> subAuris.addAll((Collection<?>) inv.getArgument(1))).when(q)
+        .addValueSetFilter(eq(bcbRef.subAuri), any());
+    when(q.executeQuery()).thenAnswer(inv -> {
+      List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+      for (CommonFieldsBase cb : stored.values()) {
+        if (cb instanceof BinaryContentRefBlob) {
+          BinaryContentRefBlob bcb = (BinaryContentRefBlob) cb;
+          if ((domAuri.isEmpty() || domAuri.contains(bcb.getDomAuri()))
+              && (subAuris.isEmpty() || subAuris.contains(bcb.getSubAuri()))) {
+            rows.add(cb);
+          }
+        }
+      }
+      return rows;
+    });
+    return q;
+  }
+
+  private static byte[] content(int length) {
+    byte[] blob = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      blob[i] = (byte) (i * 31);
+    }
+    return blob;
+  }
+
+  @Test
+  public void blob_is_written_in_batches_and_streamed_back_in_part_order() throws Exception {
+    byte[] blob = content(95);
+
+    new BlobManipulator(new ByteArrayInputStream(blob), URI_VERSIONED_CONTENT, bcbRef, ref,
+        TOP_LEVEL_KEY, cc);
+
+    // 10 parts, each a RefBlob and a BinaryContentRefBlob, 4 parts per batch
+    assertEquals(20, stored.size());
+    assertEquals(3, putBatchSizes.size());
+    assertEquals(Integer.valueOf(8), putBatchSizes.get(0));
+    assertEquals(Integer.valueOf(4), putBatchSizes.get(2));
+
+    BlobManipulator reader = new BlobManipulator(URI_VERSIONED_CONTENT, bcbRef, ref, cc);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = reader.getBlobInputStream()) {
+      byte[] buffer = new byte[7];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        out.write(buffer, 0, len);
+      }
+    }
+
+    assertArrayEquals(blob, out.toByteArray());
+    assertEquals(3, fetchBatchSizes.size());
+    for (int size : fetchBatchSizes) {
+      assertTrue(size <= 4);
+    }
+    assertArrayEquals(blob, reader.getBlob());
+  }
+
+  @Test
+  public void deletion_keys_are_gathered_without_fetching_the_parts() throws Exception {
+    new BlobManipulator(content(25), URI_VERSIONED_CONTENT, bcbRef, ref, TOP_LEVEL_KEY, cc);
+
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    new BlobManipulator(URI_VERSIONED_CONTENT, bcbRef, ref, cc)
+        .recursivelyAddEntityKeysForDeletion(keys);
+
+    assertEquals(6, keys.size());
+    for (EntityKey key : keys) {
+      assertTrue(stored.containsKey(key.getKey()));
+    }
+    verify(ds, never()).createQuery(eq(ref), anyString(), any(User.class));
+  }
+
+  @Test
+  public void shared_parts_are_kept_until_the_last_reference_is_deleted() throws Exception {
+    byte[] blob = content(25);
+    new BlobManipulator(blob, URI_VERSIONED_CONTENT, bcbRef, ref, TOP_LEVEL_KEY, cc);
+    BlobManipulator original = new BlobManipulator(URI_VERSIONED_CONTENT, bcbRef, ref, cc);
+    assertTrue(original.hasContent(blob));
+    assertFalse(original.hasContent(content(24)));
+
+    new BlobManipulator(original, "uuid:other-content", "uuid:other-toplevel", cc);
+    // 3 parts, referenced twice
+    assertEquals(9, stored.size());
+    BlobManipulator copy = new BlobManipulator("uuid:other-content", bcbRef, ref, cc);
+    assertArrayEquals(blob, copy.getBlob());
+
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    original.recursivelyAddEntityKeysForDeletion(keys);
+    DeleteHelper.deleteEntities(keys, cc);
+    // only the part references of the original are removed
+    assertEquals(6, stored.size());
+    assertArrayEquals(blob, new BlobManipulator("uuid:other-content", bcbRef, ref, cc).getBlob());
+
+    keys.clear();
+    copy.recursivelyAddEntityKeysForDeletion(keys);
+    DeleteHelper.deleteEntities(keys, cc);
+    assertTrue(stored.isEmpty());
+  }
+
+  @Test
+  public void shared_parts_are_deleted_with_all_of_their_references() throws Exception {
+    new BlobManipulator(content(25), URI_VERSIONED_CONTENT, bcbRef, ref, TOP_LEVEL_KEY, cc);
+    BlobManipulator original = new BlobManipulator(URI_VERSIONED_CONTENT, bcbRef, ref, cc);
+    new BlobManipulator(original, "uuid:other-content", "uuid:other-toplevel", cc);
+    BlobManipulator copy = new BlobManipulator("uuid:other-content", bcbRef, ref, cc);
+
+    // as when deleting both submissions together
+    List<EntityKey> keys = new ArrayList<EntityKey>();
+    original.recursivelyAddEntityKeysForDeletion(keys);
+    copy.recursivelyAddEntityKeysForDeletion(keys);
+    DeleteHelper.deleteEntities(keys, cc);
+
+    assertTrue(stored.isEmpty());
+  }
+
+  @Test
+  public void streamed_attachment_resumes_from_its_last_checkpoint() throws Exception {
+    byte[] blob = content(45);
+    BinaryContentManipulator bcm = new BinaryContentManipulator(TOP_LEVEL_KEY, TOP_LEVEL_KEY,
+        ctnt, bcbRef, ref);
+    BlobOutputStream out = bcm.newBlobOutputStream("text/csv", "results.csv", cc);
+    out.write(blob, 0, 15);
+    // a full part and a partial one
+    assertEquals(2L, out.checkpoint());
+    // this attempt stops after persisting another part
+    out.write(blob, 15, 12);
+
+    BinaryContentManipulator retry = new BinaryContentManipulator(TOP_LEVEL_KEY, TOP_LEVEL_KEY,
+        ctnt, bcbRef, ref);
+    BlobOutputStream resumed = retry.resumeBlobOutputStream("results.csv", 2L, cc);
+    assertEquals(15L, resumed.getContentLength());
+    resumed.write(blob, 15, 30);
+    resumed.close();
+
+    BinaryContentManipulator reader = new BinaryContentManipulator(TOP_LEVEL_KEY, TOP_LEVEL_KEY,
+        ctnt, bcbRef, ref);
+    assertEquals(1, reader.getAttachmentCount(cc));
+    assertArrayEquals(blob, reader.getBlob(1, cc));
+    assertEquals(Long.valueOf(45L), reader.getContentLength(1, cc));
+    assertEquals(CommonFieldsBase.newMD5HashUri(blob), reader.getContentHash(1, cc));
+    // a complete attachment cannot be resumed
+    assertEquals(null, reader.resumeBlobOutputStream("results.csv", 2L, cc));
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.security.User;
+
+public class ChildRowCacheTest {
+
+  private final BinaryContent ctnt = new BinaryContent("schema", "T_BN");
+
+  private final List<DynamicBase> stored = new ArrayList<DynamicBase>();
+  private final List<Integer> queryBatchSizes = new ArrayList<Integer>();
+
+  private Datastore ds;
+  private User user;
+
+  @Before
+  public void setUp() throws Exception {
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:test@example.org");
+
+    ds = mock(Datastore.class);
+    when(ds.getMaxValueSetSize()).thenReturn(30);
+    when(ds.createQuery(eq(ctnt), anyString(), eq(user))).thenAnswer(inv -> {
+      final List<Object> parents = new ArrayList<Object>();
+      Query q = mock(Query.class);
+      doAnswer(qinv -> parents.addAll((Collection<?>) qinv.getArgument(1))).when(q)
+          .addValueSetFilter(eq(ctnt.parentAuri), any());
+      when(q.executeQuery()).thenAnswer(qinv -> {
+        queryBatchSizes.add(parents.size());
+        List<CommonFieldsBase> rows = new ArrayList<CommonFieldsBase>();
+        for (DynamicBase row : stored) {
+          if (parents.contains(row.getParentAuri())) {
+            rows.add(row);
+          }
+        }
+        return rows;
+      });
+      return q;
+    });
+  }
+
+  private void store(String uriParent, long ordinal) {
+    BinaryContent row = ctnt.getEmptyRow(user);
+    row.setTopLevelAuri(uriParent);
+    row.setParentAuri(uriParent);
+    row.setOrdinalNumber(ordinal);
+    stored.add(row);
+  }
+
+  @Test
+  public void children_of_all_top_level_entities_are_fetched_in_batches() throws Exception {
+    List<String> uris = new ArrayList<String>();
+    for (int i = 0; i < 45; ++i) {
+      uris.add("uuid:" + i);
+    }
+    // stored out of order; the cache must order them by ordinal
+    store("uuid:3", 2L);
+    store("uuid:40", 1L);
+    store("uuid:3", 1L);
+
+    ChildRowCache cache = new ChildRowCache(uris);
+    List<DynamicBase> rows = cache.getRows(ctnt, "uuid:3", ds, user);
+    assertEquals(2, rows.size());
+    assertEquals(Long.valueOf(1L), rows.get(0).getOrdinalNumber());
+    assertEquals(Long.valueOf(2L), rows.get(1).getOrdinalNumber());
+    assertEquals(Arrays.asList(30, 15), queryBatchSizes);
+
+    // answered from memory
+    assertEquals(1, cache.getRows(ctnt, "uuid:40", ds, user).size());
+    assertTrue(cache.getRows(ctnt, "uuid:0", ds, user).isEmpty());
+    assertEquals(2, queryBatchSizes.size());
+
+    // an unknown parent is fetched on its own
+    assertTrue(cache.getRows(ctnt, "uuid:other", ds, user).isEmpty());
+    assertEquals(Arrays.asList(30, 15, 1), queryBatchSizes);
+  }
+}
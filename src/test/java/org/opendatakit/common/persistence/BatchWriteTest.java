@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.opendatakit.common.persistence.TestTable.integerField;
+import static org.opendatakit.common.persistence.TestTable.stringField;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Verifies Datastore.putEntities and deleteEntities against the test
+ * database and reports their timing relative to writing and deleting the
+ * same rows one at a time.
+ */
+public class BatchWriteTest {
+  private static final int ROW_COUNT = 2000;
+  // more rows than one insert statement can bind on any of the engines
+  private static final int CHUNKED_ROW_COUNT = 7000;
+
+  private CallingContext cc;
+  private Datastore ds;
+  private User user;
+  private TestTable table;
+
+  @Before
+  public void setUp() throws Exception {
+    cc = TestContextFactory.getCallingContext();
+    ds = cc.getDatastore();
+    user = cc.getCurrentUser();
+    table = new TestTable(ds.getDefaultSchemaName(), "BATCH_WRITE_TEST_TABLE");
+    ds.assertRelation(table, user);
+    ds.dropRelation(table, user);
+    table = new TestTable(ds.getDefaultSchemaName(), "BATCH_WRITE_TEST_TABLE");
+    ds.assertRelation(table, user);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    ds.dropRelation(table, user);
+  }
+
+  @Test
+  public void putEntities_and_deleteEntities_round_trip_all_rows() throws ODKDatastoreException {
+    List<TestTable> rows = buildRows("batch");
+
+    long start = System.currentTimeMillis();
+    ds.putEntities(rows, user);
+    long insertMillis = System.currentTimeMillis() - start;
+    assertEquals(ROW_COUNT, countRows());
+
+    for (TestTable row : rows) {
+      row.setLongField(integerField, row.getLongField(integerField) + 1);
+    }
+    start = System.currentTimeMillis();
+    ds.putEntities(rows, user);
+    long updateMillis = System.currentTimeMillis() - start;
+    assertEquals(ROW_COUNT, countRows());
+
+    start = System.currentTimeMillis();
+    ds.deleteEntities(keysOf(rows), user);
+    long deleteMillis = System.currentTimeMillis() - start;
+    assertEquals(0, countRows());
+
+    System.out.println("putEntities/deleteEntities of " + ROW_COUNT + " rows: insert "
+        + insertMillis + "ms update " + updateMillis + "ms delete " + deleteMillis + "ms");
+  }
+
+  @Test
+  public void putEntities_marks_every_chunk_of_an_insert_as_stored() throws ODKDatastoreException {
+    List<TestTable> rows = buildRows("chunked", CHUNKED_ROW_COUNT);
+
+    ds.putEntities(rows, user);
+    for (TestTable row : rows) {
+      assertTrue(row.isFromDatabase());
+    }
+
+    // a second put must update the rows of every chunk rather than insert them again
+    for (TestTable row : rows) {
+      row.setLongField(integerField, row.getLongField(integerField) + 1);
+    }
+    ds.putEntities(rows, user);
+    assertEquals(CHUNKED_ROW_COUNT, countRows());
+  }
+
+  @Test
+  public void single_row_writes_for_comparison() throws ODKDatastoreException {
+    List<TestTable> rows = buildRows("single");
+
+    long start = System.currentTimeMillis();
+    for (TestTable row : rows) {
+      ds.putEntity(row, user);
+    }
+    long insertMillis = System.currentTimeMillis() - start;
+    assertEquals(ROW_COUNT, countRows());
+
+    start = System.currentTimeMillis();
+    for (EntityKey key : keysOf(rows)) {
+      ds.deleteEntity(key, user);
+    }
+    long deleteMillis = System.currentTimeMillis() - start;
+    assertEquals(0, countRows());
+
+    System.out.println("putEntity/deleteEntity of " + ROW_COUNT + " rows: insert "
+        + insertMillis + "ms delete " + deleteMillis + "ms");
+  }
+
+  private List<TestTable> buildRows(String prefix) {
+    return buildRows(prefix, ROW_COUNT);
+  }
+
+  private List<TestTable> buildRows(String prefix, int count) {
+    List<TestTable> rows = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      TestTable row = ds.createEntityUsingRelation(table, user);
+      row.setStringField(stringField, prefix + i);
+      row.setLongField(integerField, (long) i);
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  private List<EntityKey> keysOf(List<TestTable> rows) {
+    List<EntityKey> keys = new ArrayList<>();
+    for (TestTable row : rows) {
+      keys.add(row.getEntityKey());
+    }
+    return keys;
+  }
+
+  private int countRows() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "BatchWriteTest.countRows", user);
+    return query.executeQuery().size();
+  }
+}
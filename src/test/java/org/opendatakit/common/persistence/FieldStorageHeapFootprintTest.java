@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.security.User;
+
+/**
+ * Measures the retained heap of N rows of a wide relation, populated the way
+ * the row mappers populate rows read from the database. The relation mimics
+ * the top-level table of a wide form: a mix of strings, integers, decimals,
+ * dates and booleans, some of them left null.
+ */
+public class FieldStorageHeapFootprintTest {
+  private static final int ROW_COUNT = 20000;
+  private static final int COLUMNS_PER_TYPE = 10;
+  // the rows took 5588 bytes each when the values were kept in a HashMap
+  private static final long MAX_BYTES_PER_ROW = 5000L;
+
+  private static class WideTable extends CommonFieldsBase {
+    final List<DataField> strings = new ArrayList<DataField>();
+    final List<DataField> integers = new ArrayList<DataField>();
+    final List<DataField> decimals = new ArrayList<DataField>();
+    final List<DataField> dates = new ArrayList<DataField>();
+    final List<DataField> booleans = new ArrayList<DataField>();
+
+    WideTable() {
+      super("schema", "WIDE_TABLE");
+      for (int i = 0; i < COLUMNS_PER_TYPE; ++i) {
+        add(strings, new DataField("STRING_" + i, DataType.STRING, true, 255L));
+        add(integers, new DataField("INTEGER_" + i, DataType.INTEGER, true));
+        add(decimals, new DataField("DECIMAL_" + i, DataType.DECIMAL, true).asDoublePrecision(true));
+        add(dates, new DataField("DATE_" + i, DataType.DATETIME, true));
+        add(booleans, new DataField("BOOLEAN_" + i, DataType.BOOLEAN, true));
+      }
+    }
+
+    WideTable(WideTable ref, User user) {
+      super(ref, user);
+      strings.addAll(ref.strings);
+      integers.addAll(ref.integers);
+      decimals.addAll(ref.decimals);
+      dates.addAll(ref.dates);
+      booleans.addAll(ref.booleans);
+    }
+
+    private void add(List<DataField> group, DataField f) {
+      group.add(f);
+      fieldList.add(f);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new WideTable(this, user);
+    }
+  }
+
+  private static void populate(WideTable row, int n) {
+    row.setFromDatabase(true);
+    row.setStringField(row.lastUpdateUriUser, "mailto:user@example.com");
+    for (int i = 0; i < COLUMNS_PER_TYPE; ++i) {
+      // leave every fifth column null, as unanswered questions would be
+      boolean isNull = (i % 5 == 4);
+      row.setStringField(row.strings.get(i), isNull ? null : "value " + n + "." + i);
+      row.setLongField(row.integers.get(i), isNull ? null : Long.valueOf(n * 31L + i));
+      row.setNumericField(row.decimals.get(i),
+          isNull ? null : WrappedBigDecimal.fromDouble(n + i / 10.0));
+      row.setDateField(row.dates.get(i), isNull ? null : new Date(1500000000000L + n * 1000L + i));
+      row.setBooleanField(row.booleans.get(i), isNull ? null : Boolean.valueOf((n + i) % 2 == 0));
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    for (int i = 0; i < 3; ++i) {
+      System.gc();
+    }
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  @Test
+  public void wide_rows_stay_below_the_map_based_footprint() {
+    User user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:user@example.com");
+    WideTable relation = new WideTable();
+
+    List<WideTable> rows = new ArrayList<WideTable>(ROW_COUNT);
+    long before = usedHeap();
+    for (int n = 0; n < ROW_COUNT; ++n) {
+      WideTable row = (WideTable) relation.getEmptyRow(user);
+      populate(row, n);
+      rows.add(row);
+    }
+    long after = usedHeap();
+
+    long bytesPerRow = (after - before) / ROW_COUNT;
+    assertTrue("retained " + bytesPerRow + " bytes per row", bytesPerRow < MAX_BYTES_PER_ROW);
+
+    // keep the rows reachable until measured, and verify the values survived
+    WideTable row = rows.get(ROW_COUNT - 1);
+    int n = ROW_COUNT - 1;
+    assertEquals("value " + n + ".0", row.getStringField(row.strings.get(0)));
+    assertEquals(Long.valueOf(n * 31L + 1), row.getLongField(row.integers.get(1)));
+    assertEquals(new Date(1500000000000L + n * 1000L + 2), row.getDateField(row.dates.get(2)));
+    assertEquals(Boolean.valueOf((n + 3) % 2 == 0), row.getBooleanField(row.booleans.get(3)));
+    assertNull(row.getLongField(row.integers.get(4)));
+    assertNull(row.getDateField(row.dates.get(4)));
+    assertNull(row.getBooleanField(row.booleans.get(4)));
+  }
+}
@@ -17,6 +17,7 @@ package org.opendatakit.common.persistence;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.opendatakit.common.persistence.Query.Direction.ASCENDING;
 import static org.opendatakit.common.persistence.TestTable.booleanField;
 import static org.opendatakit.common.persistence.TestTable.dateField;
@@ -24,6 +25,9 @@ import static org.opendatakit.common.persistence.TestTable.doubleField;
 import static org.opendatakit.common.persistence.TestTable.integerField;
 import static org.opendatakit.common.persistence.TestTable.stringField;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -188,6 +192,98 @@ public class QueryResultTest {
     assertFalse(lastPage.hasMoreResults());
   }
 
+  @Test
+  public void query_executeQuery_forward_cursor_pages_through_duplicate_sort_values() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeQuery_forward_cursor_pages_through_duplicate_sort_values", user);
+    // Only STRINGS.length distinct values, so every page boundary falls
+    // within a run of identical dominant sort values
+    query.addSort(stringField, ASCENDING);
+
+    int pageSize = 7;
+    Set<String> pks = new HashSet<>();
+    int rowCount = 0;
+    QueryResumePoint startCursor = null;
+    QueryResult page;
+    do {
+      page = query.executeQuery(startCursor, pageSize);
+      for (CommonFieldsBase cb : page.getResultList()) {
+        pks.add(cb.getUri());
+        rowCount++;
+      }
+      startCursor = page.getResumeCursor();
+    } while (page.hasMoreResults());
+
+    assertEquals(TEST_ROWS.length, rowCount);
+    assertEquals(TEST_ROWS.length, pks.size());
+  }
+
+  @Test
+  public void query_stream_visits_every_row_in_order() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_stream_visits_every_row_in_order", user);
+    query.addSort(stringField, ASCENDING);
+
+    final List<String> values = new ArrayList<>();
+    final Set<String> pks = new HashSet<>();
+    // a fetch size smaller than the result set forces several round trips
+    query.stream(7, cb -> {
+      values.add(cb.getStringField(stringField));
+      pks.add(cb.getUri());
+    });
+
+    assertEquals(TEST_ROWS.length, values.size());
+    assertEquals(TEST_ROWS.length, pks.size());
+    List<String> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    assertEquals(sorted, values);
+  }
+
+  @Test
+  public void query_executeGroupedAggregate_counts_each_group() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeGroupedAggregate_counts_each_group", user);
+
+    List<GroupedAggregate> groups = query.executeGroupedAggregate(stringField, null);
+
+    assertEquals(STRINGS.length, groups.size());
+    for (int i = 0; i < STRINGS.length; i++) {
+      assertEquals(STRINGS[i], groups.get(i).getGroupValue());
+      assertEquals(TEST_ROWS.length / STRINGS.length, groups.get(i).getCount());
+      assertNull(groups.get(i).getSum());
+    }
+  }
+
+  @Test
+  public void query_executeGroupedAggregate_sums_within_the_filters() throws ODKDatastoreException {
+    Query query = ds.createQuery(table, "query_executeGroupedAggregate_sums_within_the_filters", user);
+    query.addFilter(integerField, Query.FilterOperation.GREATER_THAN, 0L);
+
+    List<GroupedAggregate> groups = query.executeGroupedAggregate(stringField, integerField);
+
+    // the rows of each string have integers 1 and 2 in equal numbers
+    int rowsPerGroup = TEST_ROWS.length / STRINGS.length / SET_SIZE * (SET_SIZE - 1);
+    assertEquals(STRINGS.length, groups.size());
+    for (GroupedAggregate group : groups) {
+      assertEquals(rowsPerGroup, group.getCount());
+      assertEquals(rowsPerGroup, group.getValueCount());
+      assertEquals(0, BigDecimal.valueOf(rowsPerGroup / 2 * 3).compareTo(group.getSum()));
+      assertEquals(0, new BigDecimal("1.5").compareTo(group.getAverage()));
+    }
+  }
+
+  @Test
+  public void query_addSubqueryFilter_selects_the_rows_matching_the_subquery() throws ODKDatastoreException {
+    Query subquery = ds.createQuery(table, "query_addSubqueryFilter_subquery", user);
+    subquery.addFilter(stringField, Query.FilterOperation.EQUAL, "B");
+    Query query = ds.createQuery(table, "query_addSubqueryFilter_selects_the_rows_matching_the_subquery", user);
+    query.addSubqueryFilter(table.primaryKey, subquery, table.primaryKey);
+
+    List<? extends CommonFieldsBase> rows = query.executeQuery();
+
+    assertEquals(TEST_ROWS.length / STRINGS.length, rows.size());
+    for (CommonFieldsBase row : rows) {
+      assertEquals("B", row.getStringField(stringField));
+    }
+  }
+
   private static synchronized TestTable createTestTable() throws ODKDatastoreException {
     System.out.println("Creating the test table");
     TestTable tablePrototype = new TestTable(ds.getDefaultSchemaName());
@@ -34,7 +34,14 @@ class TestTable extends CommonFieldsBase {
    * Construct a relation prototype.
    */
   TestTable(String schema) {
-    super(schema, "TEST_TABLE");
+    this(schema, "TEST_TABLE");
+  }
+
+  /**
+   * Construct a relation prototype with a specific table name.
+   */
+  TestTable(String schema, String tableName) {
+    super(schema, tableName);
     fieldList.add(stringField);
     fieldList.add(integerField);
     fieldList.add(doubleField);
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.security.User;
+import org.springframework.jdbc.BadSqlGrammarException;
+
+public class RelationDefinitionCacheTest {
+
+  private static class Table extends CommonFieldsBase {
+    final DataField name;
+
+    Table(String tableName, Long nameLength) {
+      super("schema", tableName);
+      fieldList.add(name = new DataField("NAME", DataType.STRING, true, nameLength));
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      throw new IllegalStateException("not used");
+    }
+  }
+
+  @Test
+  public void cached_dimensions_are_applied_to_a_new_prototype() {
+    RelationDefinitionCache cache = new RelationDefinitionCache();
+    Table asserted = new Table("T", null);
+    String signature = cache.getSignature(asserted);
+    // simulate assertRelation() updating the field from the database
+    asserted.name.setMaxCharLen(250L);
+    cache.putDefinition(asserted, signature);
+
+    Table candidate = new Table("T", null);
+    assertTrue(cache.applyCachedDefinition(candidate, cache.getSignature(candidate)));
+    assertEquals(Long.valueOf(250L), candidate.name.getMaxCharLen());
+  }
+
+  @Test
+  public void different_column_set_or_table_is_a_miss() {
+    RelationDefinitionCache cache = new RelationDefinitionCache();
+    Table asserted = new Table("T", null);
+    cache.putDefinition(asserted, cache.getSignature(asserted));
+
+    Table longer = new Table("T", 500L);
+    assertFalse(cache.applyCachedDefinition(longer, cache.getSignature(longer)));
+    Table other = new Table("U", null);
+    assertFalse(cache.applyCachedDefinition(other, cache.getSignature(other)));
+  }
+
+  @Test
+  public void invalidate_discards_the_table() {
+    RelationDefinitionCache cache = new RelationDefinitionCache();
+    Table asserted = new Table("T", null);
+    String signature = cache.getSignature(asserted);
+    cache.putDefinition(asserted, signature);
+
+    cache.invalidate("schema", "T");
+    assertFalse(cache.applyCachedDefinition(new Table("T", null), signature));
+  }
+
+  @Test
+  public void statement_is_retried_once_after_reloading_a_stale_definition() throws Exception {
+    Datastore ds = mock(Datastore.class);
+    User user = mock(User.class);
+    Table table = new Table("T", null);
+    AtomicInteger calls = new AtomicInteger();
+
+    int result = RelationDefinitionCache.retryIfStale(ds, table, user, () -> {
+      if (calls.incrementAndGet() == 1) {
+        // as if another server had dropped and recreated the table
+        throw new BadSqlGrammarException("select", "SELECT * FROM T", null);
+      }
+      return 7;
+    });
+
+    assertEquals(7, result);
+    assertEquals(2, calls.get());
+    InOrder order = inOrder(ds);
+    order.verify(ds).invalidateRelation("schema", "T");
+    order.verify(ds).assertRelation(table, user);
+  }
+
+  @Test
+  public void table_lock_is_stable_per_table() {
+    RelationDefinitionCache cache = new RelationDefinitionCache();
+    assertSame(cache.getTableLock(new Table("T", null)), cache.getTableLock(new Table("T", 5L)));
+    assertFalse(cache.getTableLock(new Table("T", null)) == cache.getTableLock(new Table("U", null)));
+  }
+}
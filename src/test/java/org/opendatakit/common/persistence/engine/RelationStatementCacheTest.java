@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.persistence.engine.RelationStatementCache.CompiledStatements;
+import org.opendatakit.common.security.User;
+
+public class RelationStatementCacheTest {
+
+  private static class Table extends CommonFieldsBase {
+    final DataField name;
+
+    Table() {
+      super("schema", "T");
+      fieldList.add(name = new DataField("NAME", DataType.STRING, true, 80L));
+    }
+
+    Table(Table ref, User user) {
+      super(ref, user);
+      name = ref.name;
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      throw new IllegalStateException("not used");
+    }
+  }
+
+  private static final String COLUMNS = "\"_URI\", \"_CREATOR_URI_USER\", \"_CREATION_DATE\", "
+      + "\"_LAST_UPDATE_URI_USER\", \"_LAST_UPDATE_DATE\", \"NAME\"";
+
+  @Test
+  public void statements_are_generated_from_the_field_list() {
+    CompiledStatements s = new RelationStatementCache("\"").getStatements(new Table());
+
+    assertEquals("\"schema\".\"T\"", s.qualifiedTableName);
+    assertEquals("SELECT " + COLUMNS + " FROM \"schema\".\"T\"", s.selectPrefix);
+    assertEquals(s.selectPrefix + " WHERE \"_URI\" = ?", s.selectByPk);
+    assertEquals("INSERT INTO \"schema\".\"T\" ( " + COLUMNS + " )  VALUES  ( ?, ?, ?, ?, ?, ? ) ",
+        s.insert);
+    assertEquals("UPDATE \"schema\".\"T\" SET \"_CREATOR_URI_USER\" = ?, \"_CREATION_DATE\" = ?, "
+        + "\"_LAST_UPDATE_URI_USER\" = ?, \"_LAST_UPDATE_DATE\" = ?, \"NAME\" = ? WHERE \"_URI\" = ?",
+        s.updateByPk);
+    assertEquals("DELETE FROM \"schema\".\"T\" WHERE \"_URI\" = ?", s.deleteByPk);
+  }
+
+  @Test
+  public void update_binds_the_primary_key_last() {
+    Table t = new Table();
+    DataField[] fields = new RelationStatementCache("\"").getStatements(t).getUpdateBindFields();
+
+    assertEquals(t.getFieldList().size(), fields.length);
+    assertSame(t.name, fields[fields.length - 2]);
+    assertSame(t.primaryKey, fields[fields.length - 1]);
+  }
+
+  @Test
+  public void entities_share_the_statements_of_their_prototype() {
+    RelationStatementCache cache = new RelationStatementCache("\"");
+    Table prototype = new Table();
+    User user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:test@example.com");
+    Table entity = new Table(prototype, user);
+
+    assertSame(cache.getStatements(prototype), cache.getStatements(entity));
+  }
+
+  @Test
+  public void another_prototype_of_the_table_regenerates_the_statements() {
+    RelationStatementCache cache = new RelationStatementCache("\"");
+    CompiledStatements s = cache.getStatements(new Table());
+
+    assertFalse(s == cache.getStatements(new Table()));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.pgres;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.security.User;
+
+public class RelationRowMapperTest {
+
+  private static class Table extends CommonFieldsBase {
+    final DataField name;
+    final DataField content;
+
+    Table() {
+      super("schema", "T");
+      fieldList.add(name = new DataField("NAME", DataType.STRING, true, 80L));
+      fieldList.add(content = new DataField("CONTENT", DataType.BINARY, true));
+    }
+
+    Table(Table ref, User user) {
+      super(ref, user);
+      name = ref.name;
+      content = ref.content;
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new Table(this, user);
+    }
+  }
+
+  private Table table;
+  private User user;
+
+  @Before
+  public void setUp() {
+    table = new Table();
+    user = mock(User.class);
+    when(user.getUriUser()).thenReturn("mailto:test@example.com");
+  }
+
+  private static ResultSet resultSetFor(DataField... fields) throws SQLException {
+    ResultSet rs = mock(ResultSet.class);
+    for (int i = 0; i < fields.length; ++i) {
+      when(rs.findColumn(fields[i].getName())).thenReturn(i + 1);
+    }
+    return rs;
+  }
+
+  @Test
+  public void columns_are_resolved_once_per_result_set() throws SQLException {
+    ResultSet rs = resultSetFor(table.getFieldList().toArray(new DataField[0]));
+    when(rs.getString(1)).thenReturn("uuid:1", "uuid:2");
+    when(rs.getString(2)).thenReturn("mailto:test@example.com");
+    when(rs.getTimestamp(3)).thenReturn(new Timestamp(0L));
+    when(rs.getTimestamp(5)).thenReturn(new Timestamp(0L));
+    when(rs.getString(6)).thenReturn("a", "b");
+    RelationRowMapper mapper = new RelationRowMapper(table, user);
+
+    Table first = (Table) mapper.mapRow(rs, 0);
+    Table second = (Table) mapper.mapRow(rs, 1);
+
+    verify(rs, times(1)).findColumn("NAME");
+    assertEquals("uuid:1", first.getUri());
+    assertEquals("b", second.getStringField(table.name));
+    assertTrue(first.isFromDatabase());
+    assertFalse(first.isPartial());
+  }
+
+  @Test
+  public void projection_reads_only_the_selected_columns() throws SQLException {
+    ResultSet rs = resultSetFor(table.primaryKey, table.name);
+    when(rs.getString(1)).thenReturn("uuid:1");
+    when(rs.getString(2)).thenReturn("a");
+    RelationRowMapper mapper = new RelationRowMapper(table,
+        new DataField[] { table.primaryKey, table.name }, user);
+
+    Table row = (Table) mapper.mapRow(rs, 0);
+
+    verify(rs, never()).findColumn("CONTENT");
+    verify(rs, never()).getBytes(anyString());
+    assertEquals("uuid:1", row.getUri());
+    assertEquals("a", row.getStringField(table.name));
+    // partial rows must not be persisted over the full record
+    assertTrue(row.isPartial());
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class WebUtilsTest {
+
+  private static final List<Date> DATES = Arrays.asList(new Date(0L), new Date(1L),
+      new Date(1526395207089L), new Date(1546300799999L), new Date(-30610224000000L),
+      new Date(253402300799999L));
+
+  private static String format(String pattern, Date d) {
+    SimpleDateFormat formatter = new SimpleDateFormat(pattern);
+    formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return formatter.format(d);
+  }
+
+  @Test
+  public void formats_dates_as_the_simple_date_formats_did() {
+    for (Date d : DATES) {
+      assertEquals(format("MM/dd/yyyy HH:mm:ss.SSS", d), WebUtils.googleDocsDateTime(d));
+      assertEquals(format("MM/dd/yyyy", d), WebUtils.googleDocsDateOnly(d));
+      assertEquals(format("yyyy-MM-dd'T'HH:mm:ss.SSSZ", d), WebUtils.iso8601Date(d));
+    }
+    Date now = new Date();
+    assertEquals(format("EEE, dd MMM yyyy HH:mm:ss zzz", now), WebUtils.rfc1123Date(now));
+    assertNull(WebUtils.iso8601Date(null));
+  }
+
+  @Test
+  public void parses_the_dates_it_formats() throws ParseException {
+    for (Date d : DATES) {
+      assertEquals(d, WebUtils.parseDate(WebUtils.iso8601Date(d)));
+    }
+    Date d = new Date(1526395207000L);
+    assertEquals(d, WebUtils.parsePurgeDateString(WebUtils.purgeDateString(d)));
+  }
+
+  @Test(expected = ParseException.class)
+  public void rejects_a_malformed_purge_date() throws ParseException {
+    WebUtils.parsePurgeDateString("yesterday");
+  }
+}